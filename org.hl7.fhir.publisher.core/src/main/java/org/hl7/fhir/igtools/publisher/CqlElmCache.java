@@ -0,0 +1,169 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.igtools.publisher.CqlSubSystem.CqlSourceFileInformation;
+import org.hl7.fhir.r5.formats.JsonParser;
+import org.hl7.fhir.r5.model.Attachment;
+import org.hl7.fhir.r5.model.Library;
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueSeverity;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueType;
+import org.hl7.fhir.utilities.validation.ValidationMessage.Source;
+
+/**
+ * The translated form of CQL libraries from earlier builds, so that a library is only
+ * translated again when something that the translation depends on has changed.
+ *
+ * Entries are found by a key that the CqlSubSystem works out from the CQL source, the
+ * translator options and version, the packages, and the keys of the libraries it includes.
+ * Each entry is a Library resource ([key].json) that has the elm (xml and json) as content
+ * along with the related artifacts, parameters and data requirements, and the translator's
+ * messages ([key].messages, tab separated).
+ *
+ * Entries are touched when they are used, and prune() removes the ones that haven't been
+ * used for a while, so that old versions of the libraries don't pile up
+ */
+public class CqlElmCache {
+
+  private static final String ELM_XML = "application/elm+xml";
+  private static final String ELM_JSON = "application/elm+json";
+  private static final long MAX_AGE = 30L * 24 * 60 * 60 * 1000;
+  private static final int MAX_ENTRIES = 2000;
+
+  private String folder;
+  private int hits;
+  private int misses;
+
+  public CqlElmCache(String folder) throws IOException {
+    this.folder = folder;
+    Utilities.createDirectory(folder);
+  }
+
+  public static String hash(String... parts) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      for (String s : parts) {
+        md.update(String.valueOf(s).getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+      }
+      StringBuilder b = new StringBuilder();
+      for (byte v : md.digest()) {
+        b.append(String.format("%02x", v));
+      }
+      return b.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new Error(e);
+    }
+  }
+
+  /**
+   * Fills in result from the cache. Returns false if there's nothing (readable) for the key
+   */
+  public synchronized boolean load(String key, CqlSourceFileInformation result) {
+    File f = new File(folder, key+".json");
+    File m = new File(folder, key+".messages");
+    if (!f.exists() || !m.exists()) {
+      misses++;
+      return false;
+    }
+    try {
+      Library lib = (Library) new JsonParser().parse(new ByteArrayInputStream(TextFile.fileToBytes(f)));
+      result.setIdentifier(new VersionedIdentifier().withId(lib.getName()).withVersion(lib.getVersion()).withSystem(lib.getUrl()));
+      for (Attachment a : lib.getContent()) {
+        if (ELM_XML.equals(a.getContentType())) {
+          result.setElm(a.getData());
+        } else if (ELM_JSON.equals(a.getContentType())) {
+          result.setJsonElm(a.getData());
+        }
+      }
+      result.getRelatedArtifacts().addAll(lib.getRelatedArtifact());
+      result.getParameters().addAll(lib.getParameter());
+      result.getDataRequirements().addAll(lib.getDataRequirement());
+      for (String line : TextFile.fileToString(m).split("\n")) {
+        String[] p = line.split("\t", 6);
+        if (p.length == 6) {
+          result.getErrors().add(new ValidationMessage(Source.Publisher, IssueType.valueOf(p[1]), Integer.parseInt(p[2]), Integer.parseInt(p[3]), p[4],
+              p[5].replace("\\n", "\n"), IssueSeverity.valueOf(p[0])));
+        }
+      }
+      long now = System.currentTimeMillis();
+      f.setLastModified(now);
+      m.setLastModified(now);
+      hits++;
+      return true;
+    } catch (Exception e) {
+      // an entry we can't read is the same as no entry
+      result.getErrors().clear();
+      result.getRelatedArtifacts().clear();
+      result.getParameters().clear();
+      result.getDataRequirements().clear();
+      misses++;
+      return false;
+    }
+  }
+
+  public synchronized void store(String key, CqlSourceFileInformation result) throws IOException {
+    Library lib = new Library();
+    if (result.getIdentifier() != null) {
+      lib.setName(result.getIdentifier().getId());
+      lib.setVersion(result.getIdentifier().getVersion());
+      lib.setUrl(result.getIdentifier().getSystem());
+    }
+    lib.addContent().setContentType(ELM_XML).setData(result.getElm());
+    if (result.getJsonElm() != null) {
+      lib.addContent().setContentType(ELM_JSON).setData(result.getJsonElm());
+    }
+    lib.getRelatedArtifact().addAll(result.getRelatedArtifacts());
+    lib.getParameter().addAll(result.getParameters());
+    lib.getDataRequirement().addAll(result.getDataRequirements());
+    StringBuilder b = new StringBuilder();
+    for (ValidationMessage vm : result.getErrors()) {
+      b.append(vm.getLevel().name()+"\t"+vm.getType().name()+"\t"+vm.getLine()+"\t"+vm.getCol()+"\t"+(vm.getLocation() == null ? "" : vm.getLocation())+"\t"+String.valueOf(vm.getMessage()).replace("\n", "\\n").replace("\t", " ")+"\n");
+    }
+    ByteArrayOutputStream bs = new ByteArrayOutputStream();
+    new JsonParser().compose(bs, lib);
+    // the messages are written last, so an entry is only complete when both files are there
+    TextFile.bytesToFile(bs.toByteArray(), Utilities.path(folder, key+".json"));
+    TextFile.stringToFile(b.toString(), Utilities.path(folder, key+".messages"), false);
+  }
+
+  /**
+   * Removes the entries that haven't been used for 30 days, and the least recently used
+   * ones beyond the limit
+   */
+  public synchronized void prune() {
+    File[] files = new File(folder).listFiles((dir, name) -> name.endsWith(".json"));
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files, Comparator.comparingLong(File::lastModified).reversed());
+    long cutoff = System.currentTimeMillis() - MAX_AGE;
+    for (int i = 0; i < files.length; i++) {
+      if (i >= MAX_ENTRIES || files[i].lastModified() < cutoff) {
+        String key = files[i].getName().substring(0, files[i].getName().length() - 5);
+        new File(folder, key+".messages").delete();
+        files[i].delete();
+      }
+    }
+  }
+
+  public synchronized int getHits() {
+    return hits;
+  }
+
+  public synchronized int getMisses() {
+    return misses;
+  }
+}
@@ -5,13 +5,26 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.cqframework.cql.cql2elm.*;
 import org.cqframework.cql.cql2elm.CqlCompilerException;
@@ -69,6 +82,7 @@ public class CqlSubSystem {
     private List<DataRequirement> dataRequirements = new ArrayList<>();
     private List<RelatedArtifact> relatedArtifacts = new ArrayList<>();
     private List<ParameterDefinition> parameters = new ArrayList<>();
+    private boolean complete;
     public VersionedIdentifier getIdentifier() {
       return identifier;
     }
@@ -108,6 +122,16 @@ public class CqlSubSystem {
 
     @Override
     public InputStream getLibrarySource(VersionedIdentifier identifier) {
+      String key = identifier.getSystem()+"|"+identifier.getId()+"|"+identifier.getVersion();
+      byte[] source = librarySources.get(key);
+      if (source == null) {
+        source = findLibrarySource(identifier);
+        librarySources.put(key, source == null ? NOT_FOUND : source);
+      }
+      return source == null || source == NOT_FOUND ? null : new ByteArrayInputStream(source);
+    }
+
+    private byte[] findLibrarySource(VersionedIdentifier identifier) {
       // VersionedIdentifier.id: Name of the library
       // VersionedIdentifier.system: Namespace for the library, as a URL
       // VersionedIdentifier.version: Version of the library
@@ -118,7 +142,7 @@ public class CqlSubSystem {
             Library l = reader.readLibrary(s);
             for (org.hl7.fhir.r5.model.Attachment a : l.getContent()) {
               if (a.getContentType() != null && a.getContentType().equals("text/cql")) {
-                return new ByteArrayInputStream(a.getData());
+                return a.getData();
               }
             }
           }
@@ -134,6 +158,19 @@ public class CqlSubSystem {
   public class NpmModelInfoProvider implements ModelInfoProvider {
 
     public ModelInfo load(ModelIdentifier modelIdentifier) {
+      String key = modelIdentifier.getSystem()+"|"+modelIdentifier.getId()+"|"+modelIdentifier.getVersion();
+      ResolvedModelInfo resolved = modelInfos.get(key);
+      if (resolved == null) {
+        resolved = findModelInfo(modelIdentifier);
+        modelInfos.put(key, resolved);
+      }
+      if (resolved.info != null && modelIdentifier.getSystem() == null) {
+        modelIdentifier.setSystem(resolved.system);
+      }
+      return resolved.info;
+    }
+
+    private ResolvedModelInfo findModelInfo(ModelIdentifier modelIdentifier) {
       // VersionedIdentifier.id: Name of the model
       // VersionedIdentifier.system: Namespace for the model, as a URL
       // VersionedIdentifier.version: Version of the model
@@ -153,11 +190,8 @@ public class CqlSubSystem {
             Library l = reader.readLibrary(s);
             for (org.hl7.fhir.r5.model.Attachment a : l.getContent()) {
               if (a.getContentType() != null && a.getContentType().equals("application/xml")) {
-                if (modelIdentifier.getSystem() == null) {
-                  modelIdentifier.setSystem(identifier.getSystem());
-                }
                 InputStream is = new ByteArrayInputStream(a.getData());
-                return JAXB.unmarshal(is, ModelInfo.class);
+                return new ResolvedModelInfo(identifier.getSystem(), JAXB.unmarshal(is, ModelInfo.class));
               }
             }
           }
@@ -166,10 +200,82 @@ public class CqlSubSystem {
         }
       }
 
-      return null;
+      return new ResolvedModelInfo(null, null);
     }
   }
 
+  private static class ResolvedModelInfo {
+    private String system;
+    private ModelInfo info;
+
+    private ResolvedModelInfo(String system, ModelInfo info) {
+      this.system = system;
+      this.info = info;
+    }
+  }
+
+  private static <T> Map<String, T> boundedCache(int size) {
+    return Collections.synchronizedMap(new LinkedHashMap<String, T>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, T> eldest) {
+        return size() > size;
+      }
+    });
+  }
+
+  private static final byte[] NOT_FOUND = new byte[0];
+
+  /**
+   * What the package providers found (or didn't find) for each library and model that the
+   * translator asked for. The translator asks again for each library that includes it, and
+   * each translation thread has its own managers, so without these the same Library resources
+   * are read out of the packages and parsed (and the ModelInfo xml unmarshalled) many times
+   */
+  private Map<String, byte[]> librarySources = boundedCache(500);
+  private Map<String, ResolvedModelInfo> modelInfos = boundedCache(50);
+
+  /**
+   * A cql file, with the name of the library and of the libraries it includes, read from
+   * the source so that the files can be translated in dependency order
+   */
+  static class CqlSource {
+    private File file;
+    private String text;
+    private String name;
+    private List<String> includes = new ArrayList<>();
+    private String key;
+
+    CqlSource(File file) throws IOException {
+      this.file = file;
+      this.text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+      Matcher m = LIBRARY.matcher(text);
+      if (m.find()) {
+        name = simpleName(m.group(1));
+      }
+      m = INCLUDE.matcher(text);
+      while (m.find()) {
+        includes.add(simpleName(m.group(1)));
+      }
+    }
+
+    String getName() {
+      return name;
+    }
+
+    private static String simpleName(String name) {
+      if (name.startsWith("\"")) {
+        return name.substring(1, name.length() - 1);
+      }
+      return name.contains(".") ? name.substring(name.lastIndexOf(".") + 1) : name;
+    }
+  }
+
+  private static final Pattern LIBRARY = Pattern.compile("^\\s*library\\s+(\"[^\"]+\"|[\\w.]+)", Pattern.MULTILINE);
+  private static final Pattern INCLUDE = Pattern.compile("^\\s*include\\s+(\"[^\"]+\"|[\\w.]+)", Pattern.MULTILINE);
+
+  // each translation thread has its own copy of the models, so there's no point having many
+  private static final int MAX_THREADS = 4;
+
   /**
    * The Implementation Guide build supports multiple versions. This code runs as R5 code.
    * The library reader loads the library from the NpmPackage and returns an R5 library,
@@ -232,6 +338,13 @@ public class CqlSubSystem {
 
   private NamespaceInfo namespaceInfo;
 
+  /**
+   * Translations from earlier builds, if there's a cache
+   */
+  private CqlElmCache elmCache;
+  // the libraries in all the folders, by name, for the cache keys of libraries that include libraries in other folders
+  private Map<String, CqlSource> allSources;
+
   public CqlSubSystem(List<NpmPackage> packages, List<String> folders, ILibraryReader reader, ILoggingService logger, UcumService ucumService, String packageId, String canonicalBase) {
     super();
     this.packages = packages;
@@ -245,6 +358,10 @@ public class CqlSubSystem {
       this.namespaceInfo = new NamespaceInfo(packageId, canonicalBase);
     }
   }
+
+  public void setElmCache(CqlElmCache elmCache) {
+    this.elmCache = elmCache;
+  }
   
   /**
    * Do the compile. Do not return any exceptions related to content; only thros exceptions for infrastructural issues 
@@ -256,12 +373,21 @@ public class CqlSubSystem {
   public void execute() throws FHIRException {
     try {
       logger.logMessage("Translating CQL source");
-      fileMap = new HashMap<>();
+      fileMap = new ConcurrentHashMap<>();
+      if (elmCache != null) {
+        allSources = readAllSources();
+      }
 
        // foreach folder
       for (String folder : folders) {
         translateFolder(folder);
       }
+      if (elmCache != null) {
+        if (elmCache.getHits() > 0) {
+          logger.logMessage(String.format("CQL: %d libraries translated, %d unchanged since an earlier build", elmCache.getMisses(), elmCache.getHits()));
+        }
+        elmCache.prune();
+      }
     }
     catch (Exception E) {
       logger.logDebugMessage(ILoggingService.LogCategory.PROGRESS, String.format("Errors occurred attempting to translate CQL content: %s", E.getMessage()));
@@ -361,7 +487,33 @@ public class CqlSubSystem {
     logger.logMessage(String.format("Translating CQL source in folder %s", folder));
 
     CqlTranslatorOptions options = getTranslatorOptions(folder);
+    LibraryManager libraryManager = newLibraryManager(folder, options);
+
+    // foreach *.cql file
+    File[] files = new File(folder).listFiles(getCqlFilenameFilter());
+    boolean hadCqlFiles = files != null && files.length > 0;
+    if (hadCqlFiles) {
+      translateFiles(folder, options, libraryManager, files);
+    }
+
+    if (hadCqlFiles) {
+      if (cachedOptions == null) {
+        if (!hasMultipleBinaryPaths) {
+          cachedOptions = options;
+          cachedLibraryManager = libraryManager;
+        }
+      }
+      else {
+        if (!hasMultipleBinaryPaths) {
+          hasMultipleBinaryPaths = true;
+          cachedOptions = null;
+          cachedLibraryManager = null;
+        }
+      }
+    }
+  }
 
+  private LibraryManager newLibraryManager(String folder, CqlTranslatorOptions options) {
     // Setup
     // Construct DefaultLibrarySourceProvider
     // Construct FhirLibrarySourceProvider
@@ -375,29 +527,193 @@ public class CqlSubSystem {
     libraryManager.getLibrarySourceLoader().registerProvider(new FhirLibrarySourceProvider());
 
     loadNamespaces(libraryManager);
+    return libraryManager;
+  }
 
-    // foreach *.cql file
-    boolean hadCqlFiles = false;
-    for (File file : new File(folder).listFiles(getCqlFilenameFilter())) {
-      hadCqlFiles = true;
-      translateFile(modelManager, libraryManager, file, options);
+  /**
+   * Translates the files in waves: a library is in the first wave after all the libraries
+   * in the folder that it includes. The libraries in a wave are translated in parallel, each
+   * thread with its own library manager (the library managers aren't thread safe). Libraries
+   * that haven't changed since an earlier build come from the cache instead
+   */
+  private void translateFiles(String folder, CqlTranslatorOptions options, LibraryManager libraryManager, File[] files) {
+    List<CqlSource> list = new ArrayList<>();
+    Map<String, CqlSource> sources = new HashMap<>();
+    for (File file : files) {
+      try {
+        CqlSource src = new CqlSource(file);
+        list.add(src);
+        if (src.name != null) {
+          sources.put(src.name, src);
+        }
+      } catch (IOException e) {
+        translateFile(libraryManager.getModelManager(), libraryManager, file, options);
+      }
     }
+    String cacheContext = elmCache == null ? null : cacheContext(folder);
+    ThreadLocal<LibraryManager> managers = ThreadLocal.withInitial(() -> newLibraryManager(folder, options));
+    ExecutorService executor = null;
+    try {
+      for (List<CqlSource> wave : waves(list, sources)) {
+        List<CqlSource> todo = new ArrayList<>();
+        for (CqlSource src : wave) {
+          if (elmCache != null) {
+            CqlSourceFileInformation result = new CqlSourceFileInformation();
+            if (elmCache.load(key(src, sources, cacheContext, new HashSet<>()), result)) {
+              logger.logMessage(String.format("CQL source in file %s is unchanged; using the translation from an earlier build", src.file.toString()));
+              fileMap.put(src.file.getAbsoluteFile().toString(), result);
+              continue;
+            }
+          }
+          todo.add(src);
+        }
+        if (todo.size() > 1) {
+          if (executor == null) {
+            executor = Executors.newFixedThreadPool(Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+          }
+          List<Future<?>> futures = new ArrayList<>();
+          for (CqlSource src : todo) {
+            futures.add(executor.submit(() -> translate(managers.get(), src, options)));
+          }
+          for (Future<?> future : futures) {
+            future.get();
+          }
+        } else {
+          for (CqlSource src : todo) {
+            translate(libraryManager, src, options);
+          }
+        }
+      }
+    } catch (InterruptedException | ExecutionException e) {
+      throw new FHIRException("Error translating CQL: "+e.getMessage(), e);
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+    }
+  }
 
-    if (hadCqlFiles) {
-      if (cachedOptions == null) {
-        if (!hasMultipleBinaryPaths) {
-          cachedOptions = options;
-          cachedLibraryManager = libraryManager;
+  private void translate(LibraryManager libraryManager, CqlSource src, CqlTranslatorOptions options) {
+    CqlSourceFileInformation result = translateFile(libraryManager.getModelManager(), libraryManager, src.file, options);
+    if (elmCache != null && src.key != null && result.complete) {
+      for (ValidationMessage vm : result.getErrors()) {
+        if (vm.isError()) {
+          return;
         }
       }
-      else {
-        if (!hasMultipleBinaryPaths) {
-          hasMultipleBinaryPaths = true;
-          cachedOptions = null;
-          cachedLibraryManager = null;
+      try {
+        elmCache.store(src.key, result);
+      } catch (IOException e) {
+        logger.logDebugMessage(ILoggingService.LogCategory.PROGRESS, String.format("Unable to cache the translation of %s: %s", src.file.toString(), e.getMessage()));
+      }
+    }
+  }
+
+  static List<List<CqlSource>> waves(List<CqlSource> list, Map<String, CqlSource> sources) {
+    List<List<CqlSource>> res = new ArrayList<>();
+    Set<CqlSource> done = new HashSet<>();
+    List<CqlSource> remaining = new ArrayList<>(list);
+    while (!remaining.isEmpty()) {
+      List<CqlSource> wave = new ArrayList<>();
+      for (CqlSource src : remaining) {
+        boolean ready = true;
+        for (String include : src.includes) {
+          CqlSource dep = sources.get(include);
+          if (dep != null && dep != src && !done.contains(dep)) {
+            ready = false;
+          }
+        }
+        if (ready) {
+          wave.add(src);
+        }
+      }
+      if (wave.isEmpty()) {
+        // the includes go round in a circle; the translator will report that
+        wave.addAll(remaining);
+      }
+      remaining.removeAll(wave);
+      done.addAll(wave);
+      res.add(wave);
+    }
+    return res;
+  }
+
+  private Map<String, CqlSource> readAllSources() {
+    Map<String, CqlSource> res = new HashMap<>();
+    for (String folder : folders) {
+      File[] files = new File(folder).listFiles(getCqlFilenameFilter());
+      if (files != null) {
+        Arrays.sort(files);
+        for (File file : files) {
+          try {
+            CqlSource src = new CqlSource(file);
+            if (src.name != null) {
+              res.putIfAbsent(src.name, src);
+            }
+          } catch (IOException e) {
+            // the folder's own translation reports this
+          }
         }
       }
     }
+    return res;
+  }
+
+  /**
+   * The cache key for a library: its source, the keys of the libraries it includes (from
+   * the folder, or else from the other folders), and everything else that can change a
+   * translation (see cacheContext). Libraries that come from the packages are covered by
+   * the packages in the context
+   */
+  String key(CqlSource src, Map<String, CqlSource> sources, String cacheContext, Set<CqlSource> visiting) {
+    if (src.key != null) {
+      return src.key;
+    }
+    visiting.add(src);
+    List<String> parts = new ArrayList<>();
+    parts.add(cacheContext);
+    parts.add(src.text);
+    for (String include : src.includes) {
+      CqlSource dep = sources.get(include);
+      if (dep == null && allSources != null) {
+        dep = allSources.get(include);
+      }
+      if (dep == null) {
+        parts.add("?"+include);
+      } else if (!visiting.contains(dep)) {
+        parts.add(key(dep, sources, cacheContext, visiting));
+      }
+    }
+    String key = CqlElmCache.hash(parts.toArray(new String[0]));
+    // libraries from other folders are hashed with the context of the folder that includes them, so they're not kept
+    if (sources.get(src.name) == src) {
+      src.key = key;
+    }
+    return key;
+  }
+
+  String cacheContext(String folder) {
+    List<String> parts = new ArrayList<>();
+    parts.add(CqlTranslator.class.getPackage().getImplementationVersion());
+    parts.add(packageId);
+    parts.add(canonicalBase);
+    for (NpmPackage p : packages) {
+      // a #current build, or a package that was built again locally, has the same version but a new date
+      parts.add(p.name()+"#"+p.version()+"|"+p.date());
+    }
+    File[] files = new File(folder).listFiles((dir, name) -> name.equals("cql-options.json") || (name.toLowerCase().contains("modelinfo") && name.endsWith(".xml")));
+    if (files != null) {
+      Arrays.sort(files);
+      for (File f : files) {
+        try {
+          parts.add(f.getName());
+          parts.add(new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+          parts.add(e.getMessage());
+        }
+      }
+    }
+    return CqlElmCache.hash(parts.toArray(new String[0]));
   }
 
   private void loadNamespaces(LibraryManager libraryManager) {
@@ -444,7 +760,7 @@ public class CqlSubSystem {
     }
   }
 
-  private void translateFile(ModelManager modelManager, LibraryManager libraryManager, File file, CqlTranslatorOptions options) {
+  private CqlSourceFileInformation translateFile(ModelManager modelManager, LibraryManager libraryManager, File file, CqlTranslatorOptions options) {
     logger.logMessage(String.format("Translating CQL source in file %s", file.toString()));
     CqlSourceFileInformation result = new CqlSourceFileInformation();
     fileMap.put(file.getAbsoluteFile().toString(), result);
@@ -496,6 +812,7 @@ public class CqlSubSystem {
           // Extract dataRequirement data
           result.dataRequirements.addAll(extractDataRequirements(translator.toRetrieves(), translator.getTranslatedLibrary(), libraryManager));
 
+          result.complete = true;
           logger.logMessage("CQL translation completed successfully.");
         }
         catch (Exception ex) {
@@ -506,6 +823,7 @@ public class CqlSubSystem {
     catch (Exception e) {
       result.getErrors().add(new ValidationMessage(ValidationMessage.Source.Publisher, IssueType.EXCEPTION, file.getName(), "CQL Processing failed with exception: "+e.getMessage(), IssueSeverity.ERROR));
     }
+    return result;
   }
 
   private FilenameFilter getCqlFilenameFilter() {
@@ -0,0 +1,137 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.model.CanonicalResource;
+
+/**
+ * Which source files depend on which other source files, so that when some of them
+ * change, the files that need to be reloaded, revalidated and regenerated can be worked out.
+ *
+ * A file depends on another file if any of its resources refers to a resource in that file:
+ * by canonical or uri (base definitions and type profiles, bindings, value set includes of
+ * value sets and code systems, and so on), by reference (one example to another), or by
+ * the profiles an example claims to conform to
+ */
+public class DependencyGraph {
+
+  private Map<String, Set<String>> dependsOn = new TreeMap<>();
+
+  /**
+   * Builds the graph, and sets the dependencies of each file to match
+   */
+  public static DependencyGraph build(List<FetchedFile> files) {
+    Map<String, FetchedFile> urls = new HashMap<>();
+    Map<String, FetchedFile> refs = new HashMap<>();
+    for (FetchedFile f : files) {
+      for (FetchedResource r : f.getResources()) {
+        refs.put(r.fhirType()+"/"+r.getId(), f);
+        if (r.getResource() instanceof CanonicalResource && ((CanonicalResource) r.getResource()).hasUrl()) {
+          urls.put(((CanonicalResource) r.getResource()).getUrl(), f);
+        }
+      }
+    }
+    DependencyGraph graph = new DependencyGraph();
+    for (FetchedFile f : files) {
+      Set<FetchedFile> deps = new HashSet<>();
+      for (FetchedResource r : f.getResources()) {
+        for (String p : r.getStatedProfiles()) {
+          addUrl(deps, urls, p);
+        }
+        if (r.getElement() != null) {
+          scan(deps, urls, refs, r.getElement());
+        }
+      }
+      deps.remove(f);
+      f.setDependencies(new ArrayList<>(deps));
+      Set<String> paths = new TreeSet<>();
+      for (FetchedFile d : deps) {
+        paths.add(d.getPath());
+      }
+      graph.dependsOn.put(f.getPath(), paths);
+    }
+    return graph;
+  }
+
+  private static void scan(Set<FetchedFile> deps, Map<String, FetchedFile> urls, Map<String, FetchedFile> refs, Element e) {
+    if (e.hasPrimitiveValue()) {
+      String v = e.primitiveValue();
+      if (v != null && v.contains("/")) {
+        if (!addUrl(deps, urls, v)) {
+          addRef(deps, refs, v);
+        }
+      }
+    }
+    if (e.hasChildren()) {
+      for (Element c : e.getChildren()) {
+        scan(deps, urls, refs, c);
+      }
+    }
+  }
+
+  private static boolean addUrl(Set<FetchedFile> deps, Map<String, FetchedFile> urls, String url) {
+    FetchedFile f = urls.get(url.contains("|") ? url.substring(0, url.indexOf("|")) : url);
+    if (f != null) {
+      deps.add(f);
+      return true;
+    }
+    return false;
+  }
+
+  private static void addRef(Set<FetchedFile> deps, Map<String, FetchedFile> refs, String ref) {
+    // [base/]Type/id[/_history/version]
+    if (ref.contains("/_history/")) {
+      ref = ref.substring(0, ref.indexOf("/_history/"));
+    }
+    String[] parts = ref.split("/");
+    if (parts.length >= 2) {
+      FetchedFile f = refs.get(parts[parts.length-2]+"/"+parts[parts.length-1]);
+      if (f != null) {
+        deps.add(f);
+      }
+    }
+  }
+
+  /**
+   * The given files, and all the files that depend on them, directly or indirectly
+   */
+  public Set<String> affected(Collection<String> changed) {
+    Map<String, Set<String>> dependents = new HashMap<>();
+    for (String path : dependsOn.keySet()) {
+      for (String d : dependsOn.get(path)) {
+        dependents.computeIfAbsent(d, k -> new HashSet<>()).add(path);
+      }
+    }
+    Set<String> res = new HashSet<>(changed);
+    LinkedList<String> queue = new LinkedList<>(changed);
+    while (!queue.isEmpty()) {
+      String path = queue.removeFirst();
+      if (dependents.containsKey(path)) {
+        for (String d : dependents.get(path)) {
+          if (res.add(d)) {
+            queue.add(d);
+          }
+        }
+      }
+    }
+    return res;
+  }
+
+  public Set<String> getDependencies(String path) {
+    return dependsOn.get(path);
+  }
+
+  public int size() {
+    return dependsOn.size();
+  }
+}
@@ -1,5 +1,7 @@
 package org.hl7.fhir.igtools.publisher;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -10,10 +12,13 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.hl7.fhir.exceptions.FHIRFormatError;
-import org.hl7.fhir.r4.model.CanonicalType;
-import org.hl7.fhir.r4.model.ValueSet.ConceptSetComponent;
+import org.hl7.fhir.igtools.publisher.utils.JsonFieldScanner;
 import org.hl7.fhir.utilities.TextFile;
 import org.hl7.fhir.utilities.Utilities;
 import org.hl7.fhir.utilities.VersionUtilities;
@@ -31,6 +36,139 @@ import org.stringtemplate.v4.ST;
 
 public class DependentIGFinder {
 
+  /**
+   * Where the analysis gets the list of IGs, the IGs that depend on this one, and their packages
+   */
+  public interface Source {
+    Set<String> findDependents(String id);
+    JsonObject getRegistry() throws IOException;
+    PackageList getPackageList(String pid, String canonical) throws IOException;
+    NpmPackage loadPackage(String pid, String version) throws IOException;
+  }
+
+  /**
+   * The package server, the IG registry on github, the package-list.json of each IG, and the package cache
+   */
+  public static class WebSource implements Source {
+    private FilesystemPackageCacheManager pcm;
+
+    public WebSource(FilesystemPackageCacheManager pcm) {
+      this.pcm = pcm;
+    }
+
+    @Override
+    public Set<String> findDependents(String id) {
+      Set<String> list = new HashSet<>();
+//      getDependentPackages(list, PackageClient.PRIMARY_SERVER);
+      PackageClient client = new PackageClient(PackageServer.secondaryServer());
+      try {
+        client.findDependents(list, id);
+      } catch (Exception e) {
+        // nothing      
+      }
+      return list;
+    }
+
+    @Override
+    public JsonObject getRegistry() throws IOException {
+      return JsonParser.parseObjectFromUrl("https://raw.githubusercontent.com/FHIR/ig-registry/master/fhir-ig-list.json");
+    }
+
+    @Override
+    public PackageList getPackageList(String pid, String canonical) throws IOException {
+      return PackageList.fromUrl(Utilities.pathURL(canonical, "package-list.json"));
+    }
+
+    @Override
+    public NpmPackage loadPackage(String pid, String version) throws IOException {
+      return pcm.loadPackage(pid, version);
+    }
+  }
+
+  /**
+   * A local copy of what the analysis uses from the web, for building without network access:
+   *
+   *   fhir-ig-list.json - the IG registry
+   *   package-lists/[id].json - the package-list.json of each IG that depends on this one
+   *   packages/[id]#[version].tgz - the packages (others are taken from the package cache)
+   *
+   * The IGs in the registry that have a package list are the candidates; the analysis still
+   * checks the package dependencies of each one
+   */
+  public static class MirrorSource implements Source {
+    private String folder;
+    private FilesystemPackageCacheManager pcm;
+
+    public MirrorSource(String folder, FilesystemPackageCacheManager pcm) {
+      this.folder = folder;
+      this.pcm = pcm;
+    }
+
+    @Override
+    public Set<String> findDependents(String id) {
+      Set<String> list = new HashSet<>();
+      File[] files = new File(folder, "package-lists").listFiles();
+      if (files != null) {
+        for (File f : files) {
+          if (f.getName().endsWith(".json")) {
+            list.add(f.getName().substring(0, f.getName().length()-5));
+          }
+        }
+      }
+      return list;
+    }
+
+    @Override
+    public JsonObject getRegistry() throws IOException {
+      return JsonParser.parseObjectFromFile(Utilities.path(folder, "fhir-ig-list.json"));
+    }
+
+    @Override
+    public PackageList getPackageList(String pid, String canonical) throws IOException {
+      return PackageList.fromFile(new File(Utilities.path(folder, "package-lists", pid+".json")));
+    }
+
+    @Override
+    public NpmPackage loadPackage(String pid, String version) throws IOException {
+      File f = new File(Utilities.path(folder, "packages", pid+"#"+version+".tgz"));
+      if (f.exists()) {
+        try (FileInputStream stream = new FileInputStream(f)) {
+          return NpmPackage.fromPackage(stream);
+        }
+      }
+      return pcm.loadPackage(pid, version);
+    }
+  }
+
+  /**
+   * What a dependent package refers to; it is the same whatever is in this IG, so it's cached
+   * for packages that don't change (everything but the ci-builds)
+   */
+  private enum RefKind { CS_VS, CS_EXAMPLE, VS_BIND, PROFILE_DERIV, EXTENSION_DERIV, PROFILE_REF, EXTENSION_REF }
+
+  private static class PackageRef {
+    private RefKind kind;
+    private String url;
+    private String turl;
+    private String title;
+    public PackageRef(RefKind kind, String url, String turl, String title) {
+      super();
+      this.kind = kind;
+      this.url = url;
+      this.turl = turl;
+      this.title = title;
+    }
+  }
+
+  private static class PackageScan {
+    private String dependency; // the version of this IG the package depends on, or null
+    private List<PackageRef> refs = new ArrayList<>();
+    
+    private void add(RefKind kind, String url, String turl, String title) {
+      refs.add(new PackageRef(kind, url, turl, title));
+    }
+  }
+
   public class Triple {
     private String url;
     private String text;
@@ -87,14 +225,23 @@ public class DependentIGFinder {
     }    
   }
 
-  private List<DepInfo> deplist = new ArrayList<>();
-  private List<String> errors = new ArrayList<>();
+  private static final int MAX_THREADS = 4;
+  private static final String[] R4_FIXED_SYSTEMS = new String[] {
+      "differential.element.fixedCoding.system", "differential.element.patternCoding.system",
+      "differential.element.fixedCodeableConcept.coding.system", "differential.element.patternCodeableConcept.coding.system",
+      "differential.element.fixedQuantity.system", "differential.element.patternQuantity.system" };
+  private static final JsonFieldScanner R4_SCANNER = r4Scanner();
+
+  private List<DepInfo> deplist = Collections.synchronizedList(new ArrayList<>());
+  private List<String> errors = Collections.synchronizedList(new ArrayList<>());
   
   private String id; // the id of the IG in question
   private String outcome; // html rendering
   private boolean debug = false;
-  private boolean working = true;
-  private FilesystemPackageCacheManager pcm;
+  private Source source;
+  private String cacheFolder;
+  private ExecutorService executor;
+  private Future<?> job;
   private Map<String, Triple> triples = new HashMap<>();
   private List<String> codeSystems = new ArrayList<>();
   private List<String> valueSets = new ArrayList<>();
@@ -110,67 +257,64 @@ public class DependentIGFinder {
   private String details1;
   private String details2;
   
+  // what the analysis needs from the R4 code systems, value sets and structure definitions of the dependent packages
+  private static JsonFieldScanner r4Scanner() {
+    List<String> paths = new ArrayList<>(List.of("resourceType", "url", "name", "title", "baseDefinition", "compose.include.system", "compose.exclude.system",
+        "differential.element.binding.valueSet", "differential.element.type.profile", "differential.element.type.targetProfile"));
+    paths.addAll(List.of(R4_FIXED_SYSTEMS));
+    return new JsonFieldScanner(paths.toArray(new String[paths.size()]));
+  }
+
   public DependentIGFinder(String id) throws IOException {
     super();
     this.id = id;
-    pcm = new FilesystemPackageCacheManager.Builder().build();
+    FilesystemPackageCacheManager pcm = new FilesystemPackageCacheManager.Builder().build();
     pcm.setSilent(true);
+    source = new WebSource(pcm);
     outcome = "Finding Dependent IGs not done yet";
   }
 
-  public void go() {
-    startThread();
-//    analyse();
-  }
-
-  private void startThread() {
-    new Thread(new Runnable() {
-      @Override
-      public void run() {
-        try {
-          analyse();
-        } catch (Exception e) {
-          if (debug) System.out.println("Processing DependentIGs failed: "+e.getMessage());
-        }
-      }
+  public void setSource(Source source) {
+    this.source = source;
+  }
 
-    }).start();
+  /**
+   * Where to keep what was found in the dependent packages from one build to the next
+   */
+  public void setCacheFolder(String cacheFolder) {
+    this.cacheFolder = cacheFolder;
+  }
+
+  public void go() {
+    // one task to put the analysis together, and the rest for the guides
+    executor = Executors.newFixedThreadPool(MAX_THREADS + 1, r -> {
+      Thread t = new Thread(r, "dependent-igs");
+      t.setDaemon(true);
+      return t;
+    });
+    job = executor.submit(this::analyse);
   }
 
   private void analyse() {
     try {
-      Set<String> plist = getDependentPackages();
-      JsonObject json = JsonParser.parseObjectFromUrl("https://raw.githubusercontent.com/FHIR/ig-registry/master/fhir-ig-list.json");
+      Set<String> plist = source.findDependents(id);
+      JsonObject json = source.getRegistry();
       
+      List<Future<?>> checks = new ArrayList<>();
       for (String pid : plist) {
         JsonObject guide = getGuide(json, pid);
         if (guide != null) {
-          checkIGDependencies(guide);
+          checks.add(executor.submit(() -> checkIGDependencies(guide)));
         }
       }
+      for (Future<?> f : checks) {
+        f.get();
+      }
       render();
-      working = false;
     } catch (Exception e) {
       System.out.println("Error processing dependencies: "+e.getMessage());
       errors.add("Unable to process: " +e.getMessage());
       outcome = "<span style=\"color: maroon\">Error analysing dependencies: "+Utilities.escapeXml(e.getMessage())+"</span>";
-      working = false;
-    }
-  }
-
-  private Set<String> getDependentPackages() {
-    Set<String> list = new HashSet<>();
-//    getDependentPackages(list, PackageClient.PRIMARY_SERVER);
-    getDependentPackages(list, PackageServer.secondaryServer());
-    return list;
-  }
-
-  private void getDependentPackages(Set<String> list, PackageServer server) {
-    PackageClient client = new PackageClient(server);
-    try {
-      client.findDependents(list, id);
-    } catch (Exception e) {
-      // nothing      
     }
   }
 
@@ -348,8 +492,8 @@ public class DependentIGFinder {
     
     // we only check the latest published version, and the CI build
     try {
-      PackageList pl = PackageList.fromUrl(Utilities.pathURL(guide.asString("canonical"), "package-list.json"));
       String canonical = guide.asString("canonical");
+      PackageList pl = source.getPackageList(pid, canonical);
       DepInfo dep = new DepInfo(pid, Utilities.path(canonical, "history.html"));
       deplist.add(dep);
       for (PackageListEntry e : pl.versions()) {
@@ -374,12 +518,12 @@ public class DependentIGFinder {
   }
 
   private DepInfoDetails checkForDependency(String pid, String version, String path) throws IOException {
+    PackageScan scan;
     try {
-      NpmPackage npm = pcm.loadPackage(pid, version);
-      for (String dep : npm.dependencies()) {
-        if (dep.startsWith(id+"#")) {
-          return buildDetails(npm, path, dep.substring(dep.indexOf("#")+1)); 
-        }
+      scan = loadScan(pid, version);
+      if (scan == null) {
+        scan = scanPackage(source.loadPackage(pid, version));
+        saveScan(pid, version, scan);
       }
     } catch (Exception e) {
       if (!"current".equals(version)) {
@@ -388,33 +532,113 @@ public class DependentIGFinder {
       }
       return new DepInfoDetails("??", null);
     }    
-    return null;
+    return scan.dependency == null ? null : buildDetails(scan, path);
+  }
+
+  private PackageScan scanPackage(NpmPackage npm) throws FHIRFormatError, IOException {
+    PackageScan scan = new PackageScan();
+    for (String dep : npm.dependencies()) {
+      if (dep.startsWith(id+"#")) {
+        scan.dependency = dep.substring(dep.indexOf("#")+1);
+        if (VersionUtilities.isR4Ver(npm.fhirVersion()) || VersionUtilities.isR4BVer(npm.fhirVersion())) {
+          scanR4IG(npm, scan);
+        } else if (VersionUtilities.isR5Plus(npm.fhirVersion())) {
+//          scanR5IG(npm, scan);
+        } else if (VersionUtilities.isR3Ver(npm.fhirVersion())) {
+//          scanR3IG(npm, scan);
+        }    
+        break;
+      }
+    }
+    return scan;
+  }
+
+  private DepInfoDetails buildDetails(PackageScan scan, String path) {
+    DepInfoDetails res = new DepInfoDetails(scan.dependency, path);
+    String link = "??";
+    for (PackageRef ref : scan.refs) {
+      switch (ref.kind) {
+      case CS_VS:
+        addToMap(codeSystems, res.codesystemsVs, ref.url, ref.turl, ref.title, link);
+        break;
+      case CS_EXAMPLE:
+        addToMap(codeSystems, res.codesystemsExamples, ref.url, ref.turl, ref.title, link);
+        break;
+      case VS_BIND:
+        addToMap(valueSets, res.valuesetsBind, ref.url, ref.turl, ref.title, link);
+        break;
+      case PROFILE_DERIV:
+        addToMap(profiles, res.profilesDeriv, ref.url, ref.turl, ref.title, link);
+        break;
+      case EXTENSION_DERIV:
+        addToMap(extensions, res.extensionsDeriv, ref.url, ref.turl, ref.title, link);
+        break;
+      case PROFILE_REF:
+        addToMap(profiles, res.profilesRef, ref.url, ref.turl, ref.title, link);
+        break;
+      case EXTENSION_REF:
+        addToMap(extensions, res.extensionsRef, ref.url, ref.turl, ref.title, link);
+        break;
+      }
+    }
+    return res;
   }
 
-  private DepInfoDetails buildDetails(NpmPackage npm, String path, String version) throws FHIRFormatError, IOException {
-    DepInfoDetails res = new DepInfoDetails(version, path);
-    if (VersionUtilities.isR4Ver(npm.fhirVersion()) || VersionUtilities.isR4BVer(npm.fhirVersion())) {
-      scanR4IG(npm, res);
-    } else if (VersionUtilities.isR5Plus(npm.fhirVersion())) {
-//      scanR5IG(npm, res);
-    } else if (VersionUtilities.isR3Ver(npm.fhirVersion())) {
-//      scanR3IG(npm, res);
-    }    
-    return res;
+  private String cacheFile(String pid, String version) throws IOException {
+    return cacheFolder == null || "current".equals(version) ? null : Utilities.path(cacheFolder, pid+"#"+version+".txt");
+  }
+
+  // first line: the version of this IG the package depends on; then kind, url, resource url, title (tab separated)
+  private PackageScan loadScan(String pid, String version) throws IOException {
+    String filename = cacheFile(pid, version);
+    if (filename == null || !new File(filename).exists()) {
+      return null;
+    }
+    String[] lines = TextFile.fileToString(filename).split("\n");
+    PackageScan scan = new PackageScan();
+    scan.dependency = lines[0].length() == 0 ? null : lines[0];
+    for (int i = 1; i < lines.length; i++) {
+      String[] p = lines[i].split("\t", 4);
+      if (p.length == 4) {
+        scan.add(RefKind.valueOf(p[0]), nullIfEmpty(p[1]), nullIfEmpty(p[2]), nullIfEmpty(p[3]));
+      }
+    }
+    return scan;
+  }
+
+  private void saveScan(String pid, String version, PackageScan scan) throws IOException {
+    String filename = cacheFile(pid, version);
+    if (filename != null) {
+      StringBuilder b = new StringBuilder();
+      b.append(scan.dependency == null ? "" : scan.dependency);
+      b.append("\n");
+      for (PackageRef ref : scan.refs) {
+        b.append(ref.kind.name()+"\t"+clean(ref.url)+"\t"+clean(ref.turl)+"\t"+clean(ref.title)+"\n");
+      }
+      Utilities.createDirectory(cacheFolder);
+      TextFile.stringToFile(b.toString(), filename, false);
+    }
   }
 
-  private void scanR4IG(NpmPackage npm, DepInfoDetails di) throws FHIRFormatError, IOException {
+  private String clean(String s) {
+    return s == null ? "" : s.replace("\t", " ").replace("\r", " ").replace("\n", " ");
+  }
+
+  private String nullIfEmpty(String s) {
+    return s.length() == 0 ? null : s;
+  }
+
+  private void scanR4IG(NpmPackage npm, PackageScan scan) throws FHIRFormatError, IOException {
     try {
     for (String t : npm.listResources("CodeSystem", "ValueSet", "StructureDefinition")) {
-      org.hl7.fhir.r4.model.Resource r = new org.hl7.fhir.r4.formats.JsonParser().parse(npm.loadResource(t));
-      String link = "??";
-      if (r instanceof org.hl7.fhir.r4.model.CodeSystem) {
-        scanCodeSystemR4((org.hl7.fhir.r4.model.CodeSystem) r, di);
-      } else if (r instanceof org.hl7.fhir.r4.model.ValueSet) {
-        scanValueSetR4((org.hl7.fhir.r4.model.ValueSet) r, di, link);
-      } else if (r instanceof org.hl7.fhir.r4.model.StructureDefinition) {
-        scanStructureDefinitionR4((org.hl7.fhir.r4.model.StructureDefinition) r, di, link);
+      Map<String, List<String>> r = R4_SCANNER.scan(npm.loadResource(t));
+      String type = first(r, "resourceType");
+      if ("ValueSet".equals(type)) {
+        scanValueSetR4(r, scan);
+      } else if ("StructureDefinition".equals(type)) {
+        scanStructureDefinitionR4(r, scan);
       }
+      // todo at some stage: check code system properties
     }
     // check the examples
     } catch (Exception e) {
@@ -423,17 +647,14 @@ public class DependentIGFinder {
     }
   }
 
-  private void scanCodeSystemR4(org.hl7.fhir.r4.model.CodeSystem cs, DepInfoDetails di) {
-    // todo at some stage: check properties)
-    
-  }
-
-  private void scanValueSetR4(org.hl7.fhir.r4.model.ValueSet vs, DepInfoDetails di, String link) {
-    for (ConceptSetComponent t : vs.getCompose().getInclude()) {
-      addToMap(codeSystems, di.codesystemsVs, t.getSystem(), vs.getUrl(), vs.present(), link);
+  private void scanValueSetR4(Map<String, List<String>> vs, PackageScan scan) {
+    String url = first(vs, "url");
+    String title = present(vs);
+    for (String system : all(vs, "compose.include.system")) {
+      scan.add(RefKind.CS_VS, system, url, title);
     }   
-    for (ConceptSetComponent t : vs.getCompose().getExclude()) {
-      addToMap(codeSystems, di.codesystemsVs, t.getSystem(), vs.getUrl(), vs.present(), link);
+    for (String system : all(vs, "compose.exclude.system")) {
+      scan.add(RefKind.CS_VS, system, url, title);
     }
   }
 
@@ -452,41 +673,45 @@ public class DependentIGFinder {
     }
   }
 
-  private void scanStructureDefinitionR4(org.hl7.fhir.r4.model.StructureDefinition sd, DepInfoDetails di, String link) {    
-    addToMap(profiles, di.profilesDeriv, sd.getBaseDefinition(), sd.getUrl(), sd.present(), link);
-    addToMap(extensions, di.extensionsDeriv, sd.getBaseDefinition(), sd.getUrl(), sd.present(), link);
+  private void scanStructureDefinitionR4(Map<String, List<String>> sd, PackageScan scan) {    
+    String url = first(sd, "url");
+    String title = present(sd);
+    scan.add(RefKind.PROFILE_DERIV, first(sd, "baseDefinition"), url, title);
+    scan.add(RefKind.EXTENSION_DERIV, first(sd, "baseDefinition"), url, title);
     
     // we only scan diffs - we're not interested in repeating everything 
-    for (org.hl7.fhir.r4.model.ElementDefinition ed : sd.getDifferential().getElement()) {
-      if (ed.getBinding().hasValueSet()) {
-        addToMap(valueSets, di.valuesetsBind, ed.getBinding().getValueSet(), sd.getUrl(), sd.present(), link);
-      }      
-      for (org.hl7.fhir.r4.model.ElementDefinition.TypeRefComponent tr : ed.getType()) {
-        for (CanonicalType c : tr.getProfile()) {
-          addToMap(extensions, di.extensionsRef, c.getValue(), sd.getUrl(), sd.present(), link);
-        }
-        for (CanonicalType c : tr.getTargetProfile()) {
-          addToMap(profiles, di.profilesRef, c.getValue(), sd.getUrl(), sd.present(), link);
-        }
-      }
-      if (ed.hasFixedOrPattern()) {
-        if (ed.getFixedOrPattern() instanceof org.hl7.fhir.r4.model.Coding) {
-          org.hl7.fhir.r4.model.Coding c = (org.hl7.fhir.r4.model.Coding) ed.getFixedOrPattern();
-          addToMap(codeSystems, di.codesystemsExamples, c.getSystem(), sd.getUrl(), sd.present(), link);
-        }
-        if (ed.getFixedOrPattern() instanceof org.hl7.fhir.r4.model.CodeableConcept) {
-          org.hl7.fhir.r4.model.CodeableConcept cc = (org.hl7.fhir.r4.model.CodeableConcept) ed.getFixedOrPattern();
-          for (org.hl7.fhir.r4.model.Coding c : cc.getCoding()) {
-            addToMap(codeSystems, di.codesystemsExamples, c.getSystem(), sd.getUrl(), sd.present(), link);
-          }
-        }
-        if (ed.getFixedOrPattern() instanceof org.hl7.fhir.r4.model.Quantity) {
-          org.hl7.fhir.r4.model.Quantity c = (org.hl7.fhir.r4.model.Quantity) ed.getFixedOrPattern();
-          addToMap(codeSystems, di.codesystemsExamples, c.getSystem(), sd.getUrl(), sd.present(), link);
-        }
+    for (String vs : all(sd, "differential.element.binding.valueSet")) {
+      scan.add(RefKind.VS_BIND, vs, url, title);
+    }      
+    for (String p : all(sd, "differential.element.type.profile")) {
+      scan.add(RefKind.EXTENSION_REF, p, url, title);
+    }
+    for (String p : all(sd, "differential.element.type.targetProfile")) {
+      scan.add(RefKind.PROFILE_REF, p, url, title);
+    }
+    for (String path : R4_FIXED_SYSTEMS) {
+      for (String system : all(sd, path)) {
+        scan.add(RefKind.CS_EXAMPLE, system, url, title);
       }
     }
   }
+
+  private String present(Map<String, List<String>> r) {
+    String res = first(r, "title");
+    if (res == null) {
+      res = first(r, "name");
+    }
+    return res == null ? first(r, "url") : res;
+  }
+
+  private String first(Map<String, List<String>> r, String path) {
+    List<String> list = r.get(path);
+    return list == null ? null : list.get(0);
+  }
+
+  private List<String> all(Map<String, List<String>> r, String path) {
+    return r.getOrDefault(path, Collections.emptyList());
+  }
   
   public String getId() {
     return id;
@@ -497,11 +722,16 @@ public class DependentIGFinder {
   }
 
   public void finish(String path, String title) throws IOException {
-    while (working) {
-      try {
-        Thread.sleep(1000);
+    if (job != null) {
+      if (!job.isDone()) {
         System.out.println("Waiting for dependency analysis to complete");
-      } catch (InterruptedException e) {
+      }
+      try {
+        job.get();
+      } catch (InterruptedException | ExecutionException e) {
+        errors.add("Unable to process: " +e.getMessage());
+      } finally {
+        executor.shutdownNow();
       }
     }
     
@@ -0,0 +1,300 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.hl7.fhir.r5.context.ILoggingService;
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.formats.JsonParser;
+import org.hl7.fhir.r5.model.CanonicalType;
+import org.hl7.fhir.r5.model.CodeSystem;
+import org.hl7.fhir.r5.model.Enumerations.CodeSystemContentMode;
+import org.hl7.fhir.r5.model.ValueSet;
+import org.hl7.fhir.r5.model.ValueSet.ConceptSetComponent;
+import org.hl7.fhir.r5.terminologies.expansion.ValueSetExpansionOutcome;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.json.model.JsonArray;
+
+/**
+ * A persistent cache of value set expansions that can be shared by all the IGs built
+ * on a machine (e.g. by a CI runner), in a SQLite database.
+ *
+ * Entries are content addressed: the key is a hash of the value set definition (without
+ * narrative and expansion), the definitions and versions of the value sets it imports,
+ * the versions of the code systems it uses, the expansion parameters, and the terminology
+ * server. So a change to any of those just means a different key, and nothing needs to
+ * be invalidated. Least recently used entries are removed when the cache grows beyond
+ * its limit. Value sets that use code systems or import value sets that are not
+ * available locally are not cached, since their expansion depends on what the
+ * terminology server knows about them at the time. The same goes for code systems that
+ * are only partly available locally (not content = complete), and for supplements.
+ *
+ * Several publishers can use the same file at once: SQLite locks the file, the database
+ * is in WAL mode, and writers wait for each other. Any problem with the database turns
+ * the cache off for the rest of the build rather than failing it
+ */
+public class ExpansionCache {
+
+  private static final int DEFAULT_MAX_ENTRIES = 20000;
+  private static final int MAX_IMPORT_DEPTH = 10;
+
+  private IWorkerContext context;
+  private ILoggingService logger;
+  private String server;
+  private Connection con;
+  private int maxEntries = DEFAULT_MAX_ENTRIES;
+  private int hits;
+  private int misses;
+
+  public ExpansionCache(String filename, IWorkerContext context, String server, ILoggingService logger) {
+    this.context = context;
+    this.server = server;
+    this.logger = logger;
+    try {
+      Utilities.createDirectory(new File(filename).getAbsoluteFile().getParent());
+      con = DriverManager.getConnection("jdbc:sqlite:"+filename);
+      try (Statement stmt = con.createStatement()) {
+        stmt.execute("PRAGMA busy_timeout = 30000");
+        stmt.execute("PRAGMA journal_mode = WAL");
+        if (!hasColumn(stmt, "TxLink")) {
+          // made by an older version that didn't keep the outcome details
+          stmt.execute("DROP TABLE IF EXISTS Expansions");
+        }
+        stmt.execute("CREATE TABLE IF NOT EXISTS Expansions (\r\n"+
+            "Key       nvarchar NOT NULL,\r\n"+
+            "Url       nvarchar NULL,\r\n"+
+            "Version   nvarchar NULL,\r\n"+
+            "Content   blob NOT NULL,\r\n"+
+            "Messages  nvarchar NULL,\r\n"+
+            "TxLink    nvarchar NULL,\r\n"+
+            "Created   integer NOT NULL,\r\n"+
+            "LastUsed  integer NOT NULL,\r\n"+
+            "PRIMARY KEY (Key))");
+        stmt.execute("CREATE INDEX IF NOT EXISTS ExpansionsLastUsed on Expansions (LastUsed)");
+      }
+    } catch (Exception e) {
+      fail(e);
+    }
+  }
+
+  public void setMaxEntries(int maxEntries) {
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * Same as context.expandVS(vs, cacheOk, heirarchical, incompleteOk), but looks in the
+   * cache first. Only successful expansions are cached, along with the messages and the
+   * terminology server link of the outcome
+   */
+  public ValueSetExpansionOutcome expand(ValueSet vs, boolean cacheOk, boolean heirarchical, boolean incompleteOk) {
+    String key = con == null ? null : makeKey(vs, cacheOk, heirarchical, incompleteOk);
+    if (key != null) {
+      ValueSetExpansionOutcome res = load(key);
+      if (res != null) {
+        return res;
+      }
+    }
+    ValueSetExpansionOutcome res = context.expandVS(vs, cacheOk, heirarchical, incompleteOk);
+    if (key != null && res.getValueset() != null && res.getError() == null) {
+      store(key, vs, res);
+    }
+    return res;
+  }
+
+  String makeKey(ValueSet vs, boolean cacheOk, boolean heirarchical, boolean incompleteOk) {
+    try {
+      StringBuilder b = new StringBuilder();
+      b.append(server+"|"+cacheOk+"|"+heirarchical+"|"+incompleteOk+"\n");
+      if (context.getExpansionParameters() != null) {
+        b.append(new JsonParser().composeString(context.getExpansionParameters()));
+        b.append("\n");
+      }
+      if (!addDefinition(b, vs, new HashSet<>(), 0)) {
+        return null;
+      }
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      byte[] hash = md.digest(b.toString().getBytes(StandardCharsets.UTF_8));
+      StringBuilder h = new StringBuilder();
+      for (byte x : hash) {
+        h.append(String.format("%02x", x));
+      }
+      return h.toString();
+    } catch (IOException | NoSuchAlgorithmException e) {
+      // can't make a reliable key, so don't use the cache for this one
+      return null;
+    }
+  }
+
+  /**
+   * false if the expansion depends on something that isn't available locally
+   */
+  private boolean addDefinition(StringBuilder b, ValueSet vs, Set<String> done, int depth) throws IOException {
+    if (depth > MAX_IMPORT_DEPTH || !done.add(vs.getVersionedUrl())) {
+      return true;
+    }
+    ValueSet copy = vs.copy();
+    copy.setText(null);
+    copy.setExpansion(null);
+    copy.setMeta(null);
+    b.append(new JsonParser().composeString(copy));
+    b.append("\n");
+    for (ConceptSetComponent inc : vs.getCompose().getInclude()) {
+      if (!addIncludeDependencies(b, inc, done, depth)) {
+        return false;
+      }
+    }
+    for (ConceptSetComponent inc : vs.getCompose().getExclude()) {
+      if (!addIncludeDependencies(b, inc, done, depth)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean addIncludeDependencies(StringBuilder b, ConceptSetComponent inc, Set<String> done, int depth) throws IOException {
+    if (inc.hasSystem()) {
+      CodeSystem cs = context.fetchCodeSystem(inc.getSystem(), inc.getVersion());
+      if (cs == null || cs.getContent() != CodeSystemContentMode.COMPLETE || cs.hasSupplements()) {
+        return false;
+      }
+      b.append("cs:"+inc.getSystem()+"|"+cs.getVersion()+"|"+cs.getContent().toCode()+"|"+cs.getCount()+"\n");
+    }
+    for (CanonicalType url : inc.getValueSet()) {
+      ValueSet ivs = context.fetchResource(ValueSet.class, url.getValue());
+      if (ivs == null || !addDefinition(b, ivs, done, depth + 1)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean hasColumn(Statement stmt, String column) throws SQLException {
+    try (ResultSet rs = stmt.executeQuery("PRAGMA table_info(Expansions)")) {
+      boolean exists = false;
+      while (rs.next()) {
+        exists = true;
+        if (column.equals(rs.getString("name"))) {
+          return true;
+        }
+      }
+      // no table yet is fine too
+      return !exists;
+    }
+  }
+
+  private synchronized ValueSetExpansionOutcome load(String key) {
+    if (con == null) {
+      return null;
+    }
+    try {
+      byte[] content = null;
+      String messages = null;
+      String txLink = null;
+      try (PreparedStatement psql = con.prepareStatement("Select Content, Messages, TxLink from Expansions where Key = ?")) {
+        psql.setString(1, key);
+        try (ResultSet rs = psql.executeQuery()) {
+          if (rs.next()) {
+            content = rs.getBytes(1);
+            messages = rs.getString(2);
+            txLink = rs.getString(3);
+          }
+        }
+      }
+      if (content == null) {
+        misses++;
+        return null;
+      }
+      hits++;
+      try (PreparedStatement psql = con.prepareStatement("Update Expansions set LastUsed = ? where Key = ?")) {
+        psql.setLong(1, System.currentTimeMillis());
+        psql.setString(2, key);
+        psql.executeUpdate();
+      }
+      ValueSetExpansionOutcome res = new ValueSetExpansionOutcome((ValueSet) new JsonParser().parse(content));
+      if (messages != null) {
+        for (String m : org.hl7.fhir.utilities.json.parser.JsonParser.parse(messages).asJsonArray().asStrings()) {
+          res.getAllErrors().add(m);
+        }
+      }
+      res.setTxLink(txLink);
+      return res;
+    } catch (Exception e) {
+      fail(e);
+      return null;
+    }
+  }
+
+  private synchronized void store(String key, ValueSet vs, ValueSetExpansionOutcome exp) {
+    if (con == null) {
+      return;
+    }
+    try (PreparedStatement psql = con.prepareStatement("Insert or Replace into Expansions (Key, Url, Version, Content, Messages, TxLink, Created, LastUsed) values (?, ?, ?, ?, ?, ?, ?, ?)")) {
+      long now = System.currentTimeMillis();
+      psql.setString(1, key);
+      psql.setString(2, vs.getUrl());
+      psql.setString(3, vs.getVersion());
+      psql.setBytes(4, new JsonParser().composeBytes(exp.getValueset()));
+      JsonArray messages = new JsonArray();
+      for (String m : exp.getAllErrors()) {
+        messages.add(m);
+      }
+      psql.setString(5, messages.size() == 0 ? null : org.hl7.fhir.utilities.json.parser.JsonParser.compose(messages, false));
+      psql.setString(6, exp.getTxLink());
+      psql.setLong(7, now);
+      psql.setLong(8, now);
+      psql.executeUpdate();
+    } catch (Exception e) {
+      fail(e);
+    }
+  }
+
+  /**
+   * Removes the least recently used entries beyond the limit, and closes the database
+   */
+  public synchronized void close() {
+    if (con == null) {
+      return;
+    }
+    try {
+      try (PreparedStatement psql = con.prepareStatement("Delete from Expansions where Key in (Select Key from Expansions order by LastUsed desc limit -1 offset ?)")) {
+        psql.setInt(1, maxEntries);
+        int count = psql.executeUpdate();
+        if (count > 0) {
+          logger.logDebugMessage(ILoggingService.LogCategory.TX, "Expansion cache: removed "+count+" least recently used entries");
+        }
+      }
+      con.close();
+    } catch (SQLException e) {
+      fail(e);
+    }
+    con = null;
+  }
+
+  public String summary() {
+    return "Expansion cache: hits = "+hits+", misses = "+misses;
+  }
+
+  private void fail(Exception e) {
+    logger.logMessage("Expansion cache is not available: "+e.getMessage());
+    if (con != null) {
+      try {
+        con.close();
+      } catch (SQLException e1) {
+        // nothing
+      }
+    }
+    con = null;
+  }
+
+}
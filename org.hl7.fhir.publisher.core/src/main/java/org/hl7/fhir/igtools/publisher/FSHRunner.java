@@ -4,6 +4,12 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -21,6 +27,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.SystemUtils;
 import org.hl7.fhir.r5.context.ILoggingService;
 import org.hl7.fhir.utilities.IniFile;
+import org.hl7.fhir.utilities.TextFile;
 import org.hl7.fhir.utilities.Utilities;
 import org.hl7.fhir.utilities.settings.FhirSettings;
 
@@ -32,8 +39,20 @@ public class FSHRunner {
 
     private static final long FSH_TIMEOUT = 60000 * 5; // 5 minutes....
 
+    private static final String FINGERPRINT_FILE = ".sushi-fingerprint";
+
+    // sushi reads these as well as the FSH: the predefined resources that FSH can refer to
+    private static final String[] SUSHI_INPUTS = {"sushi-config.yaml", "fsh.ini", "fsh", "input/fsh", "input/capabilities", "input/extensions",
+        "input/models", "input/operations", "input/profiles", "input/resources", "input/vocabulary", "input/examples"};
+
+    // sushi only lists what's in these, to add the pages to the IG resource, so only the names and timestamps count
+    private static final String[] SUSHI_PAGE_INPUTS = {"input/pagecontent", "input/pages", "input/intro-notes", "input/resource-docs",
+        "input/includes", "input/images"};
+
     private long fshTimeout = FSH_TIMEOUT;
 
+    private String packageCacheFolder;
+
     public FSHRunner(ILoggingService logger) {
         this.logger = logger;
     }
@@ -42,6 +61,14 @@ public class FSHRunner {
         logger.logMessage(string);
     }
 
+    /**
+     * The package cache that sushi installs the IG's dependencies into, so that a changed
+     * dependency changes the fingerprint
+     */
+    public void setPackageCacheFolder(String packageCacheFolder) {
+        this.packageCacheFolder = packageCacheFolder;
+    }
+
     protected void runFsh(File file, Publisher.IGBuildMode mode) throws IOException {
         File fshIni = new File(Utilities.path(file.getAbsolutePath(), "fsh.ini"));
         /* Changed 2023-03-20 by dotasek. If the fshIni file resolution below is still commented out
@@ -64,6 +91,18 @@ public class FSHRunner {
                 fshVersion = ini.getStringProperty("FSH", "sushi-version");
             }
         }
+        // the publication and ci builds always run sushi (--require-latest)
+        String fingerprint = null;
+        File fingerprintFile = new File(Utilities.path(file.getAbsolutePath(), "fsh-generated", FINGERPRINT_FILE));
+        if (mode != Publisher.IGBuildMode.PUBLICATION && mode != Publisher.IGBuildMode.AUTOBUILD) {
+            fingerprint = fingerprint(file, fshVersion);
+            if (fingerprint != null && fingerprintFile.exists() && new File(Utilities.path(file.getAbsolutePath(), "fsh-generated", "resources")).exists()
+                && fingerprint.equals(TextFile.fileToString(fingerprintFile))) {
+                log("Sushi: FSH unchanged since the last run, using the existing fsh-generated content");
+                return;
+            }
+            fingerprintFile.delete();
+        }
         log("Run Sushi on "+file.getAbsolutePath());
         DefaultExecutor exec = new DefaultExecutor();
         exec.setExitValue(0);
@@ -103,6 +142,123 @@ public class FSHRunner {
         if (pumpHandler.getErrorCount() > 0) {
             throw new IOException("Sushi failed with errors. Complete output from running Sushi : " + pumpHandler.getBufferString());
         }
+        if (fingerprint != null) {
+            // sushi may have installed or updated the dependencies, so what it used is only known now
+            fingerprint = fingerprint(file, fshVersion);
+            if (fingerprint != null) {
+                Utilities.createDirectory(fingerprintFile.getParent());
+                TextFile.stringToFile(fingerprint, fingerprintFile, false);
+            }
+        }
+    }
+
+    /**
+     * A hash of everything that sushi reads (for the page folders, just the file names and
+     * timestamps), the dependencies it resolved in the package cache, and the version of sushi
+     * that's asked for. If this is the same as the last time sushi ran, what's in fsh-generated
+     * is still up to date. Null if a dependency's version can't be known without sushi (latest)
+     */
+    protected String fingerprint(File file, String fshVersion) throws IOException {
+        List<File> files = new ArrayList<>();
+        for (String name : SUSHI_INPUTS) {
+            listFiles(new File(Utilities.path(file.getAbsolutePath(), name)), files);
+        }
+        files.sort(Comparator.comparing(File::getAbsolutePath));
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        md.update(("sushi@"+fshVersion+"\n").getBytes(StandardCharsets.UTF_8));
+        int root = file.getAbsolutePath().length();
+        for (File f : files) {
+            md.update((f.getAbsolutePath().substring(root).replace(File.separatorChar, '/')+"\n").getBytes(StandardCharsets.UTF_8));
+            md.update(Files.readAllBytes(f.toPath()));
+            md.update((byte) 0);
+        }
+        List<File> pages = new ArrayList<>();
+        for (String name : SUSHI_PAGE_INPUTS) {
+            listFiles(new File(Utilities.path(file.getAbsolutePath(), name)), pages);
+        }
+        pages.sort(Comparator.comparing(File::getAbsolutePath));
+        for (File f : pages) {
+            md.update((f.getAbsolutePath().substring(root).replace(File.separatorChar, '/')+"|"+f.lastModified()+"\n").getBytes(StandardCharsets.UTF_8));
+        }
+        File config = new File(Utilities.path(file.getAbsolutePath(), "sushi-config.yaml"));
+        if (config.exists()) {
+            // a #current or locally rebuilt package keeps its version, so the installed package.json counts too
+            for (String dep : listDependencies(TextFile.fileToString(config))) {
+                if (dep.endsWith("#latest")) {
+                    return null;
+                }
+                md.update((dep+"\n").getBytes(StandardCharsets.UTF_8));
+                File pj = packageCacheFolder == null ? null : new File(Utilities.path(packageCacheFolder, dep, "package", "package.json"));
+                if (pj != null && pj.exists()) {
+                    md.update((pj.lastModified()+"\n").getBytes(StandardCharsets.UTF_8));
+                    md.update(Files.readAllBytes(pj.toPath()));
+                }
+                md.update((byte) 0);
+            }
+        }
+        StringBuilder b = new StringBuilder();
+        for (byte v : md.digest()) {
+            b.append(String.format("%02x", v));
+        }
+        return b.toString();
+    }
+
+    /**
+     * The dependencies in sushi-config.yaml, as id#version. Either "id: version", or "id:" followed
+     * by the details, including "version: version"
+     */
+    protected List<String> listDependencies(String config) {
+        List<String> res = new ArrayList<>();
+        boolean inDeps = false;
+        String id = null;
+        int indent = -1;
+        for (String line : config.split("\\r?\\n")) {
+            String content = line.contains(" #") ? line.substring(0, line.indexOf(" #")) : line;
+            if (content.isBlank() || content.trim().startsWith("#")) {
+                continue;
+            }
+            int ind = content.length() - content.stripLeading().length();
+            if (ind == 0) {
+                inDeps = content.trim().equals("dependencies:");
+                id = null;
+                indent = -1;
+            } else if (inDeps && content.contains(":")) {
+                String name = content.substring(0, content.indexOf(":")).trim();
+                String value = unquote(content.substring(content.indexOf(":")+1).trim());
+                if (indent == -1 || ind <= indent) {
+                    indent = ind;
+                    id = name;
+                    if (!value.isEmpty()) {
+                        res.add(id+"#"+value);
+                    }
+                } else if (id != null && name.equals("version")) {
+                    res.add(id+"#"+value);
+                }
+            }
+        }
+        return res;
+    }
+
+    private String unquote(String s) {
+        return s.length() > 1 && (s.startsWith("\"") || s.startsWith("'")) && s.endsWith(s.substring(0, 1)) ? s.substring(1, s.length()-1) : s;
+    }
+
+    private void listFiles(File f, List<File> files) {
+        if (f.isDirectory()) {
+            File[] list = f.listFiles();
+            if (list != null) {
+                for (File c : list) {
+                    listFiles(c, files);
+                }
+            }
+        } else if (f.exists()) {
+            files.add(f);
+        }
     }
 
 
@@ -56,6 +56,7 @@ public class FetchedResource {
   private List<ProvenanceDetails> audits = new ArrayList<>();
   private List<ValidationMessage> errors = new ArrayList<ValidationMessage>();
   private boolean isProvenance = false;
+  private boolean renderingContained;
   private String nameForErrors;
 
   public FetchedResource(String nameForErrors) {
@@ -301,4 +302,15 @@ public class FetchedResource {
     this.logicalElement = logicalElement;
   }
   
+  /**
+   * true while the outputs for the resources contained in this one are being generated
+   */
+  public boolean isRenderingContained() {
+    return renderingContained;
+  }
+
+  public void setRenderingContained(boolean renderingContained) {
+    this.renderingContained = renderingContained;
+  }
+
 }
@@ -0,0 +1,155 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.Utilities;
+
+/**
+ * Tracks which generated fragments are actually included by the template layouts and
+ * includes and the IG's own pages, so that the fragments nothing refers to don't need
+ * to be generated.
+ *
+ * Include names that are built with liquid (e.g. {% include {{[type]}}-{{[id]}}-html.xhtml %})
+ * become patterns where each {{ }} matches anything, so the scan errs on the side of
+ * generating too much. Fragments that are referenced in ways the scan can't see (e.g. by
+ * a liquid variable that holds the whole name, or from outside the IG) can be listed as
+ * always wanted; an entry can use * as a wildcard.
+ */
+public class FragmentUsage {
+
+  private static final Pattern INCLUDE = Pattern.compile("\\{%-?\\s*include\\s+(\\S+)");
+  private static final Pattern RAW = Pattern.compile("\\{%-?\\s*raw\\s*-?%\\}.*?\\{%-?\\s*endraw\\s*-?%\\}", Pattern.DOTALL);
+
+  // outputs that are not (just) fragments, so are never skipped
+  private static final Set<String> NOT_FRAGMENTS = new HashSet<>(List.of("xml", "json", "ttl", "html", "xml-html", "json-html", "ttl-html",
+      "jekyll-data", "xlsx", "csv", "sch", "java", "shex", "json-schema", ".schema.json", "openapi", "swagger", "history"));
+
+  private Set<String> names = new HashSet<>();
+  private List<Pattern> patterns = new ArrayList<>();
+  private Set<String> skipped = Collections.synchronizedSet(new HashSet<>());
+
+  public void scan(String dir) throws IOException {
+    File f = new File(dir);
+    if (f.isDirectory()) {
+      for (File c : f.listFiles()) {
+        if (c.isDirectory()) {
+          scan(c.getAbsolutePath());
+        } else if (Utilities.existsInList(Utilities.getFileExtension(c.getName()).toLowerCase(), "html", "htm", "md", "xml", "xhtml", "liquid")) {
+          scanSource(TextFile.fileToString(c));
+        }
+      }
+    }
+  }
+
+  public void scanSource(String src) {
+    if (src.startsWith("{% raw %}") && src.endsWith("{% endraw %}")) {
+      // a fragment generated in a previous run
+      return;
+    }
+    src = RAW.matcher(src).replaceAll("");
+    Matcher m = INCLUDE.matcher(src);
+    while (m.find()) {
+      String name = m.group(1);
+      // a liquid expression may have spaces in it, so find the end of the name from the end of the tag
+      if (name.contains("{{")) {
+        int i = src.indexOf("%}", m.start(1));
+        name = (i == -1 ? src.substring(m.start(1)) : src.substring(m.start(1), i)).trim();
+        if (name.endsWith("-")) {
+          name = name.substring(0, name.length()-1).trim();
+        }
+        int e = name.lastIndexOf("}}");
+        int s = name.indexOf(' ', e == -1 ? 0 : e);
+        if (s > -1) {
+          name = name.substring(0, s);
+        }
+      }
+      addReference(name);
+    }
+  }
+
+  public void addReference(String name) {
+    if (name.endsWith(".xhtml")) {
+      name = name.substring(0, name.length()-6);
+    }
+    if (!name.contains("{{") && !name.contains("*")) {
+      names.add(name);
+    } else {
+      StringBuilder b = new StringBuilder();
+      int i = 0;
+      while (i < name.length()) {
+        if (name.startsWith("{{", i)) {
+          int e = name.indexOf("}}", i);
+          i = e == -1 ? name.length() : e + 2;
+          b.append(".*");
+        } else if (name.charAt(i) == '*') {
+          b.append(".*");
+          i++;
+        } else {
+          b.append(Pattern.quote(String.valueOf(name.charAt(i))));
+          i++;
+        }
+      }
+      patterns.add(Pattern.compile(b.toString()));
+    }
+  }
+
+  public boolean isUsed(String name) {
+    if (names.contains(name)) {
+      return true;
+    }
+    for (Pattern p : patterns) {
+      if (p.matcher(name).matches()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * whether the output [code] for a resource is wanted. Some outputs produce more than
+   * one fragment, or fragments with a different name from the code, and the output is
+   * wanted if any of them is used
+   */
+  public boolean isWanted(String type, String id, String code) {
+    if (NOT_FRAGMENTS.contains(code)) {
+      return true;
+    }
+    String base = type+"-"+id+"-"+code;
+    if (isUsed(base) || isUsed(type+"-"+code+"-"+id)) {
+      return true;
+    }
+    switch (code) {
+    case "maps":
+      if (isUsed(base+"-all") || isUsed(base+"-diff") || isUsed(base+"-diff-all")) {
+        return true;
+      }
+      break;
+    case "xref":
+    case "changes":
+      if (isUsed(type+"-"+id+"-sd-"+code)) {
+        return true;
+      }
+      break;
+    }
+    skipped.add(base);
+    return false;
+  }
+
+  public int referenceCount() {
+    return names.size() + patterns.size();
+  }
+
+  public int skippedCount() {
+    return skipped.size();
+  }
+
+}
@@ -46,6 +46,9 @@ import org.hl7.fhir.utilities.CommaSeparatedStringBuilder;
 import org.hl7.fhir.utilities.PathBuilder;
 import org.hl7.fhir.utilities.TextFile;
 import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.json.model.JsonArray;
+import org.hl7.fhir.utilities.json.model.JsonObject;
+import org.hl7.fhir.utilities.json.parser.JsonParser;
 import org.hl7.fhir.utilities.npm.FilesystemPackageCacheManager;
 import org.hl7.fhir.utilities.npm.NpmPackage;
 import org.hl7.fhir.utilities.npm.PackageHacker;
@@ -203,6 +206,8 @@ public class HTMLInspector {
   private boolean referencesValidatorPack;
   private Map<String, List<String>> trackedFragments;
   private Set<String> foundFragments = new HashSet<>();
+  private long checkedSince;
+  private String resultsCache;
 
   public HTMLInspector(String rootFolder, List<SpecMapManager> specs, List<SpecMapManager> linkSpecs, ILoggingService log, String canonical, String packageId, Map<String, List<String>> trackedFragments) {
     this.rootFolder = rootFolder.replace("/", File.separator);
@@ -218,6 +223,22 @@ public class HTMLInspector {
   public void setAltRootFolder(String altRootFolder) throws IOException {
     this.altRootFolder = Utilities.path(rootFolder, altRootFolder.replace("/", File.separator));
   }
+
+  /**
+   * if set, only files modified at or after this time are checked. All files are still
+   * loaded, so links to unchanged files still resolve
+   */
+  public void setCheckedSince(long checkedSince) {
+    this.checkedSince = checkedSince;
+  }
+
+  /**
+   * a file where the link check results are kept per file, so that the results for the
+   * files that are not checked again (see setCheckedSince) are carried forward
+   */
+  public void setResultsCache(String resultsCache) {
+    this.resultsCache = resultsCache;
+  }
   
   public List<ValidationMessage> check(String statusText) throws IOException {  
     this.statusText = statusText;
@@ -251,12 +272,27 @@ public class HTMLInspector {
     log.logDebugMessage(LogCategory.HTML, "Checking Files");
     links = 0;
     // check links
+    Map<String, List<ValidationMessage>> previous = checkedSince > 0 ? loadResults() : new HashMap<>();
+    Map<String, List<ValidationMessage>> results = new HashMap<>();
     boolean first = true;
     i = 0;
     c = cache.size() / 40;
     for (String s : sorted(cache.keySet())) {
       log.logDebugMessage(LogCategory.HTML, "Check "+s);
       LoadedFile lf = cache.get(s);
+      String rel = s.substring(rootFolder.length()+1);
+      if (lf.getLastModified() < checkedSince && previous.containsKey(rel)) {
+        checkFragmentIds(TextFile.fileToString(lf.filename));
+        if (lf.getHl7State() != null && !lf.getHl7State() && !lf.isExempt()) {
+          missingPublishBox = true;
+          missingPublishBoxList.add(rel);
+          first = false;
+        }
+        messages.addAll(previous.get(rel));
+        results.put(rel, previous.get(rel));
+        continue;
+      }
+      int start = messages.size();
 
       if (lf.getHl7State() != null && !lf.getHl7State()) {
         boolean check = true;
@@ -296,6 +332,7 @@ public class HTMLInspector {
           }
         }
       }
+      results.put(rel, new ArrayList<>(messages.subList(start, messages.size())));
       if (i == c) {
         System.out.print(".");
         i = 0;
@@ -309,6 +346,7 @@ public class HTMLInspector {
     for (StringPair sp : otherlinks) {
       checkResolveLink(sp.source, null, null, sp.link, sp.text, messages, null);
     }
+    saveResults(results);
     
     log.logDebugMessage(LogCategory.HTML, "Done checking");
     
@@ -350,6 +388,54 @@ public class HTMLInspector {
     f.close();
   }
 
+  private Map<String, List<ValidationMessage>> loadResults() throws IOException {
+    Map<String, List<ValidationMessage>> res = new HashMap<>();
+    if (resultsCache == null || !new File(resultsCache).exists()) {
+      return res;
+    }
+    JsonObject json = JsonParser.parseObjectFromFile(resultsCache);
+    for (JsonObject file : json.getJsonObjects("files")) {
+      List<ValidationMessage> list = new ArrayList<>();
+      for (JsonObject m : file.getJsonObjects("messages")) {
+        ValidationMessage vm = new ValidationMessage(Source.valueOf(m.asString("source")), IssueType.valueOf(m.asString("type")), m.asString("location"),
+            m.asString("message"), m.asString("html"), IssueSeverity.valueOf(m.asString("level")));
+        vm.setLocationLink(m.asString("locationLink"));
+        list.add(vm);
+      }
+      res.put(file.asString("path"), list);
+    }
+    return res;
+  }
+
+  private void saveResults(Map<String, List<ValidationMessage>> results) throws IOException {
+    if (resultsCache == null) {
+      return;
+    }
+    JsonObject json = new JsonObject();
+    for (String path : sorted(results.keySet())) {
+      JsonObject file = new JsonObject();
+      json.forceArray("files").add(file);
+      file.add("path", path);
+      JsonArray list = file.forceArray("messages");
+      for (ValidationMessage vm : results.get(path)) {
+        JsonObject m = new JsonObject();
+        list.add(m);
+        m.add("source", vm.getSource().name());
+        m.add("type", vm.getType().name());
+        m.add("location", vm.getLocation());
+        m.add("message", vm.getMessage());
+        if (vm.getHtml() != null) {
+          m.add("html", vm.getHtml());
+        }
+        m.add("level", vm.getLevel().name());
+        if (vm.getLocationLink() != null) {
+          m.add("locationLink", vm.getLocationLink());
+        }
+      }
+    }
+    TextFile.stringToFile(JsonParser.compose(json, false), resultsCache);
+  }
+
   private void checkGoneFiles() {
     List<String> td = new ArrayList<String>();
     for (String s : cache.keySet()) {
@@ -78,6 +78,8 @@ public class IGKnowledgeProvider implements ProfileKnowledgeProvider, ParserBase
   private String altCanonical;
   private XVerExtensionManager xver;
   private List<FetchedFile> files;
+  private FragmentUsage fragmentUsage;
+  private OutputDecisionTable outputs = new OutputDecisionTable(null);
   
   public IGKnowledgeProvider(IWorkerContext context, String pathToSpec, String canonical, JsonObject igs, List<ValidationMessage> errors, boolean noXhtml, Template template, List<String> listedURLExemptions, String altCanonical, List<FetchedFile> files) throws Exception {
     super();
@@ -97,12 +99,42 @@ public class IGKnowledgeProvider implements ProfileKnowledgeProvider, ParserBase
     }
     this.xver = new XVerExtensionManager(context);
   }
+
+  private IGKnowledgeProvider(IGKnowledgeProvider other, IWorkerContext context, List<ValidationMessage> errors) {
+    super();
+    this.context = context;
+    this.specPaths = other.specPaths;
+    this.pathToSpec = other.pathToSpec;
+    this.canonical = other.canonical;
+    this.errors = errors;
+    this.defaultConfig = other.defaultConfig;
+    this.resourceConfig = other.resourceConfig;
+    this.pathPattern = other.pathPattern;
+    this.autoPath = other.autoPath;
+    this.noXhtml = other.noXhtml;
+    this.template = other.template;
+    this.listedURLExemptions = other.listedURLExemptions;
+    this.altCanonical = other.altCanonical;
+    this.files = other.files;
+    this.fragmentUsage = other.fragmentUsage;
+    this.outputs = other.outputs;
+    this.xver = new XVerExtensionManager(context);
+  }
+
+  /**
+   * A knowledge provider with the same paths and configuration that uses another context, and
+   * reports its messages to another list, for work that is done on another thread
+   */
+  public IGKnowledgeProvider copy(IWorkerContext context, List<ValidationMessage> errors) {
+    return new IGKnowledgeProvider(this, context, errors);
+  }
   
   private void loadPaths(JsonObject igs) throws Exception {
     JsonElement e = igs.get("path-pattern");
     if (e != null)
       pathPattern = e.asString(); 
     defaultConfig = igs.getJsonObject("defaults");
+    outputs = new OutputDecisionTable(defaultConfig);
     resourceConfig = igs.getJsonObject("resources");
     if (resourceConfig != null) {
       for (JsonProperty pp : resourceConfig.getProperties()) {
@@ -207,22 +239,29 @@ public class IGKnowledgeProvider implements ProfileKnowledgeProvider, ParserBase
   }
 
   public boolean wantGen(FetchedResource r, String code) {
-    if (r.getConfig() != null && r.getConfig().hasBoolean(code))
-      return r.getConfig().asBoolean(code);
-    JsonObject cfg = null;
-    if (defaultConfig != null) {
-      cfg = defaultConfig.getJsonObject(r.fhirType());
-      if (cfg != null && cfg.hasBoolean(code)) {
-        return cfg.asBoolean(code);
-      }
-      cfg = defaultConfig.getJsonObject("Any");
-      if (cfg != null && cfg.hasBoolean(code)) {
-        return cfg.asBoolean(code);
-      }
+    Boolean b = outputs.decide(r.fhirType(), r.getConfig(), code);
+    if (b != null) {
+      return b;
+    }
+    if (fragmentUsage != null && !r.isRenderingContained()) {
+      // the fragments of contained resources are named after both resources, so they are always generated
+      return fragmentUsage.isWanted(r.fhirType(), r.getId(), code);
     }
     return true;
   }
 
+  public OutputDecisionTable getOutputs() {
+    return outputs;
+  }
+
+  /**
+   * When set, outputs that aren't explicitly configured are only generated if the
+   * template or the IG's pages include them
+   */
+  public void setFragmentUsage(FragmentUsage fragmentUsage) {
+    this.fragmentUsage = fragmentUsage;
+  }
+
   public String getPropertyContained(FetchedResource r, String propertyName, Resource contained) {
     if (contained == null && r.getConfig() != null && r.getConfig().hasString(propertyName)) {
       return r.getConfig().asString(propertyName);
@@ -0,0 +1,102 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.hl7.fhir.utilities.json.model.JsonBoolean;
+import org.hl7.fhir.utilities.json.model.JsonObject;
+import org.hl7.fhir.utilities.json.model.JsonProperty;
+
+/**
+ * The outputs (fragments and files) that the IG configuration turns on or off, compiled
+ * from the json once, so that deciding whether to generate an output for a resource is
+ * a couple of map lookups.
+ *
+ * The rules are the same as they always were: the resource's own configuration, then
+ * the defaults for its type, then the defaults for Any. decide() returns null when none
+ * of them says anything about the output
+ */
+public class OutputDecisionTable {
+
+  private static final Map<String, Boolean> NONE = Collections.emptyMap();
+
+  private Map<String, Map<String, Boolean>> types = new HashMap<>();
+  private Map<String, Boolean> any = NONE;
+  private Map<JsonObject, Map<String, Boolean>> resources = Collections.synchronizedMap(new IdentityHashMap<>());
+
+  public OutputDecisionTable(JsonObject defaultConfig) {
+    if (defaultConfig != null) {
+      for (JsonProperty pp : defaultConfig.getProperties()) {
+        if (pp.getValue() instanceof JsonObject) {
+          Map<String, Boolean> map = compile((JsonObject) pp.getValue());
+          if (!map.isEmpty()) {
+            types.put(pp.getName(), map);
+          }
+        }
+      }
+      any = types.getOrDefault("Any", NONE);
+    }
+  }
+
+  private Map<String, Boolean> compile(JsonObject obj) {
+    Map<String, Boolean> map = new HashMap<>();
+    for (JsonProperty pp : obj.getProperties()) {
+      if (pp.getValue() instanceof JsonBoolean) {
+        map.put(pp.getName(), ((JsonBoolean) pp.getValue()).isValue());
+      }
+    }
+    return map.isEmpty() ? NONE : map;
+  }
+
+  public Boolean decide(String type, JsonObject resourceConfig, String code) {
+    if (resourceConfig != null) {
+      Map<String, Boolean> map = resources.get(resourceConfig);
+      if (map == null) {
+        map = compile(resourceConfig);
+        resources.put(resourceConfig, map);
+      }
+      Boolean b = map.get(code);
+      if (b != null) {
+        return b;
+      }
+    }
+    Boolean b = types.getOrDefault(type, NONE).get(code);
+    if (b != null) {
+      return b;
+    }
+    return any.get(code);
+  }
+
+  /**
+   * For the log: the outputs turned on or off for each type in the IG defaults
+   */
+  public String summary() {
+    StringBuilder b = new StringBuilder();
+    for (String type : new TreeMap<>(types).keySet()) {
+      List<String> on = new ArrayList<>();
+      List<String> off = new ArrayList<>();
+      Map<String, Boolean> map = new TreeMap<>(types.get(type));
+      for (String code : map.keySet()) {
+        if (map.get(code)) {
+          on.add(code);
+        } else {
+          off.add(code);
+        }
+      }
+      b.append(type+": "+map.size()+" configured outputs");
+      if (!on.isEmpty()) {
+        b.append(", on = "+String.join(", ", on));
+      }
+      if (!off.isEmpty()) {
+        b.append(", off = "+String.join(", ", off));
+      }
+      b.append("\r\n");
+    }
+    return b.toString();
+  }
+}
@@ -53,6 +53,7 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -61,6 +62,12 @@ import java.util.Properties;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -94,9 +101,11 @@ import org.hl7.fhir.exceptions.FHIRFormatError;
 import org.hl7.fhir.exceptions.PathEngineException;
 import org.hl7.fhir.igtools.publisher.FetchedFile.FetchedBundleType;
 import org.hl7.fhir.igtools.publisher.IFetchFile.FetchState;
+import org.hl7.fhir.igtools.publisher.comparators.CoreContextPool;
 import org.hl7.fhir.igtools.publisher.comparators.IpaComparator;
 import org.hl7.fhir.igtools.publisher.comparators.IpsComparator;
 import org.hl7.fhir.igtools.publisher.comparators.PreviousVersionComparator;
+import org.hl7.fhir.igtools.publisher.jekyll.NativePageEngine;
 import org.hl7.fhir.igtools.publisher.loaders.AdjunctFileLoader;
 import org.hl7.fhir.igtools.publisher.loaders.LibraryLoader;
 import org.hl7.fhir.igtools.publisher.loaders.PatchLoaderKnowledgeProvider;
@@ -652,7 +661,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   public static final int FMM_DERIVATION_MAX = 5;
 
   public enum GenerationTool {
-    Jekyll
+    Jekyll, Native
   }
 
   private static final String IG_NAME = "!ig!";
@@ -684,7 +693,8 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   private Map<String,String> countryCodeFor2Letter = null;
   private Map<String,String> shortCountryCode = null;
   private Map<String,String> stateNameForCode = null;
-  private Map<String, Map<String, ElementDefinition>> sdMapCache = new HashMap<>();
+  // shared by the structure definition renderers, which can run on more than one thread (see generateHtmlOutputsInParallel)
+  private Map<String, Map<String, ElementDefinition>> sdMapCache = new ConcurrentHashMap<>();
   private List<String> ignoreFlags = null;
 
   private Publisher childPublisher = null;
@@ -739,13 +749,14 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   private List<Resource> loaded = new ArrayList<Resource>();
   private ImplementationGuide sourceIg;
   private ImplementationGuide publishedIg;
-  private List<ValidationMessage> errors = new ArrayList<ValidationMessage>();
+  private List<ValidationMessage> errors = Collections.synchronizedList(new ArrayList<ValidationMessage>());
   private Calendar execTime = Calendar.getInstance();
   private Set<String> otherFilesStartup = new HashSet<String>();
-  private Set<String> otherFilesRun = new HashSet<String>();
+  private Set<String> otherFilesRun = Collections.synchronizedSet(new HashSet<String>());
   private Set<String> regenList = new HashSet<String>();
   private StringBuilder filelog;
   private Set<String> allOutputs = new HashSet<String>();
+  private Set<String> generatedOutputs = new HashSet<String>();
   private Set<FetchedResource> examples = new HashSet<FetchedResource>();
   private Set<FetchedResource> testplans = new HashSet<FetchedResource>();
   private Set<FetchedResource> testscripts = new HashSet<FetchedResource>();
@@ -853,6 +864,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   private PreviousVersionComparator previousVersionComparator;
   private IpaComparator ipaComparator;
   private IpsComparator ipsComparator;
+  private CoreContextPool comparisonContexts = new CoreContextPool();
 
   private IGPublisherLiquidTemplateServices templateProvider;
 
@@ -886,6 +898,14 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     this.noSushi = noSushi;
   }
 
+  public boolean isParallelGeneration() {
+    return parallelGeneration;
+  }
+
+  public void setParallelGeneration(boolean parallelGeneration) {
+    this.parallelGeneration = parallelGeneration;
+  }
+
   private boolean noSushi;
 
   private Map<String, String> loadedIds;
@@ -923,12 +943,30 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   private Object branchName;
   private R4ToR4BAnalyser r4tor4b;
   private List<DependencyAnalyser.ArtifactDependency> dependencyList;
-  private Map<String, List<String>> trackedFragments = new HashMap<>();
+  private Map<String, List<String>> trackedFragments = new ConcurrentHashMap<>();
   private PackageInformation packageInfo;
   private boolean tocSizeWarning = false;
   private CSVWriter allProfilesCsv;
   private StructureDefinitionSpreadsheetGenerator allProfilesXlsx;
   private boolean produceJekyllData;
+  private boolean nativePages;
+  private boolean nativePagesStrict;
+  private boolean incrementalPages;
+  private boolean streamQA;
+  private boolean parallelGeneration;
+  private String expansionCacheFile;
+  private String dependentIgsMirror;
+  private ExpansionCache expansionCache;
+  private boolean demandFragments;
+  private List<String> keptFragments = new ArrayList<>();
+  private FragmentUsage fragmentUsage;
+  private Set<String> pageTargets;
+  private boolean qaFragmentPages;
+  private QAFragmentStore qaFragments;
+  private boolean streamSpreadsheets;
+  private SpreadsheetExporter spreadsheets;
+  private ThreadLocal<List<OrderedOutput>> orderedOutputs = new ThreadLocal<>();
+  private Set<String> changedOutputs = Collections.synchronizedSet(new HashSet<>());
   private boolean noUsageCheck;
   private boolean hasTranslations;
   private String defaultTranslationLang;
@@ -1135,6 +1173,13 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
           throw(ex);
         }
       }
+      if (previousVersionComparator != null && previousVersionComparator.isParallel()) {
+        // the previous versions have been loading in the background while the resources were validated
+        log("Comparing with Previous Versions");
+        TimeTracker.Session ttc = tt.start("previous-version");
+        finishComparisons();
+        ttc.end();
+      }
       log("Processing Provenance Records");
       processProvenanceDetails();
       if (hasTranslations) {
@@ -1151,6 +1196,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
           new PublicationChecker(repoRoot, historyPage, markdownEngine).check(), renderGlobals(), copyrightYear, context, scanForR5Extensions(), modifierExtensions,
           generateDraftDependencies(),
           noNarrativeResources, noValidateResources, validationOff, generationOff, dependentIgFinder, context.getTxCache().servers());
+      val.setStreamOutputs(streamQA);
       tts.end();
       if (isChild()) {
         log("Built. "+tt.report());
@@ -2193,73 +2239,6 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     return new SimpleDateFormat("dd/MM/yyyy", new Locale("en", "US")).format(execTime.getTime());
   }
 
-  private void checkDependencies() {
-    // first, we load all the direct dependency lists
-    for (FetchedFile f : fileList) {
-      if (f.getDependencies() == null) {
-        loadDependencyList(f);
-      }
-    }
-
-    // now, we keep adding to the change list till there's no change
-    boolean changed;
-    do {
-      changed = false;
-      for (FetchedFile f : fileList) {
-        if (!changeList.contains(f)) {
-          boolean dep = false;
-          for (FetchedFile d : f.getDependencies())
-            if (changeList.contains(d))
-              dep = true;
-          if (dep) {
-            changeList.add(f);
-            changed = true;
-          }
-        }
-      }
-    } while (changed);
-  }
-
-  private void loadDependencyList(FetchedFile f) {
-    f.setDependencies(new ArrayList<FetchedFile>());
-    for (FetchedResource r : f.getResources()) {
-      if (r.fhirType().equals("ValueSet"))
-        loadValueSetDependencies(f, r);
-      else if (r.fhirType().equals("StructureDefinition"))
-        loadProfileDependencies(f, r);
-      else
-        ; // all other resource types don't have dependencies that we care about for rendering purposes
-    }
-  }
-
-  private void loadValueSetDependencies(FetchedFile f, FetchedResource r) {
-    ValueSet vs = (ValueSet) r.getResource();
-    for (ConceptSetComponent cc : vs.getCompose().getInclude()) {
-      for (UriType vsi : cc.getValueSet()) {
-        FetchedFile fi = getFileForUri(vsi.getValue());
-        if (fi != null)
-          f.getDependencies().add(fi);
-      }
-    }
-    for (ConceptSetComponent cc : vs.getCompose().getExclude()) {
-      for (UriType vsi : cc.getValueSet()) {
-        FetchedFile fi = getFileForUri(vsi.getValue());
-        if (fi != null)
-          f.getDependencies().add(fi);
-      }
-    }
-    for (ConceptSetComponent vsc : vs.getCompose().getInclude()) {
-      FetchedFile fi = getFileForUri(vsc.getSystem());
-      if (fi != null)
-        f.getDependencies().add(fi);
-    }
-    for (ConceptSetComponent vsc : vs.getCompose().getExclude()) {
-      FetchedFile fi = getFileForUri(vsc.getSystem());
-      if (fi != null)
-        f.getDependencies().add(fi);
-    }
-  }
-
   private FetchedFile getFileForFile(String path) {
     for (FetchedFile f : fileList) {
       if (f.getPath().equals(path))
@@ -2269,14 +2248,6 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   }
 
 
-  private FetchedFile getFileForUri(String uri) {
-    for (FetchedFile f : fileList) {
-      if (getResourceForUri(f, uri) != null)
-        return f;
-    }
-    return null;
-  }
-
   private FetchedResource getResourceForUri(FetchedFile f, String uri) {
     for (FetchedResource r : f.getResources()) {
       if (r.getResource() != null && r.getResource() instanceof CanonicalResource) {
@@ -2314,13 +2285,6 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     return null;
   }
 
-  private void loadProfileDependencies(FetchedFile f, FetchedResource r) {
-    StructureDefinition sd = (StructureDefinition) r.getResource();
-    FetchedFile fi = getFileForUri(sd.getBaseDefinition());
-    if (fi != null)
-      f.getDependencies().add(fi);
-  }
-
   private boolean bool(JsonObject obj, String name) throws Exception {
     if (!obj.has(name))
       return false;
@@ -2385,11 +2349,11 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     if (configFile != null) {
       File fsh = new File(Utilities.path(focusDir(), "fsh"));
       if (fsh.exists() && fsh.isDirectory() && !noSushi) {
-        new FSHRunner(this).runFsh(new File(Utilities.getDirectoryForFile(fsh.getAbsolutePath())), mode);
+        makeFSHRunner().runFsh(new File(Utilities.getDirectoryForFile(fsh.getAbsolutePath())), mode);
       } else {
         File fsh2 = new File(Utilities.path(focusDir(), "input", "fsh"));
         if (fsh2.exists() && fsh2.isDirectory() && !noSushi) {
-          new FSHRunner(this).runFsh(new File(Utilities.getDirectoryForFile(fsh.getAbsolutePath())), mode);
+          makeFSHRunner().runFsh(new File(Utilities.getDirectoryForFile(fsh.getAbsolutePath())), mode);
         }
       }
     }
@@ -2485,6 +2449,12 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     return false;
   }
 
+  private FSHRunner makeFSHRunner() {
+    FSHRunner fsh = new FSHRunner(this);
+    fsh.setPackageCacheFolder(pcm.getFolder());
+    return fsh;
+  }
+
   private IniFile checkNewIg() throws IOException {
     if (configFile == null)
       return null;
@@ -2869,6 +2839,20 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
       case "produce-jekyll-data":    
         produceJekyllData = "true".equals(p.getValue());
         break;
+      case "page-engine":
+        if ("native".equals(p.getValue()) || "native-strict".equals(p.getValue())) {
+          tool = GenerationTool.Native;
+          nativePagesStrict = "native-strict".equals(p.getValue());
+        } else if (!"jekyll".equals(p.getValue())) {
+          unknownParams.add(pc+"="+p.getValue());
+        }
+        break;
+      case "demand-fragments":
+        demandFragments = "true".equals(p.getValue());
+        break;
+      case "keep-fragment":
+        keptFragments.add(p.getValue());
+        break;
       case "page-factory":
         dir = Utilities.path(rootDir, "temp", "factory-pages", "factory"+pageFactories.size());
         Utilities.createDirectory(dir);
@@ -2914,6 +2898,9 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     if (ini.hasProperty("IG", "jekyll-timeout")) { //todo: consider adding this to ImplementationGuideDefinitionParameterComponent
       jekyllTimeout = ini.getLongProperty("IG", "jekyll-timeout") * 1000;
     }
+    if (nativePages) {
+      tool = GenerationTool.Native;
+    }
 
     // ok process the paths
     log("Root directory: "+rootDir);
@@ -2962,13 +2949,19 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     pagesDirs.removeAll(missingDirs);
 
     logDebugMessage(LogCategory.INIT, "Temp: "+tempDir);
-    Utilities.clearDirectory(tempDir);
+    if (isIncrementalPages()) {
+      log("Incremental page build: reusing the content of "+tempDir+" and "+outputDir);
+    } else {
+      Utilities.clearDirectory(tempDir);
+    }
     forceDir(tempDir);
     forceDir(Utilities.path(tempDir, "_includes"));
     forceDir(Utilities.path(tempDir, "_data"));
     logDebugMessage(LogCategory.INIT, "Output: "+outputDir);
     forceDir(outputDir);
-    Utilities.clearDirectory(outputDir);
+    if (!isIncrementalPages()) {
+      Utilities.clearDirectory(outputDir);
+    }
     if (qaDir != null) {
       logDebugMessage(LogCategory.INIT, "QA Dir: "+qaDir);
       forceDir(qaDir);
@@ -3489,13 +3482,19 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
       checkDir(s);
     }
     logDebugMessage(LogCategory.INIT, "Temp: "+tempDir);
-    Utilities.clearDirectory(tempDir);
+    if (isIncrementalPages()) {
+      log("Incremental page build: reusing the content of "+tempDir+" and "+outputDir);
+    } else {
+      Utilities.clearDirectory(tempDir);
+    }
     forceDir(tempDir);
     forceDir(Utilities.path(tempDir, "_includes"));
     forceDir(Utilities.path(tempDir, "_data"));
     logDebugMessage(LogCategory.INIT, "Output: "+outputDir);
     forceDir(outputDir);
-    Utilities.clearDirectory(outputDir);
+    if (!isIncrementalPages()) {
+      Utilities.clearDirectory(outputDir);
+    }
     logDebugMessage(LogCategory.INIT, "Temp: "+qaDir);
     forceDir(qaDir);
 
@@ -4430,16 +4429,20 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   private boolean checkMakeFile(byte[] bs, String path, Set<String> outputTracker) throws IOException {
     // logDebugMessage(LogCategory.GENERATE, "Check Generate "+path);
     String s = path.toLowerCase();
-    if (allOutputs.contains(s))
-      throw new Error("Error generating build: the file "+path+" is being generated more than once (may differ by case)");
-    allOutputs.add(s);
-    outputTracker.add(path);
+    synchronized (allOutputs) {
+      if (allOutputs.contains(s))
+        throw new Error("Error generating build: the file "+path+" is being generated more than once (may differ by case)");
+      allOutputs.add(s);
+      generatedOutputs.add(path);
+      outputTracker.add(path);
+    }
     File f = new CSFile(path);
     byte[] existing = null;
     if (f.exists())
       existing = TextFile.fileToBytes(path);
     if (!Arrays.equals(bs, existing)) {
       TextFile.bytesToFile(bs, path);
+      changedOutputs.add(path);
       return true;
     }
     return false;
@@ -4492,6 +4495,10 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
       altMap.get(IG_NAME).getResources().get(0).setResource(publishedIg);
     }
     dependentIgFinder = new DependentIGFinder(sourceIg.getPackageId());
+    dependentIgFinder.setCacheFolder(Utilities.path(rootDir, "input-cache", "dependent-igs"));
+    if (dependentIgsMirror != null) {
+      dependentIgFinder.setSource(new DependentIGFinder.MirrorSource(dependentIgsMirror, pcm));
+    }
 
 
     loadMappingSpaces(context.getBinaryForKey("mappingSpaces.details"));
@@ -4547,6 +4554,10 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     // Cql Compile
     cql = new CqlSubSystem(npmList, binaryPaths, new LibraryLoader(version), this, context.getUcumService(), publishedIg.getPackageId(), igpkp.getCanonical());
     if (binaryPaths.size() > 0) {
+      // local builds reuse the translations of unchanged libraries; publication and ci builds translate everything
+      if (mode == null || mode == IGBuildMode.MANUAL) {
+        cql.setElmCache(new CqlElmCache(Utilities.path(rootDir, "input-cache", "cql")));
+      }
       cql.execute();
     }
     fetcher.setRootDir(rootDir);
@@ -5151,6 +5162,22 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   }
 
 
+  private void scanFragmentUsage() throws IOException {
+    Session tts = tt.start("fragment-usage");
+    fragmentUsage = new FragmentUsage();
+    fragmentUsage.scan(Utilities.path(tempDir, "_includes"));
+    fragmentUsage.scan(Utilities.path(tempDir, "_layouts"));
+    for (String dir : pagesDirs) {
+      fragmentUsage.scan(dir);
+    }
+    for (String s : keptFragments) {
+      fragmentUsage.addReference(s);
+    }
+    igpkp.setFragmentUsage(fragmentUsage);
+    tts.end();
+    logDebugMessage(LogCategory.PROGRESS, "Demand driven fragments: "+fragmentUsage.referenceCount()+" "+checkPlural("include reference", fragmentUsage.referenceCount())+" found");
+  }
+
   private void templateBeforeGenerate() throws IOException, FHIRException {
     if (template != null) {
       if (debug) {
@@ -5891,14 +5918,21 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
         f.finish("checkConformanceResources3");      
       }
     }
+    if (!previousVersionComparator.isParallel()) {
+      finishComparisons();
+    }
+    tts.end();
+  }
+
+  private void finishComparisons() throws IOException {
     previousVersionComparator.finishChecks();
+    errors.addAll(previousVersionComparator.getMessages());
     if (ipaComparator != null) {
       ipaComparator.finishChecks();      
     }
     if (ipsComparator != null) {
       ipsComparator.finishChecks();      
     }
-    tts.end();
   }
 
   private RealmBusinessRules makeRealmBusinessRules() {
@@ -5917,7 +5951,9 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
       comparisonVersions = new ArrayList<>();
       comparisonVersions.add("{last}");
     }
-    return new PreviousVersionComparator(context, version, businessVersion != null ? businessVersion : sourceIg == null ? null : sourceIg.getVersion(), rootDir, tempDir, igpkp.getCanonical(), igpkp, logger, comparisonVersions, versionToAnnotate);
+    PreviousVersionComparator res = new PreviousVersionComparator(context, version, businessVersion != null ? businessVersion : sourceIg == null ? null : sourceIg.getVersion(), rootDir, tempDir, igpkp.getCanonical(), igpkp, logger, comparisonVersions, versionToAnnotate, comparisonContexts);
+    res.setParallel(parallelGeneration);
+    return res;
   }
 
 
@@ -5928,7 +5964,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     if (ipaComparisons == null) {
       return null;
     }
-    return new IpaComparator(context, rootDir, tempDir, igpkp, logger, ipaComparisons);
+    return new IpaComparator(context, rootDir, tempDir, igpkp, logger, ipaComparisons, comparisonContexts);
   }
 
   private IpsComparator makeIpsComparator() throws IOException {
@@ -5938,7 +5974,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     if (ipsComparisons == null) {
       return null;
     }
-    return new IpsComparator(context, rootDir, tempDir, igpkp, logger, ipsComparisons);
+    return new IpsComparator(context, rootDir, tempDir, igpkp, logger, ipsComparisons, comparisonContexts);
   }
 
   private void checkJurisdiction(FetchedFile f, CanonicalResource resource, IssueSeverity error, String verb) {
@@ -5972,8 +6008,9 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
 
   private void executeTransforms() throws FHIRException, Exception {
     if (doTransforms) {
-      MappingServices services = new MappingServices(context, igpkp.getCanonical());
-      StructureMapUtilities utils = new StructureMapUtilities(context, services, igpkp);
+      // the transforms can run in parallel, so each thread has its own transformer
+      ThreadLocal<MappingServices> services = ThreadLocal.withInitial(() -> new MappingServices(context, igpkp.getCanonical()));
+      ThreadLocal<StructureMapUtilities> utils = ThreadLocal.withInitial(() -> new StructureMapUtilities(context, services.get(), igpkp));
 
       // ok, our first task is to generate the profiles
       for (FetchedFile f : changeList) {
@@ -5999,7 +6036,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
            
 
           for (StructureMap map : worklist) {
-            StructureMapAnalysis analysis = utils.analyse(null, map);
+            StructureMapAnalysis analysis = utils.get().analyse(null, map);
             map.setUserData("analysis", analysis);
             for (StructureDefinition sd : analysis.getProfiles()) {
               FetchedResource nr = new FetchedResource(f.getName()+" (ex transform)");
@@ -6018,10 +6055,12 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
         }
       }
 
+      List<Callable<Resource>> transforms = new ArrayList<>();
+      List<FetchedFile> owners = new ArrayList<>();
       for (FetchedFile f : changeList) {
         f.start("executeTransforms2");
         try {
-          Map<FetchedResource, List<StructureMap>> worklist = new HashMap<FetchedResource, List<StructureMap>>();
+          Map<FetchedResource, List<StructureMap>> worklist = new LinkedHashMap<FetchedResource, List<StructureMap>>();
           for (FetchedResource r : f.getResources()) {
             List<StructureMap> transforms = context.findTransformsforSource(r.getElement().getProperty().getStructure().getUrl());
             if (transforms.size() > 0) {
@@ -6054,16 +6093,14 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
                 else
                   target.setId(t.getKey().getId()+"-map");
                 i++;
-                services.reset();
-                utils.transform(target, t.getKey().getElement(), map, target);
-                FetchedResource nr = new FetchedResource(f.getName()+" (ex transform 2)");
-                nr.setElement(convertToElement(nr, target));
-                nr.setId(target.getId());
-                nr.setResource(target);
-                nr.setTitle("Generated Example (by Transform)");
-                nr.setValidateAsResource(true);
-                f.getResources().add(nr);
-                igpkp.findConfiguration(f, nr);
+                Resource tgt = target;
+                FetchedResource src = t.getKey();
+                transforms.add(() -> {
+                  services.get().reset();
+                  utils.get().transform(tgt, src.getElement(), map, tgt);
+                  return tgt;
+                });
+                owners.add(f);
               }
             }
           }
@@ -6071,9 +6108,50 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
           f.finish("executeTransforms2");      
         }
       }
+      List<Resource> targets = runTasks(transforms);
+      for (int j = 0; j < targets.size(); j++) {
+        FetchedFile f = owners.get(j);
+        Resource target = targets.get(j);
+        FetchedResource nr = new FetchedResource(f.getName()+" (ex transform 2)");
+        nr.setElement(convertToElement(nr, target));
+        nr.setId(target.getId());
+        nr.setResource(target);
+        nr.setTitle("Generated Example (by Transform)");
+        nr.setValidateAsResource(true);
+        f.getResources().add(nr);
+        igpkp.findConfiguration(f, nr);
+      }
     }
   }
 
+  /**
+   * Runs the tasks, on a thread pool if parallel generation is on, and returns their
+   * results in the order of the tasks, so that what's done with them is the same as
+   * a serial build
+   */
+  private <T> List<T> runTasks(List<Callable<T>> tasks) throws Exception {
+    List<T> res = new ArrayList<>();
+    if (!parallelGeneration || tasks.size() < 2) {
+      for (Callable<T> task : tasks) {
+        res.add(task.call());
+      }
+      return res;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(Runtime.getRuntime().availableProcessors(), tasks.size()));
+    try {
+      for (Future<T> future : executor.invokeAll(tasks)) {
+        try {
+          res.add(future.get());
+        } catch (ExecutionException e) {
+          throw e.getCause() instanceof Exception ? (Exception) e.getCause() : new FHIRException(e.getCause().getMessage(), e.getCause());
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    return res;
+  }
+
   private boolean noteFile(ImplementationGuideDefinitionResourceComponent key, FetchedFile file) {
     FetchedFile existing = fileMap.get(key);
     if (existing == null || existing.getTime() != file.getTime() || existing.getHash() != file.getHash()) {
@@ -6930,29 +7008,34 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   }
 
   private void generateLogicalMaps() throws Exception {
-    StructureMapUtilities mu = new StructureMapUtilities(context, null, null);
+    ThreadLocal<StructureMapUtilities> mu = ThreadLocal.withInitial(() -> new StructureMapUtilities(context, null, null));
+    List<Callable<StructureMap>> tasks = new ArrayList<>();
+    List<FetchedFile> owners = new ArrayList<>();
     for (FetchedFile f : fileList) {
-      f.start("generateLogicalMaps");
-      try {
-        List<StructureMap> maps = new ArrayList<StructureMap>();
-        for (FetchedResource r : f.getResources()) {
-          if (r.getResource() instanceof StructureDefinition) {
-            StructureMap map = mu.generateMapFromMappings((StructureDefinition) r.getResource());
-            if (map != null) {
-              maps.add(map);
-            }
-          }
+      for (FetchedResource r : f.getResources()) {
+        if (r.getResource() instanceof StructureDefinition) {
+          StructureDefinition sd = (StructureDefinition) r.getResource();
+          tasks.add(() -> mu.get().generateMapFromMappings(sd));
+          owners.add(f);
         }
-        for (StructureMap map : maps) {
+      }
+    }
+    List<StructureMap> maps = runTasks(tasks);
+    for (int i = 0; i < maps.size(); i++) {
+      StructureMap map = maps.get(i);
+      if (map != null) {
+        FetchedFile f = owners.get(i);
+        f.start("generateLogicalMaps");
+        try {
           FetchedResource nr = f.addResource(f.getName()+" (LM)");
           nr.setResource(map);
           nr.setElement(convertToElement(nr, map));
           nr.setId(map.getId());
           nr.setTitle(map.getName());
           igpkp.findConfiguration(f, nr);
+        } finally {
+          f.finish("generateLogicalMaps");
         }
-      } finally {
-        f.finish("generateLogicalMaps");      
       }
     }
   }
@@ -7464,13 +7547,31 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     otherFilesRun.add(Utilities.path(outputDir, "package.tgz"));
     otherFilesRun.add(Utilities.path(outputDir, "package.manifest.json"));
     otherFilesRun.add(Utilities.path(tempDir, "package.db"));
+    if (isIncrementalPages()) {
+      otherFilesRun.add(Utilities.path(tempDir, ".jekyll-metadata"));
+      otherFilesRun.add(Utilities.path(tempDir, ".native-pages-metadata"));
+      otherFilesRun.add(Utilities.path(tempDir, ".incremental-outputs"));
+      otherFilesRun.add(Utilities.path(tempDir, ".html-qa-results.json"));
+    }
     DBBuilder db = new DBBuilder(Utilities.path(tempDir, "package.db"));
+    if (mode != IGBuildMode.AUTOBUILD && makeQA && !qaFragmentPages) {
+      qaFragments = new QAFragmentStore(qaDir);
+    }
+    if (streamSpreadsheets) {
+      spreadsheets = new SpreadsheetExporter(context, errors, igpkp, tempDir);
+    }
+    if (expansionCacheFile != null) {
+      expansionCache = new ExpansionCache(expansionCacheFile, context, txServer, this);
+    }
     copyData();
     for (String rg : regenList) {
       regenerate(rg);
     }
 
     updateImplementationGuide();
+    // the pages don't change from here on, so all the renderers can share the one set of page names
+    pageTargets = null;
+    pageTargets = pageTargets();
     generateDataFile(db);
     
     logMessage("Generate Native Outputs");
@@ -7488,16 +7589,39 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     }
 
     templateBeforeGenerate();
+    String outputs = igpkp.getOutputs().summary();
+    if (!outputs.isEmpty()) {
+      logDebugMessage(LogCategory.PROGRESS, "Configured outputs:\r\n"+outputs);
+    }
+    if (demandFragments) {
+      scanFragmentUsage();
+    }
 
     logMessage("Generate HTML Outputs");
-    for (FetchedFile f : changeList) {
-      f.start("generate2");
-      try {
-        generateHtmlOutputs(f, false, db);
-      } finally {
-        f.finish("generate2");      
+    if (parallelGeneration && !generationOff && changeList.size() > 1) {
+      generateHtmlOutputsInParallel(db);
+    } else {
+      for (FetchedFile f : changeList) {
+        f.start("generate2");
+        try {
+          generateHtmlOutputs(f, false, db);
+        } finally {
+          f.finish("generate2");      
+        }
       }
     }
+    if (fragmentUsage != null) {
+      log("Demand driven fragments: skipped "+fragmentUsage.skippedCount()+" "+checkPlural("fragment", fragmentUsage.skippedCount())+" not used by the template or pages");
+    }
+    if (expansionCache != null) {
+      log(expansionCache.summary());
+      expansionCache.close();
+      expansionCache = null;
+    }
+    if (spreadsheets != null) {
+      otherFilesRun.addAll(spreadsheets.finish());
+      spreadsheets = null;
+    }
     if (allProfilesCsv != null) {
       allProfilesCsv.dump();
     }
@@ -7512,6 +7636,11 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     if (!changeList.isEmpty()) {
       generateSummaryOutputs(db);
     }
+    if (qaFragments != null) {
+      qaFragments.close();
+      logDebugMessage(LogCategory.PROGRESS, "QA copy of "+qaFragments.getCount()+" fragments in qa-fragments.html");
+      qaFragments = null;
+    }
     db.closeUp();
     TextFile.bytesToFile(extensionTracker.generate(), Utilities.path(tempDir, "usage-stats.json"));
     try {
@@ -7575,6 +7704,10 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
       templateBeforeJekyll();
     }
 
+    if (isIncrementalPages()) {
+      removeOrphanedOutputs();
+    }
+    long pagesStarted = (System.currentTimeMillis() / 1000) * 1000;
     if (runTool()) {
       if (!generationOff) {
         templateOnCheck();
@@ -7644,6 +7777,9 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
         ipsComparator.addOtherFiles(inspector.getExceptions(), outputDir);
       }
       
+      // in incremental mode, only the pages written by this run are checked
+      inspector.setCheckedSince(isIncrementalPages() ? pagesStarted : 0);
+      inspector.setResultsCache(isIncrementalPages() ? Utilities.path(tempDir, ".html-qa-results.json") : null);
       List<ValidationMessage> linkmsgs = generationOff ? new ArrayList<ValidationMessage>() : inspector.check(statusMessage);
       int bl = 0;
       int lf = 0;
@@ -8323,13 +8459,60 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
       FileUtils.copyDirectory(new File(tempDir), new File(outputDir));
       return true;
     }
-    switch (tool) {
-    case Jekyll: return runJekyll();
-    default:
-      throw new Exception("unimplemented tool");
+    if (isIncrementalPages()) {
+      log("Incremental page build: "+changedOutputs.size()+" generated "+checkPlural("file", changedOutputs.size())+" changed");
+    }
+    try {
+      switch (tool) {
+      case Jekyll: return runJekyll();
+      case Native: return runNativePages();
+      default:
+        throw new Exception("unimplemented tool");
+      }
+    } finally {
+      changedOutputs.clear();
     }
   }
 
+  /**
+   * Files that the previous run generated but this one didn't are deleted from temp, and
+   * so is what they produced in the output, so they don't linger in an incremental build
+   */
+  private void removeOrphanedOutputs() throws IOException {
+    File manifest = new File(Utilities.path(tempDir, ".incremental-outputs"));
+    Set<String> current;
+    synchronized (allOutputs) {
+      current = new HashSet<>(generatedOutputs);
+    }
+    int c = 0;
+    if (manifest.exists()) {
+      for (String path : TextFile.fileToString(manifest).split("\\r?\\n")) {
+        if (!Utilities.noString(path) && !current.contains(path) && path.startsWith(tempDir) && new File(path).delete()) {
+          c++;
+          String rel = path.substring(tempDir.length());
+          new File(outputDir+rel).delete();
+          if (rel.endsWith(".md")) {
+            new File(outputDir+rel.substring(0, rel.length()-3)+".html").delete();
+          }
+        }
+      }
+    }
+    if (c > 0) {
+      log("Incremental page build: removed "+c+" "+checkPlural("file", c)+" that are no longer generated");
+    }
+    List<String> sorted = new ArrayList<>(current);
+    Collections.sort(sorted);
+    TextFile.stringToFile(String.join("\n", sorted), manifest.getAbsolutePath());
+  }
+
+  /**
+   * Incremental page builds are for authoring - the publication and ci-build modes always
+   * start from empty temp and output folders
+   */
+  private boolean isIncrementalPages() {
+    return incrementalPages && (mode == null || mode == IGBuildMode.MANUAL);
+  }
+
   public class MyFilterHandler extends OutputStream {
 
     private byte[] buffer;
@@ -8399,7 +8582,8 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     exec.setWatchdog(watchdog);
 
     try {
-      log("Run jekyll: "+jekyllCommand+" build --destination \""+outputDir+"\" (in folder "+tempDir+")");
+      String incremental = isIncrementalPages() ? " --incremental" : "";
+      log("Run jekyll: "+jekyllCommand+" build --destination \""+outputDir+"\""+incremental+" (in folder "+tempDir+")");
       if (SystemUtils.IS_OS_WINDOWS) {
         log("Due to a known issue, Jekyll errors are lost between Java and Ruby in windows systems.");
         log("If the build process hangs at this point, you have to go to a");
@@ -8421,6 +8605,9 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
                 .addArgument("build")
                 .addArgument("--destination")
                 .addArgument(enclosedOutputDir);
+        if (isIncrementalPages()) {
+          commandLine.addArgument("--incremental");
+        }
         exec.execute(commandLine);
       } else if (FhirSettings.hasRubyPath()) {
         ProcessBuilder processBuilder = new ProcessBuilder(new String("bash -c "+jekyllCommand));
@@ -8429,7 +8616,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
         vars.putAll(env);
         String path = FhirSettings.getRubyPath()+":"+env.get("PATH");
         vars.put("PATH", path);
-        CommandLine commandLine = new CommandLine("bash").addArgument("-c").addArgument(jekyllCommand+" build --destination "+outputDir, false);
+        CommandLine commandLine = new CommandLine("bash").addArgument("-c").addArgument(jekyllCommand+" build --destination "+outputDir+incremental, false);
         exec.execute(commandLine, vars);
       } else {
         final String enclosedOutputDir = "\"" + outputDir + "\"";
@@ -8437,6 +8624,9 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
                 .addArgument("build")
                 .addArgument("--destination")
                 .addArgument(enclosedOutputDir);
+        if (isIncrementalPages()) {
+          commandLine.addArgument("--incremental");
+        }
         exec.execute(commandLine);
       }
       tts.end();
@@ -8460,6 +8650,23 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     return true;
   }
 
+  private boolean runNativePages() throws IOException {
+    Session tts = tt.start("pages");
+    try {
+      log("Generate pages (native engine"+(nativePagesStrict ? ", strict" : "")+") from "+tempDir+" to "+outputDir);
+      NativePageEngine engine = new NativePageEngine(tempDir, outputDir, this);
+      engine.setStrict(nativePagesStrict);
+      engine.setIncremental(isIncrementalPages());
+      engine.setChanged(changedOutputs);
+      engine.setMarkdown((src, location) -> markdownEngine.process(src, location));
+      NativePageEngine.BuildResult res = engine.build();
+      log("  ... "+res.getPages()+" "+checkPlural("page", res.getPages())+" ("+res.getWritten()+" changed"+(res.getSkipped() > 0 ? ", "+res.getSkipped()+" up to date" : "")+"), "+res.getCopied()+" "+checkPlural("file", res.getCopied())+" copied");
+    } finally {
+      tts.end();
+    }
+    return true;
+  }
+
   private void dumpVars() {
     log("---- Props -------------");
     Properties properties = System.getProperties();
@@ -10250,6 +10457,66 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     }    
   }
   
+  private interface OrderedOutput {
+    void produce() throws Exception;
+  }
+
+  /**
+   * Renders the files in changeList on a thread pool. The outputs of each file are
+   * independent, except for the few that are accumulated across files (the expansion
+   * list, the value set codes in the database, all-profiles.csv/xlsx); these are passed
+   * to inOrder(), which queues them, and they are produced in changeList order once each
+   * file is finished, so the output is the same as a serial build
+   */
+  private void generateHtmlOutputsInParallel(DBBuilder db) throws Exception {
+    int threads = Math.min(Runtime.getRuntime().availableProcessors(), changeList.size());
+    log("Generating outputs for "+changeList.size()+" files on "+threads+" threads");
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<List<OrderedOutput>>> futures = new ArrayList<>();
+      for (FetchedFile f : changeList) {
+        futures.add(executor.submit(() -> {
+          List<OrderedOutput> list = new ArrayList<>();
+          orderedOutputs.set(list);
+          f.start("generate2");
+          try {
+            generateHtmlOutputs(f, false, db);
+          } finally {
+            f.finish("generate2");
+            orderedOutputs.remove();
+          }
+          return list;
+        }));
+      }
+      Exception first = null;
+      for (Future<List<OrderedOutput>> future : futures) {
+        try {
+          for (OrderedOutput o : future.get()) {
+            o.produce();
+          }
+        } catch (ExecutionException e) {
+          if (first == null) {
+            first = e.getCause() instanceof Exception ? (Exception) e.getCause() : new FHIRException(e.getCause().getMessage(), e.getCause());
+          }
+        }
+      }
+      if (first != null) {
+        throw first;
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private void inOrder(OrderedOutput output) throws Exception {
+    List<OrderedOutput> list = orderedOutputs.get();
+    if (list == null) {
+      output.produce();
+    } else {
+      list.add(output);
+    }
+  }
+
   private void generateHtmlOutputs(FetchedFile f, boolean regen, DBBuilder db) throws Exception {
     if (generationOff) {
       return;
@@ -10330,38 +10597,43 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
             // we have a list of the elements, and of the resources. 
             // The resources might not be the same as the elements - they've been converted to R5. We'll use the resources 
             // if that's ok, else we'll use the element (resources render better)
-            for (int i = 0; i < containedResources.size(); i++ ) {
-              Element containedElement = containedElements.get(i);
-              Resource containedResource = containedResources.get(i);
-              if (RendererFactory.hasSpecificRenderer(containedElement.fhirType())) {
-                if (containedElement.fhirType().equals(containedResource.fhirType())) {
-                  String prefixForContained = r.getResource().getId()+"_";
-                  makeTemplatesContained(f, r, containedResource, vars, prefixForContained);
-                  String fn = saveDirectResourceOutputsContained(f, r, containedResource, vars, prefixForContained);
-                  if (containedResource instanceof CanonicalResource) {
-                    CanonicalResource cr = ((CanonicalResource) containedResource).copy();
-                    cr.copyUserData(container);
-                    if (!(container instanceof CanonicalResource)) {
-                      if (!cr.hasUrl() || !cr.hasVersion()) {
-                        //                    throw new FHIRException("Unable to publish: contained canonical resource in a non-canonical resource does not have url+version");
-                      }
-                    } else {
+            r.setRenderingContained(true);
+            try {
+              for (int i = 0; i < containedResources.size(); i++ ) {
+                Element containedElement = containedElements.get(i);
+                Resource containedResource = containedResources.get(i);
+                if (RendererFactory.hasSpecificRenderer(containedElement.fhirType())) {
+                  if (containedElement.fhirType().equals(containedResource.fhirType())) {
+                    String prefixForContained = r.getResource().getId()+"_";
+                    makeTemplatesContained(f, r, containedResource, vars, prefixForContained);
+                    String fn = saveDirectResourceOutputsContained(f, r, containedResource, vars, prefixForContained);
+                    if (containedResource instanceof CanonicalResource) {
+                      CanonicalResource cr = ((CanonicalResource) containedResource).copy();
                       cr.copyUserData(container);
-                      if (!cr.hasUrl()) {
-                        cr.setUrl(((CanonicalResource) container).getUrl()+"#"+containedResource.getId());
-                      }
-                      if (!cr.hasVersion()) {
-                        cr.setVersion(((CanonicalResource) container).getVersion());
+                      if (!(container instanceof CanonicalResource)) {
+                        if (!cr.hasUrl() || !cr.hasVersion()) {
+                          //                    throw new FHIRException("Unable to publish: contained canonical resource in a non-canonical resource does not have url+version");
+                        }
+                      } else {
+                        cr.copyUserData(container);
+                        if (!cr.hasUrl()) {
+                          cr.setUrl(((CanonicalResource) container).getUrl()+"#"+containedResource.getId());
+                        }
+                        if (!cr.hasVersion()) {
+                          cr.setVersion(((CanonicalResource) container).getVersion());
+                        }
                       }
+                      generateResourceHtml(f, regen, r, cr, vars, prefixForContained, db);
+                      clist.add(new StringPair(cr.present(), fn));
+                    } else {
+                      generateResourceHtml(f, regen, r, containedResource, vars, prefixForContained, db);
+                      clist.add(new StringPair(containedResource.fhirType()+"/"+containedResource.getId(), fn));
                     }
-                    generateResourceHtml(f, regen, r, cr, vars, prefixForContained, db);
-                    clist.add(new StringPair(cr.present(), fn));
-                  } else {
-                    generateResourceHtml(f, regen, r, containedResource, vars, prefixForContained, db);
-                    clist.add(new StringPair(containedResource.fhirType()+"/"+containedResource.getId(), fn));
                   }
                 }
               }
+            } finally {
+              r.setRenderingContained(false);
             }
           }
         } else {
@@ -10585,7 +10857,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
 
 
   private void generateOutputsOperationDefinition(FetchedFile f, FetchedResource r, OperationDefinition od, Map<String, String> vars, boolean regen, String prefixForContainer) throws FHIRException, IOException {
-    OperationDefinitionRenderer odr = new OperationDefinitionRenderer(context, checkAppendSlash(specPath), od, Utilities.path(tempDir), igpkp, specMaps, pageTargets(), markdownEngine, packge, fileList, rc, versionToAnnotate);
+    OperationDefinitionRenderer odr = new OperationDefinitionRenderer(context, checkAppendSlash(specPath), od, Utilities.path(tempDir), igpkp, specMaps, pageTargets(), markdownEngine, packge, fileList, rc.copy(), versionToAnnotate);
     if (igpkp.wantGen(r, "summary")) {
       fragment("OperationDefinition-"+prefixForContainer+od.getId()+"-summary", odr.summary(), f.getOutputNames(), r, vars, null);
     }
@@ -10598,6 +10870,9 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   }
 
   private Set<String> pageTargets() {
+    if (pageTargets != null) {
+      return pageTargets;
+    }
     Set<String> set = new HashSet<>();
     if (sourceIg.getDefinition().getPage().hasName()) {
       set.add(sourceIg.getDefinition().getPage().getName());
@@ -11338,7 +11613,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
    * @throws Exception
    */
   private void generateOutputsCodeSystem(FetchedFile f, FetchedResource fr, CodeSystem cs, Map<String, String> vars, String prefixForContainer) throws Exception {
-    CodeSystemRenderer csr = new CodeSystemRenderer(context, specPath, cs, igpkp, specMaps, pageTargets(), markdownEngine, packge, rc, versionToAnnotate);
+    CodeSystemRenderer csr = new CodeSystemRenderer(context, specPath, cs, igpkp, specMaps, pageTargets(), markdownEngine, packge, rc.copy(), versionToAnnotate);
     if (igpkp.wantGen(fr, "summary")) {
       fragment("CodeSystem-"+prefixForContainer+cs.getId()+"-summary", csr.summaryTable(fr, igpkp.wantGen(fr, "xml"), igpkp.wantGen(fr, "json"), igpkp.wantGen(fr, "ttl"), igpkp.summaryRows()), f.getOutputNames(), fr, vars, null);
     }
@@ -11378,7 +11653,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
    * @throws Exception
    */
   private void generateOutputsValueSet(FetchedFile f, FetchedResource r, ValueSet vs, Map<String, String> vars, String prefixForContainer, DBBuilder db) throws Exception {
-    ValueSetRenderer vsr = new ValueSetRenderer(context, specPath, vs, igpkp, specMaps, pageTargets(), markdownEngine, packge, rc, versionToAnnotate);
+    ValueSetRenderer vsr = new ValueSetRenderer(context, specPath, vs, igpkp, specMaps, pageTargets(), markdownEngine, packge, rc.copy(), versionToAnnotate);
     if (igpkp.wantGen(r, "summary")) {
       fragment("ValueSet-"+prefixForContainer+vs.getId()+"-summary", vsr.summaryTable(r, igpkp.wantGen(r, "xml"), igpkp.wantGen(r, "json"), igpkp.wantGen(r, "ttl"), igpkp.summaryRows()), f.getOutputNames(), r, vars, null);
     }
@@ -11403,10 +11678,10 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
         String html = "<p style=\"color: maroon\">Expansions are not generated for retired value sets</p>";
         fragment("ValueSet-"+prefixForContainer+vs.getId()+"-expansion", html, f.getOutputNames(), r, vars, null);
       } else {
-        ValueSetExpansionOutcome exp = context.expandVS(vs, true, true, true);
-        db.recordExpansion(vs, exp);
+        ValueSetExpansionOutcome exp = expansionCache != null ? expansionCache.expand(vs, true, true, true) : context.expandVS(vs, true, true, true);
+        inOrder(() -> db.recordExpansion(vs, exp));
         if (exp.getValueset() != null) {
-          expansions.add(exp.getValueset());
+          inOrder(() -> expansions.add(exp.getValueset()));
 
           RenderingContext lrc = rc.copy();
           lrc.setTooCostlyNoteNotEmpty("This value set has >1000 codes in it. In order to keep the publication size manageable, only a selection (1000 codes) of the whole set of codes is shown");
@@ -11530,7 +11805,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     if (igpkp.wantGen(r, "json-schema"))
       fragmentError("StructureDefinition-"+prefixForContainer+sd.getId()+"-json-schema", "yet to be done: json schema as html", null, f.getOutputNames());
 
-    StructureDefinitionRenderer sdr = new StructureDefinitionRenderer(context, checkAppendSlash(specPath), sd, Utilities.path(tempDir), igpkp, specMaps, pageTargets(), markdownEngine, packge, fileList, rc, allInvariants, sdMapCache, specPath, versionToAnnotate);
+    StructureDefinitionRenderer sdr = new StructureDefinitionRenderer(context, checkAppendSlash(specPath), sd, Utilities.path(tempDir), igpkp, specMaps, pageTargets(), markdownEngine, packge, fileList, rc.copy(), allInvariants, sdMapCache, specPath, versionToAnnotate);
     if (igpkp.wantGen(r, "summary")) {
       fragment("StructureDefinition-"+prefixForContainer+sd.getId()+"-summary", sdr.summary(), f.getOutputNames(), r, vars, null);
     }
@@ -11650,14 +11925,19 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     if (igpkp.wantGen(r, "csv")) {
       String path = Utilities.path(tempDir, sdPrefix + r.getId()+".csv");
       f.getOutputNames().add(path);
-      ProfileUtilities pu = new ProfileUtilities(context, errors, igpkp);
-      pu.generateCsv(new FileOutputStream(path), sd, true);
-      if (allProfilesCsv == null) {
-        allProfilesCsv = new CSVWriter(new FileOutputStream(Utilities.path(tempDir, "all-profiles.csv")), true);
-        otherFilesRun.add(Utilities.path(tempDir, "all-profiles.csv"));
-
+      if (spreadsheets != null) {
+        inOrder(() -> spreadsheets.addCsv(sd, path));
+      } else {
+        ProfileUtilities pu = new ProfileUtilities(context, errors, igpkp);
+        pu.generateCsv(new FileOutputStream(path), sd, true);
+        inOrder(() -> {
+          if (allProfilesCsv == null) {
+            allProfilesCsv = new CSVWriter(new FileOutputStream(Utilities.path(tempDir, "all-profiles.csv")), true);
+            otherFilesRun.add(Utilities.path(tempDir, "all-profiles.csv"));
+          }
+          pu.addToCSV(allProfilesCsv, sd);
+        });
       }
-      pu.addToCSV(allProfilesCsv, sd);
     }
     
     for (Extension ext : sd.getExtensionsByUrl(ToolingExtensions.EXT_SD_IMPOSE_PROFILE)) {
@@ -11677,7 +11957,12 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
       }
     }
 
-    if (igpkp.wantGen(r, "xlsx")) {
+    if (igpkp.wantGen(r, "xlsx") && spreadsheets != null) {
+      String path = Utilities.path(tempDir, sdPrefix + r.getId()+".xlsx");
+      f.getOutputNames().add(path);
+      boolean ms = anyMustSupport(sd);
+      inOrder(() -> spreadsheets.addXlsx(sd, path, ms));
+    } else if (igpkp.wantGen(r, "xlsx")) {
       lapsed(null);
       String path = Utilities.path(tempDir, sdPrefix + r.getId()+".xlsx");
       f.getOutputNames().add(path);
@@ -11685,10 +11970,12 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
       sdg.renderStructureDefinition(sd, false);
       sdg.finish(new FileOutputStream(path));
       lapsed("xslx");
-      if (allProfilesXlsx == null) {
-        allProfilesXlsx  = new StructureDefinitionSpreadsheetGenerator(context, true, false);
-      }
-      allProfilesXlsx.renderStructureDefinition(sd, true);
+      inOrder(() -> {
+        if (allProfilesXlsx == null) {
+          allProfilesXlsx  = new StructureDefinitionSpreadsheetGenerator(context, true, false);
+        }
+        allProfilesXlsx.renderStructureDefinition(sd, true);
+      });
       lapsed("all-xslx");
     }
 
@@ -11730,7 +12017,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   }
 
   private void generateOutputsStructureMap(FetchedFile f, FetchedResource r, StructureMap map, Map<String,String> vars, String prefixForContainer) throws Exception {
-    StructureMapRenderer smr = new StructureMapRenderer(context, checkAppendSlash(specPath), map, Utilities.path(tempDir), igpkp, specMaps, pageTargets(), markdownEngine, packge, rc, versionToAnnotate);
+    StructureMapRenderer smr = new StructureMapRenderer(context, checkAppendSlash(specPath), map, Utilities.path(tempDir), igpkp, specMaps, pageTargets(), markdownEngine, packge, rc.copy(), versionToAnnotate);
     if (igpkp.wantGen(r, "summary"))
       fragment("StructureMap-"+prefixForContainer+map.getId()+"-summary", smr.summaryTable(r, igpkp.wantGen(r, "xml"), igpkp.wantGen(r, "json"), igpkp.wantGen(r, "ttl"), igpkp.summaryRows()), f.getOutputNames(), r, vars, null);
     if (igpkp.wantGen(r, "summary-table"))
@@ -11751,7 +12038,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   }
 
   private void generateOutputsCanonical(FetchedFile f, FetchedResource r, CanonicalResource cr, Map<String,String> vars, String prefixForContainer) throws Exception {
-    CanonicalRenderer smr = new CanonicalRenderer(context, checkAppendSlash(specPath), cr, Utilities.path(tempDir), igpkp, specMaps, pageTargets(), markdownEngine, packge, rc, versionToAnnotate);
+    CanonicalRenderer smr = new CanonicalRenderer(context, checkAppendSlash(specPath), cr, Utilities.path(tempDir), igpkp, specMaps, pageTargets(), markdownEngine, packge, rc.copy(), versionToAnnotate);
     if (igpkp.wantGen(r, "summary"))
       fragment(cr.fhirType()+"-"+prefixForContainer+cr.getId()+"-summary", smr.summaryTable(r, igpkp.wantGen(r, "xml"), igpkp.wantGen(r, "json"), igpkp.wantGen(r, "ttl"), igpkp.summaryRows()), f.getOutputNames(), r, vars, null);
     if (igpkp.wantGen(r, "summary-table"))
@@ -11947,10 +12234,7 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   }
 
   private void trackedFragment(String id, String name, String content, Set<String> outputTracker) throws IOException, FHIRException {
-    if (!trackedFragments.containsKey(id)) {
-      trackedFragments.put(id, new ArrayList<>());      
-    }
-    trackedFragments.get(id).add(name+".xhtml");
+    trackedFragments.computeIfAbsent(id, k -> Collections.synchronizedList(new ArrayList<>())).add(name+".xhtml");
     fragment(name, content+HTMLInspector.TRACK_PREFIX+id+HTMLInspector.TRACK_SUFFIX, outputTracker, null, null, null);
   }
 
@@ -11961,9 +12245,13 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
   private void fragment(String name, String content, Set<String> outputTracker, FetchedResource r, Map<String, String> vars, String format) throws IOException, FHIRException {
     String fixedContent = (r==null? content : igpkp.doReplacements(content, r, vars, format));
     if (checkMakeFile(TextFile.stringToBytes(wrapLiquid(fixedContent), false), Utilities.path(tempDir, "_includes", name+".xhtml"), outputTracker)) {
-      if (mode != IGBuildMode.AUTOBUILD && makeQA)
+      if (mode != IGBuildMode.AUTOBUILD && makeQA && qaFragments == null)
         TextFile.stringToFile(pageWrap(fixedContent, name), Utilities.path(qaDir, name+".html"), true);
     }
+    if (qaFragments != null) {
+      // all fragments, not just the changed ones, since the store is rewritten on each run
+      qaFragments.add(name, fixedContent);
+    }
   }
 
   /**
@@ -12256,7 +12544,15 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
     } else if (CliParams.hasNamedParam(args, "-generate-package-registry")) {
       new PackageRegistryBuilder(CliParams.getNamedParam(args, "-generate-package-registry")).build();
     } else if (CliParams.hasNamedParam(args, "-xig")) {
-      new XIGGenerator(CliParams.getNamedParam(args, "-xig"), CliParams.getNamedParam(args, "-xig-cache")).execute(Integer.parseInt(CliParams.getNamedParam(args, "-xig-step")));
+      XIGGenerator xig = new XIGGenerator(CliParams.getNamedParam(args, "-xig"), CliParams.getNamedParam(args, "-xig-cache"));
+      xig.setFresh(CliParams.hasNamedParam(args, "-xig-fresh"));
+      xig.setPacked(CliParams.hasNamedParam(args, "-xig-packed"));
+      xig.setParallel(CliParams.hasNamedParam(args, "-xig-parallel"));
+      if (CliParams.hasNamedParam(args, "-xig-pages")) {
+        xig.renderPages(CliParams.getNamedParam(args, "-xig-pages"));
+      } else {
+        xig.execute(Integer.parseInt(CliParams.getNamedParam(args, "-xig-step")));
+      }
     } else if (CliParams.hasNamedParam(args, "-update-history")) {
       new HistoryPageUpdater().updateHistoryPages(CliParams.getNamedParam(args, "-history"), CliParams.getNamedParam(args, "-website"), CliParams.getNamedParam(args, "-website"));
     } else if (CliParams.hasNamedParam(args, "-publish-update")) {
@@ -12492,6 +12788,33 @@ public class Publisher implements ILoggingService, IReferenceResolver, IValidati
       if (CliParams.hasNamedParam(args, "-no-sushi")) {
         self.noSushi = true;
       }
+      if (CliParams.hasNamedParam(args, "-native-pages")) {
+        self.nativePages = true;
+      }
+      if (CliParams.hasNamedParam(args, "-incremental-pages")) {
+        self.incrementalPages = true;
+      }
+      if (CliParams.hasNamedParam(args, "-qa-stream")) {
+        self.streamQA = true;
+      }
+      if (CliParams.hasNamedParam(args, "-parallel-generation")) {
+        self.parallelGeneration = true;
+      }
+      if (CliParams.hasNamedParam(args, "-expansion-cache")) {
+        self.expansionCacheFile = CliParams.getNamedParam(args, "-expansion-cache");
+      }
+      if (CliParams.hasNamedParam(args, "-demand-fragments")) {
+        self.demandFragments = true;
+      }
+      if (CliParams.hasNamedParam(args, "-qa-fragment-pages")) {
+        self.qaFragmentPages = true;
+      }
+      if (CliParams.hasNamedParam(args, "-stream-spreadsheets")) {
+        self.streamSpreadsheets = true;
+      }
+      if (CliParams.hasNamedParam(args, "-dependent-igs-mirror")) {
+        self.dependentIgsMirror = CliParams.getNamedParam(args, "-dependent-igs-mirror");
+      }
       if (CliParams.hasNamedParam(args, PACKAGE_CACHE_FOLDER_PARAM)) {
         self.setPackageCacheFolder(CliParams.getNamedParam(args, PACKAGE_CACHE_FOLDER_PARAM));
       }
@@ -0,0 +1,129 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.Utilities;
+
+/**
+ * Keeps the QA copy of the generated fragments in a handful of pack files instead of
+ * one html page per fragment, which is a lot of small file writes for a big IG.
+ *
+ * The packs are javascript files (qa-fragments/packN.js) so that the viewer page
+ * (qa-fragments.html) can load them with a script tag, which works when the qa
+ * folder is opened straight from disk. The viewer wraps a fragment in a page when it
+ * is asked for: qa-fragments.html#[name]
+ */
+public class QAFragmentStore implements Closeable {
+
+  private static final int MAX_PACK_SIZE = 4 * 1024 * 1024;
+
+  private String folder;
+  private Map<String, Integer> index = new TreeMap<>();
+  private Writer pack;
+  private int packNo = -1;
+  private int packSize;
+
+  public QAFragmentStore(String qaDir) throws IOException {
+    this.folder = Utilities.path(qaDir, "qa-fragments");
+    Utilities.createDirectory(folder);
+    Utilities.clearDirectory(folder);
+    TextFile.stringToFile(viewer(), Utilities.path(qaDir, "qa-fragments.html"), false);
+  }
+
+  public synchronized void add(String name, String content) throws IOException {
+    if (pack == null || packSize > MAX_PACK_SIZE) {
+      nextPack();
+    }
+    String s = "qaFragment(\""+Utilities.escapeJson(name)+"\", "+packNo+", \""+Utilities.escapeJson(content)+"\");\n";
+    pack.write(s);
+    packSize += s.length();
+    index.put(name, packNo);
+  }
+
+  private void nextPack() throws IOException {
+    if (pack != null) {
+      pack.close();
+    }
+    packNo++;
+    packSize = 0;
+    pack = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(Utilities.path(folder, "pack"+packNo+".js")), StandardCharsets.UTF_8));
+  }
+
+  public synchronized int getCount() {
+    return index.size();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (pack != null) {
+      pack.close();
+      pack = null;
+    }
+    StringBuilder b = new StringBuilder();
+    b.append("var qaFragmentIndex = {");
+    boolean first = true;
+    for (String name : index.keySet()) {
+      if (!first) {
+        b.append(",");
+      }
+      first = false;
+      b.append("\n\""+Utilities.escapeJson(name)+"\":"+index.get(name));
+    }
+    b.append("\n};\n");
+    TextFile.stringToFile(b.toString(), Utilities.path(folder, "index.js"), false);
+  }
+
+  private String viewer() {
+    return "<html>\r\n"+
+        "<head>\r\n"+
+        "  <title>Fragments</title>\r\n"+
+        "  <meta charset=\"UTF-8\"/>\r\n"+
+        "  <link rel=\"stylesheet\" href=\"fhir.css\"/>\r\n"+
+        "  <script src=\"qa-fragments/index.js\"></script>\r\n"+
+        "  <script>\r\n"+
+        "    var qaFragments = {};\r\n"+
+        "    function qaFragment(name, pack, content) {\r\n"+
+        "      // a fragment can be written more than once; the index says which pack has the latest\r\n"+
+        "      if (qaFragmentIndex[name] == pack) { qaFragments[name] = content; }\r\n"+
+        "    }\r\n"+
+        "    function qaShow() {\r\n"+
+        "      var name = decodeURIComponent(location.hash.substring(1));\r\n"+
+        "      var body = document.getElementById('content');\r\n"+
+        "      if (!name) {\r\n"+
+        "        document.title = 'Fragments';\r\n"+
+        "        var names = Object.keys(qaFragmentIndex).sort();\r\n"+
+        "        var h = '<p>' + names.length + ' fragments</p><ul>';\r\n"+
+        "        for (var i = 0; i < names.length; i++) {\r\n"+
+        "          h = h + '<li><a href=\"#' + encodeURIComponent(names[i]) + '\">' + names[i] + '</a></li>';\r\n"+
+        "        }\r\n"+
+        "        body.innerHTML = h + '</ul>';\r\n"+
+        "      } else if (qaFragments[name] !== undefined) {\r\n"+
+        "        document.title = name;\r\n"+
+        "        body.innerHTML = qaFragments[name];\r\n"+
+        "      } else if (qaFragmentIndex[name] === undefined) {\r\n"+
+        "        body.innerHTML = '<p>Fragment ' + name + ' not found</p>';\r\n"+
+        "      } else {\r\n"+
+        "        var s = document.createElement('script');\r\n"+
+        "        s.src = 'qa-fragments/pack' + qaFragmentIndex[name] + '.js';\r\n"+
+        "        s.onload = qaShow;\r\n"+
+        "        document.head.appendChild(s);\r\n"+
+        "      }\r\n"+
+        "    }\r\n"+
+        "    window.onhashchange = qaShow;\r\n"+
+        "  </script>\r\n"+
+        "</head>\r\n"+
+        "<body onload=\"qaShow()\">\r\n"+
+        "<div id=\"content\"></div>\r\n"+
+        "</body>\r\n"+
+        "</html>\r\n";
+  }
+}
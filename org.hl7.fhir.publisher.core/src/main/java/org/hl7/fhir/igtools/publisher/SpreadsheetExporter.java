@@ -0,0 +1,267 @@
+package org.hl7.fhir.igtools.publisher;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.ss.util.PaneInformation;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFColor;
+import org.apache.poi.xssf.usermodel.XSSFFont;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.conformance.profile.ProfileKnowledgeProvider;
+import org.hl7.fhir.r5.conformance.profile.ProfileUtilities;
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.r5.renderers.spreadsheets.StructureDefinitionSpreadsheetGenerator;
+import org.hl7.fhir.r5.utils.formats.CSVWriter;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+
+/**
+ * Produces the csv and xlsx files for the profiles away from the rendering threads.
+ *
+ * Each profile's spreadsheets are generated on a pool of workers, each into its own
+ * (small) workbook. all-profiles.csv and all-profiles.xlsx are put together by a single
+ * writer thread that takes the profiles in the order they were added; the xlsx is a
+ * streaming workbook that only keeps a window of rows in memory, instead of one workbook
+ * that holds every profile until the end of the build.
+ *
+ * The sheets of each profile's workbook are copied into all-profiles.xlsx. A sheet with
+ * the same name as one that is already there (the metadata table that all the profiles
+ * share) has its rows, other than the heading, added to the existing sheet
+ */
+public class SpreadsheetExporter {
+
+  private static final int ROW_WINDOW = 200;
+
+  private IWorkerContext context;
+  private List<ValidationMessage> errors;
+  private ProfileKnowledgeProvider pkp;
+  private String tempDir;
+  private ExecutorService workers;
+  private ExecutorService writer;
+  private List<Future<?>> tasks = new ArrayList<>();
+
+  // these are only used on the writer thread
+  private FileOutputStream csvStream;
+  private CSVWriter csv;
+  private SXSSFWorkbook xlsx;
+  private Map<String, Integer> nextRow = new HashMap<>();
+  private Map<String, CellStyle> styles = new HashMap<>();
+
+  public SpreadsheetExporter(IWorkerContext context, List<ValidationMessage> errors, ProfileKnowledgeProvider pkp, String tempDir) {
+    this.context = context;
+    this.errors = errors;
+    this.pkp = pkp;
+    this.tempDir = tempDir;
+    workers = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1), SpreadsheetExporter::daemon);
+    writer = Executors.newSingleThreadExecutor(SpreadsheetExporter::daemon);
+  }
+
+  // if the build fails before finish(), these threads mustn't keep the publisher running
+  private static Thread daemon(Runnable r) {
+    Thread t = new Thread(r, "spreadsheets");
+    t.setDaemon(true);
+    return t;
+  }
+
+  /**
+   * Writes the csv for the profile to path, and adds it to all-profiles.csv. The profile
+   * may still be changed by the caller, so each task works on its own copy, made here
+   */
+  public synchronized void addCsv(StructureDefinition sd, String path) {
+    StructureDefinition sdCsv = sd.copy();
+    StructureDefinition sdAll = sd.copy();
+    tasks.add(workers.submit(() -> {
+      try (FileOutputStream out = new FileOutputStream(path)) {
+        new ProfileUtilities(context, errors, pkp).generateCsv(out, sdCsv, true);
+      }
+      return null;
+    }));
+    tasks.add(writer.submit(() -> {
+      if (csv == null) {
+        csvStream = new FileOutputStream(Utilities.path(tempDir, "all-profiles.csv"));
+        csv = new CSVWriter(csvStream, true);
+      }
+      new ProfileUtilities(context, errors, pkp).addToCSV(csv, sdAll);
+      return null;
+    }));
+  }
+
+  /**
+   * Writes the xlsx for the profile to path, and adds it to all-profiles.xlsx
+   */
+  public synchronized void addXlsx(StructureDefinition sd, String path, boolean mustSupport) {
+    StructureDefinition sdXlsx = sd.copy();
+    StructureDefinition sdAll = sd.copy();
+    tasks.add(workers.submit(() -> {
+      StructureDefinitionSpreadsheetGenerator sdg = new StructureDefinitionSpreadsheetGenerator(context, true, mustSupport);
+      sdg.renderStructureDefinition(sdXlsx, false);
+      try (FileOutputStream out = new FileOutputStream(path)) {
+        sdg.finish(out);
+      }
+      return null;
+    }));
+    Future<byte[]> part = workers.submit(() -> {
+      StructureDefinitionSpreadsheetGenerator sdg = new StructureDefinitionSpreadsheetGenerator(context, true, false);
+      sdg.renderStructureDefinition(sdAll, true);
+      sdg.configure();
+      ByteArrayOutputStream bs = new ByteArrayOutputStream();
+      sdg.finish(bs);
+      return bs.toByteArray();
+    });
+    tasks.add(writer.submit(() -> {
+      append(part.get());
+      return null;
+    }));
+  }
+
+  private void append(byte[] content) throws Exception {
+    if (xlsx == null) {
+      xlsx = new SXSSFWorkbook(ROW_WINDOW);
+      xlsx.setCompressTempFiles(true);
+    }
+    try (XSSFWorkbook src = new XSSFWorkbook(new ByteArrayInputStream(content))) {
+      for (int i = 0; i < src.getNumberOfSheets(); i++) {
+        XSSFSheet ss = src.getSheetAt(i);
+        Sheet ds = xlsx.getSheet(ss.getSheetName());
+        if (ds == null) {
+          ds = xlsx.createSheet(ss.getSheetName());
+          copyRows(ss, ds, 0);
+          copyLayout(ss, ds);
+        } else {
+          copyRows(ss, ds, 1);
+        }
+      }
+    }
+  }
+
+  private void copyRows(XSSFSheet ss, Sheet ds, int firstRow) {
+    int offset = nextRow.getOrDefault(ds.getSheetName(), 0) - firstRow;
+    for (Row sr : ss) {
+      if (sr.getRowNum() < firstRow) {
+        continue;
+      }
+      Row dr = ds.createRow(sr.getRowNum() + offset);
+      dr.setHeight(sr.getHeight());
+      for (Cell sc : sr) {
+        Cell dc = dr.createCell(sc.getColumnIndex());
+        dc.setCellStyle(style((XSSFCellStyle) sc.getCellStyle()));
+        switch (sc.getCellType()) {
+        case NUMERIC:
+          dc.setCellValue(sc.getNumericCellValue());
+          break;
+        case BOOLEAN:
+          dc.setCellValue(sc.getBooleanCellValue());
+          break;
+        case FORMULA:
+          dc.setCellFormula(sc.getCellFormula());
+          break;
+        case STRING:
+          dc.setCellValue(sc.getStringCellValue());
+          break;
+        default:
+          break;
+        }
+      }
+    }
+    nextRow.put(ds.getSheetName(), Math.max(nextRow.getOrDefault(ds.getSheetName(), 0), ss.getLastRowNum() + offset + 1));
+  }
+
+  private void copyLayout(XSSFSheet ss, Sheet ds) {
+    int cols = 0;
+    for (Row sr : ss) {
+      cols = Math.max(cols, sr.getLastCellNum());
+    }
+    for (int c = 0; c < cols; c++) {
+      ds.setColumnWidth(c, ss.getColumnWidth(c));
+    }
+    for (CellRangeAddress range : ss.getMergedRegions()) {
+      ds.addMergedRegion(range);
+    }
+    PaneInformation pane = ss.getPaneInformation();
+    if (pane != null && pane.isFreezePane()) {
+      ds.createFreezePane(pane.getVerticalSplitPosition(), pane.getHorizontalSplitPosition());
+    }
+  }
+
+  // each profile's workbook has its own copy of the styles; they're shared in all-profiles.xlsx
+  private CellStyle style(XSSFCellStyle s) {
+    XSSFFont font = s.getFont();
+    String key = font.getFontName()+"|"+font.getFontHeightInPoints()+"|"+font.getBold()+"|"+font.getItalic()+"|"+font.getUnderline()+"|"+color(font.getXSSFColor())+"|"+
+        s.getFillPattern()+"|"+color(s.getFillForegroundXSSFColor())+"|"+s.getBorderTop()+"|"+s.getBorderBottom()+"|"+s.getBorderLeft()+"|"+s.getBorderRight()+"|"+
+        s.getAlignment()+"|"+s.getVerticalAlignment()+"|"+s.getWrapText()+"|"+s.getDataFormatString();
+    CellStyle res = styles.get(key);
+    if (res == null) {
+      res = xlsx.createCellStyle();
+      res.cloneStyleFrom(s);
+      styles.put(key, res);
+    }
+    return res;
+  }
+
+  private String color(XSSFColor c) {
+    return c == null ? "" : c.getARGBHex()+"/"+c.getIndexed()+"/"+c.getTheme();
+  }
+
+  /**
+   * Waits for all the spreadsheets, and finishes all-profiles.csv and all-profiles.xlsx.
+   * Returns the names of the all-profiles files that were written
+   */
+  public List<String> finish() throws Exception {
+    List<String> res = new ArrayList<>();
+    try {
+      Exception first = null;
+      for (Future<?> task : tasks) {
+        try {
+          task.get();
+        } catch (ExecutionException e) {
+          if (first == null) {
+            first = e.getCause() instanceof Exception ? (Exception) e.getCause() : new FHIRException(e.getCause().getMessage(), e.getCause());
+          }
+        }
+      }
+      if (first != null) {
+        throw first;
+      }
+      if (csv != null) {
+        csv.dump();
+        res.add(Utilities.path(tempDir, "all-profiles.csv"));
+      }
+      if (xlsx != null) {
+        String path = Utilities.path(tempDir, "all-profiles.xlsx");
+        try (FileOutputStream out = new FileOutputStream(path)) {
+          xlsx.write(out);
+        }
+        res.add(path);
+      }
+    } finally {
+      workers.shutdownNow();
+      writer.shutdownNow();
+      if (csvStream != null) {
+        csvStream.close();
+      }
+      if (xlsx != null) {
+        xlsx.dispose();
+      }
+    }
+    return res;
+  }
+}
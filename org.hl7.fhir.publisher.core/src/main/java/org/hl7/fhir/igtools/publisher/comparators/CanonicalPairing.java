@@ -0,0 +1,120 @@
+package org.hl7.fhir.igtools.publisher.comparators;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.hl7.fhir.r5.model.CanonicalResource;
+import org.hl7.fhir.r5.model.CapabilityStatement;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.utilities.IniFile;
+
+/**
+ * Works out which resources of one version (left) are compared with which resources of
+ * another (right). Each side is indexed once, so pairing is linear in the number of resources.
+ *
+ * The pairs come out in a fixed order: the order of the left resources, then the
+ * right resources that have nothing on the left, in their order
+ */
+public class CanonicalPairing {
+
+  public static class CanonicalPair {
+    private CanonicalResource left;
+    private CanonicalResource right;
+
+    public CanonicalPair(CanonicalResource left, CanonicalResource right) {
+      super();
+      this.left = left;
+      this.right = right;
+    }
+
+    public CanonicalResource getLeft() {
+      return left;
+    }
+
+    public CanonicalResource getRight() {
+      return right;
+    }
+
+    public String getUrl() {
+      return left != null ? left.getUrl() : right.getUrl();
+    }
+  }
+
+  /**
+   * Pairs the resources by url. Every resource is in a pair, with null on the other side
+   * if it was added or removed.
+   *
+   * The urls of the right resources are changed by the [urls] section of the ini file, if
+   * there is one (url-map-v-[version].ini: new url = old url), to match the left
+   */
+  public static List<CanonicalPair> byUrl(List<CanonicalResource> left, List<CanonicalResource> right, IniFile ini) {
+    Map<String, CanonicalResource> rightIndex = index(right, r -> mapUrl(r.getUrl(), ini));
+    List<CanonicalPair> res = new ArrayList<>();
+    Set<String> done = new HashSet<>();
+    for (CanonicalResource rl : left) {
+      res.add(new CanonicalPair(rl, rightIndex.get(rl.getUrl())));
+      done.add(rl.getUrl());
+    }
+    for (CanonicalResource rr : right) {
+      if (!done.contains(mapUrl(rr.getUrl(), ini))) {
+        res.add(new CanonicalPair(null, rr));
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Pairs each right resource with the first left resource that has the same key. Resources that
+   * have no key, or nothing with the same key on the left, are not in a pair
+   */
+  public static List<CanonicalPair> byKey(List<CanonicalResource> left, List<CanonicalResource> right, Function<CanonicalResource, String> key) {
+    Map<String, CanonicalResource> leftIndex = index(left, key);
+    List<CanonicalPair> res = new ArrayList<>();
+    for (CanonicalResource rr : right) {
+      String k = key.apply(rr);
+      CanonicalResource rl = k == null ? null : leftIndex.get(k);
+      if (rl != null) {
+        res.add(new CanonicalPair(rl, rr));
+      }
+    }
+    return res;
+  }
+
+  /**
+   * The key for pairing resources that constrain the same thing: the type of a profile, or
+   * the mode of a capability statement
+   */
+  public static String typeKey(CanonicalResource r) {
+    if (r instanceof StructureDefinition) {
+      return "StructureDefinition|"+((StructureDefinition) r).getType();
+    } else if (r instanceof CapabilityStatement) {
+      return "CapabilityStatement|"+((CapabilityStatement) r).getRestFirstRep().getModeElement().asStringValue();
+    } else {
+      return null;
+    }
+  }
+
+  public static String mapUrl(String url, IniFile ini) {
+    if (ini != null && ini.hasProperty("urls", url)) {
+      return ini.getStringProperty("urls", url);
+    }
+    return url;
+  }
+
+  // where more than one resource has the same key, the first one is used
+  private static Map<String, CanonicalResource> index(List<CanonicalResource> list, Function<CanonicalResource, String> key) {
+    Map<String, CanonicalResource> res = new HashMap<>();
+    for (CanonicalResource r : list) {
+      String k = key.apply(r);
+      if (k != null) {
+        res.putIfAbsent(k, r);
+      }
+    }
+    return res;
+  }
+}
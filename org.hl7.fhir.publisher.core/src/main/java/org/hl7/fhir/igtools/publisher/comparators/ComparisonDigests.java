@@ -0,0 +1,59 @@
+package org.hl7.fhir.igtools.publisher.comparators;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.hl7.fhir.igtools.publisher.comparators.CanonicalPairing.CanonicalPair;
+import org.hl7.fhir.r5.formats.JsonParser;
+import org.hl7.fhir.r5.model.CanonicalResource;
+
+/**
+ * A digest of the content of each resource that is compared, so that a pair of resources that
+ * are the same doesn't need to be compared (and rendered) in full.
+ *
+ * The things that change with every release without changing the resource (version, date,
+ * narrative and meta) are left out of the digest. Each resource's digest is only worked out
+ * once, however many versions it is compared with
+ */
+public class ComparisonDigests {
+
+  private Map<CanonicalResource, byte[]> digests = Collections.synchronizedMap(new IdentityHashMap<>());
+
+  /**
+   * True if both sides of the pair are there, and their content is the same
+   */
+  public boolean unchanged(CanonicalPair pair) {
+    if (pair.getLeft() == null || pair.getRight() == null || !pair.getLeft().fhirType().equals(pair.getRight().fhirType())) {
+      return false;
+    }
+    byte[] left = digest(pair.getLeft());
+    byte[] right = digest(pair.getRight());
+    return left != null && right != null && Arrays.equals(left, right);
+  }
+
+  public byte[] digest(CanonicalResource resource) {
+    byte[] res = digests.get(resource);
+    if (res == null) {
+      res = make(resource);
+      digests.put(resource, res);
+    }
+    return res.length == 0 ? null : res;
+  }
+
+  private byte[] make(CanonicalResource resource) {
+    CanonicalResource cr = resource.copy();
+    cr.setVersionElement(null);
+    cr.setDateElement(null);
+    cr.setText(null);
+    cr.setMeta(null);
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(new JsonParser().composeBytes(cr));
+    } catch (Exception e) {
+      // a resource that can't be serialized is never unchanged
+      return new byte[0];
+    }
+  }
+}
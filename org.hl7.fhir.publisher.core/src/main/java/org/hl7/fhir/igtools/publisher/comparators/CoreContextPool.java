@@ -0,0 +1,42 @@
+package org.hl7.fhir.igtools.publisher.comparators;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.igtools.publisher.SpecMapManager;
+import org.hl7.fhir.igtools.publisher.loaders.PublisherLoader;
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+
+/**
+ * The core packages loaded for the comparisons with other versions (previous versions, IPA, IPS...).
+ *
+ * Each version that is compared needs a context with the core package for its FHIR version,
+ * and most of them use the same core package. The pool loads each core package once, and hands
+ * out copies of that context: a copy shares the core resources and has its own lists of them, so
+ * the comparator can load the package being compared into it without changing the others.
+ *
+ * The context that the build itself uses can't be used for this, since it already has the IG
+ * and its dependencies in it
+ */
+public class CoreContextPool {
+
+  private Map<String, SimpleWorkerContext> contexts = new HashMap<>();
+
+  /**
+   * A new context with the given core package in it, using the terminology cache in txCachePath
+   */
+  public synchronized SimpleWorkerContext get(NpmPackage core, String txCachePath) throws FHIRException, IOException {
+    String key = core.name()+"#"+core.version();
+    SimpleWorkerContext base = contexts.get(key);
+    if (base == null) {
+      base = new SimpleWorkerContext.SimpleWorkerContextBuilder().fromPackage(core, new PublisherLoader(core, SpecMapManager.fromPackage(core), core.getWebLocation(), null).makeLoader(), true);
+      contexts.put(key, base);
+    }
+    SimpleWorkerContext res = new SimpleWorkerContext(base);
+    res.initTxCache(txCachePath);
+    return res;
+  }
+}
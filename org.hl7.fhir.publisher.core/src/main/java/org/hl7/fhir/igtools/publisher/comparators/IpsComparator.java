@@ -3,7 +3,6 @@ package org.hl7.fhir.igtools.publisher.comparators;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -14,6 +13,7 @@ import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.igtools.publisher.IGKnowledgeProvider;
 import org.hl7.fhir.igtools.publisher.PastProcessHackerUtilities;
 import org.hl7.fhir.igtools.publisher.SpecMapManager;
+import org.hl7.fhir.igtools.publisher.comparators.CanonicalPairing.CanonicalPair;
 import org.hl7.fhir.igtools.publisher.loaders.PublisherLoader;
 import org.hl7.fhir.r5.comparison.ComparisonRenderer;
 import org.hl7.fhir.r5.comparison.ComparisonSession;
@@ -21,10 +21,8 @@ import org.hl7.fhir.r5.conformance.profile.ProfileKnowledgeProvider;
 import org.hl7.fhir.r5.context.ILoggingService;
 import org.hl7.fhir.r5.context.SimpleWorkerContext;
 import org.hl7.fhir.r5.model.CanonicalResource;
-import org.hl7.fhir.r5.model.CapabilityStatement;
 import org.hl7.fhir.r5.model.ImplementationGuide;
 import org.hl7.fhir.r5.model.Resource;
-import org.hl7.fhir.r5.model.StructureDefinition;
 import org.hl7.fhir.utilities.Utilities;
 import org.hl7.fhir.utilities.VersionUtilities;
 import org.hl7.fhir.utilities.npm.BasePackageCacheManager;
@@ -36,29 +34,6 @@ import org.hl7.fhir.utilities.npm.PackageList.PackageListEntry;
 
 public class IpsComparator {
 
-  public class ComparisonPair {
-    CanonicalResource left;
-    CanonicalResource right;
-    
-    public ComparisonPair(CanonicalResource left, CanonicalResource right) {
-      super();
-      this.left = left;
-      this.right = right;
-    }
-
-    public CanonicalResource getLeft() {
-      return left;
-    }
-
-    public CanonicalResource getRight() {
-      return right;
-    }
-
-    public String getUrl() {
-      return left != null ? left.getUrl() : right.getUrl();
-    }
-  }
-  
   private class VersionInstance {
     private String version;
     private SimpleWorkerContext context;    
@@ -73,8 +48,8 @@ public class IpsComparator {
   }
 
   private SimpleWorkerContext context;
+  private CoreContextPool contexts;
   private String dstDir;
-  private List<ComparisonPair> comparisons = new ArrayList<>();
   private ProfileKnowledgeProvider newpkp;
   private String errMsg;
   private String pid;
@@ -84,10 +59,11 @@ public class IpsComparator {
   private String lastName;
   private String lastUrl;
   
-  public IpsComparator(SimpleWorkerContext context, String rootDir, String dstDir, ProfileKnowledgeProvider pkp, ILoggingService logger, List<String> versions) {
+  public IpsComparator(SimpleWorkerContext context, String rootDir, String dstDir, ProfileKnowledgeProvider pkp, ILoggingService logger, List<String> versions, CoreContextPool contexts) {
     super();
         
     this.context = context;
+    this.contexts = contexts;
     this.dstDir = dstDir;
     this.newpkp = pkp;
     this.logger = logger;
@@ -178,7 +154,7 @@ public class IpsComparator {
             }
           }
           NpmPackage core = pcm.loadPackage(VersionUtilities.packageForVersion(current.fhirVersion()), VersionUtilities.getCurrentVersion(current.fhirVersion()));
-          vi.context = new SimpleWorkerContext.SimpleWorkerContextBuilder().withTerminologyCachePath(Utilities.path(context.getTxCache().getFolder(), vi.version)).fromPackage(core, new PublisherLoader(core, SpecMapManager.fromPackage(core), core.getWebLocation(), null).makeLoader(), true);
+          vi.context = contexts.get(core, Utilities.path(context.getTxCache().getFolder(), vi.version));
           //vi.context.initTS();
           vi.context.connectToTSServer(context.getTxClient(), null);
           vi.context.setExpansionProfile(context.getExpansionParameters());
@@ -211,20 +187,16 @@ public class IpsComparator {
   public void finishChecks() throws IOException {
     if (errMsg == null && pid != null) {
       for (VersionInstance vi : versionList) {
-        Set<String> set = new HashSet<>();
-        for (CanonicalResource rr : resources) {
-          CanonicalResource rl = findByType(rr, vi.resources);
-          if (rl != null) {
-            comparisons.add(new ComparisonPair(rl, rr));
-          }
-        }
+        // no ComparisonDigests check here: this IG's profiles are paired with IPS's by type, so the two sides
+        // are different resources (with different urls at least) and are never unchanged
+        List<CanonicalPair> comparisons = CanonicalPairing.byKey(vi.resources, resources, CanonicalPairing::typeKey);
 
         try {
           ComparisonSession session = new ComparisonSession(vi.context, context, "Comparison of v"+vi.version+" with this version", vi.pkp, newpkp);
           //    session.setDebug(true);
-          for (ComparisonPair c : comparisons) {
+          for (CanonicalPair c : comparisons) {
 //            System.out.println("Version Comparison: compare "+vi.version+" to current for "+c.getUrl());
-            session.compare(c.left, c.right);      
+            session.compare(c.getLeft(), c.getRight());      
           }
           Utilities.createDirectory(Utilities.path(dstDir, "ips-comparison-v"+vi.version));
           ComparisonRenderer cr = new ComparisonRenderer(vi.context, context, Utilities.path(dstDir, "ips-comparison-v"+vi.version), session);
@@ -291,33 +263,6 @@ public class IpsComparator {
 //  }
 
 
-  private CanonicalResource findByType(CanonicalResource rr, List<CanonicalResource> list) {
-    if (rr instanceof StructureDefinition) {
-      String t = ((StructureDefinition) rr).getType();
-      for (CanonicalResource r : list) {
-        if (r instanceof StructureDefinition) {
-          String tr = ((StructureDefinition) r).getType();
-          if (tr.equals(t)) {
-            return r;
-          }
-        }
-      }      
-    }
-    if (rr instanceof CapabilityStatement) {
-      String t = ((CapabilityStatement) rr).getRestFirstRep().getModeElement().asStringValue();
-      for (CanonicalResource r : list) {
-        if (r instanceof CapabilityStatement) {
-          String tr = ((CapabilityStatement) r).getRestFirstRep().getModeElement().asStringValue();
-          if (tr.equals(t)) {
-            return r;
-          }
-        }
-      }      
-    }
-    return null;
-  }
-
-
   public void addOtherFiles(Set<String> otherFilesRun, String outputDir) throws IOException {
     for (VersionInstance vi : versionList) {
       otherFilesRun.add(Utilities.path(outputDir, "ips-comparison-v"+vi.version));
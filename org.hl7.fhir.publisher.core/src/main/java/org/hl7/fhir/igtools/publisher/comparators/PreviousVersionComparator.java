@@ -5,9 +5,12 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.hl7.fhir.convertors.advisors.impl.BaseAdvisor_30_50;
 import org.hl7.fhir.convertors.factory.VersionConvertorFactory_30_50;
@@ -16,6 +19,7 @@ import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.igtools.publisher.IGKnowledgeProvider;
 import org.hl7.fhir.igtools.publisher.PastProcessHackerUtilities;
 import org.hl7.fhir.igtools.publisher.SpecMapManager;
+import org.hl7.fhir.igtools.publisher.comparators.CanonicalPairing.CanonicalPair;
 import org.hl7.fhir.igtools.publisher.loaders.PublisherLoader;
 import org.hl7.fhir.r5.comparison.ComparisonRenderer;
 import org.hl7.fhir.r5.comparison.ComparisonSession;
@@ -26,6 +30,7 @@ import org.hl7.fhir.r5.model.CanonicalResource;
 import org.hl7.fhir.r5.model.ImplementationGuide;
 import org.hl7.fhir.r5.model.Resource;
 import org.hl7.fhir.utilities.IniFile;
+import org.hl7.fhir.utilities.TextFile;
 import org.hl7.fhir.utilities.Utilities;
 import org.hl7.fhir.utilities.VersionUtilities;
 import org.hl7.fhir.utilities.npm.BasePackageCacheManager;
@@ -33,33 +38,11 @@ import org.hl7.fhir.utilities.npm.FilesystemPackageCacheManager;
 import org.hl7.fhir.utilities.npm.NpmPackage;
 import org.hl7.fhir.utilities.npm.PackageList;
 import org.hl7.fhir.utilities.npm.PackageList.PackageListEntry;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
 
 
 public class PreviousVersionComparator {
 
-  public class ProfilePair {
-    CanonicalResource left;
-    CanonicalResource right;
-    
-    public ProfilePair(CanonicalResource left, CanonicalResource right) {
-      super();
-      this.left = left;
-      this.right = right;
-    }
-
-    public CanonicalResource getLeft() {
-      return left;
-    }
-
-    public CanonicalResource getRight() {
-      return right;
-    }
-
-    public String getUrl() {
-      return left != null ? left.getUrl() : right.getUrl();
-    }
-  }
-  
   private class VersionInstance {
     private String version;
     private SimpleWorkerContext context;    
@@ -68,6 +51,10 @@ public class PreviousVersionComparator {
     private IniFile ini;
     private ProfileKnowledgeProvider pkp;
     private boolean annotate;
+    private List<CanonicalPair> unchanged = new ArrayList<>();
+    private Future<?> loading;
+    // what the knowledge provider reports while this version is compared
+    private List<ValidationMessage> messages = new ArrayList<>();
     
     public VersionInstance(String version, IniFile ini, boolean annotate) {
       super();
@@ -78,9 +65,9 @@ public class PreviousVersionComparator {
   }
 
   private SimpleWorkerContext context;
+  private CoreContextPool contexts;
   private String version;
   private String dstDir;
-  private List<ProfilePair> comparisons = new ArrayList<>();
   private ProfileKnowledgeProvider newpkp;
   private String errMsg;
   private String pid;
@@ -90,11 +77,15 @@ public class PreviousVersionComparator {
   private String lastName;
   private String lastUrl;
   private String businessVersion;
+  private boolean parallel;
+  private ComparisonDigests digests = new ComparisonDigests();
+  private ExecutorService executor;
   
-  public PreviousVersionComparator(SimpleWorkerContext context, String version, String businessVersion, String rootDir, String dstDir, String canonical, ProfileKnowledgeProvider pkp, ILoggingService logger, List<String> versions, String versionToAnnotate) {
+  public PreviousVersionComparator(SimpleWorkerContext context, String version, String businessVersion, String rootDir, String dstDir, String canonical, ProfileKnowledgeProvider pkp, ILoggingService logger, List<String> versions, String versionToAnnotate, CoreContextPool contexts) {
     super();
         
     this.context = context;
+    this.contexts = contexts;
     this.version = version;
     this.businessVersion = businessVersion;
     this.dstDir = dstDir;
@@ -181,42 +172,61 @@ public class PreviousVersionComparator {
   }
 
 
+  /**
+   * Loads the versions to compare with. When parallel, the versions are loaded at the same time,
+   * in the background, while the build carries on; finishChecks() compares them once they are loaded
+   */
   public void startChecks(ImplementationGuide ig) {
     if (errMsg == null && pid != null && businessVersion != null) {
       resources = new ArrayList<>();
-      for (VersionInstance vi : versionList) {
-        String filename = "";
-        try {
-          vi.resources = new ArrayList<>();
-          BasePackageCacheManager pcm = new FilesystemPackageCacheManager.Builder().build();
-          NpmPackage current = pcm.loadPackage(pid, vi.version);
-          for (String id : current.listResources("StructureDefinition", "ValueSet", "CodeSystem")) {
-            filename = id;
-            CanonicalResource curr = (CanonicalResource) loadResourceFromPackage(current, id, current.fhirVersion());
-            if (curr != null) {
-              curr.setWebPath(Utilities.pathURL(current.getWebLocation(), curr.fhirType()+"-"+curr.getId()+".html")); // to do - actually refactor to use the correct algorithm
-              vi.resources.add(curr);
-            }
-          }
-          NpmPackage core = pcm.loadPackage(VersionUtilities.packageForVersion(current.fhirVersion()), VersionUtilities.getCurrentVersion(current.fhirVersion()));
-          vi.context = new SimpleWorkerContext.SimpleWorkerContextBuilder().withTerminologyCachePath(Utilities.path(context.getTxCache().getFolder(), vi.version)).fromPackage(core, new PublisherLoader(core, SpecMapManager.fromPackage(core), core.getWebLocation(), null).makeLoader(), true);
-          //vi.context.initTS();
-          vi.context.connectToTSServer(context.getTxClient(), null);
-          vi.context.setAllowLoadingDuplicates(true);
-          vi.context.setExpansionProfile(context.getExpansionParameters());
-          vi.context.setUcumService(context.getUcumService());
-          vi.context.setLocale(context.getLocale());
-          vi.context.setLogger(context.getLogger());
-          vi.context.loadFromPackageAndDependencies(current, new PublisherLoader(current, SpecMapManager.fromPackage(current), current.getWebLocation(), null).makeLoader(), pcm);
-          vi.pkp = new IGKnowledgeProvider(vi.context, current.getWebLocation(), current.canonical(), null, null, false, null, null, null, null);
-        } catch (Exception e) {
-          vi.errMsg = "Unable to find load package "+pid+"#"+vi.version+" ("+e.getMessage()+" on file "+filename+")";
-          e.printStackTrace();
+      if (parallel && versionList.size() > 0) {
+        executor = Executors.newFixedThreadPool(Math.min(Runtime.getRuntime().availableProcessors(), versionList.size()), r -> {
+          Thread t = new Thread(r, "version-comparison");
+          t.setDaemon(true);
+          return t;
+        });
+        for (VersionInstance vi : versionList) {
+          vi.loading = executor.submit(() -> loadVersion(vi));
+        }
+      } else {
+        for (VersionInstance vi : versionList) {
+          loadVersion(vi);
         }
       }
     }
   }
 
+  private void loadVersion(VersionInstance vi) {
+    String filename = "";
+    try {
+      vi.resources = new ArrayList<>();
+      BasePackageCacheManager pcm = new FilesystemPackageCacheManager.Builder().build();
+      NpmPackage current = pcm.loadPackage(pid, vi.version);
+      for (String id : current.listResources("StructureDefinition", "ValueSet", "CodeSystem")) {
+        filename = id;
+        CanonicalResource curr = (CanonicalResource) loadResourceFromPackage(current, id, current.fhirVersion());
+        if (curr != null) {
+          curr.setWebPath(Utilities.pathURL(current.getWebLocation(), curr.fhirType()+"-"+curr.getId()+".html")); // to do - actually refactor to use the correct algorithm
+          vi.resources.add(curr);
+        }
+      }
+      NpmPackage core = pcm.loadPackage(VersionUtilities.packageForVersion(current.fhirVersion()), VersionUtilities.getCurrentVersion(current.fhirVersion()));
+      vi.context = contexts.get(core, Utilities.path(context.getTxCache().getFolder(), vi.version));
+      //vi.context.initTS();
+      vi.context.connectToTSServer(context.getTxClient(), null);
+      vi.context.setAllowLoadingDuplicates(true);
+      vi.context.setExpansionProfile(context.getExpansionParameters());
+      vi.context.setUcumService(context.getUcumService());
+      vi.context.setLocale(context.getLocale());
+      vi.context.setLogger(context.getLogger());
+      vi.context.loadFromPackageAndDependencies(current, new PublisherLoader(current, SpecMapManager.fromPackage(current), current.getWebLocation(), null).makeLoader(), pcm);
+      vi.pkp = new IGKnowledgeProvider(vi.context, current.getWebLocation(), current.canonical(), null, null, false, null, null, null, null);
+    } catch (Exception e) {
+      vi.errMsg = "Unable to find load package "+pid+"#"+vi.version+" ("+e.getMessage()+" on file "+filename+")";
+      e.printStackTrace();
+    }
+  }
+
   private Resource loadResourceFromPackage(NpmPackage uscore, String filename, String version) throws FHIRException, IOException {
     InputStream s = uscore.loadResource(filename);
     if (VersionUtilities.isR3Ver(version)) {
@@ -230,57 +240,126 @@ public class PreviousVersionComparator {
     }
   }
 
+  /**
+   * Compares each version with this one, and renders the comparisons. When parallel, each version
+   * is compared on its own thread as soon as it is loaded, with its own copy of the current build's
+   * context and knowledge provider, since they aren't thread safe
+   */
   public void finishChecks() throws IOException {
     if (errMsg == null && pid != null && businessVersion != null) {
-      for (VersionInstance vi : versionList) {
-        comparisons.clear();
-        Set<String> set = new HashSet<>();
-        for (CanonicalResource rl : vi.resources) {
-          CanonicalResource t = findByUrl(rl.getUrl(), resources, vi.ini);
-          comparisons.add(new ProfilePair(rl, t));
-          set.add(rl.getUrl());      
-        }
-        for (CanonicalResource rr : resources) {
-          String url = fixForIniMap(rr.getUrl(), vi.ini);
-          if (!set.contains(url)) {
-            CanonicalResource t = findByUrl(url, vi.resources, null);
-            comparisons.add(new ProfilePair(t, rr));
+      try {
+        if (executor == null) {
+          for (VersionInstance vi : versionList) {
+            compareVersion(vi, context, newpkp);
+          }
+        } else {
+          List<Future<?>> comparisons = new ArrayList<>();
+          for (VersionInstance vi : versionList) {
+            comparisons.add(executor.submit(() -> {
+              vi.loading.get();
+              SimpleWorkerContext ctxt = new SimpleWorkerContext(context);
+              compareVersion(vi, ctxt, newpkp instanceof IGKnowledgeProvider ? ((IGKnowledgeProvider) newpkp).copy(ctxt, vi.messages) : newpkp);
+              return null;
+            }));
+          }
+          for (Future<?> f : comparisons) {
+            f.get();
           }
         }
+      } catch (InterruptedException | ExecutionException e) {
+        throw new FHIRException(e.getMessage(), e);
+      } finally {
+        if (executor != null) {
+          executor.shutdownNow();
+          executor = null;
+        }
+      }
+    }
+  }
 
-        try {
-          ComparisonSession session = new ComparisonSession(vi.context, context, "Comparison of v"+vi.version+" with this version", vi.pkp, newpkp);
-          session.setAnnotate(vi.annotate);
-          //    session.setDebug(true);
-          for (ProfilePair c : comparisons) {
-//            System.out.println("Version Comparison: compare "+vi.version+" to current for "+c.getUrl());
-            session.compare(c.left, c.right);      
-          }
-          Utilities.createDirectory(Utilities.path(dstDir, "comparison-v"+vi.version));
-          ComparisonRenderer cr = new ComparisonRenderer(vi.context, context, Utilities.path(dstDir, "comparison-v"+vi.version), session);
-          cr.getTemplates().put("CodeSystem", new String(context.getBinaryForKey("template-comparison-CodeSystem.html")));
-          cr.getTemplates().put("ValueSet", new String(context.getBinaryForKey("template-comparison-ValueSet.html")));
-          cr.getTemplates().put("Profile", new String(context.getBinaryForKey("template-comparison-Profile.html")));
-          cr.getTemplates().put("Profile-Union", new String(context.getBinaryForKey("template-comparison-Profile-Union.html")));
-          cr.getTemplates().put("Profile-Intersection", new String(context.getBinaryForKey("template-comparison-Profile-Intersection.html")));
-          cr.getTemplates().put("Index", new String(context.getBinaryForKey("template-comparison-index.html")));
-          cr.getTemplates().put("CapabilityStatement", new String(context.getBinaryForKey("template-comparison-CapabilityStatement.html")));
-          cr.render("Version "+vi.version, "Current Build");
-        } catch (Throwable e) {
-          errMsg = "Current Version Comparison failed: "+e.getMessage();
-          e.printStackTrace();
+  private void compareVersion(VersionInstance vi, SimpleWorkerContext context, ProfileKnowledgeProvider newpkp) {
+    if (vi.errMsg != null) {
+      return;
+    }
+    List<CanonicalPair> comparisons = CanonicalPairing.byUrl(vi.resources, resources, vi.ini);
+
+    try {
+      ComparisonSession session = new ComparisonSession(vi.context, context, "Comparison of v"+vi.version+" with this version", vi.pkp, newpkp);
+      session.setAnnotate(vi.annotate);
+      //    session.setDebug(true);
+      for (CanonicalPair c : comparisons) {
+//        System.out.println("Version Comparison: compare "+vi.version+" to current for "+c.getUrl());
+        if (digests.unchanged(c)) {
+          vi.unchanged.add(c);
+        } else {
+          session.compare(c.getLeft(), c.getRight());
         }
       }
+      Utilities.createDirectory(Utilities.path(dstDir, "comparison-v"+vi.version));
+      ComparisonRenderer cr = new ComparisonRenderer(vi.context, context, Utilities.path(dstDir, "comparison-v"+vi.version), session);
+      cr.getTemplates().put("CodeSystem", new String(context.getBinaryForKey("template-comparison-CodeSystem.html")));
+      cr.getTemplates().put("ValueSet", new String(context.getBinaryForKey("template-comparison-ValueSet.html")));
+      cr.getTemplates().put("Profile", new String(context.getBinaryForKey("template-comparison-Profile.html")));
+      cr.getTemplates().put("Profile-Union", new String(context.getBinaryForKey("template-comparison-Profile-Union.html")));
+      cr.getTemplates().put("Profile-Intersection", new String(context.getBinaryForKey("template-comparison-Profile-Intersection.html")));
+      cr.getTemplates().put("Index", new String(context.getBinaryForKey("template-comparison-index.html")));
+      cr.getTemplates().put("CapabilityStatement", new String(context.getBinaryForKey("template-comparison-CapabilityStatement.html")));
+      cr.render("Version "+vi.version, "Current Build");
+      addUnchanged(Utilities.path(dstDir, "comparison-v"+vi.version, "index.html"), vi);
+    } catch (Throwable e) {
+      vi.errMsg = "Comparison failed: "+e.getMessage();
+      e.printStackTrace();
     }
   }
-private String fixForIniMap(String url, IniFile ini) {
-    if (ini == null) {
-      return url;
+
+  /**
+   * The resources that weren't compared because they're unchanged aren't in the session, so
+   * they're added to the index that the renderer produced as a table of their own
+   */
+  private void addUnchanged(String index, VersionInstance vi) throws IOException {
+    if (vi.unchanged.isEmpty() || !new File(index).exists()) {
+      return;
+    }
+    StringBuilder b = new StringBuilder();
+    b.append("<p>Unchanged since version "+Utilities.escapeXml(vi.version)+" (ignoring the version, date, narrative and meta), so not compared:</p>\r\n");
+    b.append("<table class=\"grid\">\r\n");
+    b.append(" <tr><td><b>Resource</b></td><td><b>Type</b></td><td><b>Status</b></td></tr>\r\n");
+    for (CanonicalPair c : vi.unchanged) {
+      CanonicalResource cr = c.getRight();
+      String path = cr.getWebPath() == null || Utilities.isAbsoluteUrl(cr.getWebPath()) ? cr.getWebPath() : "../"+cr.getWebPath();
+      String name = path != null ? "<a href=\""+Utilities.escapeXml(path)+"\">"+Utilities.escapeXml(cr.present())+"</a>" : Utilities.escapeXml(cr.present());
+      b.append(" <tr><td>"+name+"</td><td>"+cr.fhirType()+"</td><td>unchanged</td></tr>\r\n");
     }
-    if (ini.hasProperty("urls", url)) {
-      return ini.getStringProperty("urls", url);
+    b.append("</table>\r\n");
+    String html = TextFile.fileToString(index);
+    int i = html.lastIndexOf("</table>");
+    if (i > -1) {
+      i = i + "</table>".length();
+    } else {
+      i = html.lastIndexOf("</body>");
+    }
+    html = i > -1 ? html.substring(0, i)+"\r\n"+b.toString()+html.substring(i) : html+b.toString();
+    TextFile.stringToFile(html, index);
+  }
+
+  /**
+   * What the knowledge providers reported while the versions were compared in parallel (when not
+   * parallel, they're reported to the build directly)
+   */
+  public List<ValidationMessage> getMessages() {
+    List<ValidationMessage> res = new ArrayList<>();
+    for (VersionInstance vi : versionList) {
+      res.addAll(vi.messages);
     }
-    return url;
+    return res;
+  }
+
+  public void setParallel(boolean parallel) {
+    this.parallel = parallel;
+  }
+
+  public boolean isParallel() {
+    return parallel;
   }
 
 //
@@ -330,16 +409,6 @@ private String fixForIniMap(String url, IniFile ini) {
 //  }
 
 
-  private CanonicalResource findByUrl(String url, List<CanonicalResource> list, IniFile ini) {
-    for (CanonicalResource r : list) {
-      if (fixForIniMap(r.getUrl(), ini).equals(url)) {
-        return r;
-      }
-    }
-    return null;
-  }
-
-
   public void addOtherFiles(Set<String> otherFilesRun, String outputDir) throws IOException {
     for (VersionInstance vi : versionList) {
       otherFilesRun.add(Utilities.path(outputDir, "comparison-v"+vi.version));
@@ -354,7 +423,14 @@ private String fixForIniMap(String url, IniFile ini) {
       boolean first = true;
       for (VersionInstance vi : versionList) {
         if(first) first = false; else b.append("<br/>");
+        if (vi.errMsg != null) {
+          b.append("Unable to compare with version "+vi.version+": "+vi.errMsg);
+          continue;
+        }
         b.append("<a href=\"comparison-v"+vi.version+"/index.html\">Comparison with version "+vi.version+"</a>");
+        if (!vi.unchanged.isEmpty()) {
+          b.append(" ("+vi.unchanged.size()+" "+Utilities.pluralize("resource", vi.unchanged.size())+" unchanged)");
+        }
       }
       return b.toString();
     }
@@ -0,0 +1,184 @@
+package org.hl7.fhir.igtools.publisher.jekyll;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hl7.fhir.exceptions.FHIRException;
+
+/**
+ * The state of a single liquid render: the environment (site, page, layout, etc.),
+ * the stack of local scopes, and the services the tags and filters need.
+ *
+ * A context is not thread safe, but the environment maps can be shared between
+ * contexts as long as no one writes to them
+ */
+public class LiquidContext {
+
+  public interface IIncludeProvider {
+    LiquidTemplate getInclude(String name, boolean relative, LiquidContext context) throws FHIRException;
+  }
+
+  public interface IMarkdownConverter {
+    String convert(String source, String context) throws FHIRException;
+  }
+
+  public enum Interrupt {
+    NONE, BREAK, CONTINUE
+  }
+
+  private static final int MAX_INCLUDE_DEPTH = 100;
+
+  private Map<String, Object> environment;
+  private List<Map<String, Object>> scopes = new ArrayList<>();
+  private Map<String, Object> counters = new HashMap<>();
+  private IIncludeProvider includes;
+  private IMarkdownConverter markdown;
+  private boolean strict;
+  private List<String> warnings;
+  private String path;
+  private int depth;
+  private Interrupt interrupt = Interrupt.NONE;
+  private Set<String> dependencies;
+
+  public LiquidContext(Map<String, Object> environment, IIncludeProvider includes, IMarkdownConverter markdown, boolean strict, List<String> warnings) {
+    this.environment = environment;
+    this.includes = includes;
+    this.markdown = markdown;
+    this.strict = strict;
+    this.warnings = warnings;
+    scopes.add(new HashMap<>());
+  }
+
+  public Object get(String name) {
+    for (int i = scopes.size() - 1; i >= 0; i--) {
+      Map<String, Object> scope = scopes.get(i);
+      if (scope.containsKey(name)) {
+        return scope.get(name);
+      }
+    }
+    return environment.get(name);
+  }
+
+  public boolean has(String name) {
+    for (Map<String, Object> scope : scopes) {
+      if (scope.containsKey(name)) {
+        return true;
+      }
+    }
+    return environment.containsKey(name);
+  }
+
+  /**
+   * assign and capture always write to the outermost scope, so that values assigned
+   * inside loops and includes are visible to the rest of the template (as in liquid)
+   */
+  public void assign(String name, Object value) {
+    scopes.get(0).put(name, value);
+  }
+
+  /**
+   * set a value in the innermost scope (loop variables, include parameters)
+   */
+  public void setLocal(String name, Object value) {
+    scopes.get(scopes.size() - 1).put(name, value);
+  }
+
+  public void push() {
+    scopes.add(new HashMap<>());
+  }
+
+  public void pop() {
+    if (scopes.size() > 1) {
+      scopes.remove(scopes.size() - 1);
+    }
+  }
+
+  public Object getCounter(String name) {
+    return counters.get(name);
+  }
+
+  public void setCounter(String name, Object value) {
+    counters.put(name, value);
+  }
+
+  public void enterInclude(String name) throws FHIRException {
+    depth++;
+    if (depth > MAX_INCLUDE_DEPTH) {
+      throw new FHIRException("Liquid Exception: include nesting is too deep (probably recursive) at "+name+" in "+path);
+    }
+  }
+
+  public void exitInclude() {
+    depth--;
+  }
+
+  public LiquidTemplate getInclude(String name, boolean relative) throws FHIRException {
+    if (includes == null) {
+      throw new FHIRException("Liquid Exception: includes are not supported in this context ("+name+")");
+    }
+    return includes.getInclude(name, relative, this);
+  }
+
+  public String markdownify(String source) throws FHIRException {
+    if (markdown == null) {
+      return source;
+    }
+    return markdown.convert(source, path);
+  }
+
+  /**
+   * report something that is not supported. In strict mode, this is an error, otherwise
+   * it's recorded, and rendering continues (liquid's lax mode)
+   */
+  public void unsupported(String message) throws FHIRException {
+    if (strict) {
+      throw new FHIRException("Liquid Exception: "+message+" in "+path);
+    }
+    if (warnings != null) {
+      synchronized (warnings) {
+        warnings.add(message+" in "+path);
+      }
+    }
+  }
+
+  public Map<String, Object> getEnvironment() {
+    return environment;
+  }
+
+  public boolean isStrict() {
+    return strict;
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  public void setPath(String path) {
+    this.path = path;
+  }
+
+  public Interrupt getInterrupt() {
+    return interrupt;
+  }
+
+  public void setInterrupt(Interrupt interrupt) {
+    this.interrupt = interrupt;
+  }
+
+  /**
+   * if set, the include provider records the files this render used here
+   */
+  public void setDependencies(Set<String> dependencies) {
+    this.dependencies = dependencies;
+  }
+
+  public void addDependency(String path) {
+    if (dependencies != null) {
+      dependencies.add(path);
+    }
+  }
+
+}
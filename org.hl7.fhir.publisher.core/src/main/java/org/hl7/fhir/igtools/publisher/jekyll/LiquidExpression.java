@@ -0,0 +1,681 @@
+package org.hl7.fhir.igtools.publisher.jekyll;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.exceptions.FHIRException;
+
+/**
+ * Liquid expressions: values (literals, variable paths, ranges), filter chains and
+ * conditions (comparisons joined by and/or, evaluated right to left as liquid does).
+ *
+ * Also the value semantics shared by tags and filters: truthiness, comparison,
+ * property access and output conversion
+ */
+public abstract class LiquidExpression {
+
+  public abstract Object evaluate(LiquidContext ctx) throws FHIRException;
+
+  // --- value semantics ------------------------------------------------------
+
+  /**
+   * markers for the special liquid values 'empty' and 'blank'
+   */
+  public static final Object EMPTY = new Object() {
+    public String toString() {
+      return "";
+    }
+  };
+  public static final Object BLANK = new Object() {
+    public String toString() {
+      return "";
+    }
+  };
+
+  // how ruby (and therefore jekyll) writes a time
+  private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss Z");
+
+  public static boolean isTrue(Object o) {
+    return o != null && !Boolean.FALSE.equals(o);
+  }
+
+  public static boolean isEmpty(Object o) {
+    if (o instanceof String) {
+      return ((String) o).isEmpty();
+    } else if (o instanceof Collection) {
+      return ((Collection<?>) o).isEmpty();
+    } else if (o instanceof Map) {
+      return ((Map<?, ?>) o).isEmpty();
+    } else {
+      return o == EMPTY;
+    }
+  }
+
+  public static boolean isBlank(Object o) {
+    if (o == null || Boolean.FALSE.equals(o) || o == BLANK) {
+      return true;
+    } else if (o instanceof String) {
+      return ((String) o).trim().isEmpty();
+    } else {
+      return isEmpty(o);
+    }
+  }
+
+  public static boolean areEqual(Object left, Object right) {
+    if (left == EMPTY || right == EMPTY) {
+      return isEmpty(left == EMPTY ? right : left);
+    }
+    if (left == BLANK || right == BLANK) {
+      return isBlank(left == BLANK ? right : left);
+    }
+    if (left instanceof Number && right instanceof Number) {
+      return compareNumbers((Number) left, (Number) right) == 0;
+    }
+    if (left == null || right == null) {
+      return left == right;
+    }
+    return left.equals(right);
+  }
+
+  public static int compareNumbers(Number left, Number right) {
+    if (isIntegral(left) && isIntegral(right)) {
+      return Long.compare(left.longValue(), right.longValue());
+    }
+    return Double.compare(left.doubleValue(), right.doubleValue());
+  }
+
+  public static boolean isIntegral(Object o) {
+    return o instanceof Long || o instanceof Integer || o instanceof Short || o instanceof Byte;
+  }
+
+  public static Integer compareValues(Object left, Object right) {
+    if (left instanceof Number && right instanceof Number) {
+      return compareNumbers((Number) left, (Number) right);
+    }
+    if (left instanceof String && right instanceof String) {
+      return ((String) left).compareTo((String) right);
+    }
+    return null;
+  }
+
+  public static boolean contains(Object container, Object item) {
+    if (container instanceof String) {
+      return item != null && ((String) container).contains(toOutput(item));
+    } else if (container instanceof Collection) {
+      for (Object o : (Collection<?>) container) {
+        if (areEqual(o, item)) {
+          return true;
+        }
+      }
+      return false;
+    } else if (container instanceof Map) {
+      return item != null && ((Map<?, ?>) container).containsKey(toOutput(item));
+    }
+    return false;
+  }
+
+  public static Object property(Object o, String name) {
+    if (o instanceof Map) {
+      Map<?, ?> map = (Map<?, ?>) o;
+      if (map.containsKey(name)) {
+        return map.get(name);
+      } else if ("size".equals(name)) {
+        return Long.valueOf(map.size());
+      }
+      return null;
+    } else if (o instanceof List) {
+      List<?> list = (List<?>) o;
+      switch (name) {
+      case "size": return Long.valueOf(list.size());
+      case "first": return list.isEmpty() ? null : list.get(0);
+      case "last": return list.isEmpty() ? null : list.get(list.size() - 1);
+      default:
+        return null;
+      }
+    } else if (o instanceof String) {
+      String s = (String) o;
+      switch (name) {
+      case "size": return Long.valueOf(s.length());
+      case "first": return s.isEmpty() ? null : s.substring(0, 1);
+      case "last": return s.isEmpty() ? null : s.substring(s.length() - 1);
+      default:
+        return null;
+      }
+    }
+    return null;
+  }
+
+  public static Object index(Object o, Object index) {
+    if (index instanceof Number && o instanceof List) {
+      List<?> list = (List<?>) o;
+      int i = ((Number) index).intValue();
+      if (i < 0) {
+        i = list.size() + i;
+      }
+      return i >= 0 && i < list.size() ? list.get(i) : null;
+    }
+    if (index == null) {
+      return null;
+    }
+    return property(o, toOutput(index));
+  }
+
+  public static String toOutput(Object o) {
+    if (o == null) {
+      return "";
+    } else if (o instanceof String) {
+      return (String) o;
+    } else if (o instanceof Collection) {
+      StringBuilder b = new StringBuilder();
+      for (Object i : (Collection<?>) o) {
+        b.append(toOutput(i));
+      }
+      return b.toString();
+    } else if (o instanceof Map) {
+      return LiquidFilters.toJson(o);
+    } else if (o instanceof ZonedDateTime) {
+      return TIME_FORMAT.format((ZonedDateTime) o);
+    }
+    return o.toString();
+  }
+
+  // --- expression types ------------------------------------------------------
+
+  public static class Literal extends LiquidExpression {
+    private Object value;
+
+    public Literal(Object value) {
+      this.value = value;
+    }
+
+    @Override
+    public Object evaluate(LiquidContext ctx) {
+      return value;
+    }
+  }
+
+  public static class Variable extends LiquidExpression {
+    private String name;
+    private List<Object> path = new ArrayList<>(); // String for .name, LiquidExpression for [expr]
+
+    public Variable(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public Object evaluate(LiquidContext ctx) throws FHIRException {
+      Object o = ctx.get(name);
+      for (Object step : path) {
+        if (o == null) {
+          return null;
+        }
+        if (step instanceof String) {
+          o = property(o, (String) step);
+        } else {
+          o = index(o, ((LiquidExpression) step).evaluate(ctx));
+        }
+      }
+      return o;
+    }
+
+    public String getName() {
+      return name;
+    }
+  }
+
+  public static class Range extends LiquidExpression {
+    private LiquidExpression start;
+    private LiquidExpression end;
+
+    public Range(LiquidExpression start, LiquidExpression end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public Object evaluate(LiquidContext ctx) throws FHIRException {
+      long s = LiquidFilters.toLong(start.evaluate(ctx));
+      long e = LiquidFilters.toLong(end.evaluate(ctx));
+      List<Object> res = new ArrayList<>();
+      for (long i = s; i <= e; i++) {
+        res.add(Long.valueOf(i));
+      }
+      return res;
+    }
+  }
+
+  public static class FilterCall {
+    private String name;
+    private List<LiquidExpression> args = new ArrayList<>();
+
+    public FilterCall(String name) {
+      this.name = name;
+    }
+  }
+
+  public static class Filtered extends LiquidExpression {
+    private LiquidExpression value;
+    private List<FilterCall> filters = new ArrayList<>();
+
+    public Filtered(LiquidExpression value) {
+      this.value = value;
+    }
+
+    @Override
+    public Object evaluate(LiquidContext ctx) throws FHIRException {
+      Object o = value.evaluate(ctx);
+      for (FilterCall f : filters) {
+        List<Object> args = new ArrayList<>();
+        for (LiquidExpression a : f.args) {
+          args.add(a.evaluate(ctx));
+        }
+        o = LiquidFilters.apply(f.name, o, args, ctx);
+      }
+      return o;
+    }
+  }
+
+  public static class Comparison extends LiquidExpression {
+    private LiquidExpression left;
+    private String op;
+    private LiquidExpression right;
+
+    public Comparison(LiquidExpression left, String op, LiquidExpression right) {
+      this.left = left;
+      this.op = op;
+      this.right = right;
+    }
+
+    @Override
+    public Object evaluate(LiquidContext ctx) throws FHIRException {
+      Object l = left.evaluate(ctx);
+      if (op == null) {
+        return l;
+      }
+      Object r = right.evaluate(ctx);
+      switch (op) {
+      case "==": return areEqual(l, r);
+      case "!=":
+      case "<>": return !areEqual(l, r);
+      case "contains": return contains(l, r);
+      default:
+        Integer c = compareValues(l, r);
+        if (c == null) {
+          if (l != null && r != null) {
+            ctx.unsupported("Comparison of "+l.getClass().getSimpleName()+" with "+r.getClass().getSimpleName()+" failed");
+          }
+          return false;
+        }
+        switch (op) {
+        case "<": return c < 0;
+        case ">": return c > 0;
+        case "<=": return c <= 0;
+        case ">=": return c >= 0;
+        default:
+          throw new FHIRException("Liquid Exception: Unknown operator "+op);
+        }
+      }
+    }
+  }
+
+  public static class Logical extends LiquidExpression {
+    private LiquidExpression left;
+    private boolean and;
+    private LiquidExpression right;
+
+    public Logical(LiquidExpression left, boolean and, LiquidExpression right) {
+      this.left = left;
+      this.and = and;
+      this.right = right;
+    }
+
+    @Override
+    public Object evaluate(LiquidContext ctx) throws FHIRException {
+      if (and) {
+        return isTrue(left.evaluate(ctx)) && isTrue(right.evaluate(ctx));
+      } else {
+        return isTrue(left.evaluate(ctx)) || isTrue(right.evaluate(ctx));
+      }
+    }
+  }
+
+  // --- parsing ----------------------------------------------------------------
+
+  private enum TokenType {
+    STRING, NUMBER, IDENT, DOT, DOTDOT, LBRACKET, RBRACKET, LPAREN, RPAREN, PIPE, COLON, COMMA, OP, EQUALS, EOF
+  }
+
+  private static class Token {
+    private TokenType type;
+    private String text;
+
+    private Token(TokenType type, String text) {
+      this.type = type;
+      this.text = text;
+    }
+  }
+
+  public static class Parser {
+    private String source;
+    private List<Token> tokens = new ArrayList<>();
+    private int cursor;
+
+    public Parser(String source) throws FHIRException {
+      this.source = source;
+      lex();
+    }
+
+    private void lex() throws FHIRException {
+      int i = 0;
+      int len = source.length();
+      while (i < len) {
+        char c = source.charAt(i);
+        if (Character.isWhitespace(c)) {
+          i++;
+        } else if (c == '"' || c == '\'') {
+          int j = source.indexOf(c, i+1);
+          if (j == -1) {
+            throw new FHIRException("Liquid Exception: Unterminated string in '"+source+"'");
+          }
+          tokens.add(new Token(TokenType.STRING, source.substring(i+1, j)));
+          i = j + 1;
+        } else if (Character.isDigit(c) || (c == '-' && i < len-1 && Character.isDigit(source.charAt(i+1)))) {
+          int j = i + 1;
+          while (j < len && Character.isDigit(source.charAt(j))) {
+            j++;
+          }
+          if (j < len-1 && source.charAt(j) == '.' && Character.isDigit(source.charAt(j+1))) {
+            j++;
+            while (j < len && Character.isDigit(source.charAt(j))) {
+              j++;
+            }
+          }
+          tokens.add(new Token(TokenType.NUMBER, source.substring(i, j)));
+          i = j;
+        } else if (Character.isLetter(c) || c == '_') {
+          int j = i + 1;
+          while (j < len && (Character.isLetterOrDigit(source.charAt(j)) || source.charAt(j) == '_' || source.charAt(j) == '-' || source.charAt(j) == '?')) {
+            j++;
+          }
+          String s = source.substring(i, j);
+          if (s.equals("contains")) {
+            tokens.add(new Token(TokenType.OP, s));
+          } else {
+            tokens.add(new Token(TokenType.IDENT, s));
+          }
+          i = j;
+        } else if (c == '.') {
+          if (i < len-1 && source.charAt(i+1) == '.') {
+            tokens.add(new Token(TokenType.DOTDOT, ".."));
+            i += 2;
+          } else {
+            tokens.add(new Token(TokenType.DOT, "."));
+            i++;
+          }
+        } else if (c == '[') {
+          tokens.add(new Token(TokenType.LBRACKET, "["));
+          i++;
+        } else if (c == ']') {
+          tokens.add(new Token(TokenType.RBRACKET, "]"));
+          i++;
+        } else if (c == '(') {
+          tokens.add(new Token(TokenType.LPAREN, "("));
+          i++;
+        } else if (c == ')') {
+          tokens.add(new Token(TokenType.RPAREN, ")"));
+          i++;
+        } else if (c == '|') {
+          tokens.add(new Token(TokenType.PIPE, "|"));
+          i++;
+        } else if (c == ':') {
+          tokens.add(new Token(TokenType.COLON, ":"));
+          i++;
+        } else if (c == ',') {
+          tokens.add(new Token(TokenType.COMMA, ","));
+          i++;
+        } else if (c == '=' || c == '!' || c == '<' || c == '>') {
+          String two = i < len-1 ? source.substring(i, i+2) : "";
+          if (two.equals("==") || two.equals("!=") || two.equals("<>") || two.equals("<=") || two.equals(">=")) {
+            tokens.add(new Token(TokenType.OP, two));
+            i += 2;
+          } else if (c == '=') {
+            tokens.add(new Token(TokenType.EQUALS, "="));
+            i++;
+          } else if (c == '<' || c == '>') {
+            tokens.add(new Token(TokenType.OP, String.valueOf(c)));
+            i++;
+          } else {
+            throw new FHIRException("Liquid Exception: Unexpected character '"+c+"' in '"+source+"'");
+          }
+        } else {
+          throw new FHIRException("Liquid Exception: Unexpected character '"+c+"' in '"+source+"'");
+        }
+      }
+      tokens.add(new Token(TokenType.EOF, ""));
+    }
+
+    private Token peek() {
+      return tokens.get(cursor);
+    }
+
+    private Token peek(int offset) {
+      return tokens.get(Math.min(cursor + offset, tokens.size() - 1));
+    }
+
+    private Token next() {
+      Token t = tokens.get(cursor);
+      if (t.type != TokenType.EOF) {
+        cursor++;
+      }
+      return t;
+    }
+
+    private Token expect(TokenType type) throws FHIRException {
+      Token t = next();
+      if (t.type != type) {
+        throw new FHIRException("Liquid Exception: Expected "+type+" but found '"+t.text+"' in '"+source+"'");
+      }
+      return t;
+    }
+
+    private boolean isIdent(String text) {
+      return peek().type == TokenType.IDENT && peek().text.equals(text);
+    }
+
+    public boolean atEnd() {
+      return peek().type == TokenType.EOF;
+    }
+
+    public void checkEnd() throws FHIRException {
+      if (!atEnd()) {
+        throw new FHIRException("Liquid Exception: Unexpected '"+peek().text+"' in '"+source+"'");
+      }
+    }
+
+    /**
+     * for tags that start with a name: assign x = ..., for x in ..., capture x
+     */
+    public String readName() throws FHIRException {
+      Token t = next();
+      if (t.type != TokenType.IDENT && t.type != TokenType.STRING) {
+        throw new FHIRException("Liquid Exception: Expected a variable name but found '"+t.text+"' in '"+source+"'");
+      }
+      StringBuilder b = new StringBuilder(t.text);
+      while (peek().type == TokenType.DOT && peek(1).type == TokenType.IDENT) {
+        next();
+        b.append(".");
+        b.append(next().text);
+      }
+      return b.toString();
+    }
+
+    public boolean readEquals() {
+      if (peek().type == TokenType.EQUALS) {
+        next();
+        return true;
+      }
+      return false;
+    }
+
+    public boolean readKeyword(String word) {
+      if (isIdent(word)) {
+        next();
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * name: value, as in for loop limits and cycle groups
+     */
+    public String readAttributeName() {
+      if (peek().type == TokenType.IDENT && peek(1).type == TokenType.COLON) {
+        String name = next().text;
+        next();
+        return name;
+      }
+      return null;
+    }
+
+    public boolean readComma() {
+      if (peek().type == TokenType.COMMA) {
+        next();
+        return true;
+      }
+      return false;
+    }
+
+    public boolean readOr() {
+      return readKeyword("or");
+    }
+
+    public LiquidExpression parseValue() throws FHIRException {
+      Token t = next();
+      switch (t.type) {
+      case STRING:
+        return new Literal(t.text);
+      case NUMBER:
+        if (t.text.contains(".")) {
+          return new Literal(Double.valueOf(t.text));
+        } else {
+          return new Literal(Long.valueOf(t.text));
+        }
+      case LPAREN:
+        LiquidExpression start = parseValue();
+        expect(TokenType.DOTDOT);
+        LiquidExpression end = parseValue();
+        expect(TokenType.RPAREN);
+        return new Range(start, end);
+      case LBRACKET:
+        // ["name"] at the start of a path
+        LiquidExpression key = parseValue();
+        expect(TokenType.RBRACKET);
+        Variable dv = new Variable(null) {
+          @Override
+          public Object evaluate(LiquidContext ctx) throws FHIRException {
+            Object k = key.evaluate(ctx);
+            return k == null ? null : ctx.get(toOutput(k));
+          }
+        };
+        return parsePath(dv);
+      case IDENT:
+        if (peek().type != TokenType.DOT && peek().type != TokenType.LBRACKET) {
+          switch (t.text) {
+          case "true": return new Literal(Boolean.TRUE);
+          case "false": return new Literal(Boolean.FALSE);
+          case "nil":
+          case "null": return new Literal(null);
+          case "empty": return new Literal(EMPTY);
+          case "blank": return new Literal(BLANK);
+          default:
+            break;
+          }
+        }
+        return parsePath(new Variable(t.text));
+      default:
+        throw new FHIRException("Liquid Exception: Unexpected '"+t.text+"' in '"+source+"'");
+      }
+    }
+
+    private LiquidExpression parsePath(Variable v) throws FHIRException {
+      while (true) {
+        if (peek().type == TokenType.DOT) {
+          next();
+          Token n = next();
+          if (n.type != TokenType.IDENT && n.type != TokenType.NUMBER) {
+            throw new FHIRException("Liquid Exception: Expected a property name but found '"+n.text+"' in '"+source+"'");
+          }
+          v.path.add(n.text);
+        } else if (peek().type == TokenType.LBRACKET) {
+          next();
+          v.path.add(parseValue());
+          expect(TokenType.RBRACKET);
+        } else {
+          return v;
+        }
+      }
+    }
+
+    public LiquidExpression parseFiltered() throws FHIRException {
+      LiquidExpression value = parseValue();
+      if (peek().type != TokenType.PIPE) {
+        return value;
+      }
+      Filtered f = new Filtered(value);
+      while (peek().type == TokenType.PIPE) {
+        next();
+        FilterCall call = new FilterCall(expect(TokenType.IDENT).text);
+        if (peek().type == TokenType.COLON) {
+          next();
+          do {
+            if (peek().type == TokenType.IDENT && peek(1).type == TokenType.COLON) {
+              // keyword arguments are passed positionally
+              next();
+              next();
+            }
+            call.args.add(parseValue());
+          } while (readComma());
+        }
+        f.filters.add(call);
+      }
+      return f;
+    }
+
+    public LiquidExpression parseCondition() throws FHIRException {
+      LiquidExpression left = parseComparison();
+      if (isIdent("and") || isIdent("or")) {
+        boolean and = next().text.equals("and");
+        return new Logical(left, and, parseCondition());
+      }
+      return left;
+    }
+
+    private LiquidExpression parseComparison() throws FHIRException {
+      LiquidExpression left = parseValue();
+      if (peek().type == TokenType.OP) {
+        String op = next().text;
+        return new Comparison(left, op, parseValue());
+      }
+      return left;
+    }
+  }
+
+  public static LiquidExpression parseFiltered(String source) throws FHIRException {
+    Parser p = new Parser(source);
+    LiquidExpression res = p.parseFiltered();
+    p.checkEnd();
+    return res;
+  }
+
+  public static LiquidExpression parseCondition(String source) throws FHIRException {
+    Parser p = new Parser(source);
+    LiquidExpression res = p.parseCondition();
+    p.checkEnd();
+    return res;
+  }
+
+}
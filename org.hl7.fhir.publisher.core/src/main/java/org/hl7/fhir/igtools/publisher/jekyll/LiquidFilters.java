@@ -0,0 +1,601 @@
+package org.hl7.fhir.igtools.publisher.jekyll;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.TextStyle;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.hl7.fhir.exceptions.FHIRException;
+
+/**
+ * The standard liquid filters, and the jekyll filters that IG templates use
+ */
+public class LiquidFilters {
+
+  public static Object apply(String name, Object input, List<Object> args, LiquidContext ctx) throws FHIRException {
+    switch (name) {
+    // strings
+    case "append": return str(input) + str(arg(args, 0));
+    case "prepend": return str(arg(args, 0)) + str(input);
+    case "capitalize": return capitalize(str(input));
+    case "downcase": return str(input).toLowerCase();
+    case "upcase": return str(input).toUpperCase();
+    case "strip": return str(input).trim();
+    case "lstrip": return str(input).replaceAll("^\\s+", "");
+    case "rstrip": return str(input).replaceAll("\\s+$", "");
+    case "strip_newlines": return str(input).replace("\r", "").replace("\n", "");
+    case "strip_html": return str(input).replaceAll("(?s)<script.*?</script>", "").replaceAll("(?s)<!--.*?-->", "").replaceAll("(?s)<style.*?</style>", "").replaceAll("(?s)<.*?>", "");
+    case "newline_to_br": return str(input).replace("\r\n", "\n").replace("\n", "<br />\n");
+    case "normalize_whitespace": return str(input).replaceAll("\\s+", " ");
+    case "escape":
+    case "xml_escape": return escape(str(input));
+    case "escape_once": return escape(unescape(str(input)));
+    case "replace": return str(input).replace(str(arg(args, 0)), str(arg(args, 1)));
+    case "replace_first": return replaceFirst(str(input), str(arg(args, 0)), str(arg(args, 1)));
+    case "remove": return str(input).replace(str(arg(args, 0)), "");
+    case "remove_first": return replaceFirst(str(input), str(arg(args, 0)), "");
+    case "truncate": return truncate(str(input), args.isEmpty() ? 50 : (int) toLong(arg(args, 0)), args.size() > 1 ? str(arg(args, 1)) : "...");
+    case "truncatewords": return truncateWords(str(input), args.isEmpty() ? 15 : (int) toLong(arg(args, 0)), args.size() > 1 ? str(arg(args, 1)) : "...");
+    case "split": return split(str(input), str(arg(args, 0)));
+    case "url_encode":
+    case "cgi_escape": return urlEncode(str(input));
+    case "uri_escape": return str(input).replace(" ", "%20").replace("\"", "%22").replace("<", "%3C").replace(">", "%3E");
+    case "slugify": return slugify(str(input));
+    case "number_of_words": return Long.valueOf(str(input).trim().isEmpty() ? 0 : str(input).trim().split("\\s+").length);
+    case "markdownify": return ctx.markdownify(str(input));
+    case "jsonify": return toJson(input);
+    case "relative_url": return relativeUrl(str(input), ctx);
+    case "absolute_url": return str(property(ctx.get("site"), "url")) + relativeUrl(str(input), ctx);
+    case "default": return input == null || Boolean.FALSE.equals(input) || LiquidExpression.isEmpty(input) ? arg(args, 0) : input;
+    // numbers
+    case "plus": return arithmetic(input, arg(args, 0), '+');
+    case "minus": return arithmetic(input, arg(args, 0), '-');
+    case "times": return arithmetic(input, arg(args, 0), '*');
+    case "divided_by": return arithmetic(input, arg(args, 0), '/');
+    case "modulo": return arithmetic(input, arg(args, 0), '%');
+    case "abs": return abs(toNumber(input));
+    case "ceil": return Long.valueOf((long) Math.ceil(toNumber(input).doubleValue()));
+    case "floor": return Long.valueOf((long) Math.floor(toNumber(input).doubleValue()));
+    case "round": return round(toNumber(input), args.isEmpty() ? 0 : (int) toLong(arg(args, 0)));
+    case "at_least": return LiquidExpression.compareNumbers(toNumber(input), toNumber(arg(args, 0))) < 0 ? toNumber(arg(args, 0)) : toNumber(input);
+    case "at_most": return LiquidExpression.compareNumbers(toNumber(input), toNumber(arg(args, 0))) > 0 ? toNumber(arg(args, 0)) : toNumber(input);
+    // arrays
+    case "size": return size(input);
+    case "first": return LiquidExpression.property(input instanceof List ? input : toList(input), "first");
+    case "last": return LiquidExpression.property(input instanceof List ? input : toList(input), "last");
+    case "join": return join(toList(input), args.isEmpty() ? " " : str(arg(args, 0)));
+    case "reverse": return reverse(toList(input));
+    case "sort": return sort(toList(input), args.isEmpty() ? null : str(arg(args, 0)), false);
+    case "sort_natural": return sort(toList(input), args.isEmpty() ? null : str(arg(args, 0)), true);
+    case "uniq": return new ArrayList<>(new LinkedHashSet<>(toList(input)));
+    case "compact": return compact(toList(input));
+    case "map": return map(toList(input), str(arg(args, 0)));
+    case "where": return where(toList(input), str(arg(args, 0)), args.size() > 1 ? arg(args, 1) : null, args.size() > 1);
+    case "group_by": return groupBy(toList(input), str(arg(args, 0)));
+    case "concat": return concat(toList(input), toList(arg(args, 0)));
+    case "slice": return slice(input, (int) toLong(arg(args, 0)), args.size() > 1 ? (int) toLong(arg(args, 1)) : 1);
+    case "push": return push(toList(input), arg(args, 0));
+    case "array_to_sentence_string": return toSentence(toList(input), args.isEmpty() ? "and" : str(arg(args, 0)));
+    // dates
+    case "date": return date(input, args.isEmpty() ? null : str(arg(args, 0)));
+    case "date_to_xmlschema": return date(input, "%Y-%m-%dT%H:%M:%S%:z");
+    case "date_to_string": return date(input, "%d %b %Y");
+    case "date_to_long_string": return date(input, "%d %B %Y");
+    default:
+      ctx.unsupported("Unknown filter '"+name+"'");
+      return input;
+    }
+  }
+
+  private static Object arg(List<Object> args, int i) {
+    return i < args.size() ? args.get(i) : null;
+  }
+
+  private static String str(Object o) {
+    return LiquidExpression.toOutput(o);
+  }
+
+  private static Object property(Object o, String name) {
+    return LiquidExpression.property(o, name);
+  }
+
+  public static long toLong(Object o) {
+    return toNumber(o).longValue();
+  }
+
+  public static Number toNumber(Object o) {
+    if (o instanceof Number) {
+      return (Number) o;
+    }
+    String s = str(o).trim();
+    try {
+      if (s.matches("[-+]?[0-9]+")) {
+        return Long.valueOf(s);
+      }
+      return Double.valueOf(s);
+    } catch (NumberFormatException e) {
+      return Long.valueOf(0);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<Object> toList(Object o) {
+    if (o == null) {
+      return new ArrayList<>();
+    } else if (o instanceof List) {
+      return (List<Object>) o;
+    } else if (o instanceof Collection) {
+      return new ArrayList<>((Collection<Object>) o);
+    } else if (o instanceof Map) {
+      List<Object> res = new ArrayList<>();
+      for (Map.Entry<?, ?> e : ((Map<?, ?>) o).entrySet()) {
+        List<Object> pair = new ArrayList<>();
+        pair.add(e.getKey());
+        pair.add(e.getValue());
+        res.add(pair);
+      }
+      return res;
+    }
+    List<Object> res = new ArrayList<>();
+    res.add(o);
+    return res;
+  }
+
+  private static String capitalize(String s) {
+    if (s.isEmpty()) {
+      return s;
+    }
+    return s.substring(0, 1).toUpperCase() + s.substring(1).toLowerCase();
+  }
+
+  public static String escape(String s) {
+    StringBuilder b = new StringBuilder(s.length() + 16);
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+      case '&': b.append("&amp;"); break;
+      case '<': b.append("&lt;"); break;
+      case '>': b.append("&gt;"); break;
+      case '"': b.append("&quot;"); break;
+      case '\'': b.append("&#39;"); break;
+      default: b.append(c);
+      }
+    }
+    return b.toString();
+  }
+
+  private static String unescape(String s) {
+    return s.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&#39;", "'").replace("&amp;", "&");
+  }
+
+  private static String replaceFirst(String s, String find, String replace) {
+    int i = s.indexOf(find);
+    if (i == -1 || find.isEmpty()) {
+      return s;
+    }
+    return s.substring(0, i) + replace + s.substring(i + find.length());
+  }
+
+  private static String truncate(String s, int length, String ellipsis) {
+    if (s.length() <= length) {
+      return s;
+    }
+    int l = Math.max(0, length - ellipsis.length());
+    return s.substring(0, l) + ellipsis;
+  }
+
+  private static String truncateWords(String s, int count, String ellipsis) {
+    String[] words = s.trim().split("\\s+");
+    if (words.length <= count) {
+      return s;
+    }
+    StringBuilder b = new StringBuilder();
+    for (int i = 0; i < Math.max(1, count); i++) {
+      if (i > 0) {
+        b.append(" ");
+      }
+      b.append(words[i]);
+    }
+    return b.toString() + ellipsis;
+  }
+
+  private static List<Object> split(String s, String sep) {
+    List<Object> res = new ArrayList<>();
+    if (s.isEmpty()) {
+      return res;
+    }
+    if (sep.isEmpty()) {
+      for (int i = 0; i < s.length(); i++) {
+        res.add(s.substring(i, i + 1));
+      }
+      return res;
+    }
+    int start = 0;
+    int i = s.indexOf(sep);
+    while (i > -1) {
+      res.add(s.substring(start, i));
+      start = i + sep.length();
+      i = s.indexOf(sep, start);
+    }
+    res.add(s.substring(start));
+    // like ruby, trailing empty strings are dropped
+    while (!res.isEmpty() && "".equals(res.get(res.size() - 1))) {
+      res.remove(res.size() - 1);
+    }
+    return res;
+  }
+
+  private static String urlEncode(String s) {
+    try {
+      return URLEncoder.encode(s, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      return s;
+    }
+  }
+
+  public static String slugify(String s) {
+    String res = s.toLowerCase().replaceAll("[^a-z0-9]+", "-");
+    while (res.startsWith("-")) {
+      res = res.substring(1);
+    }
+    while (res.endsWith("-")) {
+      res = res.substring(0, res.length() - 1);
+    }
+    return res;
+  }
+
+  private static String relativeUrl(String s, LiquidContext ctx) {
+    String base = str(property(ctx.get("site"), "baseurl"));
+    if (s.startsWith("http:") || s.startsWith("https:") || base.isEmpty()) {
+      return s;
+    }
+    if (base.endsWith("/")) {
+      base = base.substring(0, base.length() - 1);
+    }
+    return base + (s.startsWith("/") ? s : "/" + s);
+  }
+
+  private static Object arithmetic(Object left, Object right, char op) throws FHIRException {
+    Number l = toNumber(left);
+    Number r = toNumber(right);
+    if (LiquidExpression.isIntegral(l) && LiquidExpression.isIntegral(r)) {
+      long a = l.longValue();
+      long b = r.longValue();
+      switch (op) {
+      case '+': return Long.valueOf(a + b);
+      case '-': return Long.valueOf(a - b);
+      case '*': return Long.valueOf(a * b);
+      case '/':
+        if (b == 0) {
+          throw new FHIRException("Liquid Exception: divided by 0");
+        }
+        return Long.valueOf(Math.floorDiv(a, b));
+      default:
+        if (b == 0) {
+          throw new FHIRException("Liquid Exception: divided by 0");
+        }
+        return Long.valueOf(Math.floorMod(a, b));
+      }
+    }
+    double a = l.doubleValue();
+    double b = r.doubleValue();
+    switch (op) {
+    case '+': return Double.valueOf(a + b);
+    case '-': return Double.valueOf(a - b);
+    case '*': return Double.valueOf(a * b);
+    case '/': return Double.valueOf(a / b);
+    default: return Double.valueOf(a % b);
+    }
+  }
+
+  private static Number abs(Number n) {
+    if (LiquidExpression.isIntegral(n)) {
+      return Long.valueOf(Math.abs(n.longValue()));
+    }
+    return Double.valueOf(Math.abs(n.doubleValue()));
+  }
+
+  private static Number round(Number n, int places) {
+    if (places <= 0) {
+      return Long.valueOf(Math.round(n.doubleValue()));
+    }
+    double f = Math.pow(10, places);
+    return Double.valueOf(Math.round(n.doubleValue() * f) / f);
+  }
+
+  private static Object size(Object o) {
+    if (o instanceof String || o instanceof List || o instanceof Map) {
+      return LiquidExpression.property(o, "size");
+    } else if (o instanceof Collection) {
+      return Long.valueOf(((Collection<?>) o).size());
+    }
+    return Long.valueOf(0);
+  }
+
+  private static String join(List<Object> list, String sep) {
+    StringBuilder b = new StringBuilder();
+    boolean first = true;
+    for (Object o : list) {
+      if (!first) {
+        b.append(sep);
+      }
+      first = false;
+      b.append(str(o));
+    }
+    return b.toString();
+  }
+
+  private static List<Object> reverse(List<Object> list) {
+    List<Object> res = new ArrayList<>(list);
+    Collections.reverse(res);
+    return res;
+  }
+
+  private static List<Object> sort(List<Object> list, String property, boolean natural) {
+    List<Object> res = new ArrayList<>(list);
+    res.sort((a, b) -> {
+      Object va = property == null ? a : property(a, property);
+      Object vb = property == null ? b : property(b, property);
+      if (va == null || vb == null) {
+        return va == null ? (vb == null ? 0 : 1) : -1;
+      }
+      if (natural) {
+        return str(va).compareToIgnoreCase(str(vb));
+      }
+      Integer c = LiquidExpression.compareValues(va, vb);
+      return c == null ? str(va).compareTo(str(vb)) : c;
+    });
+    return res;
+  }
+
+  private static List<Object> compact(List<Object> list) {
+    List<Object> res = new ArrayList<>();
+    for (Object o : list) {
+      if (o != null) {
+        res.add(o);
+      }
+    }
+    return res;
+  }
+
+  private static List<Object> map(List<Object> list, String property) {
+    List<Object> res = new ArrayList<>();
+    for (Object o : list) {
+      res.add(property(o, property));
+    }
+    return res;
+  }
+
+  private static List<Object> where(List<Object> list, String property, Object value, boolean hasValue) {
+    List<Object> res = new ArrayList<>();
+    for (Object o : list) {
+      Object v = property(o, property);
+      if (hasValue) {
+        if (LiquidExpression.areEqual(v, value) || (v instanceof List && LiquidExpression.contains(v, value)) || (v != null && value != null && str(v).equals(str(value)))) {
+          res.add(o);
+        }
+      } else if (LiquidExpression.isTrue(v)) {
+        res.add(o);
+      }
+    }
+    return res;
+  }
+
+  private static List<Object> groupBy(List<Object> list, String property) {
+    Map<String, List<Object>> groups = new LinkedHashMap<>();
+    for (Object o : list) {
+      groups.computeIfAbsent(str(property(o, property)), k -> new ArrayList<>()).add(o);
+    }
+    List<Object> res = new ArrayList<>();
+    for (Map.Entry<String, List<Object>> e : groups.entrySet()) {
+      Map<String, Object> g = new LinkedHashMap<>();
+      g.put("name", e.getKey());
+      g.put("items", e.getValue());
+      g.put("size", Long.valueOf(e.getValue().size()));
+      res.add(g);
+    }
+    return res;
+  }
+
+  private static List<Object> concat(List<Object> left, List<Object> right) {
+    List<Object> res = new ArrayList<>(left);
+    res.addAll(right);
+    return res;
+  }
+
+  private static List<Object> push(List<Object> list, Object item) {
+    List<Object> res = new ArrayList<>(list);
+    res.add(item);
+    return res;
+  }
+
+  private static Object slice(Object input, int offset, int length) {
+    if (input instanceof List) {
+      List<?> list = (List<?>) input;
+      int start = offset < 0 ? list.size() + offset : offset;
+      if (start < 0 || start >= list.size()) {
+        return new ArrayList<>();
+      }
+      return new ArrayList<>(list.subList(start, Math.min(list.size(), start + length)));
+    }
+    String s = str(input);
+    int start = offset < 0 ? s.length() + offset : offset;
+    if (start < 0 || start >= s.length()) {
+      return "";
+    }
+    return s.substring(start, Math.min(s.length(), start + length));
+  }
+
+  private static String toSentence(List<Object> list, String connector) {
+    if (list.size() <= 1) {
+      return join(list, "");
+    }
+    if (list.size() == 2) {
+      return str(list.get(0)) + " " + connector + " " + str(list.get(1));
+    }
+    return join(list.subList(0, list.size() - 1), ", ") + ", " + connector + " " + str(list.get(list.size() - 1));
+  }
+
+  // --- dates ----------------------------------------------------------------
+
+  private static ZonedDateTime toDate(Object o) {
+    if (o instanceof ZonedDateTime) {
+      return (ZonedDateTime) o;
+    } else if (o instanceof Date) {
+      return ZonedDateTime.ofInstant(((Date) o).toInstant(), ZoneId.systemDefault());
+    } else if (o instanceof Number) {
+      return ZonedDateTime.ofInstant(new Date(((Number) o).longValue() * 1000).toInstant(), ZoneId.systemDefault());
+    }
+    String s = str(o).trim();
+    if (s.equals("now") || s.equals("today")) {
+      return ZonedDateTime.now();
+    }
+    try {
+      return OffsetDateTime.parse(s).toZonedDateTime();
+    } catch (Exception e) {
+      // try the next one
+    }
+    try {
+      return LocalDateTime.parse(s.replace(" ", "T")).atZone(ZoneId.systemDefault());
+    } catch (Exception e) {
+      // try the next one
+    }
+    try {
+      return LocalDate.parse(s.length() > 10 ? s.substring(0, 10) : s).atStartOfDay(ZoneId.systemDefault());
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  private static Object date(Object input, String format) {
+    if (format == null || format.isEmpty()) {
+      return input;
+    }
+    ZonedDateTime d = toDate(input);
+    if (d == null) {
+      return input;
+    }
+    StringBuilder b = new StringBuilder();
+    for (int i = 0; i < format.length(); i++) {
+      char c = format.charAt(i);
+      if (c != '%' || i == format.length() - 1) {
+        b.append(c);
+        continue;
+      }
+      i++;
+      char f = format.charAt(i);
+      switch (f) {
+      case 'Y': b.append(d.getYear()); break;
+      case 'y': b.append(pad(d.getYear() % 100)); break;
+      case 'm': b.append(pad(d.getMonthValue())); break;
+      case 'd': b.append(pad(d.getDayOfMonth())); break;
+      case 'e': b.append(d.getDayOfMonth()); break;
+      case 'j': b.append(String.format("%03d", d.getDayOfYear())); break;
+      case 'H': b.append(pad(d.getHour())); break;
+      case 'I': b.append(pad(d.getHour() % 12 == 0 ? 12 : d.getHour() % 12)); break;
+      case 'M': b.append(pad(d.getMinute())); break;
+      case 'S': b.append(pad(d.getSecond())); break;
+      case 'p': b.append(d.getHour() < 12 ? "AM" : "PM"); break;
+      case 'b': b.append(d.getMonth().getDisplayName(TextStyle.SHORT, Locale.ENGLISH)); break;
+      case 'B': b.append(d.getMonth().getDisplayName(TextStyle.FULL, Locale.ENGLISH)); break;
+      case 'a': b.append(d.getDayOfWeek().getDisplayName(TextStyle.SHORT, Locale.ENGLISH)); break;
+      case 'A': b.append(d.getDayOfWeek().getDisplayName(TextStyle.FULL, Locale.ENGLISH)); break;
+      case 'Z': b.append(d.getZone().getDisplayName(TextStyle.SHORT, Locale.ENGLISH)); break;
+      case 'z': b.append(d.getOffset().getId().equals("Z") ? "+0000" : d.getOffset().getId().replace(":", "")); break;
+      case ':':
+        if (i < format.length() - 1 && format.charAt(i + 1) == 'z') {
+          i++;
+          b.append(d.getOffset().getId().equals("Z") ? "+00:00" : d.getOffset().getId());
+        } else {
+          b.append("%:");
+        }
+        break;
+      case '%': b.append('%'); break;
+      default:
+        b.append('%');
+        b.append(f);
+      }
+    }
+    return b.toString();
+  }
+
+  private static String pad(int i) {
+    return i < 10 ? "0" + i : Integer.toString(i);
+  }
+
+  // --- json -----------------------------------------------------------------
+
+  public static String toJson(Object o) {
+    StringBuilder b = new StringBuilder();
+    writeJson(b, o);
+    return b.toString();
+  }
+
+  private static void writeJson(StringBuilder b, Object o) {
+    if (o == null || o == LiquidExpression.EMPTY || o == LiquidExpression.BLANK) {
+      b.append("null");
+    } else if (o instanceof Boolean || o instanceof Number) {
+      b.append(o.toString());
+    } else if (o instanceof Map) {
+      b.append("{");
+      boolean first = true;
+      for (Map.Entry<?, ?> e : ((Map<?, ?>) o).entrySet()) {
+        if (!first) {
+          b.append(",");
+        }
+        first = false;
+        writeJsonString(b, String.valueOf(e.getKey()));
+        b.append(":");
+        writeJson(b, e.getValue());
+      }
+      b.append("}");
+    } else if (o instanceof Collection) {
+      b.append("[");
+      boolean first = true;
+      for (Object i : (Collection<?>) o) {
+        if (!first) {
+          b.append(",");
+        }
+        first = false;
+        writeJson(b, i);
+      }
+      b.append("]");
+    } else {
+      writeJsonString(b, o.toString());
+    }
+  }
+
+  private static void writeJsonString(StringBuilder b, String s) {
+    b.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+      case '"': b.append("\\\""); break;
+      case '\\': b.append("\\\\"); break;
+      case '\n': b.append("\\n"); break;
+      case '\r': b.append("\\r"); break;
+      case '\t': b.append("\\t"); break;
+      default:
+        if (c < 0x20) {
+          b.append(String.format("\\u%04x", (int) c));
+        } else {
+          b.append(c);
+        }
+      }
+    }
+    b.append('"');
+  }
+}
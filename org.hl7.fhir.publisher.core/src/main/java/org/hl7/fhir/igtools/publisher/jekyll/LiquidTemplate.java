@@ -0,0 +1,800 @@
+package org.hl7.fhir.igtools.publisher.jekyll;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.igtools.publisher.jekyll.LiquidContext.Interrupt;
+
+/**
+ * A parsed liquid template, with the tags that Jekyll based IG templates use:
+ *
+ *   if/elsif/else/unless, case/when, for (limit, offset, reversed, forloop), break/continue,
+ *   assign, capture, increment/decrement, cycle, echo, raw, comment, highlight,
+ *   include and include_relative (with parameters)
+ *
+ * Templates are immutable once parsed, so one instance can be rendered by several threads
+ * at once (each with its own LiquidContext)
+ */
+public class LiquidTemplate {
+
+  private static final Pattern END_RAW = Pattern.compile("\\{%-?\\s*endraw\\s*-?%\\}");
+  private static final Pattern END_COMMENT = Pattern.compile("\\{%-?\\s*endcomment\\s*-?%\\}");
+  private static final Pattern INCLUDE_PARAM = Pattern.compile("([\\w-]+)\\s*=\\s*(\"[^\"]*\"|'[^']*'|[\\w\\.\\-\\[\\]\"']+)");
+
+  private String name;
+  private List<Node> nodes;
+
+  private LiquidTemplate(String name, List<Node> nodes) {
+    this.name = name;
+    this.nodes = nodes;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * true if this template is just text (e.g. a fragment wrapped in {% raw %})
+   */
+  public boolean isStatic() {
+    for (Node n : nodes) {
+      if (!(n instanceof TextNode)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public String render(LiquidContext ctx) throws FHIRException {
+    StringBuilder b = new StringBuilder();
+    String path = ctx.getPath();
+    if (path == null) {
+      ctx.setPath(name);
+    }
+    renderNodes(nodes, ctx, b);
+    return b.toString();
+  }
+
+  public void render(LiquidContext ctx, StringBuilder b) throws FHIRException {
+    renderNodes(nodes, ctx, b);
+  }
+
+  private static void renderNodes(List<Node> nodes, LiquidContext ctx, StringBuilder b) throws FHIRException {
+    for (Node n : nodes) {
+      n.render(ctx, b);
+      if (ctx.getInterrupt() != Interrupt.NONE) {
+        return;
+      }
+    }
+  }
+
+  // --- nodes ------------------------------------------------------------------
+
+  private static abstract class Node {
+    protected int line;
+    protected String source;
+
+    abstract void render(LiquidContext ctx, StringBuilder b) throws FHIRException;
+
+    protected FHIRException error(LiquidContext ctx, Exception e) {
+      if (e instanceof FHIRException && e.getMessage() != null && e.getMessage().contains(" (line ")) {
+        return (FHIRException) e;
+      }
+      return new FHIRException(e.getMessage()+" (line "+line+" of "+source+", rendering "+ctx.getPath()+")", e);
+    }
+  }
+
+  private static class TextNode extends Node {
+    private String text;
+
+    @Override
+    void render(LiquidContext ctx, StringBuilder b) {
+      b.append(text);
+    }
+  }
+
+  // lax mode: a tag that isn't known (or output that can't be parsed) renders nothing, and is reported each time it's rendered
+  private static class UnknownNode extends Node {
+    private String message;
+
+    @Override
+    void render(LiquidContext ctx, StringBuilder b) throws FHIRException {
+      ctx.unsupported(message+" (line "+line+" of "+source+")");
+    }
+  }
+
+  private static class OutputNode extends Node {
+    private LiquidExpression expr;
+
+    @Override
+    void render(LiquidContext ctx, StringBuilder b) throws FHIRException {
+      try {
+        b.append(LiquidExpression.toOutput(expr.evaluate(ctx)));
+      } catch (Exception e) {
+        throw error(ctx, e);
+      }
+    }
+  }
+
+  private static class Branch {
+    private LiquidExpression condition; // null for else
+    private boolean negate;
+    private List<Node> body;
+  }
+
+  private static class IfNode extends Node {
+    private List<Branch> branches = new ArrayList<>();
+
+    @Override
+    void render(LiquidContext ctx, StringBuilder b) throws FHIRException {
+      for (Branch br : branches) {
+        boolean ok;
+        try {
+          ok = br.condition == null || (LiquidExpression.isTrue(br.condition.evaluate(ctx)) != br.negate);
+        } catch (Exception e) {
+          throw error(ctx, e);
+        }
+        if (ok) {
+          renderNodes(br.body, ctx, b);
+          return;
+        }
+      }
+    }
+  }
+
+  private static class CaseNode extends Node {
+    private LiquidExpression value;
+    private List<List<LiquidExpression>> whens = new ArrayList<>();
+    private List<List<Node>> bodies = new ArrayList<>();
+    private List<Node> elseBody;
+
+    @Override
+    void render(LiquidContext ctx, StringBuilder b) throws FHIRException {
+      Object v;
+      try {
+        v = value.evaluate(ctx);
+      } catch (Exception e) {
+        throw error(ctx, e);
+      }
+      boolean matched = false;
+      for (int i = 0; i < whens.size(); i++) {
+        for (LiquidExpression w : whens.get(i)) {
+          if (LiquidExpression.areEqual(v, w.evaluate(ctx))) {
+            matched = true;
+            renderNodes(bodies.get(i), ctx, b);
+            break;
+          }
+        }
+      }
+      if (!matched && elseBody != null) {
+        renderNodes(elseBody, ctx, b);
+      }
+    }
+  }
+
+  private static class ForNode extends Node {
+    private String variable;
+    private LiquidExpression collection;
+    private LiquidExpression limit;
+    private LiquidExpression offset;
+    private boolean reversed;
+    private List<Node> body;
+    private List<Node> elseBody;
+
+    @Override
+    void render(LiquidContext ctx, StringBuilder b) throws FHIRException {
+      List<Object> items = new ArrayList<>();
+      try {
+        Object c = collection.evaluate(ctx);
+        if (c instanceof Collection) {
+          items.addAll((Collection<?>) c);
+        } else if (c instanceof Map) {
+          for (Map.Entry<?, ?> e : ((Map<?, ?>) c).entrySet()) {
+            List<Object> pair = new ArrayList<>();
+            pair.add(e.getKey());
+            pair.add(e.getValue());
+            items.add(pair);
+          }
+        } else if (c instanceof String && !((String) c).isEmpty()) {
+          items.add(c);
+        }
+        int from = offset == null ? 0 : (int) LiquidFilters.toLong(offset.evaluate(ctx));
+        int to = limit == null ? items.size() : Math.min(items.size(), from + (int) LiquidFilters.toLong(limit.evaluate(ctx)));
+        if (from > 0 || to < items.size()) {
+          items = from >= to ? new ArrayList<>() : new ArrayList<>(items.subList(from, to));
+        }
+        if (reversed) {
+          java.util.Collections.reverse(items);
+        }
+      } catch (Exception e) {
+        throw error(ctx, e);
+      }
+      if (items.isEmpty()) {
+        if (elseBody != null) {
+          renderNodes(elseBody, ctx, b);
+        }
+        return;
+      }
+      Object parent = ctx.get("forloop");
+      ctx.push();
+      try {
+        int length = items.size();
+        for (int i = 0; i < length; i++) {
+          Map<String, Object> loop = new HashMap<>();
+          loop.put("index", Long.valueOf(i + 1));
+          loop.put("index0", Long.valueOf(i));
+          loop.put("rindex", Long.valueOf(length - i));
+          loop.put("rindex0", Long.valueOf(length - i - 1));
+          loop.put("first", i == 0);
+          loop.put("last", i == length - 1);
+          loop.put("length", Long.valueOf(length));
+          loop.put("parentloop", parent);
+          ctx.setLocal("forloop", loop);
+          ctx.setLocal(variable, items.get(i));
+          renderNodes(body, ctx, b);
+          Interrupt interrupt = ctx.getInterrupt();
+          ctx.setInterrupt(Interrupt.NONE);
+          if (interrupt == Interrupt.BREAK) {
+            break;
+          }
+        }
+      } finally {
+        ctx.pop();
+      }
+    }
+  }
+
+  private static class AssignNode extends Node {
+    private String variable;
+    private LiquidExpression expr;
+
+    @Override
+    void render(LiquidContext ctx, StringBuilder b) throws FHIRException {
+      try {
+        ctx.assign(variable, expr.evaluate(ctx));
+      } catch (Exception e) {
+        throw error(ctx, e);
+      }
+    }
+  }
+
+  private static class CaptureNode extends Node {
+    private String variable;
+    private List<Node> body;
+
+    @Override
+    void render(LiquidContext ctx, StringBuilder b) throws FHIRException {
+      StringBuilder c = new StringBuilder();
+      renderNodes(body, ctx, c);
+      ctx.assign(variable, c.toString());
+    }
+  }
+
+  private static class CounterNode extends Node {
+    private String variable;
+    private boolean increment;
+
+    @Override
+    void render(LiquidContext ctx, StringBuilder b) {
+      Object o = ctx.getCounter(variable);
+      long v = o == null ? 0 : ((Number) o).longValue();
+      if (increment) {
+        b.append(v);
+        ctx.setCounter(variable, Long.valueOf(v + 1));
+      } else {
+        v = v - 1;
+        b.append(v);
+        ctx.setCounter(variable, Long.valueOf(v));
+      }
+    }
+  }
+
+  private static class CycleNode extends Node {
+    private String group;
+    private List<LiquidExpression> values = new ArrayList<>();
+
+    @Override
+    void render(LiquidContext ctx, StringBuilder b) throws FHIRException {
+      String key = "cycle:"+group;
+      Object o = ctx.getCounter(key);
+      int i = o == null ? 0 : ((Number) o).intValue();
+      b.append(LiquidExpression.toOutput(values.get(i % values.size()).evaluate(ctx)));
+      ctx.setCounter(key, Integer.valueOf(i + 1));
+    }
+  }
+
+  private static class InterruptNode extends Node {
+    private Interrupt interrupt;
+
+    @Override
+    void render(LiquidContext ctx, StringBuilder b) {
+      ctx.setInterrupt(interrupt);
+    }
+  }
+
+  private static class HighlightNode extends Node {
+    private String language;
+    private String content;
+
+    @Override
+    void render(LiquidContext ctx, StringBuilder b) {
+      b.append("<figure class=\"highlight\"><pre><code class=\"language-"+language+"\" data-lang=\""+language+"\">");
+      b.append(LiquidFilters.escape(content.trim()));
+      b.append("</code></pre></figure>");
+    }
+  }
+
+  private static class IncludeNode extends Node {
+    private String name; // may contain {{ }}
+    private LiquidTemplate nameTemplate;
+    private boolean relative;
+    private Map<String, LiquidExpression> params = new LinkedHashMap<>();
+
+    @Override
+    void render(LiquidContext ctx, StringBuilder b) throws FHIRException {
+      String n = name;
+      try {
+        if (nameTemplate != null) {
+          StringBuilder nb = new StringBuilder();
+          nameTemplate.render(ctx, nb);
+          n = nb.toString().trim();
+        }
+        LiquidTemplate t = ctx.getInclude(n, relative);
+        if (t == null) {
+          return;
+        }
+        if (t.isStatic() && params.isEmpty()) {
+          renderNodes(t.nodes, ctx, b);
+          return;
+        }
+        Map<String, Object> inc = new HashMap<>();
+        for (Map.Entry<String, LiquidExpression> e : params.entrySet()) {
+          inc.put(e.getKey(), e.getValue().evaluate(ctx));
+        }
+        ctx.enterInclude(n);
+        ctx.push();
+        try {
+          ctx.setLocal("include", inc);
+          renderNodes(t.nodes, ctx, b);
+        } finally {
+          ctx.pop();
+          ctx.exitInclude();
+        }
+      } catch (Exception e) {
+        throw error(ctx, e);
+      }
+    }
+  }
+
+  // --- tokenizer ----------------------------------------------------------------
+
+  private enum TokenType {
+    TEXT, OUTPUT, TAG
+  }
+
+  private static class Token {
+    private TokenType type;
+    private String content;
+    private int line;
+    private boolean trimLeft;
+    private boolean trimRight;
+    private boolean fixed; // raw content - never trimmed
+
+    private Token(TokenType type, String content, int line) {
+      this.type = type;
+      this.content = content;
+      this.line = line;
+    }
+
+    private String tagName() {
+      String s = content.trim();
+      int i = 0;
+      while (i < s.length() && !Character.isWhitespace(s.charAt(i))) {
+        i++;
+      }
+      return s.substring(0, i);
+    }
+
+    private String markup() {
+      String s = content.trim();
+      String n = tagName();
+      return s.substring(n.length()).trim();
+    }
+  }
+
+  private static int countLines(String s, int start, int end) {
+    int c = 0;
+    for (int i = start; i < end; i++) {
+      if (s.charAt(i) == '\n') {
+        c++;
+      }
+    }
+    return c;
+  }
+
+  private static List<Token> tokenize(String src, String name, boolean strict) throws FHIRException {
+    List<Token> tokens = new ArrayList<>();
+    int pos = 0;
+    int line = 1;
+    int len = src.length();
+    while (pos < len) {
+      int i = src.indexOf('{', pos);
+      while (i > -1 && i < len - 1 && src.charAt(i+1) != '{' && src.charAt(i+1) != '%') {
+        i = src.indexOf('{', i+1);
+      }
+      if (i == -1 || i >= len - 1) {
+        tokens.add(new Token(TokenType.TEXT, src.substring(pos), line));
+        break;
+      }
+      if (i > pos) {
+        tokens.add(new Token(TokenType.TEXT, src.substring(pos, i), line));
+        line += countLines(src, pos, i);
+      }
+      boolean isTag = src.charAt(i+1) == '%';
+      int j = src.indexOf(isTag ? "%}" : "}}", i+2);
+      if (j == -1) {
+        if (strict) {
+          throw new FHIRException("Liquid Exception: "+(isTag ? "Tag" : "Variable")+" was not properly terminated (line "+line+" of "+name+")");
+        }
+        tokens.add(new Token(TokenType.TEXT, src.substring(i), line));
+        break;
+      }
+      String content = src.substring(i+2, j);
+      Token t = new Token(isTag ? TokenType.TAG : TokenType.OUTPUT, content, line);
+      if (content.startsWith("-")) {
+        t.trimLeft = true;
+        content = content.substring(1);
+      }
+      if (content.endsWith("-")) {
+        t.trimRight = true;
+        content = content.substring(0, content.length()-1);
+      }
+      t.content = content;
+      line += countLines(src, i, j+2);
+      pos = j + 2;
+      if (isTag && (t.tagName().equals("raw") || t.tagName().equals("comment"))) {
+        boolean raw = t.tagName().equals("raw");
+        Matcher m = (raw ? END_RAW : END_COMMENT).matcher(src);
+        if (!m.find(pos)) {
+          throw new FHIRException("Liquid Exception: "+t.tagName()+" tag was never closed (line "+t.line+" of "+name+")");
+        }
+        // markers keep the whitespace control of the opening and closing tags
+        Token open = new Token(TokenType.TAG, "#", t.line);
+        open.trimLeft = t.trimLeft;
+        tokens.add(open);
+        if (raw) {
+          Token r = new Token(TokenType.TEXT, src.substring(pos, m.start()), line);
+          r.fixed = true;
+          tokens.add(r);
+        }
+        Token close = new Token(TokenType.TAG, "#", line);
+        close.trimRight = m.group().endsWith("-%}");
+        tokens.add(close);
+        line += countLines(src, pos, m.end());
+        pos = m.end();
+      } else {
+        tokens.add(t);
+      }
+    }
+    // whitespace control
+    for (int k = 0; k < tokens.size(); k++) {
+      Token t = tokens.get(k);
+      if (t.type == TokenType.TEXT) {
+        continue;
+      }
+      if (t.trimLeft && k > 0 && tokens.get(k-1).type == TokenType.TEXT && !tokens.get(k-1).fixed) {
+        Token p = tokens.get(k-1);
+        p.content = p.content.replaceAll("\\s+$", "");
+      }
+      if (t.trimRight && k < tokens.size()-1 && tokens.get(k+1).type == TokenType.TEXT && !tokens.get(k+1).fixed) {
+        Token n = tokens.get(k+1);
+        n.content = n.content.replaceAll("^\\s+", "");
+      }
+    }
+    return tokens;
+  }
+
+  // --- parser ---------------------------------------------------------------------
+
+  public static LiquidTemplate parse(String name, String source, boolean strict) throws FHIRException {
+    Parser p = new Parser(name, tokenize(source, name, strict), strict);
+    List<Node> nodes = p.parseBlock();
+    if (p.endTag != null) {
+      throw new FHIRException("Liquid Exception: Unexpected tag '"+p.endTag.tagName()+"' (line "+p.endTag.line+" of "+name+")");
+    }
+    return new LiquidTemplate(name, nodes);
+  }
+
+  private static class Parser {
+    private String name;
+    private List<Token> tokens;
+    private boolean strict;
+    private int cursor;
+    private Token endTag; // the tag that terminated the last block
+
+    private Parser(String name, List<Token> tokens, boolean strict) {
+      this.name = name;
+      this.tokens = tokens;
+      this.strict = strict;
+    }
+
+    private FHIRException error(Token t, String msg) {
+      return new FHIRException("Liquid Exception: "+msg+" (line "+t.line+" of "+name+")");
+    }
+
+    private <T extends Node> T node(T n, Token t) {
+      n.line = t.line;
+      n.source = name;
+      return n;
+    }
+
+    private List<Node> parseBlock(String... terminators) throws FHIRException {
+      List<Node> nodes = new ArrayList<>();
+      endTag = null;
+      while (cursor < tokens.size()) {
+        Token t = tokens.get(cursor);
+        cursor++;
+        if (t.type == TokenType.TEXT) {
+          if (!t.content.isEmpty()) {
+            TextNode n = node(new TextNode(), t);
+            n.text = t.content;
+            nodes.add(n);
+          }
+        } else if (t.type == TokenType.OUTPUT) {
+          OutputNode n = node(new OutputNode(), t);
+          try {
+            n.expr = LiquidExpression.parseFiltered(t.content.trim());
+          } catch (FHIRException e) {
+            if (strict) {
+              throw error(t, e.getMessage());
+            }
+            UnknownNode un = node(new UnknownNode(), t);
+            un.message = e.getMessage();
+            nodes.add(un);
+            continue;
+          }
+          nodes.add(n);
+        } else {
+          String tag = t.tagName();
+          for (String s : terminators) {
+            if (s.equals(tag)) {
+              endTag = t;
+              return nodes;
+            }
+          }
+          Node n = parseTag(t, tag);
+          if (n != null) {
+            nodes.add(n);
+          }
+        }
+      }
+      if (terminators.length > 0) {
+        throw new FHIRException("Liquid Exception: '"+terminators[terminators.length - 1]+"' tag was never found (in "+name+")");
+      }
+      return nodes;
+    }
+
+    private Node parseTag(Token t, String tag) throws FHIRException {
+      try {
+        switch (tag) {
+        case "#":
+        case "":
+          return null;
+        case "if":
+        case "unless":
+          return parseIf(t, tag);
+        case "case":
+          return parseCase(t);
+        case "for":
+          return parseFor(t);
+        case "assign":
+          return parseAssign(t);
+        case "capture":
+          return parseCapture(t);
+        case "include":
+        case "include_relative":
+          return parseInclude(t, tag.equals("include_relative"));
+        case "break":
+        case "continue":
+          InterruptNode in = node(new InterruptNode(), t);
+          in.interrupt = tag.equals("break") ? Interrupt.BREAK : Interrupt.CONTINUE;
+          return in;
+        case "increment":
+        case "decrement":
+          CounterNode cn = node(new CounterNode(), t);
+          cn.variable = t.markup();
+          cn.increment = tag.equals("increment");
+          return cn;
+        case "cycle":
+          return parseCycle(t);
+        case "echo":
+          OutputNode on = node(new OutputNode(), t);
+          on.expr = LiquidExpression.parseFiltered(t.markup());
+          return on;
+        case "highlight":
+          return parseHighlight(t);
+        default:
+          if (strict) {
+            throw error(t, "Unknown tag '"+tag+"'");
+          }
+          // lax mode: render nothing for the tag. A block tag that isn't known will leave its end tag behind; drop that too
+          if (tag.startsWith("end")) {
+            return null;
+          }
+          UnknownNode un = node(new UnknownNode(), t);
+          un.message = "Unknown tag '"+tag+"'";
+          return un;
+        }
+      } catch (FHIRException e) {
+        if (e.getMessage() != null && e.getMessage().contains("(line ")) {
+          throw e;
+        }
+        throw error(t, e.getMessage());
+      }
+    }
+
+    private Node parseIf(Token t, String tag) throws FHIRException {
+      IfNode n = node(new IfNode(), t);
+      String end = "end"+tag;
+      Branch br = new Branch();
+      br.condition = LiquidExpression.parseCondition(t.markup());
+      br.negate = tag.equals("unless");
+      br.body = parseBlock("elsif", "else", end);
+      n.branches.add(br);
+      while (endTag != null && !endTag.tagName().equals(end)) {
+        Token et = endTag;
+        Branch b = new Branch();
+        if (et.tagName().equals("elsif")) {
+          b.condition = LiquidExpression.parseCondition(et.markup());
+          b.body = parseBlock("elsif", "else", end);
+        } else {
+          b.body = parseBlock(end);
+        }
+        n.branches.add(b);
+      }
+      endTag = null;
+      return n;
+    }
+
+    private Node parseCase(Token t) throws FHIRException {
+      CaseNode n = node(new CaseNode(), t);
+      n.value = LiquidExpression.parseFiltered(t.markup());
+      parseBlock("when", "else", "endcase"); // anything before the first when is ignored
+      while (endTag != null && !endTag.tagName().equals("endcase")) {
+        Token et = endTag;
+        if (et.tagName().equals("when")) {
+          List<LiquidExpression> values = new ArrayList<>();
+          LiquidExpression.Parser p = new LiquidExpression.Parser(et.markup());
+          do {
+            values.add(p.parseValue());
+          } while (p.readComma() || p.readOr());
+          p.checkEnd();
+          n.whens.add(values);
+          n.bodies.add(parseBlock("when", "else", "endcase"));
+        } else {
+          n.elseBody = parseBlock("endcase");
+        }
+      }
+      endTag = null;
+      return n;
+    }
+
+    private Node parseFor(Token t) throws FHIRException {
+      ForNode n = node(new ForNode(), t);
+      LiquidExpression.Parser p = new LiquidExpression.Parser(t.markup());
+      n.variable = p.readName();
+      if (!p.readKeyword("in")) {
+        throw error(t, "Syntax Error in 'for loop' - Valid syntax: for [item] in [collection]");
+      }
+      n.collection = p.parseValue();
+      while (!p.atEnd()) {
+        if (p.readKeyword("reversed")) {
+          n.reversed = true;
+        } else {
+          String attr = p.readAttributeName();
+          if ("limit".equals(attr)) {
+            n.limit = p.parseValue();
+          } else if ("offset".equals(attr)) {
+            n.offset = p.parseValue();
+          } else {
+            throw error(t, "Unknown for loop attribute in '"+t.markup()+"'");
+          }
+          p.readComma();
+        }
+      }
+      n.body = parseBlock("else", "endfor");
+      if (endTag != null && endTag.tagName().equals("else")) {
+        n.elseBody = parseBlock("endfor");
+      }
+      endTag = null;
+      return n;
+    }
+
+    private Node parseAssign(Token t) throws FHIRException {
+      AssignNode n = node(new AssignNode(), t);
+      String markup = t.markup();
+      int i = markup.indexOf('=');
+      if (i == -1) {
+        throw error(t, "Syntax Error in 'assign' - Valid syntax: assign [var] = [source]");
+      }
+      n.variable = markup.substring(0, i).trim();
+      n.expr = LiquidExpression.parseFiltered(markup.substring(i+1).trim());
+      return n;
+    }
+
+    private Node parseCapture(Token t) throws FHIRException {
+      CaptureNode n = node(new CaptureNode(), t);
+      n.variable = t.markup().replace("\"", "").replace("'", "").trim();
+      n.body = parseBlock("endcapture");
+      endTag = null;
+      return n;
+    }
+
+    private Node parseCycle(Token t) throws FHIRException {
+      CycleNode n = node(new CycleNode(), t);
+      LiquidExpression.Parser p = new LiquidExpression.Parser(t.markup());
+      String group = p.readAttributeName();
+      do {
+        n.values.add(p.parseValue());
+      } while (p.readComma());
+      p.checkEnd();
+      n.group = group == null ? t.markup() : group;
+      return n;
+    }
+
+    private Node parseHighlight(Token t) throws FHIRException {
+      HighlightNode n = node(new HighlightNode(), t);
+      String lang = t.markup();
+      n.language = lang.contains(" ") ? lang.substring(0, lang.indexOf(" ")) : lang;
+      StringBuilder b = new StringBuilder();
+      while (cursor < tokens.size()) {
+        Token c = tokens.get(cursor);
+        cursor++;
+        if (c.type == TokenType.TAG && c.tagName().equals("endhighlight")) {
+          n.content = b.toString();
+          return n;
+        }
+        switch (c.type) {
+        case TEXT: b.append(c.content); break;
+        case OUTPUT: b.append("{{"+c.content+"}}"); break;
+        default: b.append("{%"+c.content+"%}");
+        }
+      }
+      throw error(t, "highlight tag was never closed");
+    }
+
+    private Node parseInclude(Token t, boolean relative) throws FHIRException {
+      IncludeNode n = node(new IncludeNode(), t);
+      n.relative = relative;
+      String markup = t.markup();
+      // the name runs to the first whitespace that isn't inside {{ }}, e.g. {{ page.id }}-intro.xml
+      int j = 0;
+      while (j < markup.length() && !Character.isWhitespace(markup.charAt(j))) {
+        if (markup.startsWith("{{", j)) {
+          int k = markup.indexOf("}}", j);
+          j = k == -1 ? markup.length() : k + 2;
+        } else {
+          j++;
+        }
+      }
+      String fn = markup.substring(0, j);
+      String rest = markup.substring(j);
+      n.name = fn;
+      if (fn.contains("{{")) {
+        n.nameTemplate = LiquidTemplate.parse(name, fn, strict);
+      }
+      Matcher m = INCLUDE_PARAM.matcher(rest);
+      while (m.find()) {
+        n.params.put(m.group(1), LiquidExpression.parseFiltered(m.group(2)));
+      }
+      return n;
+    }
+  }
+}
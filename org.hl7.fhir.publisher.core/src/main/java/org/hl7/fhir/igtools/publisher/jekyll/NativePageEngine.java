@@ -0,0 +1,653 @@
+package org.hl7.fhir.igtools.publisher.jekyll;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.igtools.publisher.jekyll.LiquidContext.IMarkdownConverter;
+import org.hl7.fhir.r5.context.ILoggingService;
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.json.model.JsonArray;
+import org.hl7.fhir.utilities.json.model.JsonBoolean;
+import org.hl7.fhir.utilities.json.model.JsonElement;
+import org.hl7.fhir.utilities.json.model.JsonNull;
+import org.hl7.fhir.utilities.json.model.JsonNumber;
+import org.hl7.fhir.utilities.json.model.JsonObject;
+import org.hl7.fhir.utilities.json.model.JsonProperty;
+import org.hl7.fhir.utilities.json.parser.JsonParser;
+
+/**
+ * Builds a Jekyll site (the publisher's temp folder) in process, without Ruby.
+ *
+ * This implements the part of Jekyll that IG templates use: _config.yml (including
+ * front matter defaults, include and exclude), _data (json and yaml), _layouts
+ * (nested), _includes, front matter, markdown pages, and static files. Pages are
+ * rendered in parallel; includes and layouts are parsed once and shared.
+ *
+ * In strict mode unknown tags, filters and invalid liquid are errors; otherwise they
+ * are reported as warnings and rendering continues, which is what Jekyll itself does
+ * for most of them
+ *
+ * In incremental mode, the layouts and includes each page used are recorded in
+ * .native-pages-metadata in the source folder, and the next build only renders the
+ * pages where the page, one of those files, or _config.yml changed since then, or
+ * that are in the changed set the caller provides. As with jekyll --incremental,
+ * changes to _data don't cause pages to be rendered again
+ */
+public class NativePageEngine implements LiquidContext.IIncludeProvider {
+
+  public static class BuildResult {
+    private int pages;
+    private int written;
+    private int copied;
+    private int skipped;
+    private List<String> warnings;
+
+    public int getPages() {
+      return pages;
+    }
+
+    public int getWritten() {
+      return written;
+    }
+
+    public int getCopied() {
+      return copied;
+    }
+
+    public int getSkipped() {
+      return skipped;
+    }
+
+    public List<String> getWarnings() {
+      return warnings;
+    }
+  }
+
+  private static class Layout {
+    private String path;
+    private Map<String, Object> data;
+    private LiquidTemplate template;
+  }
+
+  private static class Page {
+    private File file;
+    private String path; // relative to source, with '/'
+    private Map<String, Object> data;
+    private String body;
+    private boolean markdown;
+    private String output;
+    private Set<String> dependencies = new HashSet<>();
+  }
+
+  private static class PageRecord {
+    private String output;
+    private List<String> dependencies = new ArrayList<>();
+  }
+
+  private static final Pattern FRONT_MATTER = Pattern.compile("\\A---[ \\t]*\\r?\\n(.*?\\r?\\n)?(---|\\.\\.\\.)[ \\t]*(\\r?\\n|\\z)", Pattern.DOTALL);
+  private static final List<String> DEFAULT_EXCLUDES = Arrays.asList("Gemfile", "Gemfile.lock", "node_modules", "vendor", "_config.yml");
+  private static final int MAX_LAYOUT_DEPTH = 20;
+  private static final int MAX_CACHED_STATIC_INCLUDE = 16384;
+  private static final int MAX_REPORTED_WARNINGS = 50;
+  private static final String METADATA = ".native-pages-metadata";
+
+  private String source;
+  private String destination;
+  private ILoggingService logger;
+  private IMarkdownConverter markdown;
+  private boolean strict;
+  private int threads = Runtime.getRuntime().availableProcessors();
+  private boolean incremental;
+  private Set<String> changed;
+  private long lastBuilt;
+  private Map<String, PageRecord> previous;
+
+  private Map<String, Object> site;
+  private Map<String, Object> jekyll;
+  private List<String> excludes = new ArrayList<>();
+  private List<String> includes = new ArrayList<>();
+  private List<Object> defaults = new ArrayList<>();
+  private String includesDir;
+  private String layoutsDir;
+  private Map<String, LiquidTemplate> includeCache = new ConcurrentHashMap<>();
+  private Map<String, Layout> layouts = new ConcurrentHashMap<>();
+  private List<String> warnings = Collections.synchronizedList(new ArrayList<>());
+
+  public NativePageEngine(String source, String destination, ILoggingService logger) {
+    this.source = source;
+    this.destination = destination;
+    this.logger = logger;
+  }
+
+  public void setMarkdown(IMarkdownConverter markdown) {
+    this.markdown = markdown;
+  }
+
+  public void setStrict(boolean strict) {
+    this.strict = strict;
+  }
+
+  public void setThreads(int threads) {
+    this.threads = Math.max(1, threads);
+  }
+
+  public void setIncremental(boolean incremental) {
+    this.incremental = incremental;
+  }
+
+  /**
+   * files (absolute paths) that the caller knows it changed since the last build. These
+   * are treated as changed whatever their timestamps say
+   */
+  public void setChanged(Set<String> changed) {
+    this.changed = changed;
+  }
+
+  public BuildResult build() throws IOException {
+    long started = System.currentTimeMillis();
+    loadConfig();
+    if (incremental) {
+      loadMetadata();
+    }
+    List<Page> pages = new ArrayList<>();
+    List<String> statics = new ArrayList<>();
+    scan(new File(source), "", pages, statics);
+
+    List<Object> pageList = new ArrayList<>();
+    for (Page p : pages) {
+      pageList.add(p.data);
+    }
+    site.put("pages", pageList);
+    site.put("html_pages", pageList);
+
+    BuildResult res = new BuildResult();
+    res.pages = pages.size();
+    AtomicInteger written = new AtomicInteger();
+    AtomicInteger copied = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (Page p : pages) {
+        if (incremental && !isStale(p)) {
+          res.skipped++;
+          continue;
+        }
+        futures.add(executor.submit(() -> {
+          if (renderPage(p)) {
+            written.incrementAndGet();
+          }
+          return null;
+        }));
+      }
+      for (String s : statics) {
+        futures.add(executor.submit(() -> {
+          if (copyStatic(s)) {
+            copied.incrementAndGet();
+          }
+          return null;
+        }));
+      }
+      waitFor(futures);
+    } finally {
+      executor.shutdownNow();
+    }
+    if (incremental) {
+      removeGonePages(pages);
+      saveMetadata(started, pages);
+    }
+    res.written = written.get();
+    res.copied = copied.get();
+    res.warnings = new ArrayList<>(warnings);
+    int i = 0;
+    for (String w : res.warnings) {
+      if (i == MAX_REPORTED_WARNINGS) {
+        logger.logMessage("Pages: ... and "+(res.warnings.size() - i)+" more warnings");
+        break;
+      }
+      logger.logMessage("Pages: Warning: "+w);
+      i++;
+    }
+    return res;
+  }
+
+  private void waitFor(List<Future<?>> futures) throws IOException {
+    FHIRException first = null;
+    for (Future<?> f : futures) {
+      try {
+        f.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Page generation was interrupted", e);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        logger.logMessage("Pages: "+cause.getMessage());
+        if (first == null) {
+          first = cause instanceof FHIRException ? (FHIRException) cause : new FHIRException(cause.getMessage(), cause);
+        }
+      }
+    }
+    if (first != null) {
+      throw new IOException("Page generation failed: "+first.getMessage(), first);
+    }
+  }
+
+  // --- configuration -------------------------------------------------------------
+
+  @SuppressWarnings("unchecked")
+  private void loadConfig() throws IOException {
+    File cfg = new File(Utilities.path(source, "_config.yml"));
+    Map<String, Object> config = cfg.exists() ? YamlParser.parseMap(TextFile.fileToString(cfg)) : new LinkedHashMap<>();
+    site = new HashMap<>(config);
+    excludes.addAll(DEFAULT_EXCLUDES);
+    if (config.get("exclude") instanceof List) {
+      for (Object o : (List<Object>) config.get("exclude")) {
+        excludes.add(LiquidExpression.toOutput(o));
+      }
+    }
+    if (config.get("include") instanceof List) {
+      for (Object o : (List<Object>) config.get("include")) {
+        includes.add(LiquidExpression.toOutput(o));
+      }
+    }
+    if (config.get("defaults") instanceof List) {
+      defaults.addAll((List<Object>) config.get("defaults"));
+    }
+    includesDir = Utilities.path(source, config.containsKey("includes_dir") ? LiquidExpression.toOutput(config.get("includes_dir")) : "_includes");
+    layoutsDir = Utilities.path(source, config.containsKey("layouts_dir") ? LiquidExpression.toOutput(config.get("layouts_dir")) : "_layouts");
+    String dataDir = Utilities.path(source, config.containsKey("data_dir") ? LiquidExpression.toOutput(config.get("data_dir")) : "_data");
+    Map<String, Object> data = new LinkedHashMap<>();
+    loadData(new File(dataDir), data);
+    site.put("data", data);
+    site.put("time", ZonedDateTime.now());
+    if (!site.containsKey("baseurl")) {
+      site.put("baseurl", "");
+    }
+    jekyll = new HashMap<>();
+    jekyll.put("environment", "development");
+    jekyll.put("version", "native");
+  }
+
+  private void loadData(File dir, Map<String, Object> data) throws IOException {
+    if (!dir.exists()) {
+      return;
+    }
+    for (File f : dir.listFiles()) {
+      String name = f.getName();
+      if (f.isDirectory()) {
+        Map<String, Object> sub = new LinkedHashMap<>();
+        loadData(f, sub);
+        data.put(name, sub);
+      } else if (name.endsWith(".json")) {
+        try {
+          data.put(name.substring(0, name.lastIndexOf(".")), fromJson(JsonParser.parseObjectFromFile(f.getAbsolutePath())));
+        } catch (Exception e) {
+          warnings.add("Unable to read data file "+name+": "+e.getMessage());
+        }
+      } else if (name.endsWith(".yml") || name.endsWith(".yaml")) {
+        data.put(name.substring(0, name.lastIndexOf(".")), YamlParser.parse(TextFile.fileToString(f)));
+      }
+    }
+  }
+
+  private Object fromJson(JsonElement e) {
+    if (e == null || e instanceof JsonNull) {
+      return null;
+    } else if (e.isJsonObject()) {
+      Map<String, Object> map = new LinkedHashMap<>();
+      for (JsonProperty p : ((JsonObject) e).getProperties()) {
+        map.put(p.getName(), fromJson(p.getValue()));
+      }
+      return map;
+    } else if (e.isJsonArray()) {
+      List<Object> list = new ArrayList<>();
+      for (JsonElement i : ((JsonArray) e).getItems()) {
+        list.add(fromJson(i));
+      }
+      return list;
+    } else if (e instanceof JsonBoolean) {
+      return Boolean.valueOf(e.asString());
+    } else if (e instanceof JsonNumber) {
+      return LiquidFilters.toNumber(e.asString());
+    } else {
+      return e.asString();
+    }
+  }
+
+  // --- scanning --------------------------------------------------------------
+
+  private boolean isExcluded(String path, String name) {
+    for (String s : includes) {
+      if (s.equals(name) || s.equals(path)) {
+        return false;
+      }
+    }
+    if (name.startsWith("_") || name.startsWith(".") || name.startsWith("#") || name.endsWith("~")) {
+      return true;
+    }
+    for (String s : excludes) {
+      if (s.contains("*")) {
+        String regex = s.replace(".", "\\.").replace("*", ".*");
+        if (path.matches(regex) || name.matches(regex)) {
+          return true;
+        }
+      } else if (path.equals(s) || path.startsWith(s.endsWith("/") ? s : s + "/")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void scan(File dir, String prefix, List<Page> pages, List<String> statics) throws IOException {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files);
+    for (File f : files) {
+      String path = prefix + f.getName();
+      if (isExcluded(path, f.getName())) {
+        continue;
+      }
+      if (f.isDirectory()) {
+        scan(f, path + "/", pages, statics);
+      } else {
+        Page p = readPage(f, path);
+        if (p == null) {
+          statics.add(path);
+        } else {
+          pages.add(p);
+        }
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private Page readPage(File f, String path) throws IOException {
+    if (!hasFrontMatter(f)) {
+      return null;
+    }
+    String src = TextFile.fileToString(f);
+    Matcher m = FRONT_MATTER.matcher(src);
+    if (!m.find()) {
+      return null;
+    }
+    Page p = new Page();
+    p.file = f;
+    p.path = path;
+    p.body = src.substring(m.end());
+    p.markdown = path.endsWith(".md") || path.endsWith(".markdown");
+    p.output = p.markdown ? path.substring(0, path.lastIndexOf(".")) + ".html" : path;
+    p.data = new LinkedHashMap<>();
+    for (Object d : defaults) {
+      Object scope = LiquidExpression.property(d, "scope");
+      String sp = LiquidExpression.toOutput(LiquidExpression.property(scope, "path"));
+      Object values = LiquidExpression.property(d, "values");
+      if (values instanceof Map && (sp.isEmpty() || path.equals(sp) || path.startsWith(sp.endsWith("/") ? sp : sp + "/"))) {
+        p.data.putAll((Map<String, Object>) values);
+      }
+    }
+    if (m.group(1) != null) {
+      p.data.putAll(YamlParser.parseMap(m.group(1)));
+    }
+    p.data.put("path", path);
+    p.data.put("name", f.getName());
+    p.data.put("url", "/" + p.output);
+    p.data.put("dir", path.contains("/") ? "/" + path.substring(0, path.lastIndexOf("/") + 1) : "/");
+    return p;
+  }
+
+  private boolean hasFrontMatter(File f) throws IOException {
+    if (f.length() < 3) {
+      return false;
+    }
+    byte[] start = new byte[3];
+    try (java.io.FileInputStream s = new java.io.FileInputStream(f)) {
+      if (s.read(start) < 3) {
+        return false;
+      }
+    }
+    return start[0] == '-' && start[1] == '-' && start[2] == '-';
+  }
+
+  // --- rendering -------------------------------------------------------------
+
+  private boolean renderPage(Page p) throws IOException {
+    Map<String, Object> env = new HashMap<>();
+    env.put("site", site);
+    env.put("page", p.data);
+    env.put("jekyll", jekyll);
+    LiquidContext ctx = new LiquidContext(env, this, markdown, strict, warnings);
+    ctx.setPath(p.path);
+    ctx.setDependencies(p.dependencies);
+    String content = LiquidTemplate.parse(p.path, p.body, strict).render(ctx);
+    if (p.markdown) {
+      content = markdown == null ? content : markdown.convert(stripKramdownAttributes(content), p.path);
+    }
+    Object layoutName = p.data.get("layout");
+    int depth = 0;
+    while (layoutName != null && !"null".equals(layoutName) && !"none".equals(layoutName) && !"".equals(layoutName)) {
+      if (depth++ > MAX_LAYOUT_DEPTH) {
+        throw new FHIRException("Liquid Exception: layouts are nested too deeply in "+p.path);
+      }
+      Layout layout = getLayout(LiquidExpression.toOutput(layoutName));
+      if (layout == null) {
+        warnings.add("Layout '"+layoutName+"' requested in "+p.path+" does not exist");
+        break;
+      }
+      p.dependencies.add(layout.path);
+      env = new HashMap<>(env);
+      env.put("content", content);
+      env.put("layout", layout.data);
+      ctx = new LiquidContext(env, this, markdown, strict, warnings);
+      ctx.setPath(p.path);
+      ctx.setDependencies(p.dependencies);
+      content = layout.template.render(ctx);
+      layoutName = layout.data.get("layout");
+    }
+    return writeIfChanged(content.getBytes(StandardCharsets.UTF_8), Utilities.path(destination, p.output));
+  }
+
+  /**
+   * Kramdown attribute lists ({: .class} and {:toc}) aren't markdown, and the markdown
+   * engine would print them, so they're removed
+   */
+  private String stripKramdownAttributes(String content) {
+    return content.replaceAll("(?m)^[ \\t]*\\{:[^}\\n]*\\}[ \\t]*$", "").replaceAll("\\{:\\s*[.#][^}\\n]*\\}", "");
+  }
+
+  private Layout getLayout(String name) throws IOException {
+    Layout layout = layouts.get(name);
+    if (layout != null) {
+      return layout;
+    }
+    File f = null;
+    for (String candidate : new String[] { name + ".html", name, name + ".md" }) {
+      File t = new File(Utilities.path(layoutsDir, candidate));
+      if (t.exists() && t.isFile()) {
+        f = t;
+        break;
+      }
+    }
+    if (f == null) {
+      return null;
+    }
+    String src = TextFile.fileToString(f);
+    layout = new Layout();
+    layout.path = relativePath(f);
+    layout.data = new LinkedHashMap<>();
+    Matcher m = FRONT_MATTER.matcher(src);
+    if (m.find()) {
+      if (m.group(1) != null) {
+        layout.data.putAll(YamlParser.parseMap(m.group(1)));
+      }
+      src = src.substring(m.end());
+    }
+    layout.template = LiquidTemplate.parse("_layouts/"+f.getName(), src, strict);
+    layouts.put(name, layout);
+    return layout;
+  }
+
+  @Override
+  public LiquidTemplate getInclude(String name, boolean relative, LiquidContext context) throws FHIRException {
+    try {
+      String base;
+      if (relative) {
+        String path = context.getPath();
+        base = path != null && path.contains("/") ? Utilities.path(source, path.substring(0, path.lastIndexOf("/"))) : source;
+      } else {
+        base = includesDir;
+      }
+      File f = new File(Utilities.path(base, name));
+      String key = f.getAbsolutePath();
+      context.addDependency(relativePath(f));
+      LiquidTemplate t = includeCache.get(key);
+      if (t != null) {
+        return t;
+      }
+      if (!f.getCanonicalPath().startsWith(new File(relative ? source : includesDir).getCanonicalPath())) {
+        throw new FHIRException("Liquid Exception: Invalid syntax for include tag. File contains invalid characters or sequences: "+name);
+      }
+      if (!f.exists()) {
+        throw new FHIRException("Liquid Exception: Could not locate the included file '"+name+"' in any of [\""+(relative ? base : includesDir)+"\"]. Ensure it exists in one of those directories");
+      }
+      t = LiquidTemplate.parse(name, TextFile.fileToString(f), strict);
+      if (!t.isStatic() || f.length() < MAX_CACHED_STATIC_INCLUDE) {
+        includeCache.put(key, t);
+      }
+      return t;
+    } catch (IOException e) {
+      throw new FHIRException("Liquid Exception: Unable to read include "+name+": "+e.getMessage(), e);
+    }
+  }
+
+  // --- incremental builds --------------------------------------------------------
+
+  private void loadMetadata() throws IOException {
+    File f = new File(Utilities.path(source, METADATA));
+    if (!f.exists()) {
+      return;
+    }
+    Map<String, PageRecord> records = new HashMap<>();
+    long built = 0;
+    for (String line : TextFile.fileToString(f).split("\\r?\\n")) {
+      String[] parts = line.split("\t");
+      if (parts.length >= 2 && parts[0].equals("built")) {
+        built = Long.parseLong(parts[1]);
+      } else if (parts.length >= 2) {
+        PageRecord pr = new PageRecord();
+        pr.output = parts[1];
+        pr.dependencies.addAll(Arrays.asList(parts).subList(2, parts.length));
+        records.put(parts[0], pr);
+      }
+    }
+    lastBuilt = built;
+    // a change to the configuration can change anything, so everything is built again
+    File cfg = new File(Utilities.path(source, "_config.yml"));
+    if (built > 0 && !(cfg.exists() && isModified(cfg))) {
+      previous = records;
+    }
+  }
+
+  private boolean isStale(Page p) {
+    PageRecord pr = previous == null ? null : previous.get(p.path);
+    if (pr == null || !pr.output.equals(p.output) || !new File(destination, p.output).exists() || isModified(p.file)) {
+      return true;
+    }
+    for (String d : pr.dependencies) {
+      File f = new File(source, d);
+      if (!f.exists() || isModified(f)) {
+        return true;
+      }
+    }
+    p.dependencies.addAll(pr.dependencies);
+    return false;
+  }
+
+  private boolean isModified(File f) {
+    return f.lastModified() >= lastBuilt || (changed != null && changed.contains(f.getAbsolutePath()));
+  }
+
+  private void removeGonePages(List<Page> pages) {
+    if (previous == null) {
+      return;
+    }
+    Set<String> current = new HashSet<>();
+    for (Page p : pages) {
+      current.add(p.output);
+    }
+    for (PageRecord pr : previous.values()) {
+      if (!current.contains(pr.output)) {
+        new File(destination, pr.output).delete();
+      }
+    }
+  }
+
+  private void saveMetadata(long started, List<Page> pages) throws IOException {
+    StringBuilder b = new StringBuilder();
+    b.append("built\t"+started+"\n");
+    for (Page p : pages) {
+      b.append(p.path);
+      b.append("\t");
+      b.append(p.output);
+      List<String> deps = new ArrayList<>(p.dependencies);
+      Collections.sort(deps);
+      for (String d : deps) {
+        b.append("\t");
+        b.append(d);
+      }
+      b.append("\n");
+    }
+    TextFile.stringToFile(b.toString(), Utilities.path(source, METADATA), false);
+  }
+
+  private String relativePath(File f) {
+    String base = new File(source).getAbsolutePath();
+    String path = f.getAbsolutePath();
+    return (path.startsWith(base) ? path.substring(base.length() + 1) : path).replace(File.separatorChar, '/');
+  }
+
+  // --- output --------------------------------------------------------------------
+
+  private boolean copyStatic(String path) throws IOException {
+    File src = new File(Utilities.path(source, path));
+    File dst = new File(Utilities.path(destination, path));
+    if (dst.exists() && dst.length() == src.length() && dst.lastModified() >= src.lastModified()) {
+      return false;
+    }
+    Utilities.createDirectory(dst.getParent());
+    Utilities.copyFile(src, dst);
+    return true;
+  }
+
+  private boolean writeIfChanged(byte[] content, String path) throws IOException {
+    File f = new File(path);
+    if (f.exists() && f.length() == content.length && Arrays.equals(content, TextFile.fileToBytes(f))) {
+      return false;
+    }
+    Utilities.createDirectory(f.getParent());
+    TextFile.bytesToFile(content, path);
+    return true;
+  }
+
+}
@@ -0,0 +1,418 @@
+package org.hl7.fhir.igtools.publisher.jekyll;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A parser for the subset of YAML that Jekyll sites use in _config.yml, _data and
+ * page front matter: block maps and lists, flow lists and maps, quoted and plain
+ * scalars, and literal/folded block scalars. Anchors, tags and multi-document
+ * streams are not supported.
+ *
+ * Results are plain java objects: Map (insertion ordered), List, String, Long,
+ * Double, Boolean or null
+ */
+public class YamlParser {
+
+  private static class Line {
+    private int indent;
+    private String text;
+    private int lineNo;
+
+    private Line(int indent, String text, int lineNo) {
+      this.indent = indent;
+      this.text = text;
+      this.lineNo = lineNo;
+    }
+  }
+
+  private List<Line> lines = new ArrayList<>();
+  private List<String> raw = new ArrayList<>();
+  private int cursor;
+
+  public static Object parse(String source) {
+    return new YamlParser().doParse(source);
+  }
+
+  @SuppressWarnings("unchecked")
+  public static Map<String, Object> parseMap(String source) {
+    Object o = parse(source);
+    if (o instanceof Map) {
+      return (Map<String, Object>) o;
+    }
+    return new LinkedHashMap<>();
+  }
+
+  private Object doParse(String source) {
+    String[] src = source.replace("\r\n", "\n").replace("\r", "\n").split("\n");
+    for (int i = 0; i < src.length; i++) {
+      String s = src[i];
+      raw.add(s);
+      String t = stripComment(s);
+      if (t.trim().isEmpty() || t.trim().equals("---") || t.trim().equals("...")) {
+        continue;
+      }
+      int indent = 0;
+      while (indent < t.length() && t.charAt(indent) == ' ') {
+        indent++;
+      }
+      lines.add(new Line(indent, t.substring(indent).trim(), i));
+    }
+    if (lines.isEmpty()) {
+      return null;
+    }
+    cursor = 0;
+    return parseBlock(lines.get(0).indent);
+  }
+
+  private Object parseBlock(int indent) {
+    Line l = lines.get(cursor);
+    if (isListItem(l.text)) {
+      return parseList(indent);
+    } else if (findMapColon(l.text) > -1) {
+      return parseMap(indent);
+    } else {
+      cursor++;
+      return scalar(l.text);
+    }
+  }
+
+  private List<Object> parseList(int indent) {
+    List<Object> list = new ArrayList<>();
+    while (cursor < lines.size()) {
+      Line l = lines.get(cursor);
+      if (l.indent != indent || !isListItem(l.text)) {
+        break;
+      }
+      String rest = l.text.length() == 1 ? "" : l.text.substring(2).trim();
+      if (rest.isEmpty()) {
+        cursor++;
+        if (cursor < lines.size() && lines.get(cursor).indent > indent) {
+          list.add(parseBlock(lines.get(cursor).indent));
+        } else {
+          list.add(null);
+        }
+      } else if (!isFlow(rest) && findMapColon(rest) > -1) {
+        // a map that starts on the same line as the list marker
+        int itemIndent = indent + (l.text.length() - rest.length());
+        l.indent = itemIndent;
+        l.text = rest;
+        list.add(parseMap(itemIndent));
+      } else {
+        cursor++;
+        list.add(value(rest, indent));
+      }
+    }
+    return list;
+  }
+
+  private Map<String, Object> parseMap(int indent) {
+    Map<String, Object> map = new LinkedHashMap<>();
+    while (cursor < lines.size()) {
+      Line l = lines.get(cursor);
+      if (l.indent != indent) {
+        break;
+      }
+      int i = findMapColon(l.text);
+      if (i == -1) {
+        break;
+      }
+      String key = unquote(l.text.substring(0, i).trim());
+      String rest = l.text.substring(i+1).trim();
+      cursor++;
+      if (rest.isEmpty()) {
+        if (cursor < lines.size() && (lines.get(cursor).indent > indent || (lines.get(cursor).indent == indent && isListItem(lines.get(cursor).text)))) {
+          map.put(key, parseBlock(lines.get(cursor).indent));
+        } else {
+          map.put(key, null);
+        }
+      } else {
+        map.put(key, value(rest, indent));
+      }
+    }
+    return map;
+  }
+
+  private Object value(String rest, int indent) {
+    if (rest.startsWith("|") || rest.startsWith(">")) {
+      return blockScalar(rest.startsWith("|"), rest.contains("-"), indent);
+    } else if (isFlow(rest)) {
+      return new FlowParser(rest).parse();
+    } else {
+      return scalar(rest);
+    }
+  }
+
+  private String blockScalar(boolean literal, boolean strip, int indent) {
+    // block scalars are read from the raw lines, since comments and blank lines are content
+    int start = cursor < lines.size() ? lines.get(cursor).lineNo : raw.size();
+    int blockIndent = cursor < lines.size() ? lines.get(cursor).indent : 0;
+    if (blockIndent <= indent) {
+      return "";
+    }
+    StringBuilder b = new StringBuilder();
+    int end = start;
+    for (int i = start; i < raw.size(); i++) {
+      String s = raw.get(i);
+      if (!s.trim().isEmpty() && leadingSpaces(s) < blockIndent) {
+        break;
+      }
+      end = i+1;
+    }
+    // skip the parsed lines that belong to this block
+    while (cursor < lines.size() && lines.get(cursor).lineNo < end) {
+      cursor++;
+    }
+    for (int i = start; i < end; i++) {
+      String s = raw.get(i);
+      String content = s.length() > blockIndent ? s.substring(blockIndent) : "";
+      if (literal) {
+        b.append(content);
+        b.append("\n");
+      } else if (content.isEmpty()) {
+        b.append("\n");
+      } else {
+        if (b.length() > 0 && b.charAt(b.length()-1) != '\n') {
+          b.append(" ");
+        }
+        b.append(content);
+      }
+    }
+    String res = b.toString();
+    if (strip) {
+      res = res.replaceAll("\\s+$", "");
+    } else if (!literal && !res.endsWith("\n")) {
+      res = res + "\n";
+    }
+    return res;
+  }
+
+  private int leadingSpaces(String s) {
+    int i = 0;
+    while (i < s.length() && s.charAt(i) == ' ') {
+      i++;
+    }
+    return i;
+  }
+
+  private boolean isFlow(String s) {
+    return s.startsWith("[") || s.startsWith("{");
+  }
+
+  private boolean isListItem(String s) {
+    return s.equals("-") || s.startsWith("- ");
+  }
+
+  /**
+   * the first colon followed by a space (or at end of line) that is not inside quotes
+   */
+  private static int findMapColon(String s) {
+    if (s.startsWith("[") || s.startsWith("{")) {
+      return -1;
+    }
+    char q = 0;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (q != 0) {
+        if (c == q) {
+          q = 0;
+        }
+      } else if ((c == '"' || c == '\'') && i == 0) {
+        q = c;
+      } else if (c == ':' && (i == s.length()-1 || s.charAt(i+1) == ' ')) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static String stripComment(String s) {
+    char q = 0;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (q != 0) {
+        if (c == q) {
+          q = 0;
+        }
+      } else if (c == '"' || c == '\'') {
+        if (i == 0 || " :[{,-".indexOf(s.charAt(i-1)) > -1) {
+          q = c;
+        }
+      } else if (c == '#' && (i == 0 || s.charAt(i-1) == ' ' || s.charAt(i-1) == '\t')) {
+        return s.substring(0, i);
+      }
+    }
+    return s;
+  }
+
+  private static String unquote(String s) {
+    if (s.length() >= 2 && ((s.startsWith("\"") && s.endsWith("\"")) || (s.startsWith("'") && s.endsWith("'")))) {
+      return unescape(s.substring(1, s.length()-1), s.charAt(0));
+    }
+    return s;
+  }
+
+  private static String unescape(String s, char quote) {
+    if (quote == '\'') {
+      return s.replace("''", "'");
+    }
+    StringBuilder b = new StringBuilder();
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '\\' && i < s.length()-1) {
+        i++;
+        char n = s.charAt(i);
+        switch (n) {
+        case 'n': b.append('\n'); break;
+        case 't': b.append('\t'); break;
+        case 'r': b.append('\r'); break;
+        case '"': b.append('"'); break;
+        case '\\': b.append('\\'); break;
+        case '/': b.append('/'); break;
+        case 'u':
+          if (i + 4 < s.length()) {
+            b.append((char) Integer.parseInt(s.substring(i+1, i+5), 16));
+            i += 4;
+            break;
+          }
+          b.append("\\u");
+          break;
+        default:
+          b.append('\\');
+          b.append(n);
+        }
+      } else {
+        b.append(c);
+      }
+    }
+    return b.toString();
+  }
+
+  static Object scalar(String s) {
+    s = s.trim();
+    if (s.isEmpty() || s.equals("~") || s.equals("null") || s.equals("Null") || s.equals("NULL")) {
+      return null;
+    }
+    if ((s.startsWith("\"") && s.endsWith("\"") && s.length() > 1) || (s.startsWith("'") && s.endsWith("'") && s.length() > 1)) {
+      return unquote(s);
+    }
+    if (s.equals("true") || s.equals("True") || s.equals("TRUE")) {
+      return Boolean.TRUE;
+    }
+    if (s.equals("false") || s.equals("False") || s.equals("FALSE")) {
+      return Boolean.FALSE;
+    }
+    if (s.matches("[-+]?[0-9]+")) {
+      try {
+        return Long.parseLong(s);
+      } catch (NumberFormatException e) {
+        return s;
+      }
+    }
+    if (s.matches("[-+]?([0-9]+\\.[0-9]*|\\.[0-9]+)([eE][-+]?[0-9]+)?")) {
+      return Double.parseDouble(s);
+    }
+    return s;
+  }
+
+  private static class FlowParser {
+    private String src;
+    private int pos;
+
+    private FlowParser(String src) {
+      this.src = src;
+    }
+
+    private Object parse() {
+      skipWS();
+      char c = peek();
+      if (c == '[') {
+        pos++;
+        List<Object> list = new ArrayList<>();
+        skipWS();
+        if (peek() == ']') {
+          pos++;
+          return list;
+        }
+        while (pos < src.length()) {
+          list.add(parse());
+          skipWS();
+          if (peek() == ',') {
+            pos++;
+          } else {
+            if (peek() == ']') {
+              pos++;
+            }
+            break;
+          }
+        }
+        return list;
+      } else if (c == '{') {
+        pos++;
+        Map<String, Object> map = new LinkedHashMap<>();
+        skipWS();
+        if (peek() == '}') {
+          pos++;
+          return map;
+        }
+        while (pos < src.length()) {
+          skipWS();
+          String key = token(":,}");
+          skipWS();
+          Object v = null;
+          if (peek() == ':') {
+            pos++;
+            v = parse();
+          }
+          map.put(unquote(key), v);
+          skipWS();
+          if (peek() == ',') {
+            pos++;
+          } else {
+            if (peek() == '}') {
+              pos++;
+            }
+            break;
+          }
+        }
+        return map;
+      } else {
+        return scalar(token(",]}"));
+      }
+    }
+
+    private String token(String terminators) {
+      skipWS();
+      int start = pos;
+      char c = peek();
+      if (c == '"' || c == '\'') {
+        pos++;
+        while (pos < src.length() && src.charAt(pos) != c) {
+          if (src.charAt(pos) == '\\' && c == '"') {
+            pos++;
+          }
+          pos++;
+        }
+        pos++;
+        return src.substring(start, Math.min(pos, src.length()));
+      }
+      while (pos < src.length() && terminators.indexOf(src.charAt(pos)) == -1) {
+        pos++;
+      }
+      return src.substring(start, pos).trim();
+    }
+
+    private char peek() {
+      return pos < src.length() ? src.charAt(pos) : 0;
+    }
+
+    private void skipWS() {
+      while (pos < src.length() && Character.isWhitespace(src.charAt(pos))) {
+        pos++;
+      }
+    }
+  }
+
+}
@@ -4,17 +4,10 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
 
-import org.hl7.fhir.convertors.advisors.impl.BaseAdvisor_30_50;
-import org.hl7.fhir.convertors.factory.VersionConvertorFactory_10_50;
-import org.hl7.fhir.convertors.factory.VersionConvertorFactory_30_50;
-import org.hl7.fhir.convertors.factory.VersionConvertorFactory_40_50;
 import org.hl7.fhir.exceptions.FHIRException;
-import org.hl7.fhir.r5.model.ElementDefinition;
-import org.hl7.fhir.r5.model.Resource;
-import org.hl7.fhir.r5.model.StructureDefinition;
-import org.hl7.fhir.r5.model.StructureDefinition.StructureDefinitionKind;
-import org.hl7.fhir.r5.model.StructureDefinition.TypeDerivationRule;
 import org.hl7.fhir.utilities.VersionUtilities;
 import org.hl7.fhir.utilities.json.model.JsonObject;
 import org.hl7.fhir.utilities.json.parser.JsonParser;
@@ -32,6 +25,9 @@ public class IGCategorizer {
     }
   }
   
+  private static final JsonFieldScanner SCANNER = new JsonFieldScanner("resourceType", "kind", "derivation", "type", "constrainedType",
+      "snapshot.element.path", "snapshot.element.fixedCode", "differential.element.path", "differential.element.fixedCode");
+
   private FilesystemPackageCacheManager pcm;
   
   public IGCategorizer() throws IOException {
@@ -39,6 +35,14 @@ public class IGCategorizer {
     pcm.setSuppressErrors(true);
   }
   
+  private class ResourceSummary {
+    private String type;
+    private String kind;
+    private boolean constraint;
+    private String sdType;
+    private boolean document;
+  }
+
   private class IGInfo {
     private boolean content;
     private boolean rest;
@@ -255,55 +259,52 @@ public class IGCategorizer {
   private IGInfo processIGEdition(JsonObject ig, JsonObject edition, JsonObject analysis) throws FHIRException, IOException {
     IGInfo info = new IGInfo();
     NpmPackage npm = pcm.loadPackage(edition.asString("package"));
-
+    checkVersion(npm.fhirVersion());
     for (String t : npm.listResources("CodeSystem", "ValueSet", "StructureDefinition", "OperationDefinition", 
         "SearchParameter", "ImplementationGuide", "TestScript", "Conformance", "CapabilityStatement", "MessageDefinition")) {
-      Resource resource = loadResourceFromPackage(npm.loadResource(t), npm.fhirVersion());
-      processResource(info, resource);
+      processResource(info, scanResource(npm.loadResource(t)));
     }
     for (String t : npm.list("example")) {
       info.examples++;
     }
     return info;
   }
-  
-  private void processResource(IGInfo info, Resource resource) {
-    if (resource.fhirType().equals("CodeSystem")) {
+
+  private void processResource(IGInfo info, ResourceSummary resource) {
+    if (resource.type.equals("CodeSystem")) {
       info.codeSystems++;
     }
-    if (resource.fhirType().equals("ValueSet")) {
+    if (resource.type.equals("ValueSet")) {
       info.valuesets++;
     }
-    if (resource.fhirType().equals("StructureDefinition")) {
+    if (resource.type.equals("StructureDefinition")) {
       info.content = true;
-      StructureDefinition sd = (StructureDefinition) resource;
-      if (sd.getKind() == StructureDefinitionKind.LOGICAL) {
+      if ("logical".equals(resource.kind)) {
         info.logicals++;
-      } else if (sd.getDerivation() == TypeDerivationRule.CONSTRAINT) {
-        if ("Extension".equals(sd.getType())) {
+      } else if (resource.constraint && resource.sdType != null) {
+        if ("Extension".equals(resource.sdType)) {
           info.extensions++;          
         } else {
           info.profiles++;
-          if (sd.getType().equals("Bundle")) {
-            if (hasDocumentType(sd)) {
+          if (resource.sdType.equals("Bundle")) {
+            if (resource.document) {
               info.documents = true;
             }
           }
-          processProfileType(info, sd.getType());
+          processProfileType(info, resource.sdType);
         }
       }
     }
-
-    if (resource.fhirType().equals("OperationDefinition")) {
+    if (resource.type.equals("OperationDefinition")) {
       info.operations++;
     }
-    if (resource.fhirType().equals("TestScript")) {
+    if (resource.type.equals("TestScript")) {
       info.tests++;
     }
-    if (resource.fhirType().equals("MessageDefinition")) {
+    if (resource.type.equals("MessageDefinition")) {
       info.messaging = true;
     }
-    if (resource.fhirType().equals("CapabilityStatement") || resource.fhirType().equals("SearchParameter")) {
+    if (resource.type.equals("CapabilityStatement") || resource.type.equals("SearchParameter")) {
       info.rest = true;
     }
   }
@@ -478,32 +479,56 @@ public class IGCategorizer {
     }
   }
 
-  private boolean hasDocumentType(StructureDefinition sd) {
-    for (ElementDefinition ed : sd.getSnapshot().getElement()) {
-      if (ed.getPath().equals("Bundle.type") && ed.hasFixed() && "document".equals(ed.getFixed().primitiveValue())) {
-        return true;
-      }
-    }
-    for (ElementDefinition ed : sd.getDifferential().getElement()) {
-      if (ed.getPath().equals("Bundle.type") && ed.hasFixed() && "document".equals(ed.getFixed().primitiveValue())) {
-        return true;
-      }
+  private void checkVersion(String version) {
+    if (!VersionUtilities.isR3Ver(version) && !VersionUtilities.isR4Ver(version) && !VersionUtilities.isR2Ver(version) && !VersionUtilities.isR5Plus(version)) {
+      throw new FHIRException("Unsupported version: "+version);
     }
-    return false;
   }
 
-  private Resource loadResourceFromPackage(InputStream s, String version) throws FHIRException, IOException {
-    if (VersionUtilities.isR3Ver(version)) {
-      return VersionConvertorFactory_30_50.convertResource(new org.hl7.fhir.dstu3.formats.JsonParser().parse(s), new BaseAdvisor_30_50(false));
-    } else if (VersionUtilities.isR4Ver(version)) {
-      return VersionConvertorFactory_40_50.convertResource(new org.hl7.fhir.r4.formats.JsonParser().parse(s));
-    } else if (VersionUtilities.isR2Ver(version)) {
-      return VersionConvertorFactory_10_50.convertResource(new org.hl7.fhir.dstu2.formats.JsonParser().parse(s));
-    } else if (VersionUtilities.isR5Plus(version)) {
-      return new org.hl7.fhir.r5.formats.JsonParser().parse(s);
-    } else {
-      throw new FHIRException("Unsupported version: "+version);
+  /**
+   * Reads what the categorization needs from the json, rather than loading the whole resource. This
+   * works for all the versions: R2 has constrainedType instead of type and derivation
+   */
+  private ResourceSummary scanResource(InputStream s) throws IOException {
+    ResourceSummary res = new ResourceSummary();
+    Set<Integer> bundleType = new HashSet<>();
+    Set<Integer> fixedDocument = new HashSet<>();
+    SCANNER.scan(s, (path, value, object) -> {
+      switch (path) {
+      case "resourceType":
+        res.type = "Conformance".equals(value) ? "CapabilityStatement" : value;
+        break;
+      case "kind":
+        res.kind = value;
+        break;
+      case "derivation":
+        res.constraint = "constraint".equals(value);
+        break;
+      case "type":
+        res.sdType = value;
+        break;
+      case "constrainedType":
+        res.sdType = value;
+        res.constraint = true;
+        break;
+      case "snapshot.element.path":
+      case "differential.element.path":
+        if ("Bundle.type".equals(value)) {
+          bundleType.add(object);
+        }
+        break;
+      default: // fixedCode
+        if ("document".equals(value)) {
+          fixedDocument.add(object);
+        }
+      }
+    });
+    bundleType.retainAll(fixedDocument);
+    res.document = !bundleType.isEmpty();
+    if (res.type == null) {
+      throw new FHIRException("Not a resource");
     }
+    return res;
   }
   
   
@@ -0,0 +1,122 @@
+package org.hl7.fhir.igtools.publisher.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Reads a few fields out of a resource in json format, without parsing the rest of it
+ * into a model. This is for scans that look at a lot of packages just to see what their
+ * resources refer to.
+ *
+ * Fields are given as paths of property names, e.g. differential.element.type.profile.
+ * Arrays don't appear in the path; each primitive in an array is a value of the path.
+ * Properties that aren't on the way to one of the paths are skipped by the reader.
+ *
+ * With each value comes the number of the object it is in (objects are numbered in the
+ * order they start), so that values of the same element can be put together
+ */
+public class JsonFieldScanner {
+
+  public interface IFieldHandler {
+    void value(String path, String value, int object);
+  }
+
+  private Set<String> paths = new HashSet<>();
+  private Set<String> prefixes = new HashSet<>();
+
+  public JsonFieldScanner(String... paths) {
+    for (String p : paths) {
+      this.paths.add(p);
+      int i = p.indexOf('.');
+      while (i > 0) {
+        prefixes.add(p.substring(0, i));
+        i = p.indexOf('.', i+1);
+      }
+    }
+  }
+
+  public void scan(InputStream stream, IFieldHandler handler) throws IOException {
+    try (JsonReader reader = new JsonReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+      int[] objects = new int[1];
+      if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+        readObject(reader, "", handler, objects);
+      } else {
+        reader.skipValue();
+      }
+    }
+  }
+
+  /**
+   * The values of each path, in the order they are in the resource
+   */
+  public Map<String, List<String>> scan(InputStream stream) throws IOException {
+    Map<String, List<String>> res = new HashMap<>();
+    scan(stream, (path, value, object) -> res.computeIfAbsent(path, k -> new ArrayList<>()).add(value));
+    return res;
+  }
+
+  public Map<String, List<String>> scan(byte[] content) throws IOException {
+    return scan(new ByteArrayInputStream(content));
+  }
+
+  private void readObject(JsonReader reader, String path, IFieldHandler handler, int[] objects) throws IOException {
+    int object = objects[0]++;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      String p = path.isEmpty() ? name : path+"."+name;
+      if (paths.contains(p) || prefixes.contains(p)) {
+        readValue(reader, p, handler, objects, object);
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+  }
+
+  private void readValue(JsonReader reader, String path, IFieldHandler handler, int[] objects, int object) throws IOException {
+    switch (reader.peek()) {
+    case BEGIN_OBJECT:
+      if (prefixes.contains(path)) {
+        readObject(reader, path, handler, objects);
+      } else {
+        reader.skipValue();
+      }
+      break;
+    case BEGIN_ARRAY:
+      reader.beginArray();
+      while (reader.hasNext()) {
+        readValue(reader, path, handler, objects, object);
+      }
+      reader.endArray();
+      break;
+    case STRING:
+    case NUMBER:
+      emit(handler, path, reader.nextString(), object);
+      break;
+    case BOOLEAN:
+      emit(handler, path, String.valueOf(reader.nextBoolean()), object);
+      break;
+    default:
+      reader.skipValue();
+    }
+  }
+
+  private void emit(IFieldHandler handler, String path, String value, int object) {
+    if (paths.contains(path)) {
+      handler.value(path, value, object);
+    }
+  }
+}
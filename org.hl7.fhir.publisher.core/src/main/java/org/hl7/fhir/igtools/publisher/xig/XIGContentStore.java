@@ -0,0 +1,301 @@
+package org.hl7.fhir.igtools.publisher.xig;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * An alternative to the Contents table, where the json of each resource is gzipped by itself.
+ *
+ * Here the json (and R5 json) of the resources in a package are written one after another
+ * into segments of about a megabyte, and each segment is compressed as a whole, using a
+ * dictionary of the strings that are common in FHIR resources. ContentIndex has the segment,
+ * offset and length of each resource, so that a resource is read by reading and inflating
+ * its segment; the last few segments are kept, so reading the resources of a package one
+ * after another only inflates each segment once.
+ *
+ * The dictionary is stored in the database (ContentDictionary), so that readers don't
+ * depend on the version that wrote it
+ */
+public class XIGContentStore {
+
+  private static final int SEGMENT_SIZE = 1024 * 1024;
+  private static final int CACHED_SEGMENTS = 16;
+
+  // deflate only uses the last 32k of the dictionary, and the strings at the end are the cheapest to refer to
+  private static final String[] COMMON = {
+      "\"extension\":[{\"url\":\"http://hl7.org/fhir/StructureDefinition/",
+      "\"valueCode\":\"", "\"valueString\":\"", "\"valueCanonical\":\"", "\"valueBoolean\":true",
+      "\"mapping\":[{\"identity\":\"rim\",\"map\":\"", "\"mapping\":[{\"identity\":\"v2\",\"map\":\"",
+      "\"constraint\":[{\"key\":\"ele-1\",\"severity\":\"error\",\"human\":\"All FHIR elements must have a @value or children\",\"expression\":\"hasValue() or (children().count() > id.count())\",\"xpath\":\"@value|f:*|h:div\",\"source\":\"http://hl7.org/fhir/StructureDefinition/Element\"}]",
+      "\"base\":{\"path\":\"", "\"min\":0,\"max\":\"1\"", "\"min\":0,\"max\":\"*\"", "\"min\":1,\"max\":\"1\"",
+      "\"type\":[{\"code\":\"Reference\",\"targetProfile\":[\"http://hl7.org/fhir/StructureDefinition/",
+      "\"type\":[{\"code\":\"CodeableConcept\"}]", "\"type\":[{\"code\":\"string\"}]", "\"type\":[{\"code\":\"Extension\"}]",
+      "\"binding\":{\"strength\":\"required\",\"valueSet\":\"", "\"binding\":{\"strength\":\"extensible\",\"valueSet\":\"",
+      "\"binding\":{\"strength\":\"preferred\",\"valueSet\":\"", "\"binding\":{\"strength\":\"example\",\"valueSet\":\"",
+      "\"mustSupport\":true", "\"isModifier\":false", "\"isSummary\":true", "\"slicing\":{\"discriminator\":[{\"type\":\"value\",\"path\":\"",
+      "\"compose\":{\"include\":[{\"system\":\"", "\"concept\":[{\"code\":\"", "\"display\":\"", "\"definition\":\"",
+      "\"contact\":[{\"telecom\":[{\"system\":\"url\",\"value\":\"", "\"jurisdiction\":[{\"coding\":[{\"system\":\"urn:iso:std:iso:3166\",\"code\":\"",
+      "\"publisher\":\"", "\"status\":\"active\"", "\"status\":\"draft\"", "\"experimental\":false", "\"fhirVersion\":\"4.0.1\"",
+      "\"kind\":\"resource\",\"abstract\":false,\"type\":\"", "\"kind\":\"complex-type\",\"abstract\":false,\"context\":[{\"type\":\"element\",\"expression\":\"",
+      "\"derivation\":\"constraint\"", "\"baseDefinition\":\"http://hl7.org/fhir/StructureDefinition/",
+      "\"differential\":{\"element\":[{\"id\":\"", "\"snapshot\":{\"element\":[{\"id\":\"", "\"path\":\"", "\"short\":\"",
+      "\"text\":{\"status\":\"generated\",\"div\":\"<div xmlns=\\\"http://www.w3.org/1999/xhtml\\\">",
+      "\"resourceType\":\"CodeSystem\",\"id\":\"", "\"resourceType\":\"ValueSet\",\"id\":\"", "\"resourceType\":\"StructureDefinition\",\"id\":\"",
+      "\"url\":\"http://hl7.org/fhir/", "\"version\":\"", "\"name\":\"", "\"title\":\"", "\"date\":\"", "\"description\":\"",
+  };
+
+  private static byte[] makeDictionary() {
+    StringBuilder b = new StringBuilder();
+    for (String s : COMMON) {
+      b.append(s);
+    }
+    return b.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static class Location {
+    private int segment;
+    private int offset;
+    private int length;
+    private int offsetR5;
+    private int lengthR5;
+    private int packageKey;
+  }
+
+  private Connection con;
+  private byte[] dictionary;
+  private PreparedStatement psqlS;
+  private PreparedStatement psqlI;
+  private PreparedStatement psqlGetS;
+  private PreparedStatement psqlGetI;
+
+  // the segment being written
+  private int packageKey;
+  private int segment;
+  private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+  private Map<String, byte[]> segments = new LinkedHashMap<String, byte[]>(CACHED_SEGMENTS, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+      return size() > CACHED_SEGMENTS;
+    }
+  };
+
+  public XIGContentStore(Connection con) throws SQLException {
+    super();
+    this.con = con;
+    makeTables(con);
+    try (Statement stmt = con.createStatement(); ResultSet rs = stmt.executeQuery("select Data from ContentDictionary where Key = 1")) {
+      if (rs.next()) {
+        dictionary = rs.getBytes(1);
+      }
+    }
+    if (dictionary == null) {
+      dictionary = makeDictionary();
+      try (PreparedStatement psql = con.prepareStatement("Insert into ContentDictionary (Key, Data) values (1, ?)")) {
+        psql.setBytes(1, dictionary);
+        psql.executeUpdate();
+      }
+    }
+    psqlS = con.prepareStatement("Insert into ContentSegments (PackageKey, Segment, Data) Values (?, ?, ?)");
+    psqlI = con.prepareStatement("Insert into ContentIndex (ResourceKey, PackageKey, Segment, Offset, Length, OffsetR5, LengthR5) Values (?, ?, ?, ?, ?, ?, ?)");
+    psqlGetS = con.prepareStatement("Select Data from ContentSegments where PackageKey = ? and Segment = ?");
+    psqlGetI = con.prepareStatement("Select PackageKey, Segment, Offset, Length, OffsetR5, LengthR5 from ContentIndex where ResourceKey = ?");
+  }
+
+  private static void makeTables(Connection con) throws SQLException {
+    try (Statement stmt = con.createStatement()) {
+      stmt.execute("CREATE TABLE IF NOT EXISTS ContentDictionary (\r\n"+
+          "Key             integer NOT NULL,\r\n"+
+          "Data            BLOB NOT NULL,\r\n"+
+          "PRIMARY KEY (Key))\r\n");
+      stmt.execute("CREATE TABLE IF NOT EXISTS ContentSegments (\r\n"+
+          "PackageKey      integer NOT NULL,\r\n"+
+          "Segment         integer NOT NULL,\r\n"+
+          "Data            BLOB NOT NULL,\r\n"+
+          "PRIMARY KEY (PackageKey, Segment))\r\n");
+      stmt.execute("CREATE TABLE IF NOT EXISTS ContentIndex (\r\n"+
+          "ResourceKey     integer NOT NULL,\r\n"+
+          "PackageKey      integer NOT NULL,\r\n"+
+          "Segment         integer NOT NULL,\r\n"+
+          "Offset          integer NOT NULL,\r\n"+
+          "Length          integer NOT NULL,\r\n"+
+          "OffsetR5        integer NULL,\r\n"+
+          "LengthR5        integer NULL,\r\n"+
+          "PRIMARY KEY (ResourceKey))\r\n");
+      stmt.execute("CREATE INDEX IF NOT EXISTS ContentIndexPackage on ContentIndex (PackageKey)");
+    }
+  }
+
+  /**
+   * Adds the content of a resource to the current segment of the package. jsonR5 can be null
+   */
+  public void add(int packageKey, int resourceKey, byte[] json, byte[] jsonR5) throws SQLException {
+    if (packageKey != this.packageKey) {
+      finishPackage();
+      this.packageKey = packageKey;
+      segment = nextSegment(packageKey);
+    }
+    psqlI.setInt(1, resourceKey);
+    psqlI.setInt(2, packageKey);
+    psqlI.setInt(3, segment);
+    psqlI.setInt(4, buffer.size());
+    psqlI.setInt(5, json.length);
+    buffer.write(json, 0, json.length);
+    if (jsonR5 != null) {
+      psqlI.setInt(6, buffer.size());
+      psqlI.setInt(7, jsonR5.length);
+      buffer.write(jsonR5, 0, jsonR5.length);
+    } else {
+      psqlI.setNull(6, java.sql.Types.INTEGER);
+      psqlI.setNull(7, java.sql.Types.INTEGER);
+    }
+    psqlI.execute();
+    if (buffer.size() >= SEGMENT_SIZE) {
+      writeSegment();
+      segment++;
+    }
+  }
+
+  // a package that is already in the store can have resources added to it later, when it takes over urls from a package that is removed
+  private int nextSegment(int packageKey) throws SQLException {
+    try (PreparedStatement psql = con.prepareStatement("Select Max(Segment) from ContentSegments where PackageKey = ?")) {
+      psql.setInt(1, packageKey);
+      try (ResultSet rs = psql.executeQuery()) {
+        return rs.next() && rs.getObject(1) != null ? rs.getInt(1) + 1 : 0;
+      }
+    }
+  }
+
+  /**
+   * Writes what's left of the current package. This must be done before the package is committed
+   */
+  public void finishPackage() throws SQLException {
+    writeSegment();
+  }
+
+  private void writeSegment() throws SQLException {
+    if (buffer.size() > 0) {
+      psqlS.setInt(1, packageKey);
+      psqlS.setInt(2, segment);
+      psqlS.setBytes(3, compress(buffer.toByteArray(), dictionary));
+      psqlS.execute();
+      buffer.reset();
+    }
+  }
+
+  public void remove(int packageKey) throws SQLException {
+    try (Statement stmt = con.createStatement()) {
+      stmt.execute("delete from ContentIndex where PackageKey = "+packageKey);
+      stmt.execute("delete from ContentSegments where PackageKey = "+packageKey);
+    }
+    segments.keySet().removeIf(k -> k.startsWith(packageKey+"#"));
+  }
+
+  /**
+   * The json of the resource as it was in the package, or null if it's not in the store
+   */
+  public byte[] getJson(int resourceKey) throws SQLException, IOException {
+    Location l = locate(resourceKey);
+    return l == null ? null : slice(l, l.offset, l.length);
+  }
+
+  /**
+   * The json of the resource converted to R5, or null if there isn't any
+   */
+  public byte[] getJsonR5(int resourceKey) throws SQLException, IOException {
+    Location l = locate(resourceKey);
+    return l == null || l.lengthR5 < 0 ? null : slice(l, l.offsetR5, l.lengthR5);
+  }
+
+  private Location locate(int resourceKey) throws SQLException {
+    psqlGetI.setInt(1, resourceKey);
+    try (ResultSet rs = psqlGetI.executeQuery()) {
+      if (!rs.next()) {
+        return null;
+      }
+      Location l = new Location();
+      l.packageKey = rs.getInt(1);
+      l.segment = rs.getInt(2);
+      l.offset = rs.getInt(3);
+      l.length = rs.getInt(4);
+      l.offsetR5 = rs.getInt(5);
+      l.lengthR5 = rs.getInt(6);
+      if (rs.wasNull()) {
+        l.lengthR5 = -1;
+      }
+      return l;
+    }
+  }
+
+  private byte[] slice(Location l, int offset, int length) throws SQLException, IOException {
+    String key = l.packageKey+"#"+l.segment;
+    byte[] data = segments.get(key);
+    if (data == null) {
+      psqlGetS.setInt(1, l.packageKey);
+      psqlGetS.setInt(2, l.segment);
+      try (ResultSet rs = psqlGetS.executeQuery()) {
+        if (!rs.next()) {
+          throw new IOException("Content segment "+key+" is missing");
+        }
+        data = inflate(rs.getBytes(1), dictionary);
+      }
+      segments.put(key, data);
+    }
+    return Arrays.copyOfRange(data, offset, offset+length);
+  }
+
+  public static byte[] compress(byte[] content, byte[] dictionary) {
+    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+    try {
+      deflater.setDictionary(dictionary);
+      deflater.setInput(content);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 4 + 64);
+      byte[] buf = new byte[64 * 1024];
+      while (!deflater.finished()) {
+        int n = deflater.deflate(buf);
+        out.write(buf, 0, n);
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  public static byte[] inflate(byte[] content, byte[] dictionary) throws IOException {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(content);
+      ByteArrayOutputStream out = new ByteArrayOutputStream(content.length * 4);
+      byte[] buf = new byte[64 * 1024];
+      while (!inflater.finished()) {
+        int n = inflater.inflate(buf);
+        if (n == 0) {
+          if (inflater.needsDictionary()) {
+            inflater.setDictionary(dictionary);
+          } else if (!inflater.finished() && inflater.needsInput()) {
+            throw new IOException("Content segment is truncated");
+          }
+        }
+        out.write(buf, 0, n);
+      }
+      return out.toByteArray();
+    } catch (DataFormatException e) {
+      throw new IOException(e);
+    } finally {
+      inflater.end();
+    }
+  }
+}
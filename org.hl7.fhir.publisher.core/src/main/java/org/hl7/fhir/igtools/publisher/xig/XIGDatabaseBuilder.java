@@ -6,12 +6,17 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -34,6 +39,7 @@ import org.hl7.fhir.convertors.factory.VersionConvertorFactory_43_50;
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.igtools.publisher.IGR2ConvertorAdvisor5;
 import org.hl7.fhir.igtools.publisher.SpecMapManager;
+import org.hl7.fhir.igtools.publisher.utils.JsonFieldScanner;
 import org.hl7.fhir.r5.model.CanonicalType;
 import org.hl7.fhir.r5.model.CapabilityStatement;
 import org.hl7.fhir.r5.model.CapabilityStatement.CapabilityStatementRestComponent;
@@ -66,11 +72,15 @@ import org.hl7.fhir.utilities.Utilities;
 import org.hl7.fhir.utilities.VersionUtilities;
 import org.hl7.fhir.utilities.json.model.JsonArray;
 import org.hl7.fhir.utilities.json.model.JsonObject;
+import org.hl7.fhir.utilities.npm.FilesystemPackageCacheManager;
 import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.hl7.fhir.utilities.npm.NpmPackage.NpmPackageFolder;
 import org.hl7.fhir.utilities.npm.PackageHacker;
 
 public class XIGDatabaseBuilder implements IPackageVisitorProcessor {
 
+  private static final JsonFieldScanner URL_SCANNER = new JsonFieldScanner("url");
+
 
   private Connection con;
 
@@ -83,30 +93,50 @@ public class XIGDatabaseBuilder implements IPackageVisitorProcessor {
   private PreparedStatement psqlRI;
   private PreparedStatement psqlCI;
   private PreparedStatement psqlDep;
+  private PreparedStatement psqlCP;
+  private PreparedStatement psqlClaim;
   private Set<String> vurls = new HashSet<>();
+  private Set<String> orphaned = new HashSet<>();
+  private long codeRow;
   private int lastMDKey;
   private Set<String> authorities = new HashSet<>();
   private Set<String> realms = new HashSet<>();
   private int pck;
+  private String current;
+  private int currentKey;
+  private int run;
+  private String date;
+  private int loaded;
+  private int unchanged;
+  private int removed;
+  private FilesystemPackageCacheManager pcm;
+  private XIGContentStore contentStore;
 
   public XIGDatabaseBuilder(String dest, boolean init, String date) throws IOException {
     super();
     try {
       con = connect(dest, init, date);
+      if (hasTable(con, "ContentIndex")) {
+        // a packed database stays packed, or else the segments of packages that are removed would be left behind
+        contentStore = new XIGContentStore(con);
+      }
 
       psqlP = con.prepareStatement("Insert into Packages (PackageKey, PID, Id, Date, Title, Canonical, Web, Version, R2, R2B, R3, R4, R4B, R5, R6, Realm, Auth, Package, Published) Values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, 0)");
       psqlR = con.prepareStatement("Insert into Resources (ResourceKey, PackageKey, ResourceType, ResourceTypeR5, Id, R2, R2B, R3, R4, R4B, R5, R6, Web, Url, Version, Status, Date, Name, Title, Experimental, Realm, Description, Purpose, Copyright, CopyrightLabel, Kind, Type, Supplements, ValueSet, Content, Authority, Details) Values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
       psqlC = con.prepareStatement("Insert into Contents (ResourceKey, Json, JsonR5) Values (?, ?, ?)");
       psqlCat = con.prepareStatement("Insert into Categories (ResourceKey, Mode, Code) Values (?, ?, ?)");
-      psqlRI = con.prepareStatement("Insert into ResourceFTS (ResourceKey, Name, Title, Description, Narrative) Values (?, ?, ?, ?, ?)");
-      psqlCI = con.prepareStatement("Insert into CodeSystemFTS (ResourceKey, Code, Display, Definition) Values (?, ?, ?, ?)");
+      psqlRI = con.prepareStatement("Insert into ResourceFTS (rowid, ResourceKey, Name, Title, Description, Narrative) Values (?, ?, ?, ?, ?, ?)");
+      psqlCI = con.prepareStatement("Insert into CodeSystemFTS (rowid, ResourceKey, Code, Display, Definition) Values (?, ?, ?, ?, ?)");
       psqlDep = con.prepareStatement("Insert into DependencyTemp (TargetUrl, SourceKey) Values (?, ?)");
+      psqlCP = con.prepareStatement("Insert into PackageCheckpoints (PID, Id, Version, Hash, Status, PackageKey, Run) Values (?, ?, ?, ?, 'started', ?, ?)");
+      psqlClaim = con.prepareStatement("Insert or ignore into UrlClaims (Url, PackageKey, ResourceType, FileId) Values (?, ?, ?, ?)");
     } catch (Exception e) {
       throw new IOException(e);
     }
   }
 
   private Connection connect(String filename, boolean init, String date) throws IOException, SQLException {
+    this.date = date;
     Connection con = DriverManager.getConnection("jdbc:sqlite:"+filename);
     if (init) {
       makeMetadataTable(con);
@@ -120,11 +150,9 @@ public class XIGDatabaseBuilder implements IPackageVisitorProcessor {
       makeCodeIndex(con);
       makeTxSourceList(con);
       makeDependencyTable(con);
-      PreparedStatement psql = con.prepareStatement("Insert into Metadata (key, name, value) values (?, ?, ?)");
-      psql.setInt(1, ++lastMDKey);
-      psql.setString(2, "date");
-      psql.setString(3, date);
-      psql.executeUpdate();
+      makeCheckpointTable(con);
+      makeClaimsTable(con);
+      makeIndexes(con);
     } else {
 
       ResultSet rs = con.createStatement().executeQuery("select * from Realms");
@@ -147,27 +175,187 @@ public class XIGDatabaseBuilder implements IPackageVisitorProcessor {
         if ("totalpackages".equals(rs.getString(2))) {
           pck = rs.getInt(3);
         }
+        if ("run".equals(rs.getString(2))) {
+          run = rs.getInt(3);
+        }
       }
-      con.createStatement().execute("delete from Metadata");
-      con.createStatement().execute("delete from Realms");
-      con.createStatement().execute("delete from Authorities");
-      PreparedStatement psql = con.prepareStatement("Insert into Metadata (key, name, value) values (?, ?, ?)");
-      psql.setInt(1, ++lastMDKey);
-      psql.setString(2, "date");
-      psql.setString(3, date);
-      psql.executeUpdate();
+      resume(con);
     }
+    // each package is committed when it's finished, so that a run that stops part way through can carry on from there.
+    // The metadata, realms and authorities are only replaced by finish()
+    con.setAutoCommit(false);
     return con;    
   }
 
+  /**
+   * The metadata and the realm and authority lists are only written when a run finishes, so after
+   * a run that didn't finish, they're worked out again from what was committed
+   */
+  private void resume(Connection con) throws SQLException {
+    makeDependencyTable(con);
+    makeCheckpointTable(con);
+    makeClaimsTable(con);
+    makeIndexes(con);
+    ResultSet rs = con.createStatement().executeQuery("select Max(PackageKey) from Packages");
+    if (rs.next()) {
+      pckKey = Integer.max(pckKey, rs.getInt(1));
+    }
+    rs = con.createStatement().executeQuery("select Max(ResourceKey) from Resources");
+    if (rs.next()) {
+      resKey = Integer.max(resKey, rs.getInt(1));
+    }
+    // the packages seen by a run that didn't finish have its number, so the next run has to come after it
+    rs = con.createStatement().executeQuery("select Max(Run) from PackageCheckpoints");
+    if (rs.next()) {
+      run = Integer.max(run, rs.getInt(1));
+    }
+    loadRealmsAndAuthorities(con);
+    rs = con.createStatement().executeQuery("select Url from Resources");
+    while (rs.next()) {
+      vurls.add(rs.getString(1));
+    }
+  }
+
+  /**
+   * Whether an existing database can be updated. Packages that were loaded by a version that
+   * didn't keep checkpoints and url claims can't be matched up with the registry, so those
+   * databases are built again from nothing
+   */
+  public static boolean canResume(String filename) throws IOException {
+    try (Connection con = DriverManager.getConnection("jdbc:sqlite:"+filename)) {
+      if (!hasTable(con, "Packages")) {
+        return false;
+      }
+      if (count(con, "Packages") == 0) {
+        return true;
+      }
+      return hasTable(con, "PackageCheckpoints") && count(con, "PackageCheckpoints") > 0 && hasTable(con, "UrlClaims");
+    } catch (SQLException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static boolean hasTable(Connection con, String name) throws SQLException {
+    try (PreparedStatement psql = con.prepareStatement("select name from sqlite_master where type = 'table' and name = ?")) {
+      psql.setString(1, name);
+      try (ResultSet rs = psql.executeQuery()) {
+        return rs.next();
+      }
+    }
+  }
+
+  private static int count(Connection con, String table) throws SQLException {
+    try (Statement stmt = con.createStatement(); ResultSet rs = stmt.executeQuery("select count(*) from "+table)) {
+      return rs.next() ? rs.getInt(1) : 0;
+    }
+  }
+
+  private void loadRealmsAndAuthorities(Connection con) throws SQLException {
+    ResultSet rs = con.createStatement().executeQuery("select Realm, Auth from Packages union select Realm, Authority from Resources");
+    while (rs.next()) {
+      addIfNotNull(realms, rs.getString(1));
+      addIfNotNull(authorities, rs.getString(2));
+    }
+  }
+
+  private void addIfNotNull(Set<String> set, String value) {
+    if (value != null) {
+      set.add(value);
+    }
+  }
+
+  private void makeCheckpointTable(Connection con) throws SQLException {
+    Statement stmt = con.createStatement();
+    stmt.execute("CREATE TABLE IF NOT EXISTS PackageCheckpoints (\r\n"+
+        "PID         nvarchar NOT NULL,\r\n"+
+        "Id          nvarchar NOT NULL,\r\n"+
+        "Version     nvarchar NULL,\r\n"+
+        "Hash        nvarchar NOT NULL,\r\n"+
+        "Status      nvarchar NOT NULL,\r\n"+
+        "PackageKey  integer NOT NULL,\r\n"+
+        "Run         integer NOT NULL,\r\n"+
+        "PRIMARY KEY (PID))\r\n");
+  }
+
+  /**
+   * Every package that has a resource with a url, including the ones that weren't loaded because
+   * another package got there first, so that another package can take the url over when the
+   * package that has it is removed
+   */
+  private void makeClaimsTable(Connection con) throws SQLException {
+    Statement stmt = con.createStatement();
+    stmt.execute("CREATE TABLE IF NOT EXISTS UrlClaims (\r\n"+
+        "Url           nvarchar NOT NULL,\r\n"+
+        "PackageKey    integer NOT NULL,\r\n"+
+        "ResourceType  nvarchar NOT NULL,\r\n"+
+        "FileId        nvarchar NOT NULL,\r\n"+
+        "PRIMARY KEY (Url, PackageKey))\r\n");
+  }
+
+  // for finding the rows of a package, and the dependencies on a resource, when packages are updated
+  private void makeIndexes(Connection con) throws SQLException {
+    Statement stmt = con.createStatement();
+    stmt.execute("CREATE INDEX IF NOT EXISTS ResourcesPackage on Resources (PackageKey)");
+    stmt.execute("CREATE INDEX IF NOT EXISTS ResourcesUrl on Resources (Url)");
+    stmt.execute("CREATE INDEX IF NOT EXISTS DependencyTempSource on DependencyTemp (SourceKey)");
+    stmt.execute("CREATE INDEX IF NOT EXISTS DependencyListSource on DependencyList (SourceKey)");
+    stmt.execute("CREATE INDEX IF NOT EXISTS UrlClaimsPackage on UrlClaims (PackageKey)");
+  }
+
+  /**
+   * Starts a new run over the packages. Packages that aren't seen again before the final finish
+   * are no longer in the registry, and are removed then
+   */
+  public void startRun() {
+    run++;
+  }
+
+  /**
+   * Used to load resources from packages that are already in the database, when they take over
+   * urls from a package that is removed
+   */
+  public void setPackageCacheManager(FilesystemPackageCacheManager pcm) {
+    this.pcm = pcm;
+  }
+
+  /**
+   * Store the content of the resources in compressed segments per package (see XIGContentStore)
+   * instead of in the Contents table. A database that already has content in the Contents table
+   * can't be packed, since the readers only look in one place: it has to be built again (-xig-fresh)
+   */
+  public void usePackedContent() throws IOException {
+    try {
+      if (contentStore == null) {
+        if (count(con, "Contents") > 0) {
+          throw new IOException("The database isn't packed, so it can't be updated with -xig-packed (use -xig-fresh to build it again, packed)");
+        }
+        contentStore = new XIGContentStore(con);
+      }
+    } catch (SQLException e) {
+      throw new IOException(e);
+    }
+  }
+
+  public int getLoaded() {
+    return loaded;
+  }
+
+  public int getUnchanged() {
+    return unchanged;
+  }
+
+  public int getRemoved() {
+    return removed;
+  }
+
 
   private void makeDependencyTable(Connection con) throws SQLException {
     Statement stmt = con.createStatement();
-    stmt.execute("CREATE TABLE DependencyTemp (\r\n"+
+    stmt.execute("CREATE TABLE IF NOT EXISTS DependencyTemp (\r\n"+
         "TargetUrl         nvarchar NOT NULL,\r\n"+
         "SourceKey            integer NOT NULL,\r\n"+
         "PRIMARY KEY (TargetUrl, SourceKey))\r\n"); 
-    stmt.execute("CREATE TABLE DependencyList (\r\n"+
+    stmt.execute("CREATE TABLE IF NOT EXISTS DependencyList (\r\n"+
         "TargetKey         integer NOT NULL,\r\n"+
         "SourceKey         integer NOT NULL,\r\n"+
         "PRIMARY KEY (TargetKey, SourceKey))\r\n"); 
@@ -303,9 +491,10 @@ public class XIGDatabaseBuilder implements IPackageVisitorProcessor {
   public void finish(boolean finalFinish) throws IOException {
     try {
       if (finalFinish) {
-        con.createStatement().execute("insert into DependencyList (TargetKey, SourceKey) select ResourceKey as TargetKey, SourceKey from DependencyTemp, Resources where Resources.URL = DependencyTemp.targetUrl");
-        con.createStatement().execute("delete from DependencyTemp");
-        con.createStatement().execute("drop Table DependencyTemp");
+        removeStalePackages();
+        // the deletes leave the full text indexes fragmented
+        con.createStatement().execute("insert into ResourceFTS (ResourceFTS) values ('optimize')");
+        con.createStatement().execute("insert into CodeSystemFTS (CodeSystemFTS) values ('optimize')");
       }
       
       con.createStatement().execute("delete from Realms");
@@ -338,8 +527,14 @@ public class XIGDatabaseBuilder implements IPackageVisitorProcessor {
       res.next();
       int resources = res.getInt(1);
 
+      con.createStatement().execute("delete from Metadata");
+      lastMDKey = 0;
       psql = con.prepareStatement("Insert into Metadata (key, name, value) values (?, ?, ?)");
       psql.setInt(1, ++lastMDKey);
+      psql.setString(2, "date");
+      psql.setString(3, date);
+      psql.executeUpdate();
+      psql.setInt(1, ++lastMDKey);
       psql.setString(2, "realms");
       psql.setString(3, ""+realms.size());
       psql.executeUpdate();
@@ -371,7 +566,12 @@ public class XIGDatabaseBuilder implements IPackageVisitorProcessor {
       psql.setString(2, "resKey");
       psql.setString(3, ""+resKey);
       psql.executeUpdate();
+      psql.setInt(1, ++lastMDKey);
+      psql.setString(2, "run");
+      psql.setString(3, ""+run);
+      psql.executeUpdate();
 
+      con.commit();
       con.close();
     } catch (Exception e) {
       throw new IOException(e);
@@ -386,17 +586,25 @@ public class XIGDatabaseBuilder implements IPackageVisitorProcessor {
     try {
       String pid = context.getPid();
       NpmPackage npm = context.getNpm();
-      SpecMapManager smm = npm.hasFile("other", "spec.internals") ?  new SpecMapManager( TextFile.streamToBytes(npm.load("other", "spec.internals")), npm.fhirVersion()) : SpecMapManager.createSpecialPackage(npm);
+      String hash = packageHash(npm);
+      ResultSet rs = con.createStatement().executeQuery("select Hash, Status, PackageKey from PackageCheckpoints where PID = '"+pid+"'");
+      if (rs.next()) {
+        if (hash.equals(rs.getString(1)) && "done".equals(rs.getString(2))) {
+          // already in the database from an earlier run
+          con.createStatement().execute("Update PackageCheckpoints set Run = "+run+" where PID = '"+pid+"'");
+          pck++;
+          unchanged++;
+          return null;
+        }
+        removePackage(pid, rs.getInt(3));
+      }
+      removeSupersededVersions(pid, npm.name());
+      current = pid;
       pckKey++;
-      smm.setName(npm.name());
-      smm.setBase(npm.canonical());
-      smm.setBase2(PackageHacker.fixPackageUrl(npm.url()));
-      smm.setKey(pckKey);
-
+      currentKey = pckKey;
       String auth = getAuth(pid, null);
       String realm = getRealm(pid, null);
-      smm.setAuth(auth);
-      smm.setRealm(realm);
+      SpecMapManager smm = makeSpecMap(npm, pckKey, auth, realm);
 
       psqlP.setInt(1, pckKey);
       psqlP.setString(2, pid);
@@ -417,6 +625,13 @@ public class XIGDatabaseBuilder implements IPackageVisitorProcessor {
       psqlP.setString(17, auth);
       psqlP.setBytes(18, org.hl7.fhir.utilities.json.parser.JsonParser.composeBytes(npm.getNpm()));
       psqlP.execute();
+      psqlCP.setString(1, pid);
+      psqlCP.setString(2, npm.name());
+      psqlCP.setString(3, npm.version());
+      psqlCP.setString(4, hash);
+      psqlCP.setInt(5, pckKey);
+      psqlCP.setInt(6, run);
+      psqlCP.execute();
       pck++;
 
       return smm;
@@ -426,126 +641,185 @@ public class XIGDatabaseBuilder implements IPackageVisitorProcessor {
     }
   }
 
+  private SpecMapManager makeSpecMap(NpmPackage npm, int key, String auth, String realm) throws IOException {
+    SpecMapManager smm = npm.hasFile("other", "spec.internals") ?  new SpecMapManager( TextFile.streamToBytes(npm.load("other", "spec.internals")), npm.fhirVersion()) : SpecMapManager.createSpecialPackage(npm);
+    smm.setName(npm.name());
+    smm.setBase(npm.canonical());
+    smm.setBase2(PackageHacker.fixPackageUrl(npm.url()));
+    smm.setKey(key);
+    smm.setAuth(auth);
+    smm.setRealm(realm);
+    return smm;
+  }
+
+  /**
+   * Another version of the package (e.g. the previous release) is taken out before this one is
+   * loaded, or else it would keep the urls, and the resources in this version would all be skipped.
+   * The current build is kept alongside the release
+   */
+  private void removeSupersededVersions(String pid, String id) throws SQLException {
+    if (pid.endsWith("#current")) {
+      return;
+    }
+    List<String> pids = new ArrayList<>();
+    List<Integer> keys = new ArrayList<>();
+    PreparedStatement psql = con.prepareStatement("select PID, PackageKey from PackageCheckpoints where Id = ? and PID <> ?");
+    psql.setString(1, id);
+    psql.setString(2, pid);
+    ResultSet rs = psql.executeQuery();
+    while (rs.next()) {
+      if (!rs.getString(1).endsWith("#current")) {
+        pids.add(rs.getString(1));
+        keys.add(rs.getInt(2));
+      }
+    }
+    for (int i = 0; i < pids.size(); i++) {
+      removePackage(pids.get(i), keys.get(i));
+      removed++;
+    }
+  }
+
   @Override
   public void processResource(PackageContext context, Object clientContext, String type, String id, byte[] content) throws FHIRException, IOException, EOperationOutcome {   
     if (clientContext != null) {
       SpecMapManager smm = (SpecMapManager) clientContext;
 
       try {
-        Resource r = loadResource(context.getPid(), context.getVersion(), type, id, content);
-        String auth = smm.getAuth();
-        String realm = smm.getRealm();
-
-        if (r != null && r instanceof CanonicalResource) {
-          CanonicalResource cr = (CanonicalResource) r;
-          if (!vurls.contains(cr.getUrl())) {
-            vurls.add(cr.getUrl());
-            if (realm == null) {
-              realm = getRealm(context.getPid(), cr);
-              if (realm != null) {
-                smm.setRealm(realm);
-                Statement stmt = con.createStatement();
-                stmt.execute("update Packages set realm = '"+realm+"' where PackageKey = " + smm.getKey());
-              }
-            }
-            if (auth == null) {
-              auth = getAuth(context.getPid(), cr);
-              if (auth != null) {
-                smm.setAuth(auth);
-                Statement stmt = con.createStatement();
-                stmt.execute("update Packages set auth = '"+auth+"' where PackageKey = " + smm.getKey());
-              }
-            }
-
-            JsonObject j = org.hl7.fhir.utilities.json.parser.JsonParser.parseObject(content);
-            String narrative = cr.getText().getDiv().allText();
-            cr.setText(null);
-            resKey++;
-
-            String details = null;
-
-            Set<String> dependencies = new HashSet<>();;
-
-            if (cr instanceof CodeSystem) {
-              details = ""+processCodesystem(resKey, (CodeSystem) cr, dependencies);
-            }
-            if (cr instanceof ValueSet) {
-              details = processValueSet(resKey, (ValueSet) cr, context.getNpm(), dependencies);
-            }
-            if (cr instanceof ConceptMap) {
-              details = processConceptMap(resKey, (ConceptMap) cr, context.getNpm(), dependencies);
-            }
-            if (cr instanceof StructureDefinition) {              
-              details = processStructureDefinition(resKey, (StructureDefinition) cr, context.getNpm(), dependencies);
-            }
-            if (cr instanceof CapabilityStatement) {              
-              details = processCapabilityStatement(resKey, (CapabilityStatement) cr, context.getNpm(), dependencies);
-            }
-
-            String rid = r.hasId() ? r.getId() : id.replace(".json", "");           
-            psqlR.setInt(1, resKey);
-            psqlR.setInt(2, smm.getKey());
-            psqlR.setString(3, type);
-            psqlR.setString(4, r.fhirType());
-            psqlR.setString(5, rid);
-            psqlR.setInt(6, hasVersion(context.getVersion(), "1.0"));
-            psqlR.setInt(7, hasVersion(context.getVersion(), "1.4"));
-            psqlR.setInt(8, hasVersion(context.getVersion(), "3.0"));
-            psqlR.setInt(9, hasVersion(context.getVersion(), "4.0"));
-            psqlR.setInt(10, hasVersion(context.getVersion(), "4.3"));
-            psqlR.setInt(11, hasVersion(context.getVersion(), "5.0"));
-            psqlR.setInt(12, hasVersion(context.getVersion(), "6.0"));
-            psqlR.setString(13, Utilities.pathURL(smm.getBase(), smm.getPath(cr.getUrl(), null, cr.fhirType(), cr.getIdBase())));
-            psqlR.setString(14, cr.getUrl());
-            psqlR.setString(15, cr.getVersion());
-            psqlR.setString(16, cr.getStatus().toCode());
-            psqlR.setString(17, cr.getDateElement().primitiveValue());
-            psqlR.setString(18, cr.getName());
-            psqlR.setString(19, cr.getTitle());
-            psqlR.setBoolean(20, cr.getExperimental());
-            psqlR.setString(21, realm);
-            psqlR.setString(22, cr.getDescription());
-            psqlR.setString(23, cr.getPurpose());
-            psqlR.setString(24, cr.getCopyright());
-            psqlR.setString(25, cr.getCopyrightLabel()); 
-            psqlR.setString(26, j.asString("kind"));
-            psqlR.setString(27, j.asString("type"));        
-            psqlR.setString(28, j.asString("supplements"));        
-            psqlR.setString(29, j.asString("valueSet"));        
-            psqlR.setString(30, j.asString("content"));         
-            psqlR.setString(31, auth);                
-            psqlR.setString(32, details);        
-            psqlR.execute();
-
-            psqlC.setInt(1, resKey);
-            psqlC.setBytes(2, gzip(content));
-            psqlC.setBytes(3, gzip(new JsonParser().composeBytes(cr)));
-            psqlC.execute();
-
-            psqlRI.setInt(1, resKey);
-            psqlRI.setString(2, cr.getName());
-            psqlRI.setString(3, cr.getTitle());
-            psqlRI.setString(4, cr.getDescription());
-            psqlRI.setString(5, narrative);
-            psqlRI.execute();
-
-            //            if (cr instanceof StructureDefinition) {
-            //              dep = processStructureDefinition(resKey, (StructureDefinition) cr);
-            //              ext = processStructureDefinition2(resKey, (StructureDefinition) cr);
-            //            }
-          }       
+        List<String> urls = URL_SCANNER.scan(content).get("url");
+        if (urls != null) {
+          psqlClaim.setString(1, urls.get(0));
+          psqlClaim.setInt(2, smm.getKey());
+          psqlClaim.setString(3, type);
+          psqlClaim.setString(4, id);
+          psqlClaim.execute();
         }
-
+        if (vurls.contains(urls == null ? null : urls.get(0))) {
+          // already have this one, so there's no need to load it
+          return;
+        }
+        addResource(context.getPid(), context.getVersion(), context.getNpm(), smm, type, id, content);
       } catch (Exception e) {
         throw new IOException(e);
       }
     }
   }
 
+  private void addResource(String pid, String version, NpmPackage npm, SpecMapManager smm, String type, String id, byte[] content) throws IOException, SQLException {
+    Resource r = loadResource(pid, version, type, id, content);
+    String auth = smm.getAuth();
+    String realm = smm.getRealm();
+
+    if (r != null && r instanceof CanonicalResource) {
+      CanonicalResource cr = (CanonicalResource) r;
+      if (!vurls.contains(cr.getUrl())) {
+        vurls.add(cr.getUrl());
+        if (realm == null) {
+          realm = getRealm(pid, cr);
+          if (realm != null) {
+            smm.setRealm(realm);
+            Statement stmt = con.createStatement();
+            stmt.execute("update Packages set realm = '"+realm+"' where PackageKey = " + smm.getKey());
+          }
+        }
+        if (auth == null) {
+          auth = getAuth(pid, cr);
+          if (auth != null) {
+            smm.setAuth(auth);
+            Statement stmt = con.createStatement();
+            stmt.execute("update Packages set auth = '"+auth+"' where PackageKey = " + smm.getKey());
+          }
+        }
+
+        JsonObject j = org.hl7.fhir.utilities.json.parser.JsonParser.parseObject(content);
+        String narrative = cr.getText().getDiv().allText();
+        cr.setText(null);
+        resKey++;
+
+        String details = null;
+
+        Set<String> dependencies = new HashSet<>();;
+
+        if (cr instanceof CodeSystem) {
+          details = ""+processCodesystem(resKey, (CodeSystem) cr, dependencies);
+        }
+        if (cr instanceof ValueSet) {
+          details = processValueSet(resKey, (ValueSet) cr, npm, dependencies);
+        }
+        if (cr instanceof ConceptMap) {
+          details = processConceptMap(resKey, (ConceptMap) cr, npm, dependencies);
+        }
+        if (cr instanceof StructureDefinition) {              
+          details = processStructureDefinition(resKey, (StructureDefinition) cr, npm, dependencies);
+        }
+        if (cr instanceof CapabilityStatement) {              
+          details = processCapabilityStatement(resKey, (CapabilityStatement) cr, npm, dependencies);
+        }
+
+        String rid = r.hasId() ? r.getId() : id.replace(".json", "");           
+        psqlR.setInt(1, resKey);
+        psqlR.setInt(2, smm.getKey());
+        psqlR.setString(3, type);
+        psqlR.setString(4, r.fhirType());
+        psqlR.setString(5, rid);
+        psqlR.setInt(6, hasVersion(version, "1.0"));
+        psqlR.setInt(7, hasVersion(version, "1.4"));
+        psqlR.setInt(8, hasVersion(version, "3.0"));
+        psqlR.setInt(9, hasVersion(version, "4.0"));
+        psqlR.setInt(10, hasVersion(version, "4.3"));
+        psqlR.setInt(11, hasVersion(version, "5.0"));
+        psqlR.setInt(12, hasVersion(version, "6.0"));
+        psqlR.setString(13, Utilities.pathURL(smm.getBase(), smm.getPath(cr.getUrl(), null, cr.fhirType(), cr.getIdBase())));
+        psqlR.setString(14, cr.getUrl());
+        psqlR.setString(15, cr.getVersion());
+        psqlR.setString(16, cr.getStatus().toCode());
+        psqlR.setString(17, cr.getDateElement().primitiveValue());
+        psqlR.setString(18, cr.getName());
+        psqlR.setString(19, cr.getTitle());
+        psqlR.setBoolean(20, cr.getExperimental());
+        psqlR.setString(21, realm);
+        psqlR.setString(22, cr.getDescription());
+        psqlR.setString(23, cr.getPurpose());
+        psqlR.setString(24, cr.getCopyright());
+        psqlR.setString(25, cr.getCopyrightLabel()); 
+        psqlR.setString(26, j.asString("kind"));
+        psqlR.setString(27, j.asString("type"));        
+        psqlR.setString(28, j.asString("supplements"));        
+        psqlR.setString(29, j.asString("valueSet"));        
+        psqlR.setString(30, j.asString("content"));         
+        psqlR.setString(31, auth);                
+        psqlR.setString(32, details);        
+        psqlR.execute();
+
+        if (contentStore != null) {
+          contentStore.add(smm.getKey(), resKey, content, new JsonParser().composeBytes(cr));
+        } else {
+          psqlC.setInt(1, resKey);
+          psqlC.setBytes(2, gzip(content));
+          psqlC.setBytes(3, gzip(new JsonParser().composeBytes(cr)));
+          psqlC.execute();
+        }
+
+        psqlRI.setInt(1, resKey);
+        psqlRI.setInt(2, resKey);
+        psqlRI.setString(3, cr.getName());
+        psqlRI.setString(4, cr.getTitle());
+        psqlRI.setString(5, cr.getDescription());
+        psqlRI.setString(6, narrative);
+        psqlRI.execute();
+
+        //            if (cr instanceof StructureDefinition) {
+        //              dep = processStructureDefinition(resKey, (StructureDefinition) cr);
+        //              ext = processStructureDefinition2(resKey, (StructureDefinition) cr);
+        //            }
+      }       
+    }
+  }
+
   private int processCodesystem(int resKey, CodeSystem cs, Set<String> dependencies) throws SQLException {
     if (cs.hasSupplements()) {
       recordDependency(dependencies, resKey, cs.getSupplements());
     }
+    codeRow = codeRowBase(resKey);
     return processCodes(cs.getConcept());
   }
 
@@ -863,16 +1137,25 @@ public class XIGDatabaseBuilder implements IPackageVisitorProcessor {
   private int processCodes(List<ConceptDefinitionComponent> concepts) throws SQLException {
     int c = concepts.size();
     for (ConceptDefinitionComponent concept : concepts) {
-      psqlCI.setInt(1, resKey);
-      psqlCI.setString(2, concept.getCode());
-      psqlCI.setString(3, concept.getDisplay());
-      psqlCI.setString(4, concept.getDefinition());
+      psqlCI.setLong(1, ++codeRow);
+      psqlCI.setInt(2, resKey);
+      psqlCI.setString(3, concept.getCode());
+      psqlCI.setString(4, concept.getDisplay());
+      psqlCI.setString(5, concept.getDefinition());
       psqlCI.execute();
       c = c + processCodes(concept.getConcept());
     }    
     return c;
   }
 
+  /**
+   * The codes of a code system have their own range of rowids, so that they can be deleted without
+   * a scan of the full text index, which can only look up rows by rowid
+   */
+  private static long codeRowBase(int resKey) {
+    return ((long) resKey) << 24;
+  }
+
   public static byte[] gzip(byte[] bytes) throws IOException {
     ByteArrayOutputStream bOut = new ByteArrayOutputStream();
 
@@ -1118,7 +1401,159 @@ public class XIGDatabaseBuilder implements IPackageVisitorProcessor {
 
   @Override
   public void finishPackage(PackageContext context) throws FHIRException, IOException, EOperationOutcome {
+    try {
+      if (current != null) {
+        if (contentStore != null) {
+          contentStore.finishPackage();
+        }
+        resolveDependencies(currentKey);
+        reassignOrphans();
+        con.createStatement().execute("Update PackageCheckpoints set Status = 'done' where PID = '"+current+"'");
+        current = null;
+        loaded++;
+      }
+      con.commit();
+    } catch (SQLException | IOException e) {
+      throw new FHIRException(e);
+    }
+  }
+
+  /**
+   * Adds the dependencies of the resources in the package on resources that are loaded, and the
+   * dependencies of resources that are loaded on the resources in the package
+   */
+  private void resolveDependencies(int key) throws SQLException {
+    Statement stmt = con.createStatement();
+    stmt.execute("insert or ignore into DependencyList (TargetKey, SourceKey) select ResourceKey as TargetKey, SourceKey from DependencyTemp, Resources "+
+        "where Resources.Url = DependencyTemp.TargetUrl and DependencyTemp.SourceKey in (select ResourceKey from Resources where PackageKey = "+key+")");
+    stmt.execute("insert or ignore into DependencyList (TargetKey, SourceKey) select ResourceKey as TargetKey, SourceKey from DependencyTemp, Resources "+
+        "where Resources.Url = DependencyTemp.TargetUrl and Resources.PackageKey = "+key);
+  }
+
+  private void removeStalePackages() throws SQLException, IOException {
+    List<String> pids = new ArrayList<>();
+    List<Integer> keys = new ArrayList<>();
+    ResultSet rs = con.createStatement().executeQuery("select PID, PackageKey from PackageCheckpoints where Run < "+run);
+    while (rs.next()) {
+      pids.add(rs.getString(1));
+      keys.add(rs.getInt(2));
+    }
+    if (!pids.isEmpty()) {
+      for (int i = 0; i < pids.size(); i++) {
+        removePackage(pids.get(i), keys.get(i));
+        removed++;
+      }
+      reassignOrphans();
+      realms.clear();
+      authorities.clear();
+      loadRealmsAndAuthorities(con);
+    }
+  }
+
+  /**
+   * Removes what an earlier run put in the database for a package that has changed since, or
+   * that isn't in the registry any more
+   */
+  private void removePackage(String pid, int key) throws SQLException {
+    String keys = "(select ResourceKey from Resources where PackageKey = "+key+")";
+    ResultSet rs = con.createStatement().executeQuery("select Url from Resources where PackageKey = "+key);
+    while (rs.next()) {
+      vurls.remove(rs.getString(1));
+      orphaned.add(rs.getString(1));
+    }
+    List<Integer> codeSystems = new ArrayList<>();
+    rs = con.createStatement().executeQuery("select ResourceKey from Resources where PackageKey = "+key+" and ResourceTypeR5 = 'CodeSystem'");
+    while (rs.next()) {
+      codeSystems.add(rs.getInt(1));
+    }
+    Statement stmt = con.createStatement();
+    stmt.execute("delete from Contents where ResourceKey in "+keys);
+    if (contentStore != null) {
+      contentStore.remove(key);
+    }
+    stmt.execute("delete from Categories where ResourceKey in "+keys);
+    stmt.execute("delete from ResourceFTS where rowid in "+keys);
+    for (int k : codeSystems) {
+      stmt.execute("delete from CodeSystemFTS where rowid > "+codeRowBase(k)+" and rowid < "+codeRowBase(k+1));
+    }
+    stmt.execute("delete from DependencyTemp where SourceKey in "+keys);
+    stmt.execute("delete from DependencyList where SourceKey in "+keys+" or TargetKey in "+keys);
+    stmt.execute("delete from Resources where PackageKey = "+key);
+    stmt.execute("delete from Packages where PackageKey = "+key);
+    stmt.execute("delete from UrlClaims where PackageKey = "+key);
+    stmt.execute("delete from PackageCheckpoints where PID = '"+pid+"'");
+  }
+
+  /**
+   * The urls that were in packages that have been removed, and that no package has loaded since, go
+   * to the first package loaded that has a resource with the url. That package skipped the
+   * resource when it was loaded, so it's loaded from the package cache now
+   */
+  private void reassignOrphans() throws SQLException, IOException {
+    orphaned.removeAll(vurls);
+    if (orphaned.isEmpty()) {
+      return;
+    }
+    Map<Integer, List<String[]>> claims = new HashMap<>();
+    PreparedStatement psql = con.prepareStatement("select PackageKey, ResourceType, FileId from UrlClaims where Url = ? order by PackageKey limit 1");
+    for (String url : orphaned) {
+      psql.setString(1, url);
+      ResultSet rs = psql.executeQuery();
+      if (rs.next()) {
+        claims.computeIfAbsent(rs.getInt(1), k -> new ArrayList<>()).add(new String[] {rs.getString(2), rs.getString(3)});
+      }
+    }
+    orphaned.clear();
+    for (int key : claims.keySet()) {
+      reloadResources(key, claims.get(key));
+    }
+  }
+
+  private void reloadResources(int key, List<String[]> resources) throws SQLException, IOException {
+    ResultSet rs = con.createStatement().executeQuery("select PID, Id, Version, Realm, Auth from Packages where PackageKey = "+key);
+    if (!rs.next()) {
+      return;
+    }
+    String pid = rs.getString(1);
+    NpmPackage npm = pcm == null ? null : pcm.loadPackage(rs.getString(2), rs.getString(3));
+    if (npm == null) {
+      System.out.println("Unable to load "+pid+" to take over "+resources.size()+" resources from a package that was removed (run with -xig-fresh to build the database again)");
+      return;
+    }
+    SpecMapManager smm = makeSpecMap(npm, key, rs.getString(5), rs.getString(4));
+    for (String[] res : resources) {
+      addResource(pid, npm.fhirVersion(), npm, smm, res[0], res[1], TextFile.streamToBytes(npm.load("package", res[1])));
+    }
+    if (contentStore != null) {
+      contentStore.finishPackage();
+    }
+    resolveDependencies(key);
+  }
 
+  /**
+   * The hash of everything in the package, to tell whether a package is the same as when it was last loaded
+   */
+  private String packageHash(NpmPackage npm) throws IOException {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      md.update(org.hl7.fhir.utilities.json.parser.JsonParser.composeBytes(npm.getNpm()));
+      for (String folder : Utilities.sorted(npm.getFolders().keySet())) {
+        NpmPackageFolder f = npm.getFolders().get(folder);
+        List<String> names = new ArrayList<>(f.listFiles());
+        Collections.sort(names);
+        for (String name : names) {
+          md.update((folder+"/"+name).getBytes(StandardCharsets.UTF_8));
+          md.update(f.fetchFile(name));
+        }
+      }
+      StringBuilder b = new StringBuilder();
+      for (byte v : md.digest()) {
+        b.append(String.format("%02x", v));
+      }
+      return b.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new Error(e);
+    }
   }
 
   @Override
@@ -1127,6 +1562,7 @@ public class XIGDatabaseBuilder implements IPackageVisitorProcessor {
       pck++;
       Statement stmt = con.createStatement();
       stmt.execute("Update Packages set Published = 1 where ID = '"+pid+"'");
+      con.commit();
     } catch (SQLException e) {
       throw new FHIRException(e);
     } 
@@ -26,7 +26,7 @@ public class XIGExtensionHandler {
   private Map<String, StructureDefinition> extensions = new HashMap<>();
   private Map<String, Set<String>> extensionUsage = new HashMap<>();
   
-  public void seeExtension(StructureDefinition sd) {
+  public synchronized void seeExtension(StructureDefinition sd) {
 //    System.out.println("extension: "+sd.getVersionedUrl());
     StructureDefinition existing = extensions.get(sd.getUrl());
     if (existing == null || !existing.hasVersion() || VersionUtilities.isThisOrLater(sd.getVersion(), existing.getVersion())) {
@@ -34,7 +34,7 @@ public class XIGExtensionHandler {
     }
   }
 
-  public void finish(String target) throws FileNotFoundException, IOException {
+  public synchronized void finish(String target) throws FileNotFoundException, IOException {
     PrintStream p = new PrintStream(new FileOutputStream(Utilities.path(target, "extensions.txt")));
 
     List<String> entries = new ArrayList<>();
@@ -162,7 +162,7 @@ public class XIGExtensionHandler {
     return false;
   }
 
-  public void seeUse(String url, String path, String path2) {
+  public synchronized void seeUse(String url, String path, String path2) {
     if (path == null || Utilities.charCount(path, '.') == Utilities.charCount(path2, '.')) {
       path = path2;
     }
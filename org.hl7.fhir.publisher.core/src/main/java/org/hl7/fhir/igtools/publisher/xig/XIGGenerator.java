@@ -40,6 +40,9 @@ public class XIGGenerator {
   private FilesystemPackageCacheManager pcm;
 
   private String date;
+  private boolean fresh;
+  private boolean packed;
+  private boolean parallel;
     
   public static void main(String[] args) throws Exception {
     new XIGGenerator(args[0], args[1]).execute(Integer.parseInt(args[3]));
@@ -56,6 +59,30 @@ public class XIGGenerator {
     date = "<span title=\""+dl+"\">"+ds+"</span>";    
   }
   
+  /**
+   * If fresh, the database is built again from nothing. Otherwise packages that are already in it
+   * with the same content are left as they are, so a run that stopped part way through carries on
+   * from the last package it finished
+   */
+  public void setFresh(boolean fresh) {
+    this.fresh = fresh;
+  }
+
+  /**
+   * If packed, the resource content is stored in compressed segments per package (XIGContentStore)
+   * rather than in the Contents table
+   */
+  public void setPacked(boolean packed) {
+    this.packed = packed;
+  }
+
+  /**
+   * If parallel, renderPages renders the resources and the page sets on a thread per processor
+   */
+  public void setParallel(boolean parallel) {
+    this.parallel = parallel;
+  }
+
   public void execute(int step) throws IOException, ParserConfigurationException, SAXException, FHIRException, EOperationOutcome, ParseException {
     ProfileUtilities.setSuppressIgnorableExceptions(true);
 
@@ -64,10 +91,61 @@ public class XIGGenerator {
     System.out.println("Start Step "+step);
 
     File tgt = new File(target);
-    if (step == 1 || step == 0) {
+    if (fresh && (step == 1 || step == 0)) {
+      tgt.delete();
+    } else if (tgt.exists() && !XIGDatabaseBuilder.canResume(target)) {
+      System.out.println("The existing database "+target+" can't be updated, so it is built again");
       tgt.delete();
     }
+    boolean init = !tgt.exists();
 
+    PackageVisitor pv = makeVisitor();
+    XIGDatabaseBuilder gather = new XIGDatabaseBuilder(target, init, new SimpleDateFormat("dd MMM yyyy", new Locale("en", "US")).format(Calendar.getInstance().getTime()));
+    if (step == 1 || step == 0) {
+      gather.startRun();
+    }
+    gather.setPackageCacheManager(pcm);
+    if (packed) {
+      gather.usePackedContent();
+    }
+    pv.setProcessor(gather);
+    pv.setStep(step);
+    pv.visitPackages();
+    gather.finish(step == 0 || step == 3);
+    System.out.println("Packages: "+gather.getLoaded()+" loaded, "+gather.getUnchanged()+" unchanged, "+gather.getRemoved()+" removed");
+
+    System.out.println("Finished Step "+step+": "+Utilities.describeDuration(System.currentTimeMillis() - ms));
+    System.out.println("File "+target+", size is "+Utilities.describeSize(tgt.length()));
+  }
+
+  /**
+   * Renders the pages of the XIG to the folder from the packages (see XIGLoader and XIGRenderer)
+   */
+  public void renderPages(String dest) throws IOException, ParserConfigurationException, SAXException, FHIRException, EOperationOutcome, ParseException {
+    ProfileUtilities.setSuppressIgnorableExceptions(true);
+
+    long ms = System.currentTimeMillis();
+    System.out.println("Render pages to "+dest);
+
+    XIGInformation info = new XIGInformation();
+    info.getJson().add("packages", new JsonObject());
+    info.getJson().add("canonicals", new JsonArray());
+    NpmPackage core = pcm.loadPackage("hl7.fhir.r5.core", "5.0.0");
+    info.setCtxt(new SimpleWorkerContext.SimpleWorkerContextBuilder().fromPackage(core, new PublisherLoader(core, SpecMapManager.fromPackage(core), core.getWebLocation(), null).makeLoader(), true));
+
+    PackageVisitor pv = makeVisitor();
+    pv.setProcessor(new XIGLoader(info));
+    pv.visitPackages();
+    info.buildUsageMap();
+
+    Utilities.createDirectory(dest);
+    XIGRenderer renderer = new XIGRenderer(info, dest, date);
+    renderer.setParallel(parallel);
+    renderer.produce(pcm);
+    System.out.println("Rendered pages: "+Utilities.describeDuration(System.currentTimeMillis() - ms));
+  }
+
+  private PackageVisitor makeVisitor() {
     PackageVisitor pv = new PackageVisitor();
     
     pv.getResourceTypes().add("ActivityDefinition");
@@ -105,16 +183,10 @@ public class XIGGenerator {
     pv.setCache(cache);
     pv.setOldVersions(false);
     pv.setCorePackages(true);
-    XIGDatabaseBuilder gather = new XIGDatabaseBuilder(target, step == 1 || step == 0, new SimpleDateFormat("dd MMM yyyy", new Locale("en", "US")).format(Calendar.getInstance().getTime()));
-    pv.setProcessor(gather);
     pv.setCurrent(true);
-    pv.setStep(step);
-    pv.visitPackages();
-    gather.finish(step == 0 || step == 3);
-
-    System.out.println("Finished Step "+step+": "+Utilities.describeDuration(System.currentTimeMillis() - ms));
-    System.out.println("File "+target+", size is "+Utilities.describeSize(tgt.length()));
+    return pv;
   }
+
 //
 //  private void test(File tgt) {
 //    try {
@@ -2,10 +2,10 @@ package org.hl7.fhir.igtools.publisher.xig;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.hl7.fhir.r5.context.SimpleWorkerContext;
 import org.hl7.fhir.r5.model.CanonicalResource;
@@ -69,12 +69,14 @@ public class XIGInformation {
   Map<String, String> pid = new HashMap<>();
   Map<String, Map<String, CanonicalResource>> counts = new HashMap<>();
   Map<String, CanonicalResource> resources = new HashMap<>();
-  private Set<String> opr = new HashSet<>();
-  private Set<String> spr = new HashSet<>();
-  private Set<String> nspr = new HashSet<>();
+  // these are added to when resources are rendered (see fillOutJson), which can be done on more than one thread
+  private Set<String> opr = ConcurrentHashMap.newKeySet();
+  private Set<String> spr = ConcurrentHashMap.newKeySet();
+  private Set<String> nspr = ConcurrentHashMap.newKeySet();
   private JsonObject json = new JsonObject();
-  private Set<String> jurisdictions = new HashSet<>();
+  private Set<String> jurisdictions = ConcurrentHashMap.newKeySet();
   private SimpleWorkerContext ctxt;
+  // built by buildUsageMap before rendering starts, and only read after that
   Map<String, List<CanonicalResourceUsage>> usages = new HashMap<>();
   private XIGExtensionHandler extensionHandler = new XIGExtensionHandler();
   private List<String> sdErrors = new ArrayList<>();
@@ -228,7 +230,7 @@ public class XIGInformation {
   public XIGExtensionHandler getExtensionHandler() {
     return extensionHandler;
   }
-  public void addSDError(String msg) {
+  public synchronized void addSDError(String msg) {
     sdErrors.add(msg);
   
   }
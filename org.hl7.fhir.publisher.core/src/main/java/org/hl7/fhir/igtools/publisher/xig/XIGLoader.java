@@ -21,6 +21,7 @@ import org.hl7.fhir.convertors.factory.VersionConvertorFactory_43_50;
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.igtools.publisher.IGR2ConvertorAdvisor5;
 import org.hl7.fhir.igtools.publisher.SpecMapManager;
+import org.hl7.fhir.igtools.publisher.utils.JsonFieldScanner;
 import org.hl7.fhir.r5.formats.JsonParser;
 import org.hl7.fhir.r5.model.CanonicalResource;
 import org.hl7.fhir.r5.model.PackageInformation;
@@ -40,6 +41,8 @@ import org.hl7.fhir.utilities.npm.PackageHacker;
 
 public class XIGLoader implements IPackageVisitorProcessor {
 
+  private static final JsonFieldScanner URL_SCANNER = new JsonFieldScanner("url");
+
   private XIGInformation info;
   private Map<String, SpecMapManager> smmList = new HashMap<>();
 
@@ -65,135 +68,136 @@ public class XIGLoader implements IPackageVisitorProcessor {
     }
 
     info.getPid().put(pid, npm.getWebLocation());
+    if (isCoreDefinition(pid) || !URL_SCANNER.scan(content).containsKey("url")) {
+      // nothing is done with these, so don't load them
+      return;
+    }
     Resource r = loadResource(pid, version, type, id, content);
     if (r != null && r instanceof CanonicalResource) {
       r.setSourcePackage(new PackageInformation(npm));
       CanonicalResource cr = (CanonicalResource) r;
       if (cr.getUrl() != null) {
-        boolean core = isCoreDefinition(cr, pid);
-        if (!core) {
-          cr.setText(null);
-          cr.setWebPath(Utilities.pathURL(smm.getBase(), smm.getPath(cr.getUrl(), null, cr.fhirType(), cr.getIdBase())));
-          JsonObject j = new JsonObject();
-          info.getJson().getJsonArray("canonicals").add(j);
-          j.add("pid", pid);
-          cr.setUserData("pid", pid);
-          cr.setUserData("purl", npm.getWebLocation());
-          cr.setUserData("pname", npm.title());
-          cr.setUserData("fver", npm.fhirVersion());
-          cr.setUserData("json", j);
-          String realm = getRealm(pid);
-          if (realm != null) {
-            cr.setUserData("realm", realm);
-            info.getJurisdictions().add(realm);
-          }
-          String auth = getAuth(pid);
-          if (auth != null) {
-            cr.setUserData("auth", auth);
-          }
-          cr.setUserData("filebase", (cr.fhirType()+"-"+pid.substring(0, pid.indexOf("#"))+"-"+cr.getId()).toLowerCase());
-          j.add("fver", npm.fhirVersion());
-          j.add("published", pid.contains("#current"));
-          j.add("filebase", cr.getUserString("filebase"));
-          j.add("path", cr.getWebPath());
+        cr.setText(null);
+        cr.setWebPath(Utilities.pathURL(smm.getBase(), smm.getPath(cr.getUrl(), null, cr.fhirType(), cr.getIdBase())));
+        JsonObject j = new JsonObject();
+        info.getJson().getJsonArray("canonicals").add(j);
+        j.add("pid", pid);
+        cr.setUserData("pid", pid);
+        cr.setUserData("purl", npm.getWebLocation());
+        cr.setUserData("pname", npm.title());
+        cr.setUserData("fver", npm.fhirVersion());
+        cr.setUserData("json", j);
+        String realm = getRealm(pid);
+        if (realm != null) {
+          cr.setUserData("realm", realm);
+          info.getJurisdictions().add(realm);
+        }
+        String auth = getAuth(pid);
+        if (auth != null) {
+          cr.setUserData("auth", auth);
+        }
+        cr.setUserData("filebase", (cr.fhirType()+"-"+pid.substring(0, pid.indexOf("#"))+"-"+cr.getId()).toLowerCase());
+        j.add("fver", npm.fhirVersion());
+        j.add("published", pid.contains("#current"));
+        j.add("filebase", cr.getUserString("filebase"));
+        j.add("path", cr.getWebPath());
 
-          info.fillOutJson(pid, cr, j);
-          if (info.getResources().containsKey(cr.getUrl())) {
-            CanonicalResource crt = info.getResources().get(cr.getUrl());
-            if (VersionUtilities.isThisOrLater(crt.getVersion(), cr.getVersion())) {
-              info.getResources().put(cr.getUrl(), cr);
-            }
-          } else {
+        info.fillOutJson(pid, cr, j);
+        if (info.getResources().containsKey(cr.getUrl())) {
+          CanonicalResource crt = info.getResources().get(cr.getUrl());
+          if (VersionUtilities.isThisOrLater(crt.getVersion(), cr.getVersion())) {
             info.getResources().put(cr.getUrl(), cr);
           }
-          info.getCtxt().cacheResource(cr);
-          String t = type;
-          if (cr instanceof StructureDefinition) {
-            StructureDefinition sd = (StructureDefinition) cr;
-            if (sd.getKind() == StructureDefinitionKind.LOGICAL) {
-              t = t + "/logical";
-            } else if (sd.getType().equals("Extension")) {
-              t = t + "/extension";
-            } else if (sd.getKind() == StructureDefinitionKind.RESOURCE) {
-              t = t + "/resource";
-            } else {
-              t = t + "/other";
-            }
-          } else if (cr instanceof ValueSet) {
-            ValueSet vs = (ValueSet) cr;
-            String sys = null;
-            for (ConceptSetComponent inc : vs.getCompose().getInclude()) {
-              String s = null;
-              String system = inc.getSystem();
-              if (!Utilities.noString(system)) {
-                if ("http://snomed.info/sct".equals(system)) {
-                  s = "sct";
-                } else if ("http://loinc.org".equals(system)) {
-                  s = "loinc";
-                } else if ("http://unitsofmeasure.org".equals(system)) {
-                  s = "ucum";
-                } else if ("http://hl7.org/fhir/sid/ndc".equals(system)) {
-                  s = "ndc";
-                } else if ("http://hl7.org/fhir/sid/cvx".equals(system)) {
-                  s = "cvx";
-                } else if (system.contains(":iso:")) {
-                  s = "iso";
-                } else if (system.contains(":ietf:")) {
-                  s = "ietf";
-                } else if (system.contains("ihe.net")) {
-                  s = "ihe";
-                } else if (system.contains("icpc")) {
-                  s = "icpc";
-                } else if (system.contains("ncpdp")) {
-                  s = "ncpdp";
-                } else if (system.contains("nucc")) {
-                  s = "nucc";
-                } else if (Utilities.existsInList(system, "http://hl7.org/fhir/sid/icd-9-cm", "http://hl7.org/fhir/sid/icd-10", "http://fhir.de/CodeSystem/dimdi/icd-10-gm", "http://hl7.org/fhir/sid/icd-10-nl 2.16.840.1.113883.6.3.2", "http://hl7.org/fhir/sid/icd-10-cm")) {
-                  s = "icd";
-                } else if (system.contains("urn:oid:")) {
-                  s = "oid";
-                } else if ("http://unitsofmeasure.org".equals(system)) {
-                  s = "ucum";
-                } else if ("http://dicom.nema.org/resources/ontology/DCM".equals(system)) {
-                  s = "dcm";
-                } else if ("http://unitsofmeasure.org".equals(system)) {
-                  s = "ucum";
-                } else if ("http://www.ama-assn.org/go/cpt".equals(system)) {
-                  s = "cpt";
-                } else if ("http://www.nlm.nih.gov/research/umls/rxnorm".equals(system)) {
-                  s = "rx";
-                } else if (system.startsWith("http://terminology.hl7.org")) {
-                  s = "tho";
-                } else if (system.startsWith("http://hl7.org/fhir")) {
-                  s = "fhir";
-                } else if (npm.canonical() != null && system.startsWith(npm.canonical())) {
-                  s = "internal";
-                } else if (system.contains("example.org")) {
-                  s = "example";
-                } else {
-                  s = "?";
-                }
-              } else if (inc.hasValueSet()) {
-                s = "vs";
-              }
-              if (sys == null) {
-                sys = s;
-              } else if (!sys.equals(s)) {
-                sys = "mixed";
+        } else {
+          info.getResources().put(cr.getUrl(), cr);
+        }
+        info.getCtxt().cacheResource(cr);
+        String t = type;
+        if (cr instanceof StructureDefinition) {
+          StructureDefinition sd = (StructureDefinition) cr;
+          if (sd.getKind() == StructureDefinitionKind.LOGICAL) {
+            t = t + "/logical";
+          } else if (sd.getType().equals("Extension")) {
+            t = t + "/extension";
+          } else if (sd.getKind() == StructureDefinitionKind.RESOURCE) {
+            t = t + "/resource";
+          } else {
+            t = t + "/other";
+          }
+        } else if (cr instanceof ValueSet) {
+          ValueSet vs = (ValueSet) cr;
+          String sys = null;
+          for (ConceptSetComponent inc : vs.getCompose().getInclude()) {
+            String s = null;
+            String system = inc.getSystem();
+            if (!Utilities.noString(system)) {
+              if ("http://snomed.info/sct".equals(system)) {
+                s = "sct";
+              } else if ("http://loinc.org".equals(system)) {
+                s = "loinc";
+              } else if ("http://unitsofmeasure.org".equals(system)) {
+                s = "ucum";
+              } else if ("http://hl7.org/fhir/sid/ndc".equals(system)) {
+                s = "ndc";
+              } else if ("http://hl7.org/fhir/sid/cvx".equals(system)) {
+                s = "cvx";
+              } else if (system.contains(":iso:")) {
+                s = "iso";
+              } else if (system.contains(":ietf:")) {
+                s = "ietf";
+              } else if (system.contains("ihe.net")) {
+                s = "ihe";
+              } else if (system.contains("icpc")) {
+                s = "icpc";
+              } else if (system.contains("ncpdp")) {
+                s = "ncpdp";
+              } else if (system.contains("nucc")) {
+                s = "nucc";
+              } else if (Utilities.existsInList(system, "http://hl7.org/fhir/sid/icd-9-cm", "http://hl7.org/fhir/sid/icd-10", "http://fhir.de/CodeSystem/dimdi/icd-10-gm", "http://hl7.org/fhir/sid/icd-10-nl 2.16.840.1.113883.6.3.2", "http://hl7.org/fhir/sid/icd-10-cm")) {
+                s = "icd";
+              } else if (system.contains("urn:oid:")) {
+                s = "oid";
+              } else if ("http://unitsofmeasure.org".equals(system)) {
+                s = "ucum";
+              } else if ("http://dicom.nema.org/resources/ontology/DCM".equals(system)) {
+                s = "dcm";
+              } else if ("http://unitsofmeasure.org".equals(system)) {
+                s = "ucum";
+              } else if ("http://www.ama-assn.org/go/cpt".equals(system)) {
+                s = "cpt";
+              } else if ("http://www.nlm.nih.gov/research/umls/rxnorm".equals(system)) {
+                s = "rx";
+              } else if (system.startsWith("http://terminology.hl7.org")) {
+                s = "tho";
+              } else if (system.startsWith("http://hl7.org/fhir")) {
+                s = "fhir";
+              } else if (npm.canonical() != null && system.startsWith(npm.canonical())) {
+                s = "internal";
+              } else if (system.contains("example.org")) {
+                s = "example";
+              } else {
+                s = "?";
               }
+            } else if (inc.hasValueSet()) {
+              s = "vs";
+            }
+            if (sys == null) {
+              sys = s;
+            } else if (!sys.equals(s)) {
+              sys = "mixed";
             }
-            t = t + "/"+(sys == null ? "n/a" : sys);
-          }
-          if (!info.getCounts().containsKey(t)) {
-            info.getCounts().put(t, new HashMap<>());
-          }
-          Map<String, CanonicalResource> list = info.getCounts().get(t);
-          String url = cr.getUrl();
-          if (url == null) {
-            url = cr.getId();
           }
-          list.put(url, cr);
+          t = t + "/"+(sys == null ? "n/a" : sys);
+        }
+        if (!info.getCounts().containsKey(t)) {
+          info.getCounts().put(t, new HashMap<>());
         }
+        Map<String, CanonicalResource> list = info.getCounts().get(t);
+        String url = cr.getUrl();
+        if (url == null) {
+          url = cr.getId();
+        }
+        list.put(url, cr);
       }
     }
   }
@@ -203,7 +207,7 @@ public class XIGLoader implements IPackageVisitorProcessor {
     //    return  cr instanceof StructureDefinition && ProfileUtilities.isExtensionDefinition((StructureDefinition) cr);
   }
 
-  private boolean isCoreDefinition(CanonicalResource cr, String pid) {
+  private boolean isCoreDefinition(String pid) {
     return Utilities.startsWithInList(pid, "hl7.fhir.r2", "hl7.fhir.r2b", "hl7.fhir.r3", "hl7.fhir.r4", "hl7.fhir.r4b", "hl7.fhir.r5", "hl7.fhir.r6", "hl7.fhir.xver");
   }
 
@@ -3,7 +3,13 @@ package org.hl7.fhir.igtools.publisher.xig;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.igtools.publisher.xig.XIGInformation.CanonicalResourceUsage;
@@ -60,6 +66,7 @@ public class XIGRenderer extends XIGHandler implements ProfileKnowledgeProvider
   private RenderingContext rc;
 
   private String date;
+  private boolean parallel;
 
   public XIGRenderer(XIGInformation info, String target, String date) {
     super();
@@ -108,53 +115,133 @@ public class XIGRenderer extends XIGHandler implements ProfileKnowledgeProvider
     return b.toString();
   }
 
+  /**
+   * Render the resources, and then the page sets of the realms, on a thread per processor. The
+   * resources are rendered in slices, each with its own copy of the rendering context
+   */
+  public void setParallel(boolean parallel) {
+    this.parallel = parallel;
+  }
+
   public void produce(FilesystemPackageCacheManager pcm) throws IOException, FHIRException, EOperationOutcome {
     org.hl7.fhir.utilities.json.parser.JsonParser.compose(info.getJson(), new FileOutputStream(Utilities.path(target, "registry.json")));
     info.setJson(null);
 
-    System.out.println("Generate...");
-    int i = 0;
-    for (CanonicalResource cr : info.getResources().values()) {
+    ExecutorService executor = null;
+    if (parallel) {
+      executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+        Thread t = new Thread(r, "xig-render");
+        t.setDaemon(true);
+        return t;
+      });
+    }
+    try {
+      System.out.println("Generate...");
+      renderResources(executor, new ArrayList<>(info.getResources().values()));
+      System.out.println("");
+      Utilities.createDirectory(target);
+      fillDirectory(pcm, target);
+
+      // the page sets are made after the resources are rendered, since rendering finds the jurisdictions
+      List<String[]> realms = new ArrayList<>();
+      realms.add(new String[] {"all", "Everything"});
+      realms.add(new String[] {"hl7", "HL7"});
+      realms.add(new String[] {"ihe", "IHE"});
+      realms.add(new String[] {"uv", "Intl."});
+      realms.add(new String[] {"us", "US"});
+      for (String s : Utilities.sorted(info.getJurisdictions())) {
+        if (!Utilities.existsInList(s, "uv", "us", "xver") && !s.startsWith("cda")) {
+          realms.add(new String[] {s, JurisdictionUtilities.displayJurisdiction(s)});
+        }
+      }
+      List<PageContent> pages = genPageSets(executor, realms);
+      StringBuilder b = new StringBuilder();
+      b.append("<p><b>Views</b></p>\r\n");
+      b.append("<ul>\r\n");
+      for (int i = 0; i < realms.size(); i++) {
+        addPage(b, realms.get(i)[0]+"-index.html", pages.get(i));
+      }
+      b.append("</ul>\r\n");
+      b.append("<p>See also the <a href=\"extension-summary-analysis.html\">Extension Analysis</a></p>\r\n");
+
+      b.append("<p><b>"+info.getPid().size()+" Packages Loaded</b></p>\r\n");
+      b.append("<ul style=\"column-count: 4\">\r\n");
+      for (String s : Utilities.sorted(info.getPid().keySet())) {
+        b.append("<li><a href=\""+info.getPid().get(s)+"\">"+s+"</a></li>\r\n");
+      }
+      b.append("</ul>\r\n");
+      genPage("XIG index", b.toString(), Utilities.path(target, "index.html"));
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+    }
+
+    System.out.println("Done");
+  }
+
+  private void renderResources(ExecutorService executor, List<CanonicalResource> list) throws IOException {
+    AtomicInteger count = new AtomicInteger();
+    if (executor == null) {
+      renderResources(list, rc, count, list.size());
+    } else {
+      int size = list.size() / (Runtime.getRuntime().availableProcessors() * 4) + 1;
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < list.size(); i += size) {
+        List<CanonicalResource> slice = list.subList(i, Math.min(i + size, list.size()));
+        RenderingContext lrc = rc.copy();
+        futures.add(executor.submit(() -> renderResources(slice, lrc, count, list.size())));
+      }
+      for (Future<?> f : futures) {
+        waitFor(f);
+      }
+    }
+  }
+
+  private void renderResources(List<CanonicalResource> list, RenderingContext rc, AtomicInteger count, int total) {
+    for (CanonicalResource cr : list) {
       try {
-        renderResource(cr.getSourcePackage().getVID(), cr);
+        renderResource(cr.getSourcePackage().getVID(), cr, rc);
       } catch (Exception e) {
         Exception wrappedException = new Exception("Exception rendering canonical resource " + cr.getId() + " " + cr.getUrl(), e);
         wrappedException.printStackTrace();
       }
-      i++;
-      if (i > info.getResources().size() / 100) {
+      if (count.incrementAndGet() % (total / 100 + 1) == 0) {
         System.out.print(".");
-        i = 0;
       }
     }
-    System.out.println("");
-    Utilities.createDirectory(target);
-    fillDirectory(pcm, target);
-    StringBuilder b = new StringBuilder();
-    b.append("<p><b>Views</b></p>\r\n");
-    b.append("<ul>\r\n");
-    addPage(b, "all-index.html", genPageSet(target, "all", "Everything"));
-    addPage(b, "hl7-index.html", genPageSet(target, "hl7", "HL7"));
-    addPage(b, "ihe-index.html", genPageSet(target, "ihe", "IHE"));
-    addPage(b, "uv-index.html", genPageSet(target, "uv", "Intl."));
-    addPage(b, "us-index.html", genPageSet(target, "us", "US"));
-    for (String s : Utilities.sorted(info.getJurisdictions())) {
-      if (!Utilities.existsInList(s, "uv", "us", "xver") && !s.startsWith("cda")) {
-        addPage(b, s+"-index.html", genPageSet(target, s, JurisdictionUtilities.displayJurisdiction(s)));
+  }
+
+  private List<PageContent> genPageSets(ExecutorService executor, List<String[]> realms) throws IOException {
+    List<PageContent> res = new ArrayList<>();
+    if (executor == null) {
+      for (String[] realm : realms) {
+        res.add(genPageSet(target, realm[0], realm[1]));
+      }
+    } else {
+      List<Future<PageContent>> futures = new ArrayList<>();
+      for (String[] realm : realms) {
+        futures.add(executor.submit(() -> genPageSet(target, realm[0], realm[1])));
+      }
+      for (Future<PageContent> f : futures) {
+        res.add(waitFor(f));
       }
     }
-    b.append("</ul>\r\n");
-    b.append("<p>See also the <a href=\"extension-summary-analysis.html\">Extension Analysis</a></p>\r\n");
+    return res;
+  }
 
-    b.append("<p><b>"+info.getPid().size()+" Packages Loaded</b></p>\r\n");
-    b.append("<ul style=\"column-count: 4\">\r\n");
-    for (String s : Utilities.sorted(info.getPid().keySet())) {
-      b.append("<li><a href=\""+info.getPid().get(s)+"\">"+s+"</a></li>\r\n");
+  private <T> T waitFor(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new FHIRException(e.getCause().getMessage(), e.getCause());
     }
-    b.append("</ul>\r\n");
-    genPage("XIG index", b.toString(), Utilities.path(target, "index.html"));
-
-    System.out.println("Done");
   }
 
   private void fillDirectory(FilesystemPackageCacheManager pcm, String target) throws FHIRException, IOException {
@@ -321,7 +408,7 @@ public class XIGRenderer extends XIGHandler implements ProfileKnowledgeProvider
     }
   }
 
-  private void renderResource(String pid, CanonicalResource cr) throws FHIRException, IOException, EOperationOutcome {
+  private void renderResource(String pid, CanonicalResource cr, RenderingContext rc) throws FHIRException, IOException, EOperationOutcome {
     RendererFactory.factory(cr, rc).render(cr);
     String s = new XhtmlComposer(false, true).compose(cr.getText().getDiv());
     new JsonParser().setOutputStyle(OutputStyle.PRETTY).compose(new FileOutputStream(Utilities.path(target, cr.getUserString("filebase")+".json")), cr);
@@ -4,10 +4,10 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.hl7.fhir.igtools.publisher.xig.XIGInformation.CanonicalResourceUsage;
 import org.hl7.fhir.igtools.publisher.xig.XIGInformation.UsageType;
@@ -28,7 +28,7 @@ import org.hl7.fhir.utilities.json.model.JsonObject;
 public class XIGStructureDefinitionHandler extends XIGHandler {
 
   private XIGInformation info;
-  private static Set<String> pidlist = new HashSet<>();
+  private static Set<String> pidlist = ConcurrentHashMap.newKeySet();
 
   public XIGStructureDefinitionHandler(XIGInformation info) {
     super();
@@ -189,7 +189,6 @@ public class XIGStructureDefinitionHandler extends XIGHandler {
     DuplicateTracker dt = new DuplicateTracker();
     for (StructureDefinition sd : list) {
       i++;
-      sd.setUserData("#", i);
       crTr(b, dt, sd, i);
     }
     b.append("</table>\r\n");
@@ -224,8 +223,9 @@ public class XIGStructureDefinitionHandler extends XIGHandler {
       b.append("<table class=\"grid\">\r\n");
       b.append("<tr>\r\n");
       b.append("<td></td>\r\n");
-      for (StructureDefinition sd : list) {
-        b.append("<td>"+sd.getUserData("#")+"</td>\r\n");
+      // the number of each profile in the list above (not kept on the profile, since the page sets of different realms can be made at the same time)
+      for (i = 1; i <= list.size(); i++) {
+        b.append("<td>"+i+"</td>\r\n");
       }
       b.append("</tr>\r\n");
       for (String p : paths) {
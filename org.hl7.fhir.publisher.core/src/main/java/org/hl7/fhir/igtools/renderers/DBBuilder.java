@@ -57,7 +57,7 @@ public class DBBuilder {
     }
   }
 
-  private Connection con;
+  private Connection con; // shared by the generation threads, so the public methods are synchronized
   private Set<String> errors = new HashSet<>();
   private MarkDownProcessor md = new MarkDownProcessor(Dialect.COMMON_MARK);
   private List<CodeSystem> codesystems = new ArrayList<>();
@@ -93,7 +93,7 @@ public class DBBuilder {
     time(start);
   }
 
-  public void metadata(String name, String value)  {
+  public synchronized void metadata(String name, String value)  {
     long start = System.currentTimeMillis();
     if (con == null) {
       return;
@@ -114,7 +114,7 @@ public class DBBuilder {
     time(start);
   }
 
-  public void saveResource(FetchedFile f, FetchedResource r, byte[] json) {
+  public synchronized void saveResource(FetchedFile f, FetchedResource r, byte[] json) {
     long start = System.currentTimeMillis();
     if (con == null) {
       return;
@@ -168,7 +168,7 @@ public class DBBuilder {
     time(start);
   }
 
-  public void finishResources() {
+  public synchronized void finishResources() {
     long start = System.currentTimeMillis();
     if (con == null) {
       return;
@@ -234,7 +234,7 @@ public class DBBuilder {
     time(start);
   }
 
-  public void recordExpansion(ValueSet vs, ValueSetExpansionOutcome exp) throws SQLException {
+  public synchronized void recordExpansion(ValueSet vs, ValueSetExpansionOutcome exp) throws SQLException {
     long start = System.currentTimeMillis();
     try {
       if (con == null) {
@@ -552,7 +552,7 @@ public class DBBuilder {
   }
 
 
-  public String processSQL(String sql) {
+  public synchronized String processSQL(String sql) {
     long start = System.currentTimeMillis();
     if (con == null) {
       return "<span style=\"color: maroon\">Error processing SQL: SQL is not set up properly</span>";
@@ -666,7 +666,7 @@ public class DBBuilder {
     return Utilities.noString(p[0]) ? "grid" : p[0];
   }
 
-  public void closeUp() {
+  public synchronized void closeUp() {
     long start = System.currentTimeMillis();
     if (con != null) {
       try {
@@ -688,7 +688,7 @@ public class DBBuilder {
     System.out.println("DB Cumulative Time invested: "+Utilities.describeDuration(cumulativeTime));
   }
 
-  public void addToCSList(int viewType, CodeSystem cs, Set<String> oids, Set<Resource> rl) {
+  public synchronized void addToCSList(int viewType, CodeSystem cs, Set<String> oids, Set<Resource> rl) {
     try {
       lastCLKey++;
       PreparedStatement sql;
@@ -741,7 +741,7 @@ public class DBBuilder {
     }
   }
 
-  public void addToVSList(int viewType, ValueSet vs, Set<String> oids, Set<String> used, Set<String> sources, Set<Resource> rl) {
+  public synchronized void addToVSList(int viewType, ValueSet vs, Set<String> oids, Set<String> used, Set<String> sources, Set<Resource> rl) {
     try {
       lastVLKey++;
       PreparedStatement sql;
@@ -0,0 +1,244 @@
+package org.hl7.fhir.igtools.renderers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hl7.fhir.r5.model.DataType;
+import org.hl7.fhir.r5.model.ElementDefinition;
+import org.hl7.fhir.r5.model.StructureDefinition;
+
+/**
+ * The analysis of a profile that the different fragments for it have in common: which
+ * elements are in the differential, which are must support or key elements, the copies
+ * of the profile that only have those elements, and the binding and fixed value lookups
+ * for the terminology tables. Each of these is worked out once, when first needed, and
+ * then shared by all the views of the profile (summary, bindings, obligations; snapshot,
+ * differential, key, must support)
+ */
+public class ProfileAnalysis {
+
+  private StructureDefinition sd;
+  private Map<ElementDefinition, Integer> index;
+  private Map<ElementDefinition, List<ElementDefinition>> children = new IdentityHashMap<>();
+  private HashMap<String, ElementDefinition> differentialHash = null;
+  private HashMap<String, ElementDefinition> mustSupportHash = null;
+  private List<ElementDefinition> diffElements = null;
+  private List<ElementDefinition> supplementedDiffElements = null;
+  private List<ElementDefinition> mustSupportElements = null;
+  private List<ElementDefinition> keyElements = null;
+  private StructureDefinition mustSupportProfile;
+  private StructureDefinition keyProfile;
+  private Map<ElementDefinition, DataType> fixedValues = new IdentityHashMap<>();
+  private Map<ElementDefinition, DataType> diffFixedValues = new IdentityHashMap<>();
+  private Map<String, String[]> bindings = new HashMap<>();
+
+  public ProfileAnalysis(StructureDefinition sd) {
+    this.sd = sd;
+  }
+
+  public StructureDefinition getProfile() {
+    return sd;
+  }
+
+  // Returns a hash of all elements in the differential (including omitted ancestors) by element id
+  // Allows checking if an element is in the differential.
+  public Map<String, ElementDefinition> getDifferential() {
+    if (differentialHash==null) {
+      differentialHash = new HashMap<String, ElementDefinition>();
+      for (ElementDefinition e : sd.getDifferential().getElement()) {
+        differentialHash.put(e.getId(), e);
+        if (e.getId().contains(".")) {
+          String id = e.getId();
+          do {
+            id = id.substring(0, id.lastIndexOf(".")-1);
+            if (differentialHash.containsKey(id))
+              break;
+            else
+              differentialHash.put(id, null);
+          } while(id.contains("."));
+        }
+      }
+    }
+    return differentialHash;
+  }
+
+  public List<ElementDefinition> getDifferentialElements() {
+    if (diffElements == null) {
+      diffElements = new ArrayList<ElementDefinition>();
+      for (ElementDefinition e : sd.getSnapshot().getElement()) {
+        if (getDifferential().containsKey(e.getId())) {
+          ElementDefinition ediff = getDifferential().get(e.getId());
+          if (ediff == null)
+            ediff = e.copy();
+          diffElements.add(ediff);
+        }
+      }
+    }
+    return diffElements;
+  }
+
+  public List<ElementDefinition> getSupplementedDifferentialElements(org.hl7.fhir.r5.renderers.StructureDefinitionRenderer sdr) {
+    if (supplementedDiffElements == null) {
+      supplementedDiffElements = sdr.supplementMissingDiffElements(sd);
+    }
+    return supplementedDiffElements;
+  }
+
+  public Map<String, ElementDefinition> getMustSupport() {
+    if (mustSupportHash==null) {
+      mustSupportHash = new HashMap<String, ElementDefinition>();
+      scanForMustSupport(mustSupportHash, sd.getSnapshot().getElementFirstRep(), new ArrayList<>());
+    }
+    return mustSupportHash;
+  }
+
+  private void scanForMustSupport(Map<String, ElementDefinition> mustSupport, ElementDefinition element, List<ElementDefinition> parents) {
+    if (parents.isEmpty() || element.hasMustSupport() && element.getMustSupport()) {
+      mustSupport.put(element.getId(), element);
+      for (ElementDefinition parent : parents) {
+        mustSupport.put(parent.getId(), parent);
+      }
+    }
+    for (ElementDefinition child : getChildren(element)) {
+      List<ElementDefinition> np = new ArrayList<>();
+      np.addAll(parents);
+      np.add(element);
+      scanForMustSupport(mustSupport, child, np);
+    }
+  }
+
+  public List<ElementDefinition> getMustSupportElements() {
+    if (mustSupportElements==null) {
+      mustSupportElements = new ArrayList<ElementDefinition>();
+      Map<String, ElementDefinition> mustSupport = getMustSupport();
+      // Scan through all the properties checking for must support elements
+      // and clear properties in the cloned StructureDefinition that we don't want to
+      // show in the custom view
+      for (ElementDefinition ed : sd.getSnapshot().getElement()) {
+        if (mustSupport.containsKey(ed.getId())) {
+          ElementDefinition edCopy = ed.copy();
+          edCopy.copyUserData(ed);
+          if (edCopy.hasExample())
+            edCopy.getExample().clear();
+          if (!edCopy.getMustSupport()) {
+            if (edCopy.getPath().contains(".")) {
+              edCopy.setUserData("render.opaque", true);
+            }
+            edCopy.setBinding(null);
+            edCopy.getConstraint().clear();
+          }
+          edCopy.setMustSupport(false);
+          mustSupportElements.add(edCopy);
+        }
+      }
+    }
+    return mustSupportElements;
+  }
+
+  public List<ElementDefinition> getKeyElements() {
+    if (keyElements==null) {
+      keyElements = new ArrayList<ElementDefinition>();
+      Map<String, ElementDefinition> mustSupport = getMustSupport();
+      Set<ElementDefinition> keyElementsSet = new HashSet<ElementDefinition>();
+      scanForKeyElements(keyElementsSet, mustSupport, sd.getSnapshot().getElementFirstRep());
+      for (ElementDefinition ed : sd.getSnapshot().getElement()) {
+        if (keyElementsSet.contains(ed)) {
+          ElementDefinition edCopy = ed.copy();
+          edCopy.copyUserData(ed);
+          keyElements.add(edCopy);
+        }
+      }
+    }
+    return keyElements;
+  }
+
+  private void scanForKeyElements(Set<ElementDefinition> keyElements, Map<String, ElementDefinition> mustSupport, ElementDefinition element) {
+    keyElements.add(element);
+    // Lloyd todo: check changes with the underlying 'base' model
+    for (ElementDefinition child : getChildren(element)) {
+      // An element is 'key' if it's within a 'mustSupport'-relevant element (mustSupport or ancestor of mustSupport) and:
+      //  - it's mandatory
+      //  - it's referenced by an invariant (other than the generic ele-1 that everything is referenced by)
+      //  - it's a modifier element
+      //  - it's a slice (which means it's a constraint on the core) or declares slicing not implicit in the core spec (i.e. extension/modifierExtension)
+      //  - it appears in the differential
+      //  - the max cardinality has been constrained from the base max cardinality
+      if (mustSupport.containsKey(child.getId()) || child.getMin()!=0 || (child.hasCondition() && child.getCondition().size()>1) || child.getIsModifier() || (child.hasSlicing() && !child.getPath().endsWith(".extension") && !child.getPath().endsWith(".modifierExtension")) || child.hasSliceName() || getDifferential().containsKey(child.getId()) || !child.getMax().equals(child.getBase().getMax())) {
+        scanForKeyElements(keyElements, mustSupport, child);
+      }
+    }
+  }
+
+  /**
+   * a copy of the profile where the snapshot only has the must support elements
+   */
+  public StructureDefinition getMustSupportProfile() {
+    if (mustSupportProfile == null) {
+      mustSupportProfile = sd.copy();
+      mustSupportProfile.getSnapshot().setElement(getMustSupportElements());
+    }
+    return mustSupportProfile;
+  }
+
+  /**
+   * a copy of the profile where the snapshot only has the key elements
+   */
+  public StructureDefinition getKeyProfile() {
+    if (keyProfile == null) {
+      keyProfile = sd.copy();
+      keyProfile.getSnapshot().setElement(getKeyElements());
+    }
+    return keyProfile;
+  }
+
+  public boolean hasFixedValue(ElementDefinition ed, boolean diff) {
+    return (diff ? diffFixedValues : fixedValues).containsKey(ed);
+  }
+
+  public DataType getFixedValue(ElementDefinition ed, boolean diff) {
+    return (diff ? diffFixedValues : fixedValues).get(ed);
+  }
+
+  public void seeFixedValue(ElementDefinition ed, boolean diff, DataType value) {
+    (diff ? diffFixedValues : fixedValues).put(ed, value);
+  }
+
+  /**
+   * the resolved value set details (link, name, suffix) for a binding, by value set and whether it's inherited
+   */
+  public String[] getBinding(String key) {
+    return bindings.get(key);
+  }
+
+  public void seeBinding(String key, String[] details) {
+    bindings.put(key, details);
+  }
+
+  private List<ElementDefinition> getChildren(ElementDefinition elem) {
+    List<ElementDefinition> res = children.get(elem);
+    if (res == null) {
+      List<ElementDefinition> elements = sd.getSnapshot().getElement();
+      if (index == null) {
+        index = new IdentityHashMap<>();
+        for (int i = 0; i < elements.size(); i++) {
+          index.put(elements.get(i), i);
+        }
+      }
+      res = new ArrayList<ElementDefinition>();
+      Integer i = index.get(elem);
+      String src = elem.getPath();
+      for (int j = i == null ? 0 : i + 1; j < elements.size() && elements.get(j).getPath().startsWith(src + "."); j++) {
+        if (!elements.get(j).getPath().substring(src.length() + 1).contains(".")) {
+          res.add(elements.get(j));
+        }
+      }
+      children.put(elem, res);
+    }
+    return res;
+  }
+}
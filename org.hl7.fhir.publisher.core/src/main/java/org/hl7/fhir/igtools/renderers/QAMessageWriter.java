@@ -0,0 +1,79 @@
+package org.hl7.fhir.igtools.renderers;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+
+/**
+ * Writes validation messages, one json object per line, to [name].ndjson and
+ * [name].ndjson.gz, so that other tools can read the messages without parsing the
+ * html report. The messages are written when the QA report is produced, once
+ * validation is finished and the suppressed messages are known.
+ *
+ * Each line has the properties file, level, type, messageId, location, line, col,
+ * message and (where known) comment, server and txLink
+ */
+public class QAMessageWriter implements Closeable {
+
+  private Writer ndjson;
+  private Writer gzip;
+  private int count;
+
+  public QAMessageWriter(String path) throws IOException {
+    ndjson = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path), StandardCharsets.UTF_8));
+    gzip = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(path+".gz")), StandardCharsets.UTF_8));
+  }
+
+  public void write(String file, ValidationMessage vm) throws IOException {
+    StringBuilder b = new StringBuilder();
+    b.append("{");
+    property(b, "file", file == null ? "" : file, true);
+    property(b, "level", vm.getLevel() == null ? null : vm.getLevel().toCode(), false);
+    property(b, "type", vm.getType() == null ? null : vm.getType().toCode(), false);
+    property(b, "messageId", vm.getMessageId(), false);
+    property(b, "location", vm.getLocation(), false);
+    if (vm.getLine() > 0) {
+      b.append(",\"line\":"+vm.getLine()+",\"col\":"+vm.getCol());
+    }
+    property(b, "message", vm.getMessage(), false);
+    property(b, "comment", vm.getComment(), false);
+    property(b, "server", vm.getServer(), false);
+    property(b, "txLink", vm.getTxLink(), false);
+    b.append("}\n");
+    String s = b.toString();
+    ndjson.write(s);
+    gzip.write(s);
+    count++;
+  }
+
+  private void property(StringBuilder b, String name, String value, boolean first) {
+    if (value != null) {
+      if (!first) {
+        b.append(",");
+      }
+      b.append("\""+name+"\":\""+Utilities.escapeJson(value)+"\"");
+    }
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      ndjson.close();
+    } finally {
+      gzip.close();
+    }
+  }
+
+}
@@ -5,7 +5,6 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -109,12 +108,8 @@ public class StructureDefinitionRenderer extends CanonicalRenderer {
   private String destDir;
   private List<FetchedFile> files;
   private boolean allInvariants;
-  private HashMap<String, ElementDefinition> differentialHash = null;
-  private HashMap<String, ElementDefinition> mustSupportHash = null;
+  private ProfileAnalysis analysis;
   private Map<String, Map<String, ElementDefinition>> sdMapCache;
-  private List<ElementDefinition> diffElements = null;
-  private List<ElementDefinition> mustSupportElements = null;
-  private List<ElementDefinition> keyElements = null;
   private static JsonObject usages;
   private String specPath;
 
@@ -123,6 +118,7 @@ public class StructureDefinitionRenderer extends CanonicalRenderer {
   public StructureDefinitionRenderer(IWorkerContext context, String corePath, StructureDefinition sd, String destDir, IGKnowledgeProvider igp, List<SpecMapManager> maps, Set<String> allTargets, MarkDownProcessor markdownEngine, NpmPackage packge, List<FetchedFile> files, RenderingContext gen, boolean allInvariants,Map<String, Map<String, ElementDefinition>> mapCache, String specPath, String versionToAnnotate) {
     super(context, corePath, sd, destDir, igp, maps, allTargets, markdownEngine, packge, gen, versionToAnnotate);
     this.sd = sd;
+    this.analysis = new ProfileAnalysis(sd);
     this.destDir = destDir;
     utils = new ProfileUtilities(context, null, igp);
     this.files = files;
@@ -462,9 +458,7 @@ public class StructureDefinitionRenderer extends CanonicalRenderer {
       return "";
     else {
       XhtmlComposer composer = new XhtmlComposer(XhtmlComposer.HTML);
-      StructureDefinition sdCopy = sd.copy();
-      
-      sdCopy.getSnapshot().setElement(getKeyElements());
+      StructureDefinition sdCopy = analysis.getKeyProfile();
       sdr.getContext().setStructureMode(mode);
       org.hl7.fhir.utilities.xhtml.XhtmlNode table = sdr.generateTable(defnFile, sdCopy, false, destDir, false, sdCopy.getId(), true, corePath, "", sd.getKind() == StructureDefinitionKind.LOGICAL, false, outputTracker, true, gen, toTabs ? ANCHOR_PREFIX_KEY : ANCHOR_PREFIX_SNAP);
 
@@ -477,10 +471,8 @@ public class StructureDefinitionRenderer extends CanonicalRenderer {
       return "";
     else {
       XhtmlComposer composer = new XhtmlComposer(XhtmlComposer.HTML);
-      StructureDefinition sdCopy = sd.copy();
+      StructureDefinition sdCopy = analysis.getMustSupportProfile();
       sdr.getContext().setStructureMode(mode);
-
-      sdCopy.getSnapshot().setElement(getMustSupportElements());
       org.hl7.fhir.utilities.xhtml.XhtmlNode table = sdr.generateTable(defnFile, sdCopy, false, destDir, false, sdCopy.getId(), true, corePath, "", sd.getKind() == StructureDefinitionKind.LOGICAL, false, outputTracker, true, gen, toTabs ? ANCHOR_PREFIX_MS : ANCHOR_PREFIX_SNAP);
 
       return composer.compose(table);
@@ -488,31 +480,7 @@ public class StructureDefinitionRenderer extends CanonicalRenderer {
   }
 
   protected List<ElementDefinition> getMustSupportElements() {
-    if (mustSupportElements==null) {
-      mustSupportElements = new ArrayList<ElementDefinition>();
-      Map<String, ElementDefinition> mustSupport = getMustSupport();
-      // Scan through all the properties checking for must support elements
-      // and clear properties in the cloned StructureDefinition that we don't want to
-      // show in the custom view
-      for (ElementDefinition ed : sd.getSnapshot().getElement()) {
-        if (mustSupport.containsKey(ed.getId())) {
-          ElementDefinition edCopy = ed.copy();
-          edCopy.copyUserData(ed);
-          if (edCopy.hasExample())
-            edCopy.getExample().clear();
-          if (!edCopy.getMustSupport()) {
-            if (edCopy.getPath().contains(".")) {
-              edCopy.setUserData("render.opaque", true);
-            }
-            edCopy.setBinding(null);
-            edCopy.getConstraint().clear();
-          }
-          edCopy.setMustSupport(false);
-          mustSupportElements.add(edCopy);
-        }
-      }
-    }
-    return mustSupportElements;
+    return analysis.getMustSupportElements();
   }
 
   public String byKeyElements(String defnFile, Set<String> outputTracker) throws IOException, FHIRException, org.hl7.fhir.exceptions.FHIRException {
@@ -520,10 +488,7 @@ public class StructureDefinitionRenderer extends CanonicalRenderer {
       return "";
     else {
       XhtmlComposer composer = new XhtmlComposer(XhtmlComposer.HTML);
-      StructureDefinition sdCopy = sd.copy();
-      List<ElementDefinition> keyElements = getKeyElements();
-
-      sdCopy.getSnapshot().setElement(keyElements);
+      StructureDefinition sdCopy = analysis.getKeyProfile();
       org.hl7.fhir.utilities.xhtml.XhtmlNode table = sdr.generateTable(defnFile, sdCopy, false, destDir, false, sdCopy.getId(), true, corePath, "", sd.getKind() == StructureDefinitionKind.LOGICAL, false, outputTracker, true, gen, ANCHOR_PREFIX_KEY);
 
       return composer.compose(table);
@@ -531,101 +496,25 @@ public class StructureDefinitionRenderer extends CanonicalRenderer {
   }
 
   protected Map<String, ElementDefinition> getMustSupport() {
-    if (mustSupportHash==null) {
-      mustSupportHash = new HashMap<String, ElementDefinition>();
-      scanForMustSupport(mustSupportHash, sd.getSnapshot().getElement(), sd.getSnapshot().getElementFirstRep(), new ArrayList<>());
-    }
-    return mustSupportHash;
+    return analysis.getMustSupport();
   }
 
   // Returns a hash of all elements in the differential (including omitted ancestors) by element id
   // Allows checking if an element is in the differential.
   protected Map<String, ElementDefinition> getDifferential() {
-    if (differentialHash==null) {
-      differentialHash = new HashMap<String, ElementDefinition>();
-      for (ElementDefinition e : sd.getDifferential().getElement()) {
-        differentialHash.put(e.getId(), e);
-        if (e.getId().contains(".")) {
-          String id = e.getId();
-          do {
-            id = id.substring(0, id.lastIndexOf(".")-1);
-            if (differentialHash.containsKey(id))
-              break;
-            else
-              differentialHash.put(id, null);
-          } while(id.contains("."));
-        }
-      }
-    }
-    return differentialHash;
+    return analysis.getDifferential();
   }
 
   protected List<ElementDefinition> getDifferentialElements() {
-    if (diffElements == null) {
-      diffElements = new ArrayList<ElementDefinition>();
-      for (ElementDefinition e : sd.getSnapshot().getElement()) {
-        if (getDifferential().containsKey(e.getId())) {
-          ElementDefinition ediff = getDifferential().get(e.getId());
-          if (ediff == null)
-            ediff = e.copy();
-          diffElements.add(ediff);
-        }
-      }
-    }
-    return diffElements;
-  }
-
-  private void scanForMustSupport(Map<String, ElementDefinition> mustSupport, List<ElementDefinition> elements, ElementDefinition element, List<ElementDefinition> parents) {
-    if (parents.isEmpty() || element.hasMustSupport() && element.getMustSupport()) {
-      mustSupport.put(element.getId(), element);
-      for (ElementDefinition parent : parents) {
-        mustSupport.put(parent.getId(), parent);
-      }
-    }
-    List<ElementDefinition> children = getChildren(elements, element);
-    for (ElementDefinition child : children) {
-      List<ElementDefinition> np = new ArrayList<>();
-      np.addAll(parents);
-      np.add(element);
-      scanForMustSupport(mustSupport, elements, child, np);
-    }
+    return analysis.getDifferentialElements();
   }
 
   protected List<ElementDefinition> getKeyElements() {
-    if (keyElements==null) {
-      keyElements = new ArrayList<ElementDefinition>();
-      Map<String, ElementDefinition> mustSupport = getMustSupport();
-      Set<ElementDefinition> keyElementsSet = new HashSet<ElementDefinition>();
-      scanForKeyElements(keyElementsSet, mustSupport, sd.getSnapshot().getElement(), sd.getSnapshot().getElementFirstRep(), null);
-      for (ElementDefinition ed : sd.getSnapshot().getElement()) {
-        if (keyElementsSet.contains(ed)) {
-          ElementDefinition edCopy = ed.copy();
-          edCopy.copyUserData(ed);
-          keyElements.add(edCopy);
-        }
-      }
-    }
-
-    return keyElements;
+    return analysis.getKeyElements();
   }
 
-  private void scanForKeyElements(Set<ElementDefinition> keyElements, Map<String, ElementDefinition> mustSupport, List<ElementDefinition> elements, ElementDefinition element, String baseModelUrl) {
-    keyElements.add(element);
-    // Lloyd todo: check changes with the underlying 'base' model
-    List<ElementDefinition> children = getChildren(elements, element);
-
-    for (ElementDefinition child : children) {
-      // An element is 'key' if it's within a 'mustSupport'-relevant element (mustSupport or ancestor of mustSupport) and:
-      //  - it's mandatory
-      //  - it's referenced by an invariant (other than the generic ele-1 that everything is referenced by)
-      //  - it's a modifier element
-      //  - it's a slice (which means it's a constraint on the core) or declares slicing not implicit in the core spec (i.e. extension/modifierExtension)
-      //  - it appears in the differential
-      //  - the max cardinality has been constrained from the base max cardinality
-      if (mustSupport.containsKey(child.getId()) || child.getMin()!=0 || (child.hasCondition() && child.getCondition().size()>1) || child.getIsModifier() || (child.hasSlicing() && !child.getPath().endsWith(".extension") && !child.getPath().endsWith(".modifierExtension")) || child.hasSliceName() || getDifferential().containsKey(child.getId()) || !child.getMax().equals(child.getBase().getMax())) {
-        scanForKeyElements(keyElements ,mustSupport, elements, child, baseModelUrl);
-      }
-    }
+  public ProfileAnalysis getAnalysis() {
+    return analysis;
   }
 
   public String grid(String defnFile, Set<String> outputTracker) throws IOException, FHIRException, org.hl7.fhir.exceptions.FHIRException {
@@ -719,6 +608,13 @@ public class StructureDefinitionRenderer extends CanonicalRenderer {
   }
 
   private DataType findFixedValue(ElementDefinition ed, boolean diff) {
+    if (!analysis.hasFixedValue(ed, diff)) {
+      analysis.seeFixedValue(ed, diff, scanForFixedValue(ed, diff));
+    }
+    return analysis.getFixedValue(ed, diff);
+  }
+
+  private DataType scanForFixedValue(ElementDefinition ed, boolean diff) {
     if (ElementDefinitionUtilities.hasType(ed, "Coding")) {
       List<ElementDefinition> children = utils.getChildList(sd, ed, diff);
       String sys = null;
@@ -810,6 +706,19 @@ public class StructureDefinitionRenderer extends CanonicalRenderer {
   }
 
   public void txDetails(ElementDefinitionBindingComponent tx, BindingResolutionDetails brd, boolean inherited) {
+    String key = inherited+"|"+tx.getValueSet();
+    String[] details = analysis.getBinding(key);
+    if (details == null) {
+      resolveTxDetails(tx, brd, inherited);
+      analysis.seeBinding(key, new String[] { brd.vss, brd.vsn, brd.suffix });
+    } else {
+      brd.vss = details[0];
+      brd.vsn = details[1];
+      brd.suffix = details[2];
+    }
+  }
+
+  private void resolveTxDetails(ElementDefinitionBindingComponent tx, BindingResolutionDetails brd, boolean inherited) {
     String uri = null;
     if (tx.getValueSet() != null) {
       uri = tx.getValueSet().trim();
@@ -947,7 +856,7 @@ public class StructureDefinitionRenderer extends CanonicalRenderer {
   public List<ElementDefinition> elementsForMode(int genMode) {
     switch (genMode) {
     case GEN_MODE_DIFF:
-      return sdr.supplementMissingDiffElements(sd);
+      return analysis.getSupplementedDifferentialElements(sdr);
     case GEN_MODE_KEY:
       return getKeyElements();
     case GEN_MODE_MS:
@@ -21,10 +21,15 @@ package org.hl7.fhir.igtools.renderers;
  */
 
 
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
 import java.time.ZoneId;
 import java.util.ArrayList;
@@ -36,6 +41,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import org.hl7.fhir.igtools.publisher.DependentIGFinder;
 import org.hl7.fhir.igtools.publisher.FetchedFile;
@@ -287,6 +293,7 @@ public class ValidationPresenter extends TranslatingUtilities implements Compara
   private String globalCheck;
   private String draftDependencies;
   private Map<String, String> txServers;
+  private boolean streamOutputs;
   
   public ValidationPresenter(String statedVersion, String igVersion, IGKnowledgeProvider provider, IGKnowledgeProvider altProvider, String root, String packageId, String altPackageId, 
       String toolsVersion, String currentToolsVersion, RealmBusinessRules realm, PreviousVersionComparator previousVersionComparator, IpaComparator ipaComparator, IpsComparator ipsComparator,
@@ -356,6 +363,15 @@ public class ValidationPresenter extends TranslatingUtilities implements Compara
     return noValidation;
   }
 
+  /**
+   * For IGs with very many messages: the messages are also written to qa.ndjson (and
+   * qa.ndjson.gz), and the html reports only contain the summary for each file; the
+   * messages for a file are loaded on demand from qa-pages/
+   */
+  public void setStreamOutputs(boolean streamOutputs) {
+    this.streamOutputs = streamOutputs;
+  }
+
 
   private List<FetchedFile> sorted(List<FetchedFile> files) {
     List<FetchedFile> list = new ArrayList<FetchedFile>();
@@ -391,6 +407,9 @@ public class ValidationPresenter extends TranslatingUtilities implements Compara
       }
     }
     
+    if (streamOutputs) {
+      genQANdjson(files, path, filteredMessages, linkErrors);
+    }
     files = genQAHtml(title, files, path, filteredMessages, linkErrors, true);
     files = genQAHtml(title, files, path, filteredMessages, linkErrors, false);
 
@@ -431,7 +450,13 @@ public class ValidationPresenter extends TranslatingUtilities implements Compara
 
   public void genQAESLintCompactText(String title, List<FetchedFile> files, String path, SuppressedMessageInformation filteredMessages, List<ValidationMessage> linkErrors)
       throws IOException {
-    StringBuilder b = new StringBuilder();
+    try (Writer b = openWriter(Utilities.changeFileExt(path, "-eslintcompact.txt"))) {
+      genQAESLintCompactText(b, title, files, filteredMessages, linkErrors);
+    }
+  }
+
+  private void genQAESLintCompactText(Writer b, String title, List<FetchedFile> files, SuppressedMessageInformation filteredMessages, List<ValidationMessage> linkErrors)
+      throws IOException {
     files = sorted(files);
 
     b.append(title + "\n");
@@ -473,13 +498,17 @@ public class ValidationPresenter extends TranslatingUtilities implements Compara
     b.append("\n");
     b.append("err = " + err + ", warn = " + warn + ", info = " + info + "\n");
     b.append("IG Publisher Version: " + toolsVersion);
-
-    TextFile.stringToFile(b.toString(), Utilities.changeFileExt(path, "-eslintcompact.txt"));
   }
 
   public void genQAText(String title, List<FetchedFile> files, String path, SuppressedMessageInformation filteredMessages, List<ValidationMessage> linkErrors)
       throws IOException {
-    StringBuilder b = new StringBuilder();
+    try (Writer b = openWriter(Utilities.changeFileExt(path, ".txt"))) {
+      genQAText(b, title, files, filteredMessages, linkErrors);
+    }
+  }
+
+  private void genQAText(Writer b, String title, List<FetchedFile> files, SuppressedMessageInformation filteredMessages, List<ValidationMessage> linkErrors)
+      throws IOException {
     b.append(genHeaderTxt(title, err, warn, info));
     b.append(genSummaryRowTxtInternal(linkErrors));
     files = sorted(files);
@@ -497,12 +526,19 @@ public class ValidationPresenter extends TranslatingUtilities implements Compara
       b.append(genEndTxt());
     }    
     b.append(genFooterTxt(title));
-    TextFile.stringToFile(b.toString(), Utilities.changeFileExt(path, ".txt"));
   }
 
   public List<FetchedFile> genQAHtml(String title, List<FetchedFile> files, String path, SuppressedMessageInformation filteredMessages, List<ValidationMessage> linkErrors, boolean allIssues) throws IOException {
-    StringBuilder b = new StringBuilder();
+    try (Writer b = openWriter(allIssues ? path : Utilities.changeFileExt(path, ".min.html"))) {
+      return genQAHtml(b, title, files, path, filteredMessages, linkErrors, allIssues);
+    }
+  }
+
+  private List<FetchedFile> genQAHtml(Writer b, String title, List<FetchedFile> files, String path, SuppressedMessageInformation filteredMessages, List<ValidationMessage> linkErrors, boolean allIssues) throws IOException {
     b.append(genHeader(title, err, warn, info, link, filteredMessages.count(), allIssues, path));
+    if (streamOutputs) {
+      b.append(pageLoaderScript);
+    }
     b.append(genSummaryRowInteral(linkErrors));
     files = sorted(files);
     for (FetchedFile f : files) {
@@ -518,6 +554,11 @@ public class ValidationPresenter extends TranslatingUtilities implements Compara
       id++;
     }
     b.append(genEnd());
+    if (streamOutputs) {
+      genQAHtmlPages(b, files, path, filteredMessages, allIssues, id);
+      b.append(genFooter(title));
+      return files;
+    }
     int i = 0;
     for (FetchedFile f : files) {
       if (allIssues || hasIssues(f, filteredMessages)) {
@@ -550,10 +591,86 @@ public class ValidationPresenter extends TranslatingUtilities implements Compara
       }
     }
     b.append(genFooter(title));
-    TextFile.stringToFile(b.toString(), allIssues ? path : Utilities.changeFileExt(path, ".min.html"));
     return files;
   }
 
+  /**
+   * The streaming form of the per file sections: each file gets a placeholder that loads
+   * its messages from qa-pages/[n].js when asked. The pages are written in the full
+   * report pass and shared by both reports. Messages are only filtered once per file,
+   * and the messages by type are summarised as counts (the details are in qa.ndjson)
+   */
+  private void genQAHtmlPages(Writer b, List<FetchedFile> files, String path, SuppressedMessageInformation filteredMessages, boolean allIssues, int id) throws IOException {
+    String pages = Utilities.path(Utilities.getDirectoryForFile(path), "qa-pages");
+    if (allIssues) {
+      Utilities.createDirectory(pages);
+      Utilities.clearDirectory(pages);
+    }
+    Map<String, Integer> counts = new TreeMap<>();
+    int i = 0;
+    int fi = 0;
+    for (FetchedFile f : files) {
+      fi++;
+      List<ValidationMessage> msgs = filterMessages(f.getErrors(), false, filteredMessages);
+      boolean issues = false;
+      boolean nonSignpost = false;
+      for (ValidationMessage vm : msgs) {
+        issues = issues || vm.getLevel() != IssueSeverity.INFORMATION;
+        nonSignpost = nonSignpost || !vm.isSignpost();
+        if (allIssues && vm.getMessageId() != null && !vm.isSignpost()) {
+          counts.put(vm.getMessageId(), counts.getOrDefault(vm.getMessageId(), 0) + 1);
+        }
+      }
+      if (allIssues || issues) {
+        i++;
+        b.append(genStart(f, i));
+        if (!nonSignpost) {
+          b.append(startTemplateNoErrors);
+        } else {
+          b.append(startTemplateErrors);
+          b.append("   <tr id=\"qap"+fi+"\"><td colspan=\"3\"><span class=\"toggle\" onclick=\"qaLoad('p"+fi+"')\">Show "+msgs.size()+" "+Utilities.pluralize("message", msgs.size())+"</span></td></tr>\r\n");
+          if (allIssues) {
+            StringBuilder rows = new StringBuilder();
+            for (ValidationMessage vm : msgs) {
+              rows.append(genDetails(vm, id));
+              id++;
+            }
+            TextFile.stringToFile("qaPage('p"+fi+"', \""+Utilities.escapeJson(rows.toString())+"\");\n", Utilities.path(pages, "p"+fi+".js"));
+          }
+        }
+        b.append(genEnd());
+      }
+    }
+    b.append(genSuppressedMessages(filteredMessages));
+    if (allIssues) {
+      b.append("<a name=\"sorted\"> </a>\r\n<p><b>Errors sorted by type</b> (the messages themselves are in <a href=\"qa.ndjson\">qa.ndjson</a>)</p>\r\n");
+      b.append(" <table class=\"grid\">\r\n");
+      for (String n : counts.keySet()) {
+        b.append("   <tr><td>"+Utilities.escapeXml(n)+"</td><td>"+counts.get(n)+"</td></tr>\r\n");
+      }
+      b.append(genGroupEnd());
+    }
+  }
+
+  private void genQANdjson(List<FetchedFile> files, String path, SuppressedMessageInformation filteredMessages, List<ValidationMessage> linkErrors) throws IOException {
+    try (QAMessageWriter w = new QAMessageWriter(Utilities.changeFileExt(path, ".ndjson"))) {
+      for (ValidationMessage vm : linkErrors) {
+        w.write(null, vm);
+      }
+      for (FetchedFile f : sorted(files)) {
+        for (ValidationMessage vm : filterMessages(f.getErrors(), false, filteredMessages)) {
+          w.write(makeLocal(f.getPath()), vm);
+        }
+      }
+    }
+  }
+
+  private Writer openWriter(String path) throws IOException {
+    Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(path)), StandardCharsets.UTF_8));
+    w.write('\ufeff'); // as TextFile.stringToFile does
+    return w;
+  }
+
 
 
   private boolean countNonSignpostMessages(FetchedFile f, SuppressedMessageInformation filteredMessages) {
@@ -808,6 +925,20 @@ public class ValidationPresenter extends TranslatingUtilities implements Compara
       "     <td><b><a href=\"$pathlink$\">$path$</a></b></td><td><b>$level$</b></td><td><b>$msg$</b>$comment$</td>\r\n"+
       "   </tr>\r\n";
   
+  private final String pageLoaderScript = 
+      "<script>\r\n"+
+      "  function qaLoad(id) {\r\n"+
+      "    var s = document.createElement('script');\r\n"+
+      "    s.src = 'qa-pages/'+id+'.js';\r\n"+
+      "    document.head.appendChild(s);\r\n"+
+      "  }\r\n"+
+      "  function qaPage(id, rows) {\r\n"+
+      "    var tr = document.getElementById('qa'+id);\r\n"+
+      "    tr.insertAdjacentHTML('afterend', rows);\r\n"+
+      "    tr.parentNode.removeChild(tr);\r\n"+
+      "  }\r\n"+
+      "</script>\r\n";
+
   private final String footerTemplate = 
       "</body>\r\n"+
       "</html>\r\n";
@@ -1256,7 +1387,7 @@ public class ValidationPresenter extends TranslatingUtilities implements Compara
     return loc;
   }
 
-  private Object genGroupDetails(FetchedFile f, ValidationMessage vm) {
+  private String genGroupDetails(FetchedFile f, ValidationMessage vm) {
     ST t = template(groupDetailsTemplate);
     t.add("link", makelink(f));
     t.add("filename", f.getName());
@@ -0,0 +1,158 @@
+package org.hl7.fhir.igtools.publisher;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.igtools.publisher.CqlSubSystem.CqlSource;
+import org.hl7.fhir.igtools.publisher.CqlSubSystem.CqlSourceFileInformation;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+
+public class CqlSubSystemTests {
+
+  private static CqlSubSystem cql(List<NpmPackage> packages) {
+    return new CqlSubSystem(packages, new ArrayList<>(), null, null, null, "example.cql", "http://example.org/fhir");
+  }
+
+  private static CqlSource source(Path dir, String name, String... includes) throws IOException {
+    StringBuilder b = new StringBuilder();
+    b.append("library "+name+" version '1.0.0'\n\n");
+    for (String include : includes) {
+      b.append("include "+include+" version '1.0.0' called "+include+"\n");
+    }
+    b.append("\ndefine \"X\": 1\n");
+    Path f = dir.resolve(name+".cql");
+    Files.writeString(f, b.toString(), StandardCharsets.UTF_8);
+    return new CqlSource(f.toFile());
+  }
+
+  private static Map<String, CqlSource> index(List<CqlSource> list) {
+    Map<String, CqlSource> res = new HashMap<>();
+    for (CqlSource src : list) {
+      res.put(src.getName(), src);
+    }
+    return res;
+  }
+
+  private static List<List<String>> names(List<List<CqlSource>> waves) {
+    return waves.stream().map(w -> w.stream().map(CqlSource::getName).sorted().collect(Collectors.toList())).collect(Collectors.toList());
+  }
+
+  @Test
+  public void testWaves(@TempDir Path dir) throws IOException {
+    // D includes B and C, which both include A; E includes a library that isn't here
+    List<CqlSource> list = new ArrayList<>();
+    list.add(source(dir, "D", "B", "C"));
+    list.add(source(dir, "B", "A"));
+    list.add(source(dir, "C", "A", "FHIRHelpers"));
+    list.add(source(dir, "A"));
+    list.add(source(dir, "E", "FHIRHelpers"));
+    assertEquals(List.of(List.of("A", "E"), List.of("B", "C"), List.of("D")), names(CqlSubSystem.waves(list, index(list))));
+  }
+
+  @Test
+  public void testWavesWithCycle(@TempDir Path dir) throws IOException {
+    // B and C include each other, so once A is done, everything that's left goes together
+    List<CqlSource> list = new ArrayList<>();
+    list.add(source(dir, "A"));
+    list.add(source(dir, "B", "A", "C"));
+    list.add(source(dir, "C", "B"));
+    list.add(source(dir, "D", "C"));
+    assertEquals(List.of(List.of("A"), List.of("B", "C", "D")), names(CqlSubSystem.waves(list, index(list))));
+  }
+
+  private static String key(CqlSubSystem cql, Path dir, String name, String context) throws IOException {
+    List<CqlSource> list = new ArrayList<>();
+    try (Stream<Path> s = Files.list(dir)) {
+      for (Path f : s.filter(p -> p.toString().endsWith(".cql")).sorted().collect(Collectors.toList())) {
+        list.add(new CqlSource(f.toFile()));
+      }
+    }
+    Map<String, CqlSource> sources = index(list);
+    return cql.key(sources.get(name), sources, context, new HashSet<>());
+  }
+
+  @Test
+  public void testKey(@TempDir Path dir) throws IOException {
+    CqlSubSystem cql = cql(new ArrayList<>());
+    source(dir, "A");
+    source(dir, "B", "A");
+    source(dir, "C", "B");
+    String key = key(cql, dir, "C", "context");
+    assertEquals(key, key(cql, dir, "C", "context"));
+    assertNotEquals(key, key(cql, dir, "C", "other context"));
+
+    // a change to a library that C includes indirectly changes C's key
+    Files.writeString(dir.resolve("A.cql"), "library A version '1.0.0'\n\ndefine \"X\": 2\n", StandardCharsets.UTF_8);
+    String changed = key(cql, dir, "C", "context");
+    assertNotEquals(key, changed);
+
+    // and so does a cycle, without looping
+    source(dir, "A", "C");
+    assertNotEquals(changed, key(cql, dir, "C", "context"));
+  }
+
+  @Test
+  public void testCacheContext(@TempDir Path dir) throws IOException {
+    NpmPackage npm = Mockito.mock(NpmPackage.class);
+    Mockito.when(npm.name()).thenReturn("example.dependency");
+    Mockito.when(npm.version()).thenReturn("current");
+    Mockito.when(npm.date()).thenReturn("20260101120000");
+    List<NpmPackage> packages = new ArrayList<>();
+    packages.add(npm);
+    CqlSubSystem cql = cql(packages);
+    String context = cql.cacheContext(dir.toString());
+    assertEquals(context, cql.cacheContext(dir.toString()));
+
+    // a new build of the same version
+    Mockito.when(npm.date()).thenReturn("20260102120000");
+    String rebuilt = cql.cacheContext(dir.toString());
+    assertNotEquals(context, rebuilt);
+
+    // the options
+    Files.writeString(dir.resolve("cql-options.json"), "{\"options\":[\"EnableAnnotations\"]}", StandardCharsets.UTF_8);
+    assertNotEquals(rebuilt, cql.cacheContext(dir.toString()));
+  }
+
+  @Test
+  public void testHitAndMiss(@TempDir Path dir) throws IOException {
+    CqlSubSystem cql = cql(new ArrayList<>());
+    CqlElmCache cache = new CqlElmCache(dir.toString());
+    String key = CqlElmCache.hash("context", "library A");
+    assertFalse(cache.load(key, cql.new CqlSourceFileInformation()));
+
+    CqlSourceFileInformation result = cql.new CqlSourceFileInformation();
+    result.setIdentifier(new VersionedIdentifier().withId("A").withVersion("1.0.0").withSystem("http://example.org/fhir"));
+    result.setElm("<library xmlns=\"urn:hl7-org:elm:r1\"/>".getBytes(StandardCharsets.UTF_8));
+    cache.store(key, result);
+
+    // another build, with the same folder
+    cache = new CqlElmCache(dir.toString());
+    CqlSourceFileInformation loaded = cql.new CqlSourceFileInformation();
+    assertTrue(cache.load(key, loaded));
+    assertEquals("A", loaded.getIdentifier().getId());
+    assertEquals("1.0.0", loaded.getIdentifier().getVersion());
+    assertArrayEquals(result.getElm(), loaded.getElm());
+    assertFalse(cache.load(CqlElmCache.hash("context", "library B"), cql.new CqlSourceFileInformation()));
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+}
@@ -0,0 +1,140 @@
+package org.hl7.fhir.igtools.publisher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.file.Path;
+
+import org.hl7.fhir.r5.context.ILoggingService;
+import org.hl7.fhir.r5.context.IWorkerContext;
+import org.hl7.fhir.r5.model.CodeSystem;
+import org.hl7.fhir.r5.model.Enumerations.CodeSystemContentMode;
+import org.hl7.fhir.r5.model.Enumerations.PublicationStatus;
+import org.hl7.fhir.r5.model.ValueSet;
+import org.hl7.fhir.r5.terminologies.expansion.ValueSetExpansionOutcome;
+import org.hl7.fhir.utilities.xhtml.NodeType;
+import org.hl7.fhir.utilities.xhtml.XhtmlNode;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+
+public class ExpansionCacheTests {
+
+  private static final String CS = "http://example.org/fhir/CodeSystem/test";
+  private static final String VS = "http://example.org/fhir/ValueSet/test";
+  private static final String IMPORTED = "http://example.org/fhir/ValueSet/imported";
+
+  private static CodeSystem codeSystem(String version, CodeSystemContentMode content) {
+    CodeSystem cs = new CodeSystem();
+    cs.setUrl(CS);
+    cs.setVersion(version);
+    cs.setStatus(PublicationStatus.ACTIVE);
+    cs.setContent(content);
+    cs.addConcept().setCode("a");
+    return cs;
+  }
+
+  private static ValueSet valueSet(String url, String system) {
+    ValueSet vs = new ValueSet();
+    vs.setUrl(url);
+    vs.setVersion("1.0.0");
+    vs.setStatus(PublicationStatus.ACTIVE);
+    vs.getCompose().addInclude().setSystem(system);
+    return vs;
+  }
+
+  private IWorkerContext context(CodeSystem cs) {
+    IWorkerContext context = Mockito.mock(IWorkerContext.class);
+    Mockito.when(context.fetchCodeSystem(CS, null)).thenReturn(cs);
+    return context;
+  }
+
+  private String key(Path dir, IWorkerContext context, String server, ValueSet vs) {
+    ExpansionCache cache = new ExpansionCache(dir.resolve("expansions.db").toString(), context, server, Mockito.mock(ILoggingService.class));
+    try {
+      return cache.makeKey(vs, true, false, false);
+    } finally {
+      cache.close();
+    }
+  }
+
+  @Test
+  public void testKey(@TempDir Path dir) {
+    IWorkerContext context = context(codeSystem("1", CodeSystemContentMode.COMPLETE));
+    String key = key(dir, context, "http://tx.example.org", valueSet(VS, CS));
+    assertNotNull(key);
+    assertEquals(key, key(dir, context, "http://tx.example.org", valueSet(VS, CS)));
+
+    // the narrative and the expansion don't count
+    ValueSet vs = valueSet(VS, CS);
+    vs.getText().setDiv(new XhtmlNode(NodeType.Element, "div").tx("Some narrative"));
+    vs.getExpansion().setIdentifier("urn:uuid:1234");
+    assertEquals(key, key(dir, context, "http://tx.example.org", vs));
+
+    // the definition, the server and the code system version do
+    vs = valueSet(VS, CS);
+    vs.getCompose().getIncludeFirstRep().addConcept().setCode("a");
+    assertNotEquals(key, key(dir, context, "http://tx.example.org", vs));
+    assertNotEquals(key, key(dir, context, "http://tx2.example.org", valueSet(VS, CS)));
+    assertNotEquals(key, key(dir, context(codeSystem("2", CodeSystemContentMode.COMPLETE)), "http://tx.example.org", valueSet(VS, CS)));
+  }
+
+  @Test
+  public void testImports(@TempDir Path dir) {
+    IWorkerContext context = context(codeSystem("1", CodeSystemContentMode.COMPLETE));
+    ValueSet vs = new ValueSet();
+    vs.setUrl(VS);
+    vs.setStatus(PublicationStatus.ACTIVE);
+    vs.getCompose().addInclude().addValueSet(IMPORTED);
+    // not available locally
+    assertNull(key(dir, context, "http://tx.example.org", vs));
+
+    Mockito.when(context.fetchResource(ValueSet.class, IMPORTED)).thenReturn(valueSet(IMPORTED, CS));
+    String key = key(dir, context, "http://tx.example.org", vs);
+    assertNotNull(key);
+    ValueSet imported = valueSet(IMPORTED, CS);
+    imported.getCompose().getIncludeFirstRep().addConcept().setCode("a");
+    Mockito.when(context.fetchResource(ValueSet.class, IMPORTED)).thenReturn(imported);
+    assertNotEquals(key, key(dir, context, "http://tx.example.org", vs));
+  }
+
+  @Test
+  public void testExclusions(@TempDir Path dir) {
+    // code systems that aren't here, or aren't all here, are up to the terminology server
+    assertNull(key(dir, context(null), "http://tx.example.org", valueSet(VS, CS)));
+    assertNull(key(dir, context(codeSystem("1", CodeSystemContentMode.FRAGMENT)), "http://tx.example.org", valueSet(VS, CS)));
+    assertNull(key(dir, context(codeSystem("1", CodeSystemContentMode.NOTPRESENT)), "http://tx.example.org", valueSet(VS, CS)));
+    assertNull(key(dir, context(codeSystem("1", CodeSystemContentMode.EXAMPLE)), "http://tx.example.org", valueSet(VS, CS)));
+    CodeSystem supplement = codeSystem("1", CodeSystemContentMode.COMPLETE);
+    supplement.setSupplements("http://example.org/fhir/CodeSystem/base");
+    assertNull(key(dir, context(supplement), "http://tx.example.org", valueSet(VS, CS)));
+
+    // and so is an excluded code system
+    ValueSet vs = valueSet(VS, CS);
+    vs.getCompose().addExclude().setSystem("http://example.org/fhir/CodeSystem/other");
+    assertNull(key(dir, context(codeSystem("1", CodeSystemContentMode.COMPLETE)), "http://tx.example.org", vs));
+  }
+
+  @Test
+  public void testHitAndMiss(@TempDir Path dir) {
+    IWorkerContext context = context(codeSystem("1", CodeSystemContentMode.COMPLETE));
+    ValueSet expansion = valueSet(VS, CS);
+    expansion.getExpansion().addContains().setSystem(CS).setCode("a");
+    Mockito.when(context.expandVS(Mockito.any(ValueSet.class), Mockito.anyBoolean(), Mockito.anyBoolean(), Mockito.anyBoolean())).thenReturn(new ValueSetExpansionOutcome(expansion));
+    String filename = dir.resolve("expansions.db").toString();
+
+    ExpansionCache cache = new ExpansionCache(filename, context, "http://tx.example.org", Mockito.mock(ILoggingService.class));
+    cache.expand(valueSet(VS, CS), true, false, false);
+    cache.close();
+    // another build, with the same file
+    cache = new ExpansionCache(filename, context, "http://tx.example.org", Mockito.mock(ILoggingService.class));
+    ValueSetExpansionOutcome res = cache.expand(valueSet(VS, CS), true, false, false);
+    assertEquals("a", res.getValueset().getExpansion().getContainsFirstRep().getCode());
+    assertEquals("Expansion cache: hits = 1, misses = 0", cache.summary());
+    cache.expand(valueSet(VS, "http://example.org/fhir/CodeSystem/other"), true, false, false);
+    cache.close();
+    Mockito.verify(context, Mockito.times(2)).expandVS(Mockito.any(ValueSet.class), Mockito.anyBoolean(), Mockito.anyBoolean(), Mockito.anyBoolean());
+  }
+}
@@ -2,12 +2,20 @@ package org.hl7.fhir.igtools.publisher;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.stream.Stream;
 
 import org.apache.commons.exec.CommandLine;
 import org.hl7.fhir.r5.context.ILoggingService;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
@@ -99,4 +107,66 @@ public class FSHRunnerTests {
 		final CommandLine actualCommandLine = fshRunner.getNpmPathCommandLine(fshVersion, mode);
 		assertIsEqual(CommandLine.parse(expectedExecString), actualCommandLine);
 	}
+
+	@Test
+	public void testFingerprint(@TempDir Path dir) throws IOException {
+		FSHRunner fshRunner = new FSHRunner(Mockito.mock(ILoggingService.class));
+		Files.createDirectories(dir.resolve("input").resolve("fsh"));
+		Files.writeString(dir.resolve("sushi-config.yaml"), "id: test\n");
+		Files.writeString(dir.resolve("input").resolve("fsh").resolve("a.fsh"), "Profile: A\nParent: Patient\n");
+		File file = dir.toFile();
+		String fingerprint = fshRunner.fingerprint(file, null);
+		assertEquals(fingerprint, fshRunner.fingerprint(file, null));
+		assertNotEquals(fingerprint, fshRunner.fingerprint(file, "1.2.3"));
+
+		Files.writeString(dir.resolve("input").resolve("fsh").resolve("a.fsh"), "Profile: A\nParent: Observation\n");
+		assertNotEquals(fingerprint, fshRunner.fingerprint(file, null));
+		fingerprint = fshRunner.fingerprint(file, null);
+
+		// output, and files sushi doesn't read, don't matter
+		Files.createDirectories(dir.resolve("fsh-generated"));
+		Files.writeString(dir.resolve("fsh-generated").resolve("x.json"), "{}");
+		Files.writeString(dir.resolve("input").resolve("index.md"), "# Index");
+		assertEquals(fingerprint, fshRunner.fingerprint(file, null));
+	}
+
+	@Test
+	public void testListDependencies() {
+		FSHRunner fshRunner = new FSHRunner(Mockito.mock(ILoggingService.class));
+		String config = "id: test\n"
+				+ "dependencies:\n"
+				+ "  hl7.fhir.us.core: 3.1.0\n"
+				+ "  # a comment\n"
+				+ "  hl7.fhir.uv.extensions: \"current\" # the ci build\n"
+				+ "  hl7.fhir.us.mcode:\n"
+				+ "    id: mcode\n"
+				+ "    uri: http://hl7.org/fhir/us/mcode/ImplementationGuide/hl7.fhir.us.mcode\n"
+				+ "    version: 1.0.0\n"
+				+ "pages:\n"
+				+ "  index.md: Home\n";
+		assertEquals(List.of("hl7.fhir.us.core#3.1.0", "hl7.fhir.uv.extensions#current", "hl7.fhir.us.mcode#1.0.0"), fshRunner.listDependencies(config));
+	}
+
+	@Test
+	public void testFingerprintDependencies(@TempDir Path dir) throws IOException {
+		Path ig = Files.createDirectories(dir.resolve("ig"));
+		Path pj = Files.createDirectories(dir.resolve("cache").resolve("hl7.fhir.uv.extensions#current").resolve("package")).resolve("package.json");
+		FSHRunner fshRunner = new FSHRunner(Mockito.mock(ILoggingService.class));
+		fshRunner.setPackageCacheFolder(dir.resolve("cache").toString());
+		Files.writeString(ig.resolve("sushi-config.yaml"), "id: test\ndependencies:\n  hl7.fhir.uv.extensions: current\n");
+		File file = ig.toFile();
+		String missing = fshRunner.fingerprint(file, null);
+
+		// a new build of the #current package keeps the version, but changes the fingerprint
+		Files.writeString(pj, "{\"name\" : \"hl7.fhir.uv.extensions\", \"version\" : \"current\", \"date\" : \"20240101\"}");
+		String fingerprint = fshRunner.fingerprint(file, null);
+		assertNotEquals(missing, fingerprint);
+		assertEquals(fingerprint, fshRunner.fingerprint(file, null));
+		Files.writeString(pj, "{\"name\" : \"hl7.fhir.uv.extensions\", \"version\" : \"current\", \"date\" : \"20240202\"}");
+		assertNotEquals(fingerprint, fshRunner.fingerprint(file, null));
+
+		// which version latest is can't be known without sushi
+		Files.writeString(ig.resolve("sushi-config.yaml"), "id: test\ndependencies:\n  hl7.fhir.uv.extensions: latest\n");
+		assertNull(fshRunner.fingerprint(file, null));
+	}
 }
@@ -0,0 +1,37 @@
+package org.hl7.fhir.igtools.publisher;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class FragmentUsageTests {
+
+  @Test
+  public void testLiteralAndPatterns() {
+    FragmentUsage fu = new FragmentUsage();
+    fu.scanSource("<div>{% include StructureDefinition-a-snapshot.xhtml %}</div>\n"+
+        "{%- include {{[type]}}-{{[id]}}-summary.xhtml -%}\n"+
+        "{% include {{ page.id }}-intro.xml param=x %}\n"+
+        "{% raw %}{% include StructureDefinition-a-diff.xhtml %}{% endraw %}");
+    assertEquals(3, fu.referenceCount());
+    assertTrue(fu.isWanted("StructureDefinition", "a", "snapshot"));
+    assertFalse(fu.isWanted("StructureDefinition", "b", "snapshot"));
+    assertFalse(fu.isWanted("StructureDefinition", "a", "diff"));
+    assertTrue(fu.isWanted("ValueSet", "x", "summary"));
+    assertTrue(fu.isWanted("ValueSet", "x", "json"));
+    assertEquals(2, fu.skippedCount());
+  }
+
+  @Test
+  public void testRelatedNamesAndKept() {
+    FragmentUsage fu = new FragmentUsage();
+    fu.scanSource("{% include StructureDefinition-a-maps-all.xhtml %}{% include StructureDefinition-example-list-a.xhtml %}");
+    fu.addReference("CodeSystem-*-xref");
+    assertTrue(fu.isWanted("StructureDefinition", "a", "maps"));
+    assertTrue(fu.isWanted("StructureDefinition", "a", "example-list"));
+    assertTrue(fu.isWanted("CodeSystem", "x", "xref"));
+    assertFalse(fu.isWanted("StructureDefinition", "a", "xref"));
+  }
+}
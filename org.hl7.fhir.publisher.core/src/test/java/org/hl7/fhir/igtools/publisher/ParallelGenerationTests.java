@@ -0,0 +1,65 @@
+package org.hl7.fhir.igtools.publisher;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.hl7.fhir.igtools.publisher.Publisher.IGBuildMode;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Builds the same guide serially and with -parallel-generation, and checks that the fragments
+ * generated for the resources are the same
+ */
+public class ParallelGenerationTests {
+
+  private Path build(Path dir, boolean parallel) throws Exception {
+    Path source = Paths.get(getClass().getClassLoader().getResource("parallel-ig").toURI());
+    try (Stream<Path> s = Files.walk(source)) {
+      for (Path p : s.collect(Collectors.toList())) {
+        Path t = dir.resolve(source.relativize(p).toString());
+        if (Files.isDirectory(p)) {
+          Files.createDirectories(t);
+        } else {
+          Files.copy(p, t);
+        }
+      }
+    }
+    Publisher publisher = new Publisher();
+    publisher.setConfigFile(dir.resolve("ig.ini").toString());
+    publisher.setMode(IGBuildMode.MANUAL);
+    publisher.setTxServer("n/a");
+    publisher.setParallelGeneration(parallel);
+    publisher.execute();
+    return dir.resolve("temp").resolve("pages").resolve("_includes");
+  }
+
+  private List<String> fragments(Path dir) throws Exception {
+    try (Stream<Path> s = Files.list(dir)) {
+      return s.map(p -> p.getFileName().toString())
+          .filter(n -> n.startsWith("StructureDefinition-") || n.startsWith("ValueSet-") || n.startsWith("CodeSystem-"))
+          .sorted().collect(Collectors.toList());
+    }
+  }
+
+  @Test
+  public void testParallelMatchesSerial(@TempDir Path dir) throws Exception {
+    Path serial = build(dir.resolve("serial"), false);
+    Path parallel = build(dir.resolve("parallel"), true);
+
+    List<String> names = fragments(serial);
+    assertFalse(names.isEmpty());
+    assertEquals(names, fragments(parallel));
+    for (String name : names) {
+      assertArrayEquals(Files.readAllBytes(serial.resolve(name)), Files.readAllBytes(parallel.resolve(name)), name);
+    }
+  }
+}
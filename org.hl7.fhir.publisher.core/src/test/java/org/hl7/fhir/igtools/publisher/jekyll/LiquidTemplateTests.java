@@ -0,0 +1,91 @@
+package org.hl7.fhir.igtools.publisher.jekyll;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.junit.jupiter.api.Test;
+
+public class LiquidTemplateTests {
+
+  private Map<String, LiquidTemplate> includes = new HashMap<>();
+
+  private List<String> warnings = new ArrayList<>();
+
+  private String render(String source, String yaml, boolean strict) {
+    Map<String, Object> env = new HashMap<>();
+    env.put("page", YamlParser.parseMap(yaml));
+    LiquidContext ctx = new LiquidContext(env, (name, relative, context) -> includes.get(name), null, strict, warnings);
+    return LiquidTemplate.parse("test", source, strict).render(ctx);
+  }
+
+  @Test
+  public void testOutputAndFilters() {
+    assertEquals("A &amp; B", render("{{ page.title | escape }}", "title: A & B", true));
+    assertEquals("a-b-c", render("{{ page.list | join: '-' | downcase }}", "list: [A, B, C]", true));
+    assertEquals("3", render("{{ page.list.size }}", "list: [A, B, C]", true));
+    assertEquals("7", render("{{ page.n | plus: 2 }}", "n: 5", true));
+    assertEquals("none", render("{{ page.missing | default: 'none' }}", "n: 5", true));
+  }
+
+  @Test
+  public void testConditions() {
+    assertEquals("yes", render("{% if page.n > 3 and page.s == 'x' %}yes{% else %}no{% endif %}", "n: 5\ns: x", true));
+    assertEquals("b", render("{% if page.n == 1 %}a{% elsif page.n == 5 %}b{% endif %}", "n: 5", true));
+    assertEquals("ok", render("{% unless page.missing %}ok{% endunless %}", "n: 5", true));
+    assertEquals("yes", render("{% if page.list contains 'B' %}yes{% endif %}", "list: [A, B]", true));
+    assertEquals("R4", render("{% case page.v %}{% when '3.0.2' %}STU3{% when '4.0.1', '4.0.0' %}R4{% endcase %}", "v: '4.0.1'", true));
+  }
+
+  @Test
+  public void testLoopsAndAssign() {
+    assertEquals("1:a,2:b", render("{% for i in page.list %}{{ forloop.index }}:{{ i }}{% unless forloop.last %},{% endunless %}{% endfor %}", "list: [a, b]", true));
+    assertEquals("13", render("{% for i in (1..5) %}{% if i == 2 %}{% continue %}{% endif %}{% if i == 4 %}{% break %}{% endif %}{{ i }}{% endfor %}", "n: 1", true));
+    assertEquals("b", render("{% for i in page.list %}{% assign last = i %}{% endfor %}{{ last }}", "list: [a, b]", true));
+    assertEquals("[x]", render("{% capture c %}x{% endcapture %}[{{ c }}]", "n: 1", true));
+  }
+
+  @Test
+  public void testRawAndWhitespace() {
+    assertEquals("{{ not.liquid }}", render("{% raw %}{{ not.liquid }}{% endraw %}", "n: 1", true));
+    assertEquals("a|b", render("a  {%- if true -%}  |  {%- endif -%}  b", "n: 1", true));
+  }
+
+  @Test
+  public void testIncludes() {
+    includes.put("inc.html", LiquidTemplate.parse("inc.html", "<{{ include.x }}/{{ page.id }}>", true));
+    includes.put("p1-intro.xml", LiquidTemplate.parse("p1-intro.xml", "intro", true));
+    assertEquals("<1/p1>", render("{% include inc.html x=page.n %}", "n: 1\nid: p1", true));
+    assertEquals("intro", render("{% include {{ page.id }}-intro.xml %}", "id: p1", true));
+  }
+
+  @Test
+  public void testStrictMode() {
+    assertThrows(FHIRException.class, () -> render("{% unknowntag %}", "n: 1", true));
+    assertThrows(FHIRException.class, () -> render("{{ 'x' | nosuchfilter }}", "n: 1", true));
+    warnings.clear();
+    assertEquals("x", render("{% unknowntag %}{{ 'x' | nosuchfilter }}", "n: 1", false));
+    assertTrue(warnings.stream().anyMatch(w -> w.contains("Unknown tag 'unknowntag'") && w.contains("line 1 of test")), warnings.toString());
+    assertTrue(warnings.stream().anyMatch(w -> w.contains("nosuchfilter")), warnings.toString());
+    warnings.clear();
+    assertEquals("ab", render("a{% unknownblock %}{% endunknownblock %}b", "n: 1", false));
+    assertEquals(1, warnings.size(), warnings.toString());
+  }
+
+  @Test
+  public void testYaml() {
+    Map<String, Object> map = YamlParser.parseMap("a: 1\nb:\n  - x\n  - y: 2\n    z: 'q'\nc: {d: true}\n# comment\ne: \"s # not a comment\"");
+    assertEquals(1L, map.get("a"));
+    List<?> b = (List<?>) map.get("b");
+    assertEquals("x", b.get(0));
+    assertEquals("q", ((Map<?, ?>) b.get(1)).get("z"));
+    assertEquals(Boolean.TRUE, ((Map<?, ?>) map.get("c")).get("d"));
+    assertEquals("s # not a comment", map.get("e"));
+  }
+}
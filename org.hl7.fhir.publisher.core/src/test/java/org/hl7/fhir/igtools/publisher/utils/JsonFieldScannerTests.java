@@ -0,0 +1,38 @@
+package org.hl7.fhir.igtools.publisher.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+public class JsonFieldScannerTests {
+
+  private static final String SD = "{\"resourceType\":\"StructureDefinition\",\"url\":\"http://example.org/sd\",\"text\":{\"div\":\"<div/>\"},"+
+      "\"differential\":{\"element\":[{\"path\":\"Bundle\",\"min\":1},{\"path\":\"Bundle.type\",\"fixedCode\":\"document\","+
+      "\"type\":[{\"code\":\"Reference\",\"targetProfile\":[\"http://example.org/a\",\"http://example.org/b\"]}]}]}}";
+
+  @Test
+  public void testPaths() throws IOException {
+    Map<String, List<String>> res = new JsonFieldScanner("resourceType", "url", "differential.element.min", "differential.element.type.targetProfile").scan(SD.getBytes(StandardCharsets.UTF_8));
+    assertEquals(List.of("StructureDefinition"), res.get("resourceType"));
+    assertEquals(List.of("http://example.org/sd"), res.get("url"));
+    assertEquals(List.of("1"), res.get("differential.element.min"));
+    assertEquals(List.of("http://example.org/a", "http://example.org/b"), res.get("differential.element.type.targetProfile"));
+    assertFalse(res.containsKey("text.div"));
+  }
+
+  @Test
+  public void testObjects() throws IOException {
+    List<String> found = new ArrayList<>();
+    new JsonFieldScanner("differential.element.path", "differential.element.fixedCode").scan(new ByteArrayInputStream(SD.getBytes(StandardCharsets.UTF_8)),
+        (path, value, object) -> found.add(object+":"+value));
+    assertEquals(List.of("2:Bundle", "3:Bundle.type", "3:document"), found);
+  }
+}
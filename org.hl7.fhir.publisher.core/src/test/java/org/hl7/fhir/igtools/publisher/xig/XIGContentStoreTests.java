@@ -0,0 +1,142 @@
+package org.hl7.fhir.igtools.publisher.xig;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class XIGContentStoreTests {
+
+  private static final byte[] DICTIONARY = "\"resourceType\":\"ValueSet\",\"id\":\"".getBytes(StandardCharsets.UTF_8);
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    StringBuilder b = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      b.append("{\"resourceType\":\"ValueSet\",\"id\":\"vs"+i+"\",\"status\":\"active\"}");
+    }
+    byte[] content = b.toString().getBytes(StandardCharsets.UTF_8);
+    byte[] packed = XIGContentStore.compress(content, DICTIONARY);
+    assertTrue(packed.length < content.length / 10);
+    assertArrayEquals(content, XIGContentStore.inflate(packed, DICTIONARY));
+  }
+
+  @Test
+  public void testEmpty() throws IOException {
+    assertArrayEquals(new byte[0], XIGContentStore.inflate(XIGContentStore.compress(new byte[0], DICTIONARY), DICTIONARY));
+  }
+
+  @Test
+  public void testTruncated() {
+    byte[] packed = XIGContentStore.compress("{\"resourceType\":\"ValueSet\",\"id\":\"test\"}".getBytes(StandardCharsets.UTF_8), DICTIONARY);
+    assertThrows(IOException.class, () -> XIGContentStore.inflate(Arrays.copyOf(packed, packed.length - 6), DICTIONARY));
+  }
+
+  // about 3MB for a package, so its content is spread over several segments
+  private static final int RESOURCES = 400;
+
+  private static byte[] json(int key) {
+    StringBuilder b = new StringBuilder();
+    b.append("{\"resourceType\":\"CodeSystem\",\"id\":\"cs"+key+"\",\"concept\":[");
+    for (int i = 0; i < 200; i++) {
+      b.append(i == 0 ? "" : ",").append("{\"code\":\"c"+key+"-"+i+"\",\"display\":\"Code "+i+"\"}");
+    }
+    b.append("]}");
+    return b.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static byte[] jsonR5(int key) {
+    return ("{\"resourceType\":\"CodeSystem\",\"id\":\"cs"+key+"\",\"status\":\"active\"}").getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static int count(Connection con, String sql) throws SQLException {
+    ResultSet rs = con.createStatement().executeQuery(sql);
+    rs.next();
+    return rs.getInt(1);
+  }
+
+  private void fill(XIGContentStore store) throws SQLException {
+    for (int i = 1; i <= RESOURCES; i++) {
+      store.add(1, i, json(i), i % 2 == 0 ? jsonR5(i) : null);
+    }
+    store.add(2, RESOURCES+1, json(RESOURCES+1), jsonR5(RESOURCES+1));
+    store.finishPackage();
+  }
+
+  private void check(XIGContentStore store, int from, int to) throws SQLException, IOException {
+    for (int i = from; i <= to; i++) {
+      assertArrayEquals(json(i), store.getJson(i));
+      if (i % 2 == 0) {
+        assertArrayEquals(jsonR5(i), store.getJsonR5(i));
+      } else {
+        assertNull(store.getJsonR5(i));
+      }
+    }
+  }
+
+  @Test
+  public void testSegments(@TempDir Path dir) throws SQLException, IOException {
+    try (Connection con = DriverManager.getConnection("jdbc:sqlite:"+dir.resolve("xig.db"))) {
+      XIGContentStore store = new XIGContentStore(con);
+      fill(store);
+      assertTrue(count(con, "select count(*) from ContentSegments where PackageKey = 1") > 2);
+      assertEquals(1, count(con, "select count(*) from ContentSegments where PackageKey = 2"));
+      assertEquals(RESOURCES, count(con, "select count(*) from ContentIndex where PackageKey = 1"));
+      // read backwards, so that the segments have to be loaded again
+      for (int i = RESOURCES; i >= 1; i--) {
+        assertArrayEquals(json(i), store.getJson(i));
+      }
+      check(store, 1, RESOURCES);
+      assertArrayEquals(json(RESOURCES+1), store.getJson(RESOURCES+1));
+      assertNull(store.getJson(RESOURCES+2));
+    }
+  }
+
+  @Test
+  public void testRemove(@TempDir Path dir) throws SQLException, IOException {
+    try (Connection con = DriverManager.getConnection("jdbc:sqlite:"+dir.resolve("xig.db"))) {
+      XIGContentStore store = new XIGContentStore(con);
+      fill(store);
+      check(store, 1, 3);
+      store.remove(1);
+      assertEquals(0, count(con, "select count(*) from ContentSegments where PackageKey = 1"));
+      assertEquals(0, count(con, "select count(*) from ContentIndex where PackageKey = 1"));
+      assertNull(store.getJson(1));
+      assertNull(store.getJson(RESOURCES));
+      assertArrayEquals(json(RESOURCES+1), store.getJson(RESOURCES+1));
+    }
+  }
+
+  @Test
+  public void testReopen(@TempDir Path dir) throws SQLException, IOException {
+    String url = "jdbc:sqlite:"+dir.resolve("xig.db");
+    try (Connection con = DriverManager.getConnection(url)) {
+      fill(new XIGContentStore(con));
+    }
+    try (Connection con = DriverManager.getConnection(url)) {
+      XIGContentStore store = new XIGContentStore(con);
+      assertEquals(1, count(con, "select count(*) from ContentDictionary"));
+      check(store, 1, RESOURCES);
+      // more resources for a package that is already there go in new segments after the existing ones
+      int segments = count(con, "select count(*) from ContentSegments where PackageKey = 1");
+      store.add(1, RESOURCES+2, json(RESOURCES+2), jsonR5(RESOURCES+2));
+      store.finishPackage();
+      assertEquals(segments+1, count(con, "select count(*) from ContentSegments where PackageKey = 1"));
+      check(store, 1, RESOURCES);
+      check(store, RESOURCES+2, RESOURCES+2);
+    }
+  }
+}
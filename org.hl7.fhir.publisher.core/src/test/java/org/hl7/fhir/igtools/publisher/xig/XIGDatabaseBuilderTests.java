@@ -0,0 +1,201 @@
+package org.hl7.fhir.igtools.publisher.xig;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.hl7.fhir.convertors.analytics.PackageVisitor.PackageContext;
+import org.hl7.fhir.utilities.npm.FilesystemPackageCacheManager;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+
+public class XIGDatabaseBuilderTests {
+
+  private static final String URL = "http://example.org/fhir/CodeSystem/shared";
+
+  private static String codeSystem(String url, String version) {
+    return "{\"resourceType\":\"CodeSystem\",\"id\":\"shared\",\"url\":\""+url+"\",\"version\":\""+version+"\",\"name\":\"Shared\",\"status\":\"active\",\"content\":\"complete\","+
+        "\"concept\":[{\"code\":\"a\",\"display\":\"A\"},{\"code\":\"b\",\"display\":\"B\"}]}";
+  }
+
+  // a package with one code system in it
+  private static NpmPackage makePackage(Path dir, String id, String version, String url) throws IOException {
+    Path folder = Files.createDirectories(dir.resolve(id+"#"+version).resolve("package"));
+    Files.writeString(folder.resolve("package.json"), "{\"name\":\""+id+"\",\"version\":\""+version+"\",\"fhirVersions\":[\"4.0.1\"],"+
+        "\"canonical\":\"http://example.org/"+id+"\",\"url\":\"http://example.org/"+id+"/"+version+"\",\"title\":\""+id+"\"}", StandardCharsets.UTF_8);
+    Files.writeString(folder.resolve("CodeSystem-shared.json"), codeSystem(url, version), StandardCharsets.UTF_8);
+    return NpmPackage.fromFolder(folder.getParent().toString());
+  }
+
+  private static void load(XIGDatabaseBuilder builder, NpmPackage npm) throws Exception {
+    PackageContext context = Mockito.mock(PackageContext.class);
+    Mockito.when(context.getPid()).thenReturn(npm.name()+"#"+npm.version());
+    Mockito.when(context.getNpm()).thenReturn(npm);
+    Mockito.when(context.getVersion()).thenReturn(npm.fhirVersion());
+    Object clientContext = builder.startPackage(context);
+    for (String name : npm.list("package")) {
+      if (name.endsWith(".json") && !name.equals("package.json")) {
+        builder.processResource(context, clientContext, "CodeSystem", name, npm.load("package", name).readAllBytes());
+      }
+    }
+    builder.finishPackage(context);
+  }
+
+  private static String query(Path db, String sql) throws SQLException {
+    try (Connection con = DriverManager.getConnection("jdbc:sqlite:"+db); ResultSet rs = con.createStatement().executeQuery(sql)) {
+      return rs.next() ? rs.getString(1) : null;
+    }
+  }
+
+  @Test
+  public void testCheckpointAndSkip(@TempDir Path dir) throws Exception {
+    Path db = dir.resolve("xig.db");
+    NpmPackage a = makePackage(dir, "example.a", "1.0.0", URL);
+
+    XIGDatabaseBuilder builder = new XIGDatabaseBuilder(db.toString(), true, "today");
+    builder.startRun();
+    load(builder, a);
+    builder.finish(true);
+    assertEquals("done", query(db, "select Status from PackageCheckpoints where PID = 'example.a#1.0.0'"));
+    assertEquals("1", query(db, "select count(*) from Resources"));
+    assertTrue(XIGDatabaseBuilder.canResume(db.toString()));
+
+    // an unchanged package isn't loaded again, but is marked as seen by this run
+    builder = new XIGDatabaseBuilder(db.toString(), false, "tomorrow");
+    builder.startRun();
+    PackageContext context = Mockito.mock(PackageContext.class);
+    Mockito.when(context.getPid()).thenReturn("example.a#1.0.0");
+    Mockito.when(context.getNpm()).thenReturn(a);
+    assertNull(builder.startPackage(context));
+    builder.finishPackage(context);
+    builder.finish(true);
+    assertEquals("2", query(db, "select Run from PackageCheckpoints where PID = 'example.a#1.0.0'"));
+    assertEquals("1", query(db, "select count(*) from Resources"));
+    assertEquals("2", query(db, "select Value from Metadata where Name = 'run'"));
+    assertEquals("tomorrow", query(db, "select Value from Metadata where Name = 'date'"));
+  }
+
+  @Test
+  public void testResumeAfterUnfinishedRun(@TempDir Path dir) throws Exception {
+    Path db = dir.resolve("xig.db");
+    NpmPackage a = makePackage(dir, "example.a", "1.0.0", URL);
+    NpmPackage b = makePackage(dir, "example.b", "1.0.0", "http://example.org/fhir/CodeSystem/other");
+
+    XIGDatabaseBuilder builder = new XIGDatabaseBuilder(db.toString(), true, "today");
+    builder.startRun();
+    load(builder, a);
+    builder.finish(false);
+    builder = new XIGDatabaseBuilder(db.toString(), false, "today");
+    builder.startRun();
+    load(builder, b);
+    // stops here, without finishing: b is committed, but the metadata still says run 1
+
+    builder = new XIGDatabaseBuilder(db.toString(), false, "today");
+    builder.startRun();
+    load(builder, a);
+    load(builder, b);
+    builder.finish(true);
+    assertEquals("3", query(db, "select Value from Metadata where Name = 'run'"));
+    assertEquals("3", query(db, "select Min(Run) from PackageCheckpoints"));
+    assertEquals("2", query(db, "select count(*) from Packages"));
+    assertEquals("2", query(db, "select count(*) from Resources"));
+    assertEquals("2", query(db, "select Value from Metadata where Name = 'resources'"));
+  }
+
+  @Test
+  public void testSupersededVersion(@TempDir Path dir) throws Exception {
+    Path db = dir.resolve("xig.db");
+    XIGDatabaseBuilder builder = new XIGDatabaseBuilder(db.toString(), true, "today");
+    builder.startRun();
+    load(builder, makePackage(dir, "example.a", "1.0.0", URL));
+    builder.finish(true);
+
+    // the new version takes the url over from the old one
+    builder = new XIGDatabaseBuilder(db.toString(), false, "today");
+    builder.startRun();
+    load(builder, makePackage(dir, "example.a", "2.0.0", URL));
+    builder.finish(true);
+    assertEquals("1", query(db, "select count(*) from Packages"));
+    assertEquals("example.a#2.0.0", query(db, "select PID from PackageCheckpoints"));
+    assertEquals("2.0.0", query(db, "select Version from Resources where Url = '"+URL+"'"));
+    assertEquals("1", query(db, "select count(*) from UrlClaims"));
+  }
+
+  @Test
+  public void testOrphanReassignment(@TempDir Path dir) throws Exception {
+    Path db = dir.resolve("xig.db");
+    NpmPackage a = makePackage(dir, "example.a", "1.0.0", URL);
+    NpmPackage b = makePackage(dir, "example.b", "1.0.0", URL);
+
+    XIGDatabaseBuilder builder = new XIGDatabaseBuilder(db.toString(), true, "today");
+    builder.startRun();
+    load(builder, a);
+    load(builder, b);
+    builder.finish(true);
+    String keyA = query(db, "select PackageKey from Packages where PID = 'example.a#1.0.0'");
+    String keyB = query(db, "select PackageKey from Packages where PID = 'example.b#1.0.0'");
+    // b's copy is skipped, but b's claim on the url is kept
+    assertEquals(keyA, query(db, "select PackageKey from Resources where Url = '"+URL+"'"));
+    assertEquals("2", query(db, "select count(*) from UrlClaims where Url = '"+URL+"'"));
+
+    // a is no longer in the registry, so b takes the url over, from the package cache
+    FilesystemPackageCacheManager pcm = Mockito.mock(FilesystemPackageCacheManager.class);
+    Mockito.when(pcm.loadPackage("example.b", "1.0.0")).thenReturn(b);
+    builder = new XIGDatabaseBuilder(db.toString(), false, "today");
+    builder.setPackageCacheManager(pcm);
+    builder.startRun();
+    load(builder, b);
+    builder.finish(true);
+    assertNull(query(db, "select PackageKey from Packages where PID = 'example.a#1.0.0'"));
+    assertEquals("1", query(db, "select count(*) from Resources"));
+    assertEquals(keyB, query(db, "select PackageKey from Resources where Url = '"+URL+"'"));
+    assertNotNull(query(db, "select Json from Contents"));
+  }
+
+  @Test
+  public void testPacked(@TempDir Path dir) throws Exception {
+    Path db = dir.resolve("xig.db");
+    XIGDatabaseBuilder builder = new XIGDatabaseBuilder(db.toString(), true, "today");
+    builder.usePackedContent();
+    builder.startRun();
+    load(builder, makePackage(dir, "example.a", "1.0.0", URL));
+    builder.finish(true);
+    assertEquals("0", query(db, "select count(*) from Contents"));
+    assertEquals("1", query(db, "select count(*) from ContentIndex"));
+
+    // stays packed, without being asked
+    builder = new XIGDatabaseBuilder(db.toString(), false, "today");
+    builder.startRun();
+    load(builder, makePackage(dir, "example.b", "1.0.0", "http://example.org/fhir/CodeSystem/other"));
+    builder.finish(true);
+    assertEquals("0", query(db, "select count(*) from Contents"));
+    assertEquals("2", query(db, "select count(*) from ContentIndex"));
+  }
+
+  @Test
+  public void testPackingAnUnpackedDatabase(@TempDir Path dir) throws Exception {
+    Path db = dir.resolve("xig.db");
+    XIGDatabaseBuilder builder = new XIGDatabaseBuilder(db.toString(), true, "today");
+    builder.startRun();
+    load(builder, makePackage(dir, "example.a", "1.0.0", URL));
+    builder.finish(true);
+
+    XIGDatabaseBuilder unpacked = new XIGDatabaseBuilder(db.toString(), false, "today");
+    assertThrows(IOException.class, () -> unpacked.usePackedContent());
+    unpacked.finish(false);
+    assertEquals("1", query(db, "select count(*) from Contents"));
+  }
+}
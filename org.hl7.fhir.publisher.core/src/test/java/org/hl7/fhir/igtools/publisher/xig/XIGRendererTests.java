@@ -0,0 +1,98 @@
+package org.hl7.fhir.igtools.publisher.xig;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.hl7.fhir.igtools.publisher.SpecMapManager;
+import org.hl7.fhir.igtools.publisher.loaders.PublisherLoader;
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.model.CanonicalResource;
+import org.hl7.fhir.r5.model.CodeSystem;
+import org.hl7.fhir.r5.model.PackageInformation;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.r5.model.ValueSet;
+import org.hl7.fhir.utilities.npm.FilesystemPackageCacheManager;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class XIGRendererTests {
+
+  private static final int COUNT = 40;
+
+  private static FilesystemPackageCacheManager pcm;
+  private static NpmPackage core;
+  private static SimpleWorkerContext ctxt;
+
+  @BeforeAll
+  public static void setUp() throws IOException {
+    pcm = new FilesystemPackageCacheManager.Builder().build();
+    core = pcm.loadPackage("hl7.fhir.r5.core", "5.0.0");
+    ctxt = new SimpleWorkerContext.SimpleWorkerContextBuilder().fromPackage(core, new PublisherLoader(core, SpecMapManager.fromPackage(core), core.getWebLocation(), null).makeLoader(), true);
+  }
+
+  private static <T extends CanonicalResource> List<T> first(List<T> list) {
+    return list.stream().sorted(Comparator.comparing(CanonicalResource::getUrl)).limit(COUNT).collect(Collectors.toList());
+  }
+
+  // each run gets its own copies, since rendering changes the resources and the information
+  private XIGInformation makeInfo() {
+    XIGInformation info = new XIGInformation();
+    info.setCtxt(ctxt);
+    List<CanonicalResource> list = new ArrayList<>();
+    list.addAll(first(ctxt.fetchResourcesByType(CodeSystem.class)));
+    list.addAll(first(ctxt.fetchResourcesByType(ValueSet.class)));
+    list.addAll(first(ctxt.fetchResourcesByType(StructureDefinition.class)));
+    for (CanonicalResource res : list) {
+      CanonicalResource cr = res.copy();
+      cr.setSourcePackage(new PackageInformation(core));
+      cr.setUserData("pid", core.name()+"#"+core.version());
+      cr.setUserData("purl", core.getWebLocation());
+      cr.setUserData("pname", core.title());
+      cr.setUserData("fver", core.fhirVersion());
+      cr.setUserData("filebase", (cr.fhirType()+"-"+core.name()+"-"+cr.getId()).toLowerCase());
+      info.getResources().put(cr.getUrl(), cr);
+    }
+    info.buildUsageMap();
+    return info;
+  }
+
+  private void render(Path dir, boolean parallel) throws Exception {
+    XIGRenderer renderer = new XIGRenderer(makeInfo(), dir.toString(), "today");
+    renderer.setParallel(parallel);
+    renderer.produce(pcm);
+  }
+
+  private List<Path> files(Path dir) throws IOException {
+    try (Stream<Path> s = Files.walk(dir)) {
+      return s.filter(Files::isRegularFile).map(dir::relativize).sorted().collect(Collectors.toList());
+    }
+  }
+
+  @Test
+  public void testParallelMatchesSerial(@TempDir Path dir) throws Exception {
+    Path serial = Files.createDirectories(dir.resolve("serial"));
+    Path parallel = Files.createDirectories(dir.resolve("parallel"));
+    render(serial, false);
+    render(parallel, true);
+
+    List<Path> names = files(serial);
+    assertTrue(names.contains(Path.of("index.html")));
+    assertTrue(names.stream().filter(p -> p.toString().startsWith("codesystem-")).count() >= COUNT);
+    assertEquals(names, files(parallel));
+    for (Path name : names) {
+      assertArrayEquals(Files.readAllBytes(serial.resolve(name)), Files.readAllBytes(parallel.resolve(name)), name.toString());
+    }
+  }
+}